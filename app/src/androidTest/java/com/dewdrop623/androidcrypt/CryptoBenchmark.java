@@ -0,0 +1,270 @@
+package com.dewdrop623.androidcrypt;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import es.vocali.util.AESCrypt;
+
+/**
+ * Throughput of the different native I/O paths on a large file in the app cache directory.
+ * Results are printed to logcat under the tag CryptoBenchmark.
+ * The file size defaults to 256 MiB. Use a multi-GB file with:
+ * adb shell am instrument -w -e class com.dewdrop623.androidcrypt.CryptoBenchmark -e benchmarkSizeMiB 4096 com.dewdrop623.androidcrypt.test/androidx.test.runner.AndroidJUnitRunner
+ * The small file batch benchmark encrypts SMALL_FILE_COUNT files of SMALL_FILE_BYTES with 1 worker, the old pool of half the cores, and one worker per core.
+ * The java engine benchmark compares AESCrypt with the one block per call loop it used to run, on at most BLOCK_LOOP_MAX_BYTES.
+ */
+@RunWith(AndroidJUnit4.class)
+public class CryptoBenchmark {
+    private static final String TAG = "CryptoBenchmark";
+    private static final String PASSWORD = "benchmark password";
+    private static final int DEFAULT_SIZE_MIB = 256;
+    private static final int SMALL_FILE_COUNT = 64;
+    private static final int SMALL_FILE_BYTES = 2048;
+    //the one block per call loop runs at a few MB/s on slow devices, so it only gets the start of the file
+    private static final long BLOCK_LOOP_MAX_BYTES = 32L * 1024 * 1024;
+
+    private final JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+        @Override
+        public void progressCallback(long totalBytes) {
+            //just benchmarking, do nothing
+        }
+
+        @Override
+        public void completedCallback(int status) {
+            //just benchmarking, do nothing
+        }
+    };
+
+    private File plaintextFile;
+    private File ciphertextFile;
+    private long sizeBytes;
+    private long session;
+
+    @Before
+    public void setup() throws IOException {
+        System.loadLibrary("androidcrypt");
+        session = JNIInterface.createSession();
+        Context context = ApplicationProvider.getApplicationContext();
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        sizeBytes = Long.parseLong(arguments.getString("benchmarkSizeMiB", String.valueOf(DEFAULT_SIZE_MIB))) * 1024 * 1024;
+
+        plaintextFile = new File(context.getCacheDir(), "benchmarkPlaintext");
+        ciphertextFile = new File(context.getCacheDir(), "benchmarkCiphertext.aes");
+        byte[] chunk = new byte[JNIInterface.DIRECT_BUFFER_SIZE];
+        new Random().nextBytes(chunk);
+        FileOutputStream fos = new FileOutputStream(plaintextFile);
+        for (long written = 0; written < sizeBytes; written += chunk.length) {
+            fos.write(chunk, 0, (int) Math.min(chunk.length, sizeBytes - written));
+        }
+        fos.close();
+    }
+
+    @After
+    public void cleanup() {
+        JNIInterface.destroySession(session);
+        plaintextFile.delete();
+        ciphertextFile.delete();
+    }
+
+    private void logThroughput(String name, long startNanos) {
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        Log.i(TAG, String.format("%s: %d MiB in %.2f s, %.1f MB/s", name, sizeBytes / (1024 * 1024), seconds, sizeBytes / 1e6 / seconds));
+    }
+
+    @Test
+    public void streamVsFileDescriptorEncrypt() throws IOException {
+        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+
+        FileInputStream inputStream = new FileInputStream(plaintextFile);
+        FileOutputStream outputStream = new FileOutputStream(ciphertextFile);
+        long start = System.nanoTime();
+        boolean successful = JNIInterface.encrypt(session, PASSWORD, JNIInterface.DEFAULT_KEY_ITERATIONS, inputStream, outputStream, jniCallbackInterface, null, sizeBytes);
+        logThroughput("encrypt java streams", start);
+        inputStream.close();
+        outputStream.close();
+        assertThat(successful).isTrue();
+
+        inputStream = new FileInputStream(plaintextFile);
+        outputStream = new FileOutputStream(ciphertextFile);
+        start = System.nanoTime();
+        successful = JNIInterface.encryptDirect(session, PASSWORD, JNIInterface.DEFAULT_KEY_ITERATIONS, inputStream.getChannel(), outputStream.getChannel(), inputBuffer, outputBuffer, jniCallbackInterface, null, sizeBytes);
+        logThroughput("encrypt direct buffers", start);
+        inputStream.close();
+        outputStream.close();
+        assertThat(successful).isTrue();
+
+        ParcelFileDescriptor input = ParcelFileDescriptor.open(plaintextFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        ParcelFileDescriptor output = ParcelFileDescriptor.open(ciphertextFile, ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        start = System.nanoTime();
+        successful = JNIInterface.encryptFd(session, PASSWORD, JNIInterface.DEFAULT_KEY_ITERATIONS, input.getFd(), output.getFd(), 0, jniCallbackInterface, null, sizeBytes);
+        logThroughput("encrypt file descriptors", start);
+        input.close();
+        output.close();
+        assertThat(successful).isTrue();
+
+        input = ParcelFileDescriptor.open(plaintextFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        output = ParcelFileDescriptor.open(ciphertextFile, ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        start = System.nanoTime();
+        successful = JNIInterface.encryptFd(session, PASSWORD, JNIInterface.DEFAULT_KEY_ITERATIONS, input.getFd(), output.getFd(), JNIInterface.IO_FLAG_MMAP_INPUT, jniCallbackInterface, null, sizeBytes);
+        logThroughput("encrypt file descriptors, mmap input", start);
+        input.close();
+        output.close();
+        assertThat(successful).isTrue();
+
+        input = ParcelFileDescriptor.open(plaintextFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        output = ParcelFileDescriptor.open(ciphertextFile, ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        start = System.nanoTime();
+        successful = JNIInterface.encryptFd(session, PASSWORD, JNIInterface.DEFAULT_KEY_ITERATIONS, input.getFd(), output.getFd(), JNIInterface.IO_FLAG_PIPELINED, jniCallbackInterface, null, sizeBytes);
+        logThroughput("encrypt file descriptors, pipelined", start);
+        input.close();
+        output.close();
+        assertThat(successful).isTrue();
+    }
+
+    @Test
+    public void aesCryptJavaEngine() throws Exception {
+        AESCrypt aesCrypt = new AESCrypt(PASSWORD);
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(plaintextFile));
+        OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(ciphertextFile));
+        long start = System.nanoTime();
+        aesCrypt.encrypt(2, inputStream, outputStream);
+        outputStream.flush();
+        logThroughput("encrypt AESCrypt java engine", start);
+        inputStream.close();
+        outputStream.close();
+
+        File decryptedFile = new File(plaintextFile.getPath() + ".decrypted");
+        inputStream = new BufferedInputStream(new FileInputStream(ciphertextFile));
+        outputStream = new BufferedOutputStream(new FileOutputStream(decryptedFile));
+        start = System.nanoTime();
+        aesCrypt.decrypt(inputStream, outputStream);
+        outputStream.flush();
+        logThroughput("decrypt AESCrypt java engine", start);
+        inputStream.close();
+        outputStream.close();
+        assertThat(decryptedFile.length()).isEqualTo(sizeBytes);
+        decryptedFile.delete();
+
+        //what AESCrypt did before: a cipher, hmac and stream call for every 16 byte block
+        long blockLoopBytes = Math.min(sizeBytes, BLOCK_LOOP_MAX_BYTES);
+        Random random = new Random();
+        byte[] key = new byte[32];
+        byte[] iv = new byte[16];
+        random.nextBytes(key);
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        Mac hmac = Mac.getInstance("HmacSHA256");
+        hmac.init(new SecretKeySpec(key, "HmacSHA256"));
+        byte[] text = new byte[16];
+        inputStream = new BufferedInputStream(new FileInputStream(plaintextFile));
+        outputStream = new BufferedOutputStream(new FileOutputStream(ciphertextFile));
+        start = System.nanoTime();
+        for (long read = 0; read < blockLoopBytes && inputStream.read(text) > 0; read += text.length) {
+            cipher.update(text, 0, text.length, text);
+            hmac.update(text);
+            outputStream.write(text);
+        }
+        hmac.doFinal();
+        outputStream.flush();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Log.i(TAG, String.format("encrypt one block per call: %d MiB in %.2f s, %.1f MB/s", blockLoopBytes / (1024 * 1024), seconds, blockLoopBytes / 1e6 / seconds));
+        inputStream.close();
+        outputStream.close();
+    }
+
+    /*
+    * Encrypt every file in inputFiles on workerCount threads, each with its own native session, and log the files per second.
+     */
+    private void encryptSmallFiles(final File[] inputFiles, int workerCount) throws Exception {
+        final AtomicInteger nextFile = new AtomicInteger(0);
+        final AtomicInteger failures = new AtomicInteger(0);
+        Thread[] workers = new Thread[workerCount];
+        long start = System.nanoTime();
+        for (int w = 0; w < workerCount; w++) {
+            workers[w] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long workerSession = JNIInterface.createSession();
+                    int i;
+                    while ((i = nextFile.getAndIncrement()) < inputFiles.length) {
+                        File outputFile = new File(inputFiles[i].getPath() + ".aes");
+                        try {
+                            ParcelFileDescriptor input = ParcelFileDescriptor.open(inputFiles[i], ParcelFileDescriptor.MODE_READ_ONLY);
+                            ParcelFileDescriptor output = ParcelFileDescriptor.open(outputFile, ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+                            if (!JNIInterface.encryptFd(workerSession, PASSWORD, JNIInterface.DEFAULT_KEY_ITERATIONS, input.getFd(), output.getFd(), 0, jniCallbackInterface, null, SMALL_FILE_BYTES)) {
+                                failures.incrementAndGet();
+                            }
+                            input.close();
+                            output.close();
+                        } catch (IOException ioe) {
+                            failures.incrementAndGet();
+                        }
+                        outputFile.delete();
+                    }
+                    JNIInterface.destroySession(workerSession);
+                }
+            });
+            workers[w].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Log.i(TAG, String.format("%d small files, %d workers: %.2f s, %.1f files/s", inputFiles.length, workerCount, seconds, inputFiles.length / seconds));
+        assertThat(failures.get()).isEqualTo(0);
+    }
+
+    @Test
+    public void smallFileBatchEncrypt() throws Exception {
+        Context context = ApplicationProvider.getApplicationContext();
+        File[] inputFiles = new File[SMALL_FILE_COUNT];
+        byte[] data = new byte[SMALL_FILE_BYTES];
+        Random random = new Random();
+        for (int i = 0; i < SMALL_FILE_COUNT; i++) {
+            inputFiles[i] = new File(context.getCacheDir(), "benchmarkSmall" + i);
+            random.nextBytes(data);
+            FileOutputStream fos = new FileOutputStream(inputFiles[i]);
+            fos.write(data);
+            fos.close();
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        encryptSmallFiles(inputFiles, 1);
+        encryptSmallFiles(inputFiles, Math.max(1, Math.min(4, cores / 2)));
+        encryptSmallFiles(inputFiles, cores);
+        for (File inputFile : inputFiles) {
+            inputFile.delete();
+        }
+    }
+}
@@ -98,4 +98,39 @@ public class CryptoServiceTest {
         testOutputCiphertextFile.delete();
         testOutputPlaintextFile.delete();
     }
+
+    /**
+     * Start several encryptions without waiting for the previous one to finish. They are queued and all must complete.
+     */
+    @Test
+    public void queuedJobsTest() throws Exception {
+        int jobCount = 3;
+        File[] inputFiles = new File[jobCount];
+        File[] outputFiles = new File[jobCount];
+        for (int i = 0; i < jobCount; i++) {
+            inputFiles[i] = new File(context.getCacheDir(), "queuedInput" + i + ".txt");
+            FileOutputStream fos = new FileOutputStream(inputFiles[i]);
+            fos.write(("androidcrypt queued test file " + i).getBytes(StandardCharsets.UTF_8));
+            fos.close();
+            outputFiles[i] = new File(context.getCacheDir(), "queuedInput" + i + ".txt.aes");
+
+            Intent intent = new Intent(context, CryptoService.class);
+            intent.putExtra(CryptoService.INPUT_FILE_URI_EXTRA_KEY, Uri.fromFile(inputFiles[i]).toString());
+            intent.putExtra(CryptoService.OUTPUT_FILE_URI_EXTRA_KEY, Uri.fromFile(outputFiles[i]).toString());
+            intent.putExtra(CryptoService.OPERATION_TYPE_EXTRA_KEY, CryptoThread.OPERATION_TYPE_ENCRYPTION);
+            intent.putExtra(CryptoService.DELETE_INPUT_FILE_KEY, false);
+            MainActivityFragment.setPassword(password.toCharArray());
+            context.startService(intent);
+        }
+
+        // let service go for a while
+        Thread.sleep(jobCount * 20 * 1000);
+
+        assertThat(CryptoThread.isOperationInProgress()).isFalse();
+        for (int i = 0; i < jobCount; i++) {
+            failIfFileNotExist(Uri.fromFile(outputFiles[i]));
+            inputFiles[i].delete();
+            outputFiles[i].delete();
+        }
+    }
 }
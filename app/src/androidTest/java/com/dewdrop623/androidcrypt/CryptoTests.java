@@ -1,25 +1,51 @@
 package com.dewdrop623.androidcrypt;
 
 import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
 
+import android.content.Context;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+
+import androidx.test.core.app.ApplicationProvider;
 import androidx.test.runner.AndroidJUnit4;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 
+import es.vocali.util.AESCrypt;
+
 @RunWith(AndroidJUnit4.class)
 public class CryptoTests {
     private int bufferSizeBytes = 1049000;//1 MiB, defined in androidcrypt.cpp as a const int
+    private long session;
 
     @Before
     public void loadLibrary() {
         System.loadLibrary("androidcrypt");
+        session = JNIInterface.createSession();
+    }
+
+    @After
+    public void destroySession() {
+        JNIInterface.destroySession(session);
     }
 
     /**
@@ -42,18 +68,56 @@ public class CryptoTests {
             }
         };
         LogStream logStream = new LogStream("JNI Execution");
-        long progressFrequencyBytes = 100;
-        boolean encryptSuccessful = JNIInterface.encrypt(password, inputStream, cipherTextOutputStream, jniCallbackInterface, logStream, progressFrequencyBytes);
+        long progressIntervalMillis = 100;
+        boolean encryptSuccessful = JNIInterface.encrypt(session, password, JNIInterface.DEFAULT_KEY_ITERATIONS, inputStream, cipherTextOutputStream, jniCallbackInterface, logStream, progressIntervalMillis);
         assertThat(encryptSuccessful).isEqualTo(true);
         byte[] encryptedBytes = cipherTextOutputStream.toByteArray();
         InputStream cipherTextInputStream = new ByteArrayInputStream(encryptedBytes);
         ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
-        boolean decryptSuccessful = JNIInterface.decrypt(password, cipherTextInputStream, plaintextOutputStream, jniCallbackInterface, logStream, progressFrequencyBytes);
+        boolean decryptSuccessful = JNIInterface.decrypt(session, password, cipherTextInputStream, plaintextOutputStream, jniCallbackInterface, logStream, progressIntervalMillis);
         assertThat(decryptSuccessful).isEqualTo(true);
 
         byte[] recoveredPlaintext = plaintextOutputStream.toByteArray();
         assertThat(recoveredPlaintext).isEqualTo(inputData);
     }
+    /**
+     * Test that inputData encrypted through the direct buffer path can be decrypted through the stream path, and the other way around.
+     * The same pair of direct buffers is reused for every call.
+     */
+    private void testDirectEncryption(byte[] inputData, String password) {
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //just testing, do nothing
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        LogStream logStream = new LogStream("JNI Execution");
+        long progressIntervalMillis = 100;
+        ByteBuffer inputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        ByteBuffer outputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+
+        ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+        boolean encryptSuccessful = JNIInterface.encryptDirect(session, password, JNIInterface.DEFAULT_KEY_ITERATIONS, Channels.newChannel(new ByteArrayInputStream(inputData)), Channels.newChannel(cipherTextOutputStream), inputBuffer, outputBuffer, jniCallbackInterface, logStream, progressIntervalMillis);
+        assertThat(encryptSuccessful).isEqualTo(true);
+        ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+        boolean decryptSuccessful = JNIInterface.decrypt(session, password, new ByteArrayInputStream(cipherTextOutputStream.toByteArray()), plaintextOutputStream, jniCallbackInterface, logStream, progressIntervalMillis);
+        assertThat(decryptSuccessful).isEqualTo(true);
+        assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+
+        cipherTextOutputStream = new ByteArrayOutputStream();
+        encryptSuccessful = JNIInterface.encrypt(session, password, JNIInterface.DEFAULT_KEY_ITERATIONS, new ByteArrayInputStream(inputData), cipherTextOutputStream, jniCallbackInterface, logStream, progressIntervalMillis);
+        assertThat(encryptSuccessful).isEqualTo(true);
+        plaintextOutputStream = new ByteArrayOutputStream();
+        decryptSuccessful = JNIInterface.decryptDirect(session, password, Channels.newChannel(new ByteArrayInputStream(cipherTextOutputStream.toByteArray())), Channels.newChannel(plaintextOutputStream), inputBuffer, outputBuffer, jniCallbackInterface, logStream, progressIntervalMillis);
+        assertThat(decryptSuccessful).isEqualTo(true);
+        assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+    }
+
     @Test
     public void stringEncryptDecryptTest() {
         String password = "test-password";
@@ -95,4 +159,388 @@ public class CryptoTests {
         random.nextBytes(inputData);
         testEncryption(inputData, password);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void directBufferTest() {
+        String password = "u7#Lr0.direct";
+        Random random = new Random();
+        for (int size : new int[]{0, 1, bufferSizeBytes - 1, bufferSizeBytes, bufferSizeBytes * 3 + 17}) {
+            byte[] inputData = new byte[size];
+            random.nextBytes(inputData);
+            testDirectEncryption(inputData, password);
+        }
+    }
+
+    /**
+     * Test that progress is coalesced by time: with an interval longer than the operation, the only progress callback is the final total.
+     */
+    @Test
+    public void progressCoalescingTest() {
+        byte[] inputData = new byte[bufferSizeBytes * 5];
+        new Random().nextBytes(inputData);
+        List<Long> progressTotals = new ArrayList<>();
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                progressTotals.add(totalBytes);
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        long oneHourMillis = 60 * 60 * 1000;
+        boolean encryptSuccessful = JNIInterface.encrypt(session, "progress", JNIInterface.DEFAULT_KEY_ITERATIONS, new ByteArrayInputStream(inputData), new ByteArrayOutputStream(), jniCallbackInterface, new LogStream("JNI Execution"), oneHourMillis);
+        assertThat(encryptSuccessful).isEqualTo(true);
+        assertThat(progressTotals).containsExactly((long) inputData.length);
+    }
+
+    /**
+     * Test that the native code writes the final byte count and phase into a SharedProgress without any progress callbacks.
+     */
+    @Test
+    public void sharedProgressTest() {
+        byte[] inputData = new byte[bufferSizeBytes * 3 + 7];
+        new Random().nextBytes(inputData);
+        SharedProgress sharedProgress = new SharedProgress();
+        JNIInterface.setProgressBuffer(session, sharedProgress.getBuffer());
+        List<Long> progressTotals = new ArrayList<>();
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                progressTotals.add(totalBytes);
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        boolean encryptSuccessful = JNIInterface.encrypt(session, "progress", JNIInterface.DEFAULT_KEY_ITERATIONS, new ByteArrayInputStream(inputData), new ByteArrayOutputStream(), jniCallbackInterface, new LogStream("JNI Execution"), JNIInterface.NO_PROGRESS_CALLBACKS);
+        JNIInterface.setProgressBuffer(session, null);
+        assertThat(encryptSuccessful).isEqualTo(true);
+        assertThat(progressTotals).isEmpty();
+        assertThat(sharedProgress.getBytesProcessed()).isEqualTo(inputData.length);
+        assertThat(sharedProgress.getPhase()).isEqualTo(SharedProgress.PHASE_FINISHED);
+    }
+
+    /*
+    * The java side estimate: after the rate drops the smoothed current throughput falls below the average since the start,
+    * and a job estimates its time to completion from it.
+     */
+    @Test
+    public void throughputEstimateTest() throws InterruptedException {
+        CryptoJob job = new CryptoJob(CryptoThread.OPERATION_TYPE_ENCRYPTION);
+        job.setFileSize(100L * 1024 * 1024);
+        assertThat(job.getTimeToCompletion()).isEqualTo(new int[]{-1, -1});
+        long bytesProcessed = 0;
+        for (int i = 0; i < 40; i++) {
+            bytesProcessed += i < 20 ? 1024 * 1024 : 64 * 1024;
+            job.setBytesProcessed(bytesProcessed);
+            Thread.sleep(100);
+        }
+        assertThat(job.getSharedProgress().getPhase()).isEqualTo(SharedProgress.PHASE_PROCESSING);
+        assertThat(job.getCurrentBytesPerSecond()).isGreaterThan(0L);
+        assertThat(job.getCurrentBytesPerSecond()).isLessThan(job.getAverageBytesPerSecond());
+        int[] timeToCompletion = job.getTimeToCompletion();
+        assertThat(timeToCompletion[0] * 60 + timeToCompletion[1]).isGreaterThan(0);
+    }
+
+    @Test
+    public void fileDescriptorTest() throws IOException {
+        testFileDescriptorEncryption(0);
+    }
+
+    @Test
+    public void mmapInputTest() throws IOException {
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_MMAP_INPUT);
+    }
+
+    @Test
+    public void pipelinedTest() throws IOException {
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_PIPELINED);
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_PIPELINED | JNIInterface.IO_FLAG_MMAP_INPUT);
+    }
+
+    @Test
+    public void stageTimesTest() throws IOException {
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_PIPELINED);
+        //times of the decryption, the last operation in the session
+        long[] stageTimes = JNIInterface.getStageTimes(session);
+        assertThat(stageTimes[JNIInterface.STAGE_TIME_READ]).isGreaterThan(0L);
+        assertThat(stageTimes[JNIInterface.STAGE_TIME_ENGINE]).isGreaterThan(0L);
+        assertThat(stageTimes[JNIInterface.STAGE_TIME_WRITE]).isGreaterThan(0L);
+    }
+
+    @Test
+    public void metricsTest() throws IOException {
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_PIPELINED);
+        long[] metrics = JNIInterface.getMetrics(session);
+        assertThat(metrics[JNIInterface.METRIC_KEY_DERIVATION_NANOS]).isGreaterThan(0L);
+        //the decryption reads the whole encrypted file, more than the plaintext
+        assertThat(metrics[JNIInterface.METRIC_BYTES_PROCESSED]).isGreaterThan((long) bufferSizeBytes * 20);
+        assertThat(metrics[JNIInterface.METRIC_READ_CHUNKS]).isGreaterThan(0L);
+        assertThat(metrics[JNIInterface.METRIC_WRITE_CHUNKS]).isGreaterThan(0L);
+        //at least the completion callback
+        assertThat(metrics[JNIInterface.METRIC_UPCALLS]).isAtLeast(1L);
+        assertThat(metrics[JNIInterface.METRIC_BUFFER_BYTES]).isGreaterThan(0L);
+    }
+
+    /*
+    * The java engine decrypts a stream without knowing its length, here one that returns a few bytes per read,
+    * and its version 2 output decrypts with the native engine too.
+     */
+    @Test
+    public void aesCryptStreamingDecryptTest() throws Exception {
+        Random random = new Random();
+        for (int size : new int[]{0, 1, 16, 64 * 1024, 64 * 1024 + 17, bufferSizeBytes * 2 + 5}) {
+            byte[] inputData = new byte[size];
+            random.nextBytes(inputData);
+            AESCrypt aesCrypt = new AESCrypt("streaming");
+            ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+            aesCrypt.encrypt(2, new ByteArrayInputStream(inputData), cipherTextOutputStream);
+            byte[] cipherText = cipherTextOutputStream.toByteArray();
+
+            InputStream trickleInputStream = new FilterInputStream(new ByteArrayInputStream(cipherText)) {
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return super.read(b, off, Math.min(len, 7));
+                }
+            };
+            ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+            aesCrypt.decrypt(trickleInputStream, plaintextOutputStream);
+            assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+
+            JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+                @Override
+                public void progressCallback(long totalBytes) {
+                    //just testing, do nothing
+                }
+
+                @Override
+                public void completedCallback(int status) {
+                    //just testing, do nothing
+                }
+            };
+            plaintextOutputStream = new ByteArrayOutputStream();
+            assertThat(JNIInterface.decrypt(session, "streaming", new ByteArrayInputStream(cipherText), plaintextOutputStream, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS)).isTrue();
+            assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+        }
+    }
+
+    /*
+    * What either CryptoEngine encrypts the other decrypts, and both report a wrong password and an altered file the same way.
+    * The JCA engine needs PBKDF2WithHmacSHA512 for version 3, there from Android 8.0 on.
+     */
+    @Test
+    public void cryptoEngineTest() {
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O);
+        CryptoEngine[] engines = {CryptoEngines.get(NativeCryptoEngine.NAME), CryptoEngines.get(JcaCryptoEngine.NAME)};
+        Random random = new Random();
+        for (int size : new int[]{0, 15, 16, 64 * 1024, bufferSizeBytes * 2 + 5}) {
+            byte[] inputData = new byte[size];
+            random.nextBytes(inputData);
+            for (CryptoEngine encryptionEngine : engines) {
+                ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+                assertThat(encryptionEngine.encrypt(null, "engine", KeyIterationCalibrator.MIN_KEY_ITERATIONS, new ByteArrayInputStream(inputData), cipherTextOutputStream))
+                        .isEqualTo(CryptoEngine.STATUS_ENCRYPTION_COMPLETED);
+                byte[] cipherText = cipherTextOutputStream.toByteArray();
+                for (CryptoEngine decryptionEngine : engines) {
+                    ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+                    assertThat(decryptionEngine.decrypt(null, "engine", new ByteArrayInputStream(cipherText), plaintextOutputStream))
+                            .isEqualTo(CryptoEngine.STATUS_DECRYPTION_COMPLETED);
+                    assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+                    assertThat(decryptionEngine.verify(null, "wrong", new ByteArrayInputStream(cipherText)))
+                            .isEqualTo(CryptoEngine.STATUS_DECRYPTION_INVALID_PASSWORD);
+                    byte[] alteredCipherText = cipherText.clone();
+                    alteredCipherText[alteredCipherText.length - 40] ^= 1;
+                    assertThat(decryptionEngine.verify(null, "engine", new ByteArrayInputStream(alteredCipherText)))
+                            .isAnyOf(CryptoEngine.STATUS_ALTERED_MESSAGE, CryptoEngine.STATUS_INVALID_STREAM);
+                }
+            }
+        }
+    }
+
+    /*
+    * Without a logStream the engine logs to logcat from native code, at every level and with logging off.
+     */
+    @Test
+    public void nativeLogTest() throws IOException {
+        byte[] inputData = new byte[bufferSizeBytes + 3];
+        new Random().nextBytes(inputData);
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //just testing, do nothing
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        try {
+            for (int level : new int[]{JNIInterface.LOG_LEVEL_NONE, JNIInterface.LOG_LEVEL_DEBUG}) {
+                JNIInterface.setLogLevel(level);
+                ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+                ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+                assertThat(JNIInterface.encrypt(session, "log", KeyIterationCalibrator.MIN_KEY_ITERATIONS, new ByteArrayInputStream(inputData), cipherTextOutputStream, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS)).isTrue();
+                assertThat(JNIInterface.decrypt(session, "log", new ByteArrayInputStream(cipherTextOutputStream.toByteArray()), plaintextOutputStream, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS)).isTrue();
+                assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+            }
+        } finally {
+            JNIInterface.setLogLevel(JNIInterface.LOG_LEVEL_WARNING);
+        }
+    }
+
+    @Test
+    public void sessionCountTest() {
+        int sessionCount = JNIInterface.getSessionCount();
+        long otherSession = JNIInterface.createSession();
+        assertThat(JNIInterface.getSessionCount()).isEqualTo(sessionCount + 1);
+        JNIInterface.destroySession(otherSession);
+        assertThat(JNIInterface.getSessionCount()).isEqualTo(sessionCount);
+    }
+
+    @Test
+    public void parallelDecryptTest() throws IOException {
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_PARALLEL_DECRYPT);
+        testFileDescriptorEncryption(JNIInterface.IO_FLAG_PARALLEL_DECRYPT | JNIInterface.IO_FLAG_PIPELINED | JNIInterface.IO_FLAG_MMAP_INPUT);
+    }
+
+    /**
+     * Test that a file encrypted and decrypted through the file descriptor path matches the original, using the given JNIInterface.IO_FLAG_X flags.
+     */
+    private void testFileDescriptorEncryption(int ioFlags) throws IOException {
+        String password = "fd-éè-password";
+        byte[] inputData = new byte[bufferSizeBytes * 20 + 5];
+        new Random().nextBytes(inputData);
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //just testing, do nothing
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        LogStream logStream = new LogStream("JNI Execution");
+        Context context = ApplicationProvider.getApplicationContext();
+        File plaintextFile = new File(context.getCacheDir(), "fdTestPlaintext");
+        File ciphertextFile = new File(context.getCacheDir(), "fdTestCiphertext.aes");
+        File recoveredFile = new File(context.getCacheDir(), "fdTestRecovered");
+        FileOutputStream fos = new FileOutputStream(plaintextFile);
+        fos.write(inputData);
+        fos.close();
+
+        ParcelFileDescriptor input = ParcelFileDescriptor.open(plaintextFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        ParcelFileDescriptor output = ParcelFileDescriptor.open(ciphertextFile, ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        boolean encryptSuccessful = JNIInterface.encryptFd(session, password, JNIInterface.DEFAULT_KEY_ITERATIONS, input.getFd(), output.getFd(), ioFlags, jniCallbackInterface, logStream, 100);
+        input.close();
+        output.close();
+        assertThat(encryptSuccessful).isEqualTo(true);
+
+        input = ParcelFileDescriptor.open(ciphertextFile, ParcelFileDescriptor.MODE_READ_ONLY);
+        output = ParcelFileDescriptor.open(recoveredFile, ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE);
+        boolean decryptSuccessful = JNIInterface.decryptFd(session, password, input.getFd(), output.getFd(), ioFlags, jniCallbackInterface, logStream, 100);
+        input.close();
+        output.close();
+        assertThat(decryptSuccessful).isEqualTo(true);
+
+        byte[] recoveredPlaintext = new byte[(int) recoveredFile.length()];
+        FileInputStream fis = new FileInputStream(recoveredFile);
+        int offset = 0;
+        while (offset < recoveredPlaintext.length) {
+            offset += fis.read(recoveredPlaintext, offset, recoveredPlaintext.length - offset);
+        }
+        fis.close();
+        assertThat(recoveredPlaintext).isEqualTo(inputData);
+
+        plaintextFile.delete();
+        ciphertextFile.delete();
+        recoveredFile.delete();
+    }
+
+    /**
+     * Test that a speculative encryption can be taken and written out once, and that its output decrypts to the original file.
+     */
+    @Test
+    public void speculativeEncryptionTest() throws IOException {
+        String password = "speculative password";
+        byte[] inputData = new byte[5000];
+        new Random().nextBytes(inputData);
+        Context context = ApplicationProvider.getApplicationContext();
+        File plaintextFile = new File(context.getCacheDir(), "speculativePlaintext");
+        FileOutputStream fos = new FileOutputStream(plaintextFile);
+        fos.write(inputData);
+        fos.close();
+        Uri plaintextUri = Uri.fromFile(plaintextFile);
+
+        SpeculativeCrypto.start(context, plaintextUri, CryptoThread.OPERATION_TYPE_ENCRYPTION, password);
+        //different inputs don't get the speculative result
+        assertThat(SpeculativeCrypto.take(plaintextUri, CryptoThread.OPERATION_TYPE_ENCRYPTION, "other password", SettingsHelper.getKeyIterations(context))).isNull();
+        SpeculativeCrypto speculation = SpeculativeCrypto.take(plaintextUri, CryptoThread.OPERATION_TYPE_ENCRYPTION, password, SettingsHelper.getKeyIterations(context));
+        assertThat(speculation).isNotNull();
+        assertThat(speculation.await()).isTrue();
+        assertThat(speculation.getStatus()).isEqualTo(1);
+        ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+        speculation.writeOutput(cipherTextOutputStream);
+        speculation.wipe();
+        //it can only be used once
+        assertThat(SpeculativeCrypto.take(plaintextUri, CryptoThread.OPERATION_TYPE_ENCRYPTION, password, SettingsHelper.getKeyIterations(context))).isNull();
+
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //just testing, do nothing
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+        boolean decryptSuccessful = JNIInterface.decrypt(session, password, new ByteArrayInputStream(cipherTextOutputStream.toByteArray()), plaintextOutputStream, jniCallbackInterface, new LogStream("JNI Execution"), 100);
+        assertThat(decryptSuccessful).isEqualTo(true);
+        assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+
+        plaintextFile.delete();
+    }
+
+    /**
+     * Test that the calibrated iteration count is within bounds, and that a file encrypted with a non default count decrypts (the count is read from the header).
+     */
+    @Test
+    public void keyIterationCalibrationTest() {
+        int keyIterations = KeyIterationCalibrator.measureKeyIterations();
+        assertThat(keyIterations).isAtLeast(KeyIterationCalibrator.MIN_KEY_ITERATIONS);
+        assertThat(keyIterations).isAtMost(KeyIterationCalibrator.MAX_KEY_ITERATIONS);
+
+        String password = "calibrated password";
+        byte[] inputData = new byte[3000];
+        new Random().nextBytes(inputData);
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //just testing, do nothing
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //just testing, do nothing
+            }
+        };
+        LogStream logStream = new LogStream("JNI Execution");
+        ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+        boolean encryptSuccessful = JNIInterface.encrypt(session, password, KeyIterationCalibrator.MIN_KEY_ITERATIONS, new ByteArrayInputStream(inputData), cipherTextOutputStream, jniCallbackInterface, logStream, 100);
+        assertThat(encryptSuccessful).isEqualTo(true);
+        ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+        boolean decryptSuccessful = JNIInterface.decrypt(session, password, new ByteArrayInputStream(cipherTextOutputStream.toByteArray()), plaintextOutputStream, jniCallbackInterface, logStream, 100);
+        assertThat(decryptSuccessful).isEqualTo(true);
+        assertThat(plaintextOutputStream.toByteArray()).isEqualTo(inputData);
+    }
+}
@@ -0,0 +1,334 @@
+#include "aes_backend.h"
+
+#include <cstring>
+
+#if defined(__aarch64__)
+#include <sys/auxv.h>
+#ifndef HWCAP_AES
+#define HWCAP_AES (1 << 3)
+#endif
+#endif
+
+#if defined(__x86_64__)
+#include <cpuid.h>
+#endif
+
+namespace {
+
+/*
+ * Lookup tables for the portable backend, generated once on first use.
+ * te[0] holds the S-box output times (2, 1, 1, 3) packed big endian, te[1..3] are it rotated a byte at a time,
+ * td is the same for the inverse S-box times (14, 9, 13, 11). Table lookups depend on the data, so this backend
+ * is only used on CPUs without AES instructions.
+ */
+struct AESTables {
+    std::uint8_t sbox[256];
+    std::uint8_t inverseSbox[256];
+    std::uint32_t te[4][256];
+    std::uint32_t td[4][256];
+
+    AESTables() {
+        //walk the multiplicative group with generator 3 to get every inverse, then apply the affine transformation
+        std::uint8_t p = 1, q = 1;
+        do {
+            p = p ^ static_cast<std::uint8_t>(p << 1) ^ ((p & 0x80) ? 0x1B : 0);
+            q ^= q << 1;
+            q ^= q << 2;
+            q ^= q << 4;
+            if (q & 0x80) {
+                q ^= 0x09;
+            }
+            std::uint8_t s = q ^ rotl8(q, 1) ^ rotl8(q, 2) ^ rotl8(q, 3) ^ rotl8(q, 4) ^ 0x63;
+            sbox[p] = s;
+        } while (p != 1);
+        sbox[0] = 0x63;
+        for (int i = 0; i < 256; i++) {
+            inverseSbox[sbox[i]] = static_cast<std::uint8_t>(i);
+        }
+        for (int i = 0; i < 256; i++) {
+            std::uint8_t s = sbox[i];
+            std::uint32_t e = (static_cast<std::uint32_t>(multiply(s, 2)) << 24) | (static_cast<std::uint32_t>(s) << 16)
+                    | (static_cast<std::uint32_t>(s) << 8) | multiply(s, 3);
+            std::uint8_t si = inverseSbox[i];
+            std::uint32_t d = (static_cast<std::uint32_t>(multiply(si, 14)) << 24) | (static_cast<std::uint32_t>(multiply(si, 9)) << 16)
+                    | (static_cast<std::uint32_t>(multiply(si, 13)) << 8) | multiply(si, 11);
+            for (int t = 0; t < 4; t++) {
+                te[t][i] = rotr32(e, 8 * t);
+                td[t][i] = rotr32(d, 8 * t);
+            }
+        }
+    }
+
+    static std::uint8_t rotl8(std::uint8_t x, int shift) {
+        return static_cast<std::uint8_t>((x << shift) | (x >> (8 - shift)));
+    }
+
+    static std::uint32_t rotr32(std::uint32_t x, int shift) {
+        return shift == 0 ? x : (x >> shift) | (x << (32 - shift));
+    }
+
+    //multiplication in GF(2^8)
+    static std::uint8_t multiply(std::uint8_t a, std::uint8_t b) {
+        std::uint8_t product = 0;
+        while (b != 0) {
+            if (b & 1) {
+                product ^= a;
+            }
+            a = static_cast<std::uint8_t>((a << 1) ^ ((a & 0x80) ? 0x1B : 0));
+            b >>= 1;
+        }
+        return product;
+    }
+};
+
+const AESTables & getTables() {
+    static const AESTables tables;
+    return tables;
+}
+
+inline std::uint32_t loadBigEndian(const std::uint8_t * bytes) {
+    return (static_cast<std::uint32_t>(bytes[0]) << 24) | (static_cast<std::uint32_t>(bytes[1]) << 16)
+            | (static_cast<std::uint32_t>(bytes[2]) << 8) | bytes[3];
+}
+
+inline void storeBigEndian(std::uint8_t * bytes, std::uint32_t value) {
+    bytes[0] = static_cast<std::uint8_t>(value >> 24);
+    bytes[1] = static_cast<std::uint8_t>(value >> 16);
+    bytes[2] = static_cast<std::uint8_t>(value >> 8);
+    bytes[3] = static_cast<std::uint8_t>(value);
+}
+
+//FIPS-197 key expansion for a 256 bit key
+void expandKey(const std::uint8_t * key, std::uint8_t * roundKeys) {
+    const AESTables & tables = getTables();
+    std::memcpy(roundKeys, key, AES256_KEY_SIZE);
+    std::uint8_t roundConstant = 1;
+    for (std::size_t i = AES256_KEY_SIZE; i < AES256_ROUND_KEYS_SIZE; i += 4) {
+        std::uint8_t word[4];
+        std::memcpy(word, roundKeys + i - 4, 4);
+        if (i % AES256_KEY_SIZE == 0) {
+            std::uint8_t first = word[0];
+            word[0] = tables.sbox[word[1]] ^ roundConstant;
+            word[1] = tables.sbox[word[2]];
+            word[2] = tables.sbox[word[3]];
+            word[3] = tables.sbox[first];
+            roundConstant = AESTables::multiply(roundConstant, 2);
+        } else if (i % AES256_KEY_SIZE == 16) {
+            for (std::uint8_t & b : word) {
+                b = tables.sbox[b];
+            }
+        }
+        for (int b = 0; b < 4; b++) {
+            roundKeys[i + b] = roundKeys[i + b - AES256_KEY_SIZE] ^ word[b];
+        }
+    }
+}
+
+/*
+ * Equivalent inverse cipher schedule (FIPS-197 5.3.5): the round keys in reverse order with InvMixColumns
+ * applied to all but the first and last. This is the layout AESDEC, AESD and the td tables all expect.
+ */
+void invertKeySchedule(const std::uint8_t * roundKeys, std::uint8_t * decryptionKeys) {
+    for (int round = 0; round <= AES256_ROUNDS; round++) {
+        const std::uint8_t * source = roundKeys + (AES256_ROUNDS - round) * AES_BLOCK_SIZE;
+        std::uint8_t * destination = decryptionKeys + round * AES_BLOCK_SIZE;
+        if (round == 0 || round == AES256_ROUNDS) {
+            std::memcpy(destination, source, AES_BLOCK_SIZE);
+            continue;
+        }
+        for (int column = 0; column < 4; column++) {
+            const std::uint8_t * a = source + 4 * column;
+            std::uint8_t * d = destination + 4 * column;
+            using T = AESTables;
+            d[0] = T::multiply(a[0], 14) ^ T::multiply(a[1], 11) ^ T::multiply(a[2], 13) ^ T::multiply(a[3], 9);
+            d[1] = T::multiply(a[0], 9) ^ T::multiply(a[1], 14) ^ T::multiply(a[2], 11) ^ T::multiply(a[3], 13);
+            d[2] = T::multiply(a[0], 13) ^ T::multiply(a[1], 9) ^ T::multiply(a[2], 14) ^ T::multiply(a[3], 11);
+            d[3] = T::multiply(a[0], 11) ^ T::multiply(a[1], 13) ^ T::multiply(a[2], 9) ^ T::multiply(a[3], 14);
+        }
+    }
+}
+
+void encryptBlock(const AESTables & tables, const std::uint8_t * roundKeys, const std::uint8_t * input, std::uint8_t * output) {
+    std::uint32_t s0 = loadBigEndian(input) ^ loadBigEndian(roundKeys);
+    std::uint32_t s1 = loadBigEndian(input + 4) ^ loadBigEndian(roundKeys + 4);
+    std::uint32_t s2 = loadBigEndian(input + 8) ^ loadBigEndian(roundKeys + 8);
+    std::uint32_t s3 = loadBigEndian(input + 12) ^ loadBigEndian(roundKeys + 12);
+    const std::uint32_t (&te)[4][256] = tables.te;
+    for (int round = 1; round < AES256_ROUNDS; round++) {
+        const std::uint8_t * k = roundKeys + round * AES_BLOCK_SIZE;
+        std::uint32_t t0 = te[0][s0 >> 24] ^ te[1][(s1 >> 16) & 0xFF] ^ te[2][(s2 >> 8) & 0xFF] ^ te[3][s3 & 0xFF] ^ loadBigEndian(k);
+        std::uint32_t t1 = te[0][s1 >> 24] ^ te[1][(s2 >> 16) & 0xFF] ^ te[2][(s3 >> 8) & 0xFF] ^ te[3][s0 & 0xFF] ^ loadBigEndian(k + 4);
+        std::uint32_t t2 = te[0][s2 >> 24] ^ te[1][(s3 >> 16) & 0xFF] ^ te[2][(s0 >> 8) & 0xFF] ^ te[3][s1 & 0xFF] ^ loadBigEndian(k + 8);
+        std::uint32_t t3 = te[0][s3 >> 24] ^ te[1][(s0 >> 16) & 0xFF] ^ te[2][(s1 >> 8) & 0xFF] ^ te[3][s2 & 0xFF] ^ loadBigEndian(k + 12);
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+    }
+    const std::uint8_t * k = roundKeys + AES256_ROUNDS * AES_BLOCK_SIZE;
+    const std::uint8_t * sbox = tables.sbox;
+    auto finalColumn = [sbox](std::uint32_t a, std::uint32_t b, std::uint32_t c, std::uint32_t d) {
+        return (static_cast<std::uint32_t>(sbox[a >> 24]) << 24) | (static_cast<std::uint32_t>(sbox[(b >> 16) & 0xFF]) << 16)
+                | (static_cast<std::uint32_t>(sbox[(c >> 8) & 0xFF]) << 8) | sbox[d & 0xFF];
+    };
+    storeBigEndian(output, finalColumn(s0, s1, s2, s3) ^ loadBigEndian(k));
+    storeBigEndian(output + 4, finalColumn(s1, s2, s3, s0) ^ loadBigEndian(k + 4));
+    storeBigEndian(output + 8, finalColumn(s2, s3, s0, s1) ^ loadBigEndian(k + 8));
+    storeBigEndian(output + 12, finalColumn(s3, s0, s1, s2) ^ loadBigEndian(k + 12));
+}
+
+void decryptBlock(const AESTables & tables, const std::uint8_t * decryptionKeys, const std::uint8_t * input, std::uint8_t * output) {
+    std::uint32_t s0 = loadBigEndian(input) ^ loadBigEndian(decryptionKeys);
+    std::uint32_t s1 = loadBigEndian(input + 4) ^ loadBigEndian(decryptionKeys + 4);
+    std::uint32_t s2 = loadBigEndian(input + 8) ^ loadBigEndian(decryptionKeys + 8);
+    std::uint32_t s3 = loadBigEndian(input + 12) ^ loadBigEndian(decryptionKeys + 12);
+    const std::uint32_t (&td)[4][256] = tables.td;
+    for (int round = 1; round < AES256_ROUNDS; round++) {
+        const std::uint8_t * k = decryptionKeys + round * AES_BLOCK_SIZE;
+        std::uint32_t t0 = td[0][s0 >> 24] ^ td[1][(s3 >> 16) & 0xFF] ^ td[2][(s2 >> 8) & 0xFF] ^ td[3][s1 & 0xFF] ^ loadBigEndian(k);
+        std::uint32_t t1 = td[0][s1 >> 24] ^ td[1][(s0 >> 16) & 0xFF] ^ td[2][(s3 >> 8) & 0xFF] ^ td[3][s2 & 0xFF] ^ loadBigEndian(k + 4);
+        std::uint32_t t2 = td[0][s2 >> 24] ^ td[1][(s1 >> 16) & 0xFF] ^ td[2][(s0 >> 8) & 0xFF] ^ td[3][s3 & 0xFF] ^ loadBigEndian(k + 8);
+        std::uint32_t t3 = td[0][s3 >> 24] ^ td[1][(s2 >> 16) & 0xFF] ^ td[2][(s1 >> 8) & 0xFF] ^ td[3][s0 & 0xFF] ^ loadBigEndian(k + 12);
+        s0 = t0;
+        s1 = t1;
+        s2 = t2;
+        s3 = t3;
+    }
+    const std::uint8_t * k = decryptionKeys + AES256_ROUNDS * AES_BLOCK_SIZE;
+    const std::uint8_t * inverseSbox = tables.inverseSbox;
+    auto finalColumn = [inverseSbox](std::uint32_t a, std::uint32_t b, std::uint32_t c, std::uint32_t d) {
+        return (static_cast<std::uint32_t>(inverseSbox[a >> 24]) << 24) | (static_cast<std::uint32_t>(inverseSbox[(b >> 16) & 0xFF]) << 16)
+                | (static_cast<std::uint32_t>(inverseSbox[(c >> 8) & 0xFF]) << 8) | inverseSbox[d & 0xFF];
+    };
+    storeBigEndian(output, finalColumn(s0, s3, s2, s1) ^ loadBigEndian(k));
+    storeBigEndian(output + 4, finalColumn(s1, s0, s3, s2) ^ loadBigEndian(k + 4));
+    storeBigEndian(output + 8, finalColumn(s2, s1, s0, s3) ^ loadBigEndian(k + 8));
+    storeBigEndian(output + 12, finalColumn(s3, s2, s1, s0) ^ loadBigEndian(k + 12));
+}
+
+} // namespace
+
+void portableEncryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) {
+    const AESTables & tables = getTables();
+    std::uint8_t block[AES_BLOCK_SIZE];
+    for (std::size_t i = 0; i < blockCount; i++) {
+        for (std::size_t b = 0; b < AES_BLOCK_SIZE; b++) {
+            block[b] = input[b] ^ iv[b];
+        }
+        encryptBlock(tables, roundKeys, block, iv);
+        std::memcpy(output, iv, AES_BLOCK_SIZE);
+        input += AES_BLOCK_SIZE;
+        output += AES_BLOCK_SIZE;
+    }
+}
+
+void portableDecryptCBC(const std::uint8_t * decryptionKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) {
+    const AESTables & tables = getTables();
+    std::uint8_t ciphertext[AES_BLOCK_SIZE];
+    std::uint8_t block[AES_BLOCK_SIZE];
+    for (std::size_t i = 0; i < blockCount; i++) {
+        //copied first so input and output can be the same buffer
+        std::memcpy(ciphertext, input, AES_BLOCK_SIZE);
+        decryptBlock(tables, decryptionKeys, ciphertext, block);
+        for (std::size_t b = 0; b < AES_BLOCK_SIZE; b++) {
+            output[b] = block[b] ^ iv[b];
+        }
+        std::memcpy(iv, ciphertext, AES_BLOCK_SIZE);
+        input += AES_BLOCK_SIZE;
+        output += AES_BLOCK_SIZE;
+    }
+}
+
+bool isAESBackendSupported(AESBackend backend) {
+    switch (backend) {
+        case AESBackend::Portable:
+            return true;
+        case AESBackend::AESNI: {
+#if defined(__x86_64__)
+            unsigned int eax, ebx, ecx, edx;
+            return __get_cpuid(1, &eax, &ebx, &ecx, &edx) && (ecx & bit_AES) != 0;
+#else
+            return false;
+#endif
+        }
+        case AESBackend::ARMv8:
+#if defined(__aarch64__)
+            return (getauxval(AT_HWCAP) & HWCAP_AES) != 0;
+#else
+            return false;
+#endif
+    }
+    return false;
+}
+
+AESBackend detectAESBackend() {
+    static const AESBackend detected = isAESBackendSupported(AESBackend::ARMv8) ? AESBackend::ARMv8
+            : isAESBackendSupported(AESBackend::AESNI) ? AESBackend::AESNI
+            : AESBackend::Portable;
+    return detected;
+}
+
+const char * getAESBackendName(AESBackend backend) {
+    switch (backend) {
+        case AESBackend::Portable:
+            return "portable";
+        case AESBackend::AESNI:
+            return "AES-NI";
+        case AESBackend::ARMv8:
+            return "ARMv8 Crypto Extensions";
+    }
+    return "unknown";
+}
+
+AES256CBC::AES256CBC(const std::uint8_t * key) : AES256CBC(key, detectAESBackend()) {}
+
+AES256CBC::AES256CBC(const std::uint8_t * key, AESBackend backend) : backend(backend) {
+    expandKey(key, encryptionKeys);
+    invertKeySchedule(encryptionKeys, decryptionKeys);
+}
+
+AES256CBC::~AES256CBC() {
+    //volatile so the compiler can't drop the wipe of memory that is about to be freed
+    volatile std::uint8_t * keys = encryptionKeys;
+    for (std::size_t i = 0; i < AES256_ROUND_KEYS_SIZE; i++) {
+        keys[i] = 0;
+    }
+    keys = decryptionKeys;
+    for (std::size_t i = 0; i < AES256_ROUND_KEYS_SIZE; i++) {
+        keys[i] = 0;
+    }
+}
+
+void AES256CBC::encrypt(std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) const {
+    switch (backend) {
+#if defined(__x86_64__)
+        case AESBackend::AESNI:
+            aesniEncryptCBC(encryptionKeys, iv, input, output, blockCount);
+            return;
+#endif
+#if defined(__aarch64__)
+        case AESBackend::ARMv8:
+            armv8EncryptCBC(encryptionKeys, iv, input, output, blockCount);
+            return;
+#endif
+        default:
+            portableEncryptCBC(encryptionKeys, iv, input, output, blockCount);
+    }
+}
+
+void AES256CBC::decrypt(std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) const {
+    switch (backend) {
+#if defined(__x86_64__)
+        case AESBackend::AESNI:
+            aesniDecryptCBC(decryptionKeys, iv, input, output, blockCount);
+            return;
+#endif
+#if defined(__aarch64__)
+        case AESBackend::ARMv8:
+            armv8DecryptCBC(decryptionKeys, iv, input, output, blockCount);
+            return;
+#endif
+        default:
+            portableDecryptCBC(decryptionKeys, iv, input, output, blockCount);
+    }
+}
@@ -0,0 +1,73 @@
+#ifndef ANDROIDCRYPT_AES_BACKEND_H
+#define ANDROIDCRYPT_AES_BACKEND_H
+
+#include <cstddef>
+#include <cstdint>
+
+/*
+ * AES-256 in CBC mode with runtime CPU feature dispatch.
+ * The AES Crypt engine in the androidcrypt-cpp submodule has its own AES. This one is for the native code in this
+ * library that processes blocks itself. Both ABIs we ship normally have AES instructions (ARMv8 Crypto Extensions on
+ * arm64-v8a, AES-NI on x86_64) but neither is guaranteed, so the backend is picked when the key is set up:
+ * getauxval(AT_HWCAP) on arm64, CPUID on x86_64, and a portable table based implementation everywhere else.
+ * Every backend uses the same key schedule and gives identical output, tests/aes_backend_test.cpp checks this.
+ */
+enum class AESBackend {
+    Portable,
+    AESNI,
+    ARMv8
+};
+
+const std::size_t AES_BLOCK_SIZE = 16;
+const std::size_t AES256_KEY_SIZE = 32;
+const int AES256_ROUNDS = 14;
+const std::size_t AES256_ROUND_KEYS_SIZE = (AES256_ROUNDS + 1) * AES_BLOCK_SIZE;
+
+//the fastest backend the CPU supports
+AESBackend detectAESBackend();
+bool isAESBackendSupported(AESBackend backend);
+const char * getAESBackendName(AESBackend backend);
+
+class AES256CBC {
+public:
+    explicit AES256CBC(const std::uint8_t * key);
+    //backend must be supported by the CPU, see isAESBackendSupported
+    AES256CBC(const std::uint8_t * key, AESBackend backend);
+    ~AES256CBC();
+    AES256CBC(const AES256CBC &) = delete;
+    AES256CBC & operator=(const AES256CBC &) = delete;
+
+    /*
+     * Encrypt or decrypt blockCount 16 byte blocks from input to output, which may be the same buffer.
+     * iv is replaced by the last ciphertext block, so consecutive calls continue the same CBC chain.
+     * Neither method changes the object, one key can be used from several threads at once.
+     */
+    void encrypt(std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) const;
+    void decrypt(std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) const;
+
+    AESBackend getBackend() const {
+        return backend;
+    }
+private:
+    const AESBackend backend;
+    //round keys in FIPS-197 byte order, decryption keys are the equivalent inverse cipher schedule
+    alignas(16) std::uint8_t encryptionKeys[AES256_ROUND_KEYS_SIZE];
+    alignas(16) std::uint8_t decryptionKeys[AES256_ROUND_KEYS_SIZE];
+};
+
+/*
+ * Per backend CBC loops, defined in aes_backend.cpp, aes_backend_x86.cpp and aes_backend_armv8.cpp.
+ * The hardware ones are compiled with their instruction set enabled and must only be called after the runtime check.
+ */
+void portableEncryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount);
+void portableDecryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount);
+#if defined(__x86_64__)
+void aesniEncryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount);
+void aesniDecryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount);
+#endif
+#if defined(__aarch64__)
+void armv8EncryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount);
+void armv8DecryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount);
+#endif
+
+#endif //ANDROIDCRYPT_AES_BACKEND_H
@@ -0,0 +1,85 @@
+/*
+ * ARMv8 Crypto Extensions backend. This file is compiled with -march=armv8-a+crypto, AES256CBC only calls into it
+ * after getauxval(AT_HWCAP) reports HWCAP_AES. AESE/AESD do AddRoundKey before SubBytes/ShiftRows, so the key
+ * schedule is applied one round earlier than with AES-NI and the last key is a plain XOR.
+ */
+#if defined(__aarch64__)
+
+#include "aes_backend.h"
+
+#include <arm_neon.h>
+
+namespace {
+
+//CBC decryption has no dependency between blocks, so this many are kept in flight to hide the AESD latency
+const std::size_t DECRYPT_INTERLEAVE = 8;
+
+struct RoundKeys {
+    uint8x16_t keys[AES256_ROUNDS + 1];
+
+    explicit RoundKeys(const std::uint8_t * roundKeys) {
+        for (int round = 0; round <= AES256_ROUNDS; round++) {
+            keys[round] = vld1q_u8(roundKeys + round * AES_BLOCK_SIZE);
+        }
+    }
+};
+
+inline uint8x16_t encryptBlock(const RoundKeys & k, uint8x16_t block) {
+    for (int round = 0; round < AES256_ROUNDS - 1; round++) {
+        block = vaesmcq_u8(vaeseq_u8(block, k.keys[round]));
+    }
+    block = vaeseq_u8(block, k.keys[AES256_ROUNDS - 1]);
+    return veorq_u8(block, k.keys[AES256_ROUNDS]);
+}
+
+inline uint8x16_t decryptBlock(const RoundKeys & k, uint8x16_t block) {
+    for (int round = 0; round < AES256_ROUNDS - 1; round++) {
+        block = vaesimcq_u8(vaesdq_u8(block, k.keys[round]));
+    }
+    block = vaesdq_u8(block, k.keys[AES256_ROUNDS - 1]);
+    return veorq_u8(block, k.keys[AES256_ROUNDS]);
+}
+
+} // namespace
+
+void armv8EncryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) {
+    const RoundKeys k(roundKeys);
+    uint8x16_t chain = vld1q_u8(iv);
+    for (std::size_t i = 0; i < blockCount; i++) {
+        chain = encryptBlock(k, veorq_u8(vld1q_u8(input + i * AES_BLOCK_SIZE), chain));
+        vst1q_u8(output + i * AES_BLOCK_SIZE, chain);
+    }
+    vst1q_u8(iv, chain);
+}
+
+void armv8DecryptCBC(const std::uint8_t * decryptionKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) {
+    const RoundKeys k(decryptionKeys);
+    uint8x16_t chain = vld1q_u8(iv);
+    std::size_t i = 0;
+    for (; i + DECRYPT_INTERLEAVE <= blockCount; i += DECRYPT_INTERLEAVE) {
+        uint8x16_t ciphertext[DECRYPT_INTERLEAVE];
+        uint8x16_t blocks[DECRYPT_INTERLEAVE];
+        for (std::size_t b = 0; b < DECRYPT_INTERLEAVE; b++) {
+            ciphertext[b] = vld1q_u8(input + (i + b) * AES_BLOCK_SIZE);
+            blocks[b] = ciphertext[b];
+        }
+        for (int round = 0; round < AES256_ROUNDS - 1; round++) {
+            for (std::size_t b = 0; b < DECRYPT_INTERLEAVE; b++) {
+                blocks[b] = vaesimcq_u8(vaesdq_u8(blocks[b], k.keys[round]));
+            }
+        }
+        for (std::size_t b = 0; b < DECRYPT_INTERLEAVE; b++) {
+            blocks[b] = veorq_u8(vaesdq_u8(blocks[b], k.keys[AES256_ROUNDS - 1]), k.keys[AES256_ROUNDS]);
+            vst1q_u8(output + (i + b) * AES_BLOCK_SIZE, veorq_u8(blocks[b], b == 0 ? chain : ciphertext[b - 1]));
+        }
+        chain = ciphertext[DECRYPT_INTERLEAVE - 1];
+    }
+    for (; i < blockCount; i++) {
+        uint8x16_t ciphertext = vld1q_u8(input + i * AES_BLOCK_SIZE);
+        vst1q_u8(output + i * AES_BLOCK_SIZE, veorq_u8(decryptBlock(k, ciphertext), chain));
+        chain = ciphertext;
+    }
+    vst1q_u8(iv, chain);
+}
+
+#endif
@@ -0,0 +1,78 @@
+/*
+ * AES-NI backend. This file is compiled with -maes, AES256CBC only calls into it after CPUID reports the instructions.
+ */
+#if defined(__x86_64__)
+
+#include "aes_backend.h"
+
+#include <immintrin.h>
+
+namespace {
+
+//CBC decryption has no dependency between blocks, so this many are kept in flight to hide the AESDEC latency
+const std::size_t DECRYPT_INTERLEAVE = 8;
+
+struct RoundKeys {
+    __m128i keys[AES256_ROUNDS + 1];
+
+    explicit RoundKeys(const std::uint8_t * roundKeys) {
+        for (int round = 0; round <= AES256_ROUNDS; round++) {
+            keys[round] = _mm_loadu_si128(reinterpret_cast<const __m128i *>(roundKeys + round * AES_BLOCK_SIZE));
+        }
+    }
+};
+
+} // namespace
+
+void aesniEncryptCBC(const std::uint8_t * roundKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) {
+    const RoundKeys k(roundKeys);
+    __m128i chain = _mm_loadu_si128(reinterpret_cast<const __m128i *>(iv));
+    for (std::size_t i = 0; i < blockCount; i++) {
+        __m128i block = _mm_loadu_si128(reinterpret_cast<const __m128i *>(input + i * AES_BLOCK_SIZE));
+        block = _mm_xor_si128(_mm_xor_si128(block, chain), k.keys[0]);
+        for (int round = 1; round < AES256_ROUNDS; round++) {
+            block = _mm_aesenc_si128(block, k.keys[round]);
+        }
+        chain = _mm_aesenclast_si128(block, k.keys[AES256_ROUNDS]);
+        _mm_storeu_si128(reinterpret_cast<__m128i *>(output + i * AES_BLOCK_SIZE), chain);
+    }
+    _mm_storeu_si128(reinterpret_cast<__m128i *>(iv), chain);
+}
+
+void aesniDecryptCBC(const std::uint8_t * decryptionKeys, std::uint8_t * iv, const std::uint8_t * input, std::uint8_t * output, std::size_t blockCount) {
+    const RoundKeys k(decryptionKeys);
+    __m128i chain = _mm_loadu_si128(reinterpret_cast<const __m128i *>(iv));
+    std::size_t i = 0;
+    for (; i + DECRYPT_INTERLEAVE <= blockCount; i += DECRYPT_INTERLEAVE) {
+        __m128i ciphertext[DECRYPT_INTERLEAVE];
+        __m128i blocks[DECRYPT_INTERLEAVE];
+        for (std::size_t b = 0; b < DECRYPT_INTERLEAVE; b++) {
+            ciphertext[b] = _mm_loadu_si128(reinterpret_cast<const __m128i *>(input + (i + b) * AES_BLOCK_SIZE));
+            blocks[b] = _mm_xor_si128(ciphertext[b], k.keys[0]);
+        }
+        for (int round = 1; round < AES256_ROUNDS; round++) {
+            for (std::size_t b = 0; b < DECRYPT_INTERLEAVE; b++) {
+                blocks[b] = _mm_aesdec_si128(blocks[b], k.keys[round]);
+            }
+        }
+        for (std::size_t b = 0; b < DECRYPT_INTERLEAVE; b++) {
+            blocks[b] = _mm_aesdeclast_si128(blocks[b], k.keys[AES256_ROUNDS]);
+            blocks[b] = _mm_xor_si128(blocks[b], b == 0 ? chain : ciphertext[b - 1]);
+            _mm_storeu_si128(reinterpret_cast<__m128i *>(output + (i + b) * AES_BLOCK_SIZE), blocks[b]);
+        }
+        chain = ciphertext[DECRYPT_INTERLEAVE - 1];
+    }
+    for (; i < blockCount; i++) {
+        __m128i ciphertext = _mm_loadu_si128(reinterpret_cast<const __m128i *>(input + i * AES_BLOCK_SIZE));
+        __m128i block = _mm_xor_si128(ciphertext, k.keys[0]);
+        for (int round = 1; round < AES256_ROUNDS; round++) {
+            block = _mm_aesdec_si128(block, k.keys[round]);
+        }
+        block = _mm_xor_si128(_mm_aesdeclast_si128(block, k.keys[AES256_ROUNDS]), chain);
+        _mm_storeu_si128(reinterpret_cast<__m128i *>(output + i * AES_BLOCK_SIZE), block);
+        chain = ciphertext;
+    }
+    _mm_storeu_si128(reinterpret_cast<__m128i *>(iv), chain);
+}
+
+#endif
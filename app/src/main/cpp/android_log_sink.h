@@ -0,0 +1,88 @@
+#ifndef ANDROIDCRYPT_ANDROID_LOG_SINK_H
+#define ANDROIDCRYPT_ANDROID_LOG_SINK_H
+
+#include <array>
+#include <ostream>
+#include <streambuf>
+
+#ifdef __ANDROID__
+#include <android/log.h>
+#else
+#include <cstdio>
+//Host builds (see crypto-core) have no logcat. They keep the same priorities and write the lines to stderr.
+enum {
+    ANDROID_LOG_DEBUG = 3,
+    ANDROID_LOG_INFO = 4,
+    ANDROID_LOG_WARN = 5,
+    ANDROID_LOG_ERROR = 6,
+    ANDROID_LOG_SILENT = 8
+};
+#endif
+
+/*
+ * An ostream for the Terra logger that writes each line straight to logcat, without going through java.
+ * Text is collected in a fixed buffer and written out on a flush or when the buffer is full, one log entry per line.
+ * A line longer than the buffer is split.
+ * One per operation, like the logger writing into it, so it needs no locking. Nothing is written with ANDROID_LOG_SILENT.
+ * Off Android the lines go to stderr, prefixed with the tag.
+ */
+class AndroidLogBuffer : public std::streambuf {
+public:
+    AndroidLogBuffer(int priority, const char * tag) : priority(priority), tag(tag) {
+        //leave room for the terminating 0
+        setp(line.data(), line.data() + line.size() - 1);
+    }
+    ~AndroidLogBuffer() override {
+        sync();
+    }
+protected:
+    int overflow(int c) override {
+        writeLines();
+        if (c != traits_type::eof()) {
+            sputc(static_cast<char>(c));
+        }
+        return traits_type::not_eof(c);
+    }
+    int sync() override {
+        writeLines();
+        return 0;
+    }
+private:
+    //one log entry per line of the buffered text, then empty the buffer
+    void writeLines() {
+        *pptr() = '\n';
+        char * lineStart = pbase();
+        for (char * c = pbase(); c <= pptr(); c++) {
+            if (*c == '\n') {
+                *c = '\0';
+                if (c != lineStart && priority != ANDROID_LOG_SILENT) {
+                    write(lineStart);
+                }
+                lineStart = c + 1;
+            }
+        }
+        setp(line.data(), line.data() + line.size() - 1);
+    }
+
+    void write(const char * text) const {
+#ifdef __ANDROID__
+        __android_log_write(priority, tag, text);
+#else
+        std::fprintf(stderr, "%s: %s\n", tag, text);
+#endif
+    }
+
+    const int priority;
+    const char * tag;
+    //logcat truncates entries a little above 4 KiB anyway
+    std::array<char, 1024> line{};
+};
+
+class AndroidLogOstream : public std::ostream {
+private:
+    AndroidLogBuffer buffer;
+public:
+    AndroidLogOstream(int priority, const char * tag) : std::ostream(&buffer), buffer(priority, tag) {}
+};
+
+#endif //ANDROIDCRYPT_ANDROID_LOG_SINK_H
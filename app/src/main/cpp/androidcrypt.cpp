@@ -1,13 +1,24 @@
 #include <jni.h>
 
+#include <algorithm>
 #include <iostream>
 #include <sstream>
 #include <unistd.h>
 #include <vector>
 #include <map>
+#include <memory>
+#include <mutex>
 
 #include <terra/aescrypt/engine/encryptor.h>
 #include <terra/aescrypt/engine/decryptor.h>
+
+#include "android_log_sink.h"
+#include "fd_stream.h"
+#include "operation_metrics.h"
+#include "parallel_decryptor.h"
+#include "progress_publisher.h"
+#include "stream_error.h"
+#include "sha_backend.h"
 // Write C++ code here.
 //
 // Do not forget to dynamically load the C++ library into your application.
@@ -52,17 +63,45 @@ const std::map<Terra::AESCrypt::Engine::DecryptResult, int> DECRYPT_RESULT_CODES
 //Buffer size defined for tests in CryptoTests.java, update there as well if changed.
 const int INPUT_BUFFER_SIZE = 1049000;// 1 MiB
 const int OUTPUT_BUFFER_SIZE = 1049000;// 1 MiB
-const int KEY_ITERATIONS = 300000;
-
+//PBKDF2 iterations used when the caller passes 0, JNIInterface.DEFAULT_KEY_ITERATIONS
+const int DEFAULT_KEY_ITERATIONS = 300000;
+//bytes moved per read/write by the null cipher, the streams batch them into their own buffers like the engine's
+const std::size_t COPY_CHUNK_SIZE = 64 * 1024;
+
+//JNIInterface.LOG_LEVEL_X, the engine messages of that level and more severe ones are logged
+const int LOG_LEVEL_NONE = 0;
+const int LOG_LEVEL_ERROR = 1;
+const int LOG_LEVEL_WARNING = 2;
+const int LOG_LEVEL_INFO = 3;
+const int LOG_LEVEL_DEBUG = 4;
+const Terra::Logger::LogLevel TERRA_LOG_LEVELS[] = {Terra::Logger::LogLevel::Critical, Terra::Logger::LogLevel::Error,
+        Terra::Logger::LogLevel::Warning, Terra::Logger::LogLevel::Info, Terra::Logger::LogLevel::Debug};
+//one logcat priority per level, the logger's stream doesn't know the level of each message
+const int ANDROID_LOG_PRIORITIES[] = {ANDROID_LOG_SILENT, ANDROID_LOG_ERROR, ANDROID_LOG_WARN, ANDROID_LOG_INFO, ANDROID_LOG_DEBUG};
+const char * const LOG_TAG = "AndroidCrypt";
+//set with JNIInterface.setLogLevel, read once at the start of every operation
+static std::atomic<int> logLevel{LOG_LEVEL_WARNING};
+
+/*
+ * Streams over java InputStreams and OutputStreams. Each read and write is a trace section and is counted in metrics,
+ * which may be nullptr (the log stream isn't counted).
+ */
 class JNIOutputBuffer : public std::streambuf {
 public:
-    JNIOutputBuffer(JNIEnv * javaEnv, const jobject &javaOutputStream, int bufferSize)
-            : javaEnv(javaEnv), javaOutputStream(javaOutputStream), bufferSize(bufferSize), buffer(bufferSize) {
+    JNIOutputBuffer(JNIEnv * javaEnv, const jobject &javaOutputStream, int bufferSize, OperationMetrics * metrics)
+            : javaEnv(javaEnv), javaOutputStream(javaOutputStream), bufferSize(bufferSize), buffer(bufferSize), metrics(metrics) {
         jclass outputStreamClass = javaEnv->GetObjectClass(javaOutputStream);
-        writeMethod = javaEnv->GetMethodID(outputStreamClass, "write", "([B)V");
+        writeMethod = javaEnv->GetMethodID(outputStreamClass, "write", "([BII)V");
         flushMethod = javaEnv->GetMethodID(outputStreamClass, "flush", "()V");
+        //one java array is reused for every write, so the hot path does not allocate on the java heap
+        javaByteArray = javaEnv->NewByteArray(bufferSize);
+        //the native buffer and the java array
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), 2 * static_cast<std::int64_t>(bufferSize));
         setp(&buffer.front(), &buffer.back());
     }
+    ~JNIOutputBuffer() override {
+        javaEnv->DeleteLocalRef(javaByteArray);
+    }
 protected:
     int overflow(int c) override {
         sync();//write out buffer and reset pointers to "empty" it
@@ -71,15 +110,14 @@ protected:
     }
     int sync() override {
         jsize length = static_cast<jsize>(pptr()-pbase());
-        //NewByteArray memory must be freed by javaEnv->DeleteLocalRef(javaByteArray)
-        jbyteArray javaByteArray = javaEnv->NewByteArray(length);
+        TraceSection trace("write");
+        addMetric(metric(metrics, &OperationMetrics::writeChunks), 1);
+        addMetric(metric(metrics, &OperationMetrics::upcalls), 2);
         javaEnv->SetByteArrayRegion(javaByteArray, 0, length, reinterpret_cast<const jbyte*>(&buffer.front()));
-        javaEnv->CallVoidMethod(javaOutputStream, writeMethod, javaByteArray);
+        javaEnv->CallVoidMethod(javaOutputStream, writeMethod, javaByteArray, 0, length);
         javaEnv->CallVoidMethod(javaOutputStream, flushMethod);
 
         setp(&buffer.front(), &buffer.back());
-        //frees memory from NewByteArray
-        javaEnv->DeleteLocalRef(javaByteArray);
         return std::streambuf::sync();
     };
 private:
@@ -89,32 +127,48 @@ private:
     const jobject & javaOutputStream;
     const int bufferSize;
     std::vector<char> buffer;
+    jbyteArray javaByteArray;
+    OperationMetrics * metrics;
 };
 
 class JNIOstream : public std::ostream {
 private:
     JNIOutputBuffer buffer;
 public:
-    JNIOstream(JNIEnv * javaEnv, const jobject & javaOutputStream, int bufferSize) : std::ostream(&buffer), buffer(javaEnv, javaOutputStream, bufferSize) {}
+    JNIOstream(JNIEnv * javaEnv, const jobject & javaOutputStream, int bufferSize, OperationMetrics * metrics = nullptr)
+            : std::ostream(&buffer), buffer(javaEnv, javaOutputStream, bufferSize, metrics) {}
 };
 
 class JNIInputBuffer : public std::streambuf {
 public:
-    JNIInputBuffer(JNIEnv *javaEnv, const jobject &javaInputStream, int bufferSize): javaEnv(javaEnv), javaInputStream(javaInputStream), bufferSize(bufferSize), buffer(bufferSize){
+    JNIInputBuffer(JNIEnv *javaEnv, const jobject &javaInputStream, int bufferSize, OperationMetrics * metrics)
+            : javaEnv(javaEnv), javaInputStream(javaInputStream), bufferSize(bufferSize), buffer(bufferSize), metrics(metrics) {
         jclass inputStreamClass = javaEnv->GetObjectClass(javaInputStream);
         readMethod = javaEnv->GetMethodID(inputStreamClass, "read", "([B)I");
+        //one java array is reused for every read, so the hot path does not allocate on the java heap
+        javaByteArray = javaEnv->NewByteArray(bufferSize);
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), 2 * static_cast<std::int64_t>(bufferSize));
         setg(&buffer.front(), &buffer.front(), &buffer.front());
     }
+    ~JNIInputBuffer() override {
+        javaEnv->DeleteLocalRef(javaByteArray);
+    }
 protected:
     int underflow() override {
         if (gptr() < egptr()) {
             return traits_type::to_int_type(*gptr());
         }
-        jsize length = static_cast<jsize>(bufferSize);
-        //NewByteArray memory must be freed by javaEnv->DeleteLocalRef(javaByteArray)
-        jbyteArray javaByteArray = javaEnv->NewByteArray(length);
+        TraceSection trace("read");
+        addMetric(metric(metrics, &OperationMetrics::readChunks), 1);
+        addMetric(metric(metrics, &OperationMetrics::upcalls), 1);
         // Read from Java InputStream
         jint bytesRead = javaEnv->CallIntMethod(javaInputStream, readMethod, javaByteArray);
+        if (javaEnv->ExceptionCheck()) {
+            //same as JNIDirectInputBuffer, a failed read must not end the input early
+            javaEnv->ExceptionDescribe();
+            javaEnv->ExceptionClear();
+            throw StreamReadError("InputStream.read threw");
+        }
         if (bytesRead <= 0) {
             return traits_type::eof();
         }
@@ -122,15 +176,7 @@ protected:
         javaEnv->GetByteArrayRegion(javaByteArray, 0, bytesRead, reinterpret_cast<jbyte*>(&buffer.front()));
         // Set buffer pointers
         setg(&buffer.front(), &buffer.front(), &buffer.front() + bytesRead);
-        //frees memory from NewByteArray
-        javaEnv->DeleteLocalRef(javaByteArray);
         return traits_type::to_int_type(*gptr());
-
-
-        /*int bytesRead = javaEnv->CallIntMethod(javaInputStream, readMethod, javaByteArray);
-        if (bytesRead == -1) {
-            return Traits::eof();
-        }*/
     }
 private:
     JNIEnv * javaEnv;
@@ -138,13 +184,129 @@ private:
     const jobject & javaInputStream;
     const int bufferSize;
     std::vector<char> buffer;
+    jbyteArray javaByteArray;
+    OperationMetrics * metrics;
 };
 
 class JNIIstream : public std::istream {
 private:
     JNIInputBuffer buffer;
 public:
-    JNIIstream(JNIEnv * javaEnv, const jobject & javaInputStream, const int bufferSize): std::istream(&buffer), buffer(javaEnv, javaInputStream, bufferSize) {}
+    JNIIstream(JNIEnv * javaEnv, const jobject & javaInputStream, const int bufferSize, OperationMetrics * metrics = nullptr)
+            : std::istream(&buffer), buffer(javaEnv, javaInputStream, bufferSize, metrics) {}
+};
+
+/*
+ * Direct buffer streams.
+ * The streambuf get/put areas are the memory of a direct java.nio.ByteBuffer, so the bytes moved by the java channel
+ * are the same bytes read and written by the engine. No copies are made between the heaps and nothing is allocated per chunk.
+ * The channel calls go through the static helpers JNIInterface.fillDirectBuffer and JNIInterface.drainDirectBuffer.
+ * An exception from the read side is printed and turned into StreamReadError, so the operation fails with an I/O error.
+ * Each call is a trace section and is counted in metrics, which may be nullptr.
+ */
+class JNIDirectOutputBuffer : public std::streambuf {
+public:
+    JNIDirectOutputBuffer(JNIEnv * javaEnv, const jobject &javaChannel, const jobject &javaDirectBuffer, OperationMetrics * metrics)
+            : javaEnv(javaEnv), javaChannel(javaChannel), javaDirectBuffer(javaDirectBuffer), metrics(metrics) {
+        jniInterfaceClass = javaEnv->FindClass("com/dewdrop623/androidcrypt/JNIInterface");
+        drainMethod = javaEnv->GetStaticMethodID(jniInterfaceClass, "drainDirectBuffer", "(Ljava/nio/channels/WritableByteChannel;Ljava/nio/ByteBuffer;I)Z");
+        base = static_cast<char *>(javaEnv->GetDirectBufferAddress(javaDirectBuffer));
+        capacity = static_cast<std::size_t>(javaEnv->GetDirectBufferCapacity(javaDirectBuffer));
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), static_cast<std::int64_t>(capacity));
+        setp(base, base + capacity);
+    }
+protected:
+    int overflow(int c) override {
+        if (sync() != 0) {
+            return traits_type::eof();
+        }
+        if (!traits_type::eq_int_type(c, traits_type::eof())) {
+            sputc(traits_type::to_char_type(c));
+        }
+        return traits_type::not_eof(c);
+    }
+    int sync() override {
+        jint length = static_cast<jint>(pptr() - pbase());
+        if (length == 0) {
+            return 0;
+        }
+        TraceSection trace("write");
+        addMetric(metric(metrics, &OperationMetrics::writeChunks), 1);
+        addMetric(metric(metrics, &OperationMetrics::upcalls), 1);
+        jboolean written = javaEnv->CallStaticBooleanMethod(jniInterfaceClass, drainMethod, javaChannel, javaDirectBuffer, length);
+        setp(base, base + capacity);
+        if (javaEnv->ExceptionCheck() || !written) {
+            javaEnv->ExceptionClear();
+            return -1;
+        }
+        return 0;
+    }
+private:
+    JNIEnv * javaEnv;
+    jclass jniInterfaceClass;
+    jmethodID drainMethod;
+    const jobject & javaChannel;
+    const jobject & javaDirectBuffer;
+    char * base;
+    std::size_t capacity;
+    OperationMetrics * metrics;
+};
+
+class JNIDirectOstream : public std::ostream {
+private:
+    JNIDirectOutputBuffer buffer;
+public:
+    JNIDirectOstream(JNIEnv * javaEnv, const jobject & javaChannel, const jobject & javaDirectBuffer, OperationMetrics * metrics = nullptr)
+            : std::ostream(&buffer), buffer(javaEnv, javaChannel, javaDirectBuffer, metrics) {}
+};
+
+class JNIDirectInputBuffer : public std::streambuf {
+public:
+    JNIDirectInputBuffer(JNIEnv * javaEnv, const jobject &javaChannel, const jobject &javaDirectBuffer, OperationMetrics * metrics)
+            : javaEnv(javaEnv), javaChannel(javaChannel), javaDirectBuffer(javaDirectBuffer), metrics(metrics) {
+        jniInterfaceClass = javaEnv->FindClass("com/dewdrop623/androidcrypt/JNIInterface");
+        fillMethod = javaEnv->GetStaticMethodID(jniInterfaceClass, "fillDirectBuffer", "(Ljava/nio/channels/ReadableByteChannel;Ljava/nio/ByteBuffer;)I");
+        base = static_cast<char *>(javaEnv->GetDirectBufferAddress(javaDirectBuffer));
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), javaEnv->GetDirectBufferCapacity(javaDirectBuffer));
+        setg(base, base, base);
+    }
+protected:
+    int underflow() override {
+        if (gptr() < egptr()) {
+            return traits_type::to_int_type(*gptr());
+        }
+        TraceSection trace("read");
+        addMetric(metric(metrics, &OperationMetrics::readChunks), 1);
+        addMetric(metric(metrics, &OperationMetrics::upcalls), 1);
+        jint bytesRead = javaEnv->CallStaticIntMethod(jniInterfaceClass, fillMethod, javaChannel, javaDirectBuffer);
+        if (javaEnv->ExceptionCheck()) {
+            //print the IOException before it is cleared, the operation fails with an I/O error
+            javaEnv->ExceptionDescribe();
+            javaEnv->ExceptionClear();
+            throw StreamReadError("fillDirectBuffer threw");
+        }
+        if (bytesRead <= 0) {
+            return traits_type::eof();
+        }
+        setg(base, base, base + bytesRead);
+        return traits_type::to_int_type(*gptr());
+    }
+private:
+    JNIEnv * javaEnv;
+    jclass jniInterfaceClass;
+    jmethodID fillMethod;
+    const jobject & javaChannel;
+    const jobject & javaDirectBuffer;
+    char * base;
+    OperationMetrics * metrics;
+};
+
+class JNIDirectIstream : public std::istream {
+private:
+    JNIDirectInputBuffer buffer;
+public:
+    JNIDirectIstream(JNIEnv * javaEnv, const jobject & javaChannel, const jobject & javaDirectBuffer, OperationMetrics * metrics = nullptr)
+            : std::istream(&buffer), buffer(javaEnv, javaChannel, javaDirectBuffer, metrics) {}
 };
 
 //use destructor to run function when object leaves scope
@@ -157,107 +319,455 @@ public:
         deferred();
     };
 };
-Terra::AESCrypt::Engine::Encryptor * encryptorPtr = NULL;
-Terra::AESCrypt::Engine::Decryptor * decryptorPtr = NULL;
+/*
+ * Per operation native state. JNIInterface.createSession returns a pointer to one of these as a long and every
+ * operation takes it back, so cancellation is per job and any number of operations can run at once.
+ */
+struct CryptoSession {
+    std::mutex mutex;
+    Terra::AESCrypt::Engine::Encryptor * encryptor = nullptr;
+    Terra::AESCrypt::Engine::Decryptor * decryptor = nullptr;
+    ParallelDecryptor * parallelDecryptor = nullptr;
+    bool cancelled = false;
+    //filled in by the fd entry points, see JNIInterface.getStageTimes
+    PipelineStageTimes stageTimes;
+    //filled in by every entry point, see JNIInterface.getMetrics
+    OperationMetrics metrics;
+    //shared progress block set with JNIInterface.setProgressBuffer, or nullptr
+    std::int64_t * progressSlots = nullptr;
+};
+
+//sessions created and not yet destroyed, for CryptoService.dump
+static std::atomic<int> sessionCount{0};
+
+static CryptoSession * getSession(jlong sessionHandle) {
+    return reinterpret_cast<CryptoSession *>(sessionHandle);
+}
+
+//the session for an entry point, with the measurements of its previous operation cleared
+static CryptoSession * beginOperation(jlong sessionHandle) {
+    CryptoSession * session = getSession(sessionHandle);
+    session->stageTimes.reset();
+    session->metrics.reset();
+    return session;
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_createSession(JNIEnv *env, jclass jclass1) {
+    sessionCount++;
+    return reinterpret_cast<jlong>(new CryptoSession());
+}
 
 extern "C"
 JNIEXPORT void JNICALL
-Java_com_dewdrop623_androidcrypt_JNIInterface_cancel(JNIEnv *env, jclass jclass1) {
-    if (encryptorPtr != NULL) {
-        encryptorPtr -> Cancel();
+Java_com_dewdrop623_androidcrypt_JNIInterface_destroySession(JNIEnv *env, jclass jclass1, jlong sessionHandle) {
+    delete getSession(sessionHandle);
+    sessionCount--;
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_setLogLevel(JNIEnv *env, jclass jclass1, jint level) {
+    logLevel = std::clamp(static_cast<int>(level), LOG_LEVEL_NONE, LOG_LEVEL_DEBUG);
+}
+
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_getSessionCount(JNIEnv *env, jclass jclass1) {
+    return sessionCount.load();
+}
+
+extern "C"
+JNIEXPORT void JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_setProgressBuffer(JNIEnv *env, jclass jclass1, jlong sessionHandle, jobject progressBuffer) {
+    CryptoSession * session = getSession(sessionHandle);
+    session->progressSlots = nullptr;
+    if (progressBuffer != nullptr && env->GetDirectBufferCapacity(progressBuffer) >= PROGRESS_SLOT_COUNT * (jlong)sizeof(std::int64_t)) {
+        session->progressSlots = static_cast<std::int64_t *>(env->GetDirectBufferAddress(progressBuffer));
+    }
+}
+
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_getStageTimes(JNIEnv *env, jclass jclass1, jlong sessionHandle) {
+    jlong times[PipelineStageTimes::COUNT];
+    int i = 0;
+    for (std::atomic<std::int64_t> * time : getSession(sessionHandle)->stageTimes.all()) {
+        times[i++] = static_cast<jlong>(time->load());
     }
-    if (decryptorPtr != NULL) {
-        decryptorPtr -> Cancel();
+    jlongArray array = env->NewLongArray(PipelineStageTimes::COUNT);
+    env->SetLongArrayRegion(array, 0, PipelineStageTimes::COUNT, times);
+    return array;
+}
+
+extern "C"
+JNIEXPORT jlongArray JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_getMetrics(JNIEnv *env, jclass jclass1, jlong sessionHandle) {
+    jlong values[OperationMetrics::COUNT];
+    int i = 0;
+    for (std::atomic<std::int64_t> * value : getSession(sessionHandle)->metrics.all()) {
+        values[i++] = static_cast<jlong>(value->load());
     }
+    jlongArray array = env->NewLongArray(OperationMetrics::COUNT);
+    env->SetLongArrayRegion(array, 0, OperationMetrics::COUNT, values);
+    return array;
 }
 
 extern "C"
-JNIEXPORT jboolean JNICALL
-Java_com_dewdrop623_androidcrypt_JNIInterface_encrypt(JNIEnv *env, jclass jclass1, jstring jpassword, jobject inputStream, jobject outputStream, jobject callbackInterface, jobject logStream, jlong progressFrequencyBytes) {
-    JNIOstream jniLogStream{env, logStream, 100};
+JNIEXPORT void JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_cancel(JNIEnv *env, jclass jclass1, jlong sessionHandle) {
+    CryptoSession * session = getSession(sessionHandle);
+    std::lock_guard<std::mutex> lock(session->mutex);
+    session->cancelled = true;
+    if (session->encryptor != nullptr) {
+        session->encryptor -> Cancel();
+    }
+    if (session->decryptor != nullptr) {
+        session->decryptor -> Cancel();
+    }
+    if (session->parallelDecryptor != nullptr) {
+        session->parallelDecryptor -> cancel();
+    }
+}
+
+/*
+ * The stream the engine logs into. A java logStream captures the log, for tests. Without one the log goes straight to
+ * logcat, and below the log level the engine doesn't even format its messages, so the hot path makes no log upcalls.
+ */
+static std::unique_ptr<std::ostream> makeLogOstream(JNIEnv *env, const jobject &logStream, int level) {
+    if (logStream != nullptr) {
+        return std::make_unique<JNIOstream>(env, logStream, 100);
+    }
+    return std::make_unique<AndroidLogOstream>(ANDROID_LOG_PRIORITIES[level], LOG_TAG);
+}
+
+/*
+ * Run an encryption from istream to ostream, reporting progress and the completion status through callbackInterface.
+ * Shared by every JNI encrypt entry point, each of which only differs in how the streams are built.
+ */
+static bool runEncrypt(JNIEnv *env, CryptoSession *session, jstring jpassword, jint keyIterations, std::istream &istream, std::ostream &ostream, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    int level = logLevel.load();
+    std::unique_ptr<std::ostream> logOstream = makeLogOstream(env, logStream, level);
 
     //get progress aesCryptProgressCallback method
     jclass callbackInterfaceClass = env->GetObjectClass(callbackInterface);
     jmethodID progressCallbackMethodId = env->GetMethodID(callbackInterfaceClass, "progressCallback", "(J)V");
     jmethodID completedCallbackMethodId = env->GetMethodID(callbackInterfaceClass, "completedCallback", "(I)V");
-    auto aesCryptProgressCallback = [&](const std::string & instance, std::size_t totalBytes) {
+    ProgressPublisher progressPublisher([&](std::size_t totalBytes) {
         env->CallVoidMethod(callbackInterface, progressCallbackMethodId, (jlong)totalBytes);
+    }, progressIntervalMillis, session->progressSlots, &session->metrics);
+    auto aesCryptProgressCallback = [&](const std::string & instance, std::size_t totalBytes) {
+        progressPublisher.update(totalBytes);
     };
 
     //convert password to u8string
     const char * passwordcstr = env->GetStringUTFChars(jpassword, NULL);
     std::u8string password(reinterpret_cast<const char8_t *>(passwordcstr));
-
-    JNIIstream jniIstream{env, inputStream, INPUT_BUFFER_SIZE};
-    JNIOstream jniOstream{env, outputStream, OUTPUT_BUFFER_SIZE};
+    env->ReleaseStringUTFChars(jpassword, passwordcstr);
 
     Terra::AESCrypt::Engine::EncryptResult encrypt_result{};
 
-    Terra::Logger::LoggerPointer logger = std::make_shared<Terra::Logger::Logger>(jniLogStream);
+    Terra::Logger::LoggerPointer logger = std::make_shared<Terra::Logger::Logger>(*logOstream, TERRA_LOG_LEVELS[level]);
 
     Terra::AESCrypt::Engine::Encryptor encryptor{logger};
 
-    //keep a global reference to encryptor to call cancel function
-    encryptorPtr = &encryptor;
+    //keep a reference to encryptor in the session to call cancel function
+    bool cancelledBeforeStart;
+    {
+        std::lock_guard<std::mutex> lock(session->mutex);
+        cancelledBeforeStart = session->cancelled;
+        session->encryptor = &encryptor;
+    }
     //use struct destructor to cleanup reference
     Deferer deferer([&]() -> void {
-        encryptorPtr = NULL;
+        std::lock_guard<std::mutex> lock(session->mutex);
+        session->encryptor = nullptr;
     });
 
     std::vector<std::pair<std::string, std::string>> extensions = {};
-    encrypt_result = encryptor.Encrypt(password, KEY_ITERATIONS, jniIstream, jniOstream, extensions, aesCryptProgressCallback, progressFrequencyBytes);
+    if (cancelledBeforeStart) {
+        encrypt_result = Terra::AESCrypt::Engine::EncryptResult::EncryptionCancelled;
+    } else {
+        TraceSection trace("encrypt");
+        StageTimer engineTimer(&session->stageTimes.engineNanos);
+        progressPublisher.beginKeyDerivation();
+        try {
+            encrypt_result = encryptor.Encrypt(password, keyIterations > 0 ? keyIterations : DEFAULT_KEY_ITERATIONS, istream, ostream, extensions, aesCryptProgressCallback, PROGRESS_UPDATE_BYTES);
+        } catch (const StreamReadError &) {
+            //the engine read the streambuf directly, istream didn't get to set badbit
+            istream.setstate(std::ios_base::badbit);
+        }
+        progressPublisher.endKeyDerivation();
+    }
 
     // *** IMPORTANT NOTE: FINAL FLUSH IS REQUIRED TO WRITE LAST DATA ***
-    jniOstream.flush();
+    {
+        TraceSection trace("flush");
+        StageTimer flushTimer(&session->metrics.flushNanos);
+        ostream.flush();
+    }
+    if (!ostream.good() && encrypt_result == Terra::AESCrypt::Engine::EncryptResult::Success) {
+        encrypt_result = Terra::AESCrypt::Engine::EncryptResult::IOError;
+    }
+    //a failed read looks like the end of the input to the engine, which then finishes the file over what it got
+    if (istream.bad() && encrypt_result != Terra::AESCrypt::Engine::EncryptResult::EncryptionCancelled) {
+        encrypt_result = Terra::AESCrypt::Engine::EncryptResult::IOError;
+    }
 
+    progressPublisher.finish();
     int completion_status = 0;
     if (ENCRYPT_RESULT_CODES.contains(encrypt_result)) {
         completion_status = ENCRYPT_RESULT_CODES.at(encrypt_result);
     }
+    session->metrics.upcalls++;
     env->CallVoidMethod(callbackInterface, completedCallbackMethodId, (jint)completion_status);
-    return (jboolean)(encrypt_result==Terra::AESCrypt::Engine::EncryptResult::Success);
+    return encrypt_result==Terra::AESCrypt::Engine::EncryptResult::Success;
 }
-extern "C"
-JNIEXPORT jboolean JNICALL
-Java_com_dewdrop623_androidcrypt_JNIInterface_decrypt(JNIEnv *env, jclass jclass1, jstring jpassword, jobject inputStream, jobject outputStream, jobject callbackInterface, jobject logStream, jlong progressFrequencyBytes) {
-    JNIOstream jniLogStream{env, logStream, 100};
+
+/*
+ * Run a decryption from istream to ostream, reporting progress and the completion status through callbackInterface.
+ * Shared by every JNI decrypt entry point, each of which only differs in how the streams are built.
+ */
+static bool runDecrypt(JNIEnv *env, CryptoSession *session, jstring jpassword, std::istream &istream, std::ostream &ostream, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    int level = logLevel.load();
+    std::unique_ptr<std::ostream> logOstream = makeLogOstream(env, logStream, level);
 
     jclass callbackInterfaceClass = env->GetObjectClass(callbackInterface);
     jmethodID progressCallbackMethodId = env->GetMethodID(callbackInterfaceClass, "progressCallback", "(J)V");
     jmethodID completedCallbackMethodId = env->GetMethodID(callbackInterfaceClass, "completedCallback", "(I)V");
-    auto aesCryptProgressCallback = [&](const std::string & instance, std::size_t bytesRead) {
+    ProgressPublisher progressPublisher([&](std::size_t bytesRead) {
         env->CallVoidMethod(callbackInterface, progressCallbackMethodId, (jlong)bytesRead);
+    }, progressIntervalMillis, session->progressSlots, &session->metrics);
+    auto aesCryptProgressCallback = [&](const std::string & instance, std::size_t bytesRead) {
+        progressPublisher.update(bytesRead);
     };
 
     const char * passwordcstr = env->GetStringUTFChars(jpassword, NULL);
     std::u8string password(reinterpret_cast<const char8_t *>(passwordcstr));
-
-    JNIIstream jniIstream{env, inputStream, INPUT_BUFFER_SIZE};
-    JNIOstream jniOstream{env, outputStream, OUTPUT_BUFFER_SIZE};
+    env->ReleaseStringUTFChars(jpassword, passwordcstr);
 
     Terra::AESCrypt::Engine::DecryptResult decrypt_result{};
 
-    Terra::Logger::LoggerPointer logger = std::make_shared<Terra::Logger::Logger>(jniLogStream);
+    Terra::Logger::LoggerPointer logger = std::make_shared<Terra::Logger::Logger>(*logOstream, TERRA_LOG_LEVELS[level]);
 
     Terra::AESCrypt::Engine::Decryptor decryptor{logger};
 
-    //keep a global reference to encryptor to call cancel function
-    decryptorPtr = &decryptor;
+    //keep a reference to decryptor in the session to call cancel function
+    bool cancelledBeforeStart;
+    {
+        std::lock_guard<std::mutex> lock(session->mutex);
+        cancelledBeforeStart = session->cancelled;
+        session->decryptor = &decryptor;
+    }
     //use struct destructor to cleanup reference
     Deferer deferer([&]() -> void {
-        decryptorPtr = NULL;
+        std::lock_guard<std::mutex> lock(session->mutex);
+        session->decryptor = nullptr;
     });
 
-    std::vector<std::pair<std::string, std::string>> extensions = {};
-    decrypt_result = decryptor.Decrypt(password, jniIstream, jniOstream, aesCryptProgressCallback, progressFrequencyBytes);
+    if (cancelledBeforeStart) {
+        decrypt_result = Terra::AESCrypt::Engine::DecryptResult::DecryptionCancelled;
+    } else {
+        TraceSection trace("decrypt");
+        StageTimer engineTimer(&session->stageTimes.engineNanos);
+        progressPublisher.beginKeyDerivation();
+        try {
+            decrypt_result = decryptor.Decrypt(password, istream, ostream, aesCryptProgressCallback, PROGRESS_UPDATE_BYTES);
+        } catch (const StreamReadError &) {
+            istream.setstate(std::ios_base::badbit);
+        }
+        progressPublisher.endKeyDerivation();
+    }
 
     // *** IMPORTANT NOTE: FINAL FLUSH IS REQUIRED TO WRITE LAST DATA ***
-    jniOstream.flush();
+    {
+        TraceSection trace("flush");
+        StageTimer flushTimer(&session->metrics.flushNanos);
+        ostream.flush();
+    }
+    if (!ostream.good() && decrypt_result == Terra::AESCrypt::Engine::DecryptResult::Success) {
+        decrypt_result = Terra::AESCrypt::Engine::DecryptResult::IOError;
+    }
+    //the engine sees a failed read as a cut short file, report what actually went wrong
+    if (istream.bad() && decrypt_result != Terra::AESCrypt::Engine::DecryptResult::DecryptionCancelled) {
+        decrypt_result = Terra::AESCrypt::Engine::DecryptResult::IOError;
+    }
 
+    progressPublisher.finish();
     int completion_status = 0;
     if (DECRYPT_RESULT_CODES.contains(decrypt_result)) {
         completion_status = DECRYPT_RESULT_CODES.at(decrypt_result);
     }
+    session->metrics.upcalls++;
     env->CallVoidMethod(callbackInterface, completedCallbackMethodId, (jint)completion_status);
-    return (jboolean)(decrypt_result==Terra::AESCrypt::Engine::DecryptResult::Success);
+    return decrypt_result==Terra::AESCrypt::Engine::DecryptResult::Success;
+}
+
+/*
+ * Try a multi-core decryption of a version 3 file with ParallelDecryptor, reporting progress through callbackInterface.
+ * Returns the completion status if it finished, or 0 if the file has to go through runDecrypt instead: anything
+ * ParallelDecryptor does not handle or could not verify, so wrong passwords and altered files get the engine's result.
+ * Nothing has been written to outputFd and neither offset has moved when it returns 0.
+ */
+static int runParallelDecrypt(JNIEnv *env, CryptoSession *session, jstring jpassword, jint inputFd, jint outputFd, jobject callbackInterface, jlong progressIntervalMillis) {
+    jclass callbackInterfaceClass = env->GetObjectClass(callbackInterface);
+    jmethodID progressCallbackMethodId = env->GetMethodID(callbackInterfaceClass, "progressCallback", "(J)V");
+    ProgressPublisher progressPublisher([&](std::size_t bytesRead) {
+        env->CallVoidMethod(callbackInterface, progressCallbackMethodId, (jlong)bytesRead);
+    }, progressIntervalMillis, session->progressSlots, &session->metrics);
+    auto progressCallback = [&](std::size_t bytesRead) {
+        progressPublisher.update(bytesRead);
+    };
+
+    const char * passwordcstr = env->GetStringUTFChars(jpassword, NULL);
+    std::string password(passwordcstr);
+    env->ReleaseStringUTFChars(jpassword, passwordcstr);
+
+    ParallelDecryptor decryptor;
+
+    bool cancelledBeforeStart;
+    {
+        std::lock_guard<std::mutex> lock(session->mutex);
+        cancelledBeforeStart = session->cancelled;
+        session->parallelDecryptor = &decryptor;
+    }
+    Deferer deferer([&]() -> void {
+        std::lock_guard<std::mutex> lock(session->mutex);
+        session->parallelDecryptor = nullptr;
+    });
+
+    ParallelDecryptResult result = ParallelDecryptResult::Cancelled;
+    if (!cancelledBeforeStart) {
+        TraceSection trace("parallel decrypt");
+        result = decryptor.decrypt(password, inputFd, outputFd, progressCallback, PROGRESS_UPDATE_BYTES, &session->metrics);
+    }
+    if (result == ParallelDecryptResult::Success) {
+        progressPublisher.finish();
+    }
+    secureWipe(password.data(), password.size());
+
+    switch (result) {
+        case ParallelDecryptResult::Success:
+            return DECRYPT_RESULT_CODES.at(Terra::AESCrypt::Engine::DecryptResult::Success);
+        case ParallelDecryptResult::IOError:
+            return DECRYPT_RESULT_CODES.at(Terra::AESCrypt::Engine::DecryptResult::IOError);
+        case ParallelDecryptResult::Cancelled:
+            return DECRYPT_RESULT_CODES.at(Terra::AESCrypt::Engine::DecryptResult::DecryptionCancelled);
+        default:
+            return 0;
+    }
+}
+
+/*
+ * The null cipher: move istream to ostream without any crypto, the same way the engine moves its data through them.
+ * Timing it against runEncrypt/runDecrypt on the same streams shows what the JNI stream bridge costs on its own.
+ * Returns the bytes copied, or -1 on an I/O error.
+ */
+static jlong runCopy(CryptoSession *session, std::istream &istream, std::ostream &ostream) {
+    TraceSection trace("copy");
+    StageTimer engineTimer(&session->stageTimes.engineNanos);
+    std::vector<char> chunk(COPY_CHUNK_SIZE);
+    jlong total = 0;
+    while (istream.read(chunk.data(), static_cast<std::streamsize>(chunk.size())) || istream.gcount() > 0) {
+        std::streamsize count = istream.gcount();
+        if (!ostream.write(chunk.data(), count)) {
+            return -1;
+        }
+        total += count;
+        session->metrics.bytesProcessed.store(total);
+    }
+    {
+        StageTimer flushTimer(&session->metrics.flushNanos);
+        ostream.flush();
+    }
+    if (!ostream.good() || istream.bad()) {
+        return -1;
+    }
+    return total;
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_encrypt(JNIEnv *env, jclass jclass1, jlong sessionHandle, jstring jpassword, jint keyIterations, jobject inputStream, jobject outputStream, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    JNIIstream jniIstream{env, inputStream, INPUT_BUFFER_SIZE, &session->metrics};
+    JNIOstream jniOstream{env, outputStream, OUTPUT_BUFFER_SIZE, &session->metrics};
+    return (jboolean)runEncrypt(env, session, jpassword, keyIterations, jniIstream, jniOstream, callbackInterface, logStream, progressIntervalMillis);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_decrypt(JNIEnv *env, jclass jclass1, jlong sessionHandle, jstring jpassword, jobject inputStream, jobject outputStream, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    JNIIstream jniIstream{env, inputStream, INPUT_BUFFER_SIZE, &session->metrics};
+    JNIOstream jniOstream{env, outputStream, OUTPUT_BUFFER_SIZE, &session->metrics};
+    return (jboolean)runDecrypt(env, session, jpassword, jniIstream, jniOstream, callbackInterface, logStream, progressIntervalMillis);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_encryptDirect(JNIEnv *env, jclass jclass1, jlong sessionHandle, jstring jpassword, jint keyIterations, jobject inputChannel, jobject outputChannel, jobject inputBuffer, jobject outputBuffer, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    JNIDirectIstream jniIstream{env, inputChannel, inputBuffer, &session->metrics};
+    JNIDirectOstream jniOstream{env, outputChannel, outputBuffer, &session->metrics};
+    return (jboolean)runEncrypt(env, session, jpassword, keyIterations, jniIstream, jniOstream, callbackInterface, logStream, progressIntervalMillis);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_decryptDirect(JNIEnv *env, jclass jclass1, jlong sessionHandle, jstring jpassword, jobject inputChannel, jobject outputChannel, jobject inputBuffer, jobject outputBuffer, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    JNIDirectIstream jniIstream{env, inputChannel, inputBuffer, &session->metrics};
+    JNIDirectOstream jniOstream{env, outputChannel, outputBuffer, &session->metrics};
+    return (jboolean)runDecrypt(env, session, jpassword, jniIstream, jniOstream, callbackInterface, logStream, progressIntervalMillis);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_encryptFd(JNIEnv *env, jclass jclass1, jlong sessionHandle, jstring jpassword, jint keyIterations, jint inputFd, jint outputFd, jint ioFlags, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    std::unique_ptr<std::istream> fdIstream = makeFdIstream(inputFd, ioFlags, INPUT_BUFFER_SIZE, &session->stageTimes, &session->metrics);
+    std::unique_ptr<std::ostream> fdOstream = makeFdOstream(outputFd, ioFlags, OUTPUT_BUFFER_SIZE, &session->stageTimes, &session->metrics);
+    return (jboolean)runEncrypt(env, session, jpassword, keyIterations, *fdIstream, *fdOstream, callbackInterface, logStream, progressIntervalMillis);
+}
+
+extern "C"
+JNIEXPORT jboolean JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_decryptFd(JNIEnv *env, jclass jclass1, jlong sessionHandle, jstring jpassword, jint inputFd, jint outputFd, jint ioFlags, jobject callbackInterface, jobject logStream, jlong progressIntervalMillis) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    //before the streams are built, the read-ahead thread of a pipelined stream would move the input offset
+    if ((ioFlags & IO_FLAG_PARALLEL_DECRYPT) != 0) {
+        int completion_status = runParallelDecrypt(env, session, jpassword, inputFd, outputFd, callbackInterface, progressIntervalMillis);
+        if (completion_status != 0) {
+            jmethodID completedCallbackMethodId = env->GetMethodID(env->GetObjectClass(callbackInterface), "completedCallback", "(I)V");
+            session->metrics.upcalls++;
+            env->CallVoidMethod(callbackInterface, completedCallbackMethodId, (jint)completion_status);
+            return (jboolean)(completion_status == DECRYPT_RESULT_CODES.at(Terra::AESCrypt::Engine::DecryptResult::Success));
+        }
+    }
+    //the buffers of a parallel attempt are freed before the streams allocate theirs, the peak is the larger of the two
+    std::int64_t parallelBufferBytes = session->metrics.bufferBytes.exchange(0);
+    std::unique_ptr<std::istream> fdIstream = makeFdIstream(inputFd, ioFlags, INPUT_BUFFER_SIZE, &session->stageTimes, &session->metrics);
+    std::unique_ptr<std::ostream> fdOstream = makeFdOstream(outputFd, ioFlags, OUTPUT_BUFFER_SIZE, &session->stageTimes, &session->metrics);
+    session->metrics.bufferBytes.store(std::max(parallelBufferBytes, session->metrics.bufferBytes.load()));
+    return (jboolean)runDecrypt(env, session, jpassword, *fdIstream, *fdOstream, callbackInterface, logStream, progressIntervalMillis);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_copy(JNIEnv *env, jclass jclass1, jlong sessionHandle, jobject inputStream, jobject outputStream) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    JNIIstream jniIstream{env, inputStream, INPUT_BUFFER_SIZE, &session->metrics};
+    JNIOstream jniOstream{env, outputStream, OUTPUT_BUFFER_SIZE, &session->metrics};
+    return runCopy(session, jniIstream, jniOstream);
+}
+
+extern "C"
+JNIEXPORT jlong JNICALL
+Java_com_dewdrop623_androidcrypt_JNIInterface_copyDirect(JNIEnv *env, jclass jclass1, jlong sessionHandle, jobject inputChannel, jobject outputChannel, jobject inputBuffer, jobject outputBuffer) {
+    CryptoSession * session = beginOperation(sessionHandle);
+    JNIDirectIstream jniIstream{env, inputChannel, inputBuffer, &session->metrics};
+    JNIDirectOstream jniOstream{env, outputChannel, outputBuffer, &session->metrics};
+    return runCopy(session, jniIstream, jniOstream);
 }
@@ -0,0 +1,23 @@
+# Native crypto backends and the parallel decryptor built on them, shared by the app library (CMakeLists.txt) and the host tests (tests/CMakeLists.txt).
+# Each hardware backend is a separate source file compiled with its instruction set enabled. The code picks a backend
+# at runtime, so the library still loads on CPUs that don't have the instructions.
+add_library(androidcrypt_crypto STATIC
+        ${CMAKE_CURRENT_LIST_DIR}/aes_backend.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/aes_backend_x86.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/aes_backend_armv8.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/sha_backend.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/sha_backend_x86.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/sha256_backend_armv8.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/sha512_backend_armv8.cpp
+        ${CMAKE_CURRENT_LIST_DIR}/parallel_decryptor.cpp)
+set_target_properties(androidcrypt_crypto PROPERTIES POSITION_INDEPENDENT_CODE ON)
+target_include_directories(androidcrypt_crypto PUBLIC ${CMAKE_CURRENT_LIST_DIR})
+
+if(CMAKE_SYSTEM_PROCESSOR MATCHES "x86_64|AMD64")
+    set_source_files_properties(${CMAKE_CURRENT_LIST_DIR}/aes_backend_x86.cpp PROPERTIES COMPILE_OPTIONS "-maes;-msse4.1")
+    set_source_files_properties(${CMAKE_CURRENT_LIST_DIR}/sha_backend_x86.cpp PROPERTIES COMPILE_OPTIONS "-msha;-msse4.1;-mssse3")
+elseif(CMAKE_SYSTEM_PROCESSOR MATCHES "aarch64|arm64")
+    set_source_files_properties(${CMAKE_CURRENT_LIST_DIR}/aes_backend_armv8.cpp PROPERTIES COMPILE_OPTIONS "-march=armv8-a+crypto")
+    set_source_files_properties(${CMAKE_CURRENT_LIST_DIR}/sha256_backend_armv8.cpp PROPERTIES COMPILE_OPTIONS "-march=armv8-a+crypto")
+    set_source_files_properties(${CMAKE_CURRENT_LIST_DIR}/sha512_backend_armv8.cpp PROPERTIES COMPILE_OPTIONS "-march=armv8.2-a+sha3")
+endif()
@@ -0,0 +1,269 @@
+#ifndef ANDROIDCRYPT_FD_STREAM_H
+#define ANDROIDCRYPT_FD_STREAM_H
+
+#include <algorithm>
+#include <cerrno>
+#include <istream>
+#include <memory>
+#include <ostream>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <vector>
+
+#include "operation_metrics.h"
+#include "pipelined_stream.h"
+#include "stream_error.h"
+
+//read() that retries when interrupted by a signal
+inline ssize_t readRetrying(int fd, char * buffer, std::size_t size) {
+    ssize_t bytesRead;
+    do {
+        bytesRead = read(fd, buffer, size);
+    } while (bytesRead < 0 && errno == EINTR);
+    return bytesRead;
+}
+
+//write() all of buffer, returns false on error
+inline bool writeFully(int fd, const char * buffer, std::size_t size) {
+    while (size > 0) {
+        ssize_t written = write(fd, buffer, size);
+        if (written < 0 && errno == EINTR) {
+            continue;
+        }
+        if (written < 0) {
+            return false;
+        }
+        buffer += written;
+        size -= written;
+    }
+    return true;
+}
+
+/*
+ * Streams over raw file descriptors.
+ * Used when the input and output documents are real files so the engine can read() and write() them itself,
+ * with no call back into java per chunk. The descriptors are owned (and closed) by the java side.
+ * A failed read() throws StreamReadError, which the istream turns into badbit.
+ * Each read and write is a trace section and counted in metrics, which may be nullptr.
+ */
+class FdOutputBuffer : public std::streambuf {
+public:
+    FdOutputBuffer(int fd, int bufferSize, OperationMetrics * metrics) : fd(fd), buffer(bufferSize), metrics(metrics) {
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), bufferSize);
+        setp(buffer.data(), buffer.data() + buffer.size());
+    }
+protected:
+    int overflow(int c) override {
+        if (sync() != 0) {
+            return traits_type::eof();
+        }
+        if (!traits_type::eq_int_type(c, traits_type::eof())) {
+            sputc(traits_type::to_char_type(c));
+        }
+        return traits_type::not_eof(c);
+    }
+    int sync() override {
+        std::size_t length = pptr() - pbase();
+        setp(buffer.data(), buffer.data() + buffer.size());
+        if (length == 0) {
+            return 0;
+        }
+        TraceSection trace("write");
+        addMetric(metric(metrics, &OperationMetrics::writeChunks), 1);
+        return writeFully(fd, buffer.data(), length) ? 0 : -1;
+    }
+private:
+    const int fd;
+    std::vector<char> buffer;
+    OperationMetrics * metrics;
+};
+
+class FdOstream : public std::ostream {
+private:
+    FdOutputBuffer buffer;
+public:
+    FdOstream(int fd, int bufferSize, OperationMetrics * metrics = nullptr) : std::ostream(&buffer), buffer(fd, bufferSize, metrics) {}
+};
+
+class FdInputBuffer : public std::streambuf {
+public:
+    FdInputBuffer(int fd, int bufferSize, OperationMetrics * metrics) : fd(fd), buffer(bufferSize), metrics(metrics) {
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), bufferSize);
+        setg(buffer.data(), buffer.data(), buffer.data());
+    }
+protected:
+    int underflow() override {
+        if (gptr() < egptr()) {
+            return traits_type::to_int_type(*gptr());
+        }
+        ssize_t bytesRead;
+        {
+            TraceSection trace("read");
+            addMetric(metric(metrics, &OperationMetrics::readChunks), 1);
+            bytesRead = readRetrying(fd, buffer.data(), buffer.size());
+        }
+        if (bytesRead < 0) {
+            throw StreamReadError("read() failed");
+        }
+        if (bytesRead == 0) {
+            return traits_type::eof();
+        }
+        setg(buffer.data(), buffer.data(), buffer.data() + bytesRead);
+        return traits_type::to_int_type(*gptr());
+    }
+private:
+    const int fd;
+    std::vector<char> buffer;
+    OperationMetrics * metrics;
+};
+
+class FdIstream : public std::istream {
+private:
+    FdInputBuffer buffer;
+public:
+    FdIstream(int fd, int bufferSize, OperationMetrics * metrics = nullptr) : std::istream(&buffer), buffer(fd, bufferSize, metrics) {}
+};
+
+/*
+ * Reads a regular file through a sliding memory mapped window instead of copying it into a buffer.
+ * The engine reads straight out of the page cache and the kernel does readahead (MADV_SEQUENTIAL).
+ * Each window is unmapped once the engine moves past it, so the resident set stays around one window
+ * no matter how large the file is, and 32 bit address spaces are never exhausted.
+ * If a window can't be mapped it is pread() into a buffer instead. A pread() that fails or ends before fileSize
+ * throws StreamReadError, so input is never silently truncated.
+ * Each window counts as one read in metrics, which may be nullptr. Page faults are not traced, only the mapping.
+ * Only for files nothing else truncates while they are read: touching a mapped page past a new end of file raises
+ * SIGBUS, which kills the process. That is why IO_FLAG_MMAP_INPUT is off for documents from other apps' providers.
+ */
+class MmapInputBuffer : public std::streambuf {
+public:
+    static constexpr std::size_t WINDOW_SIZE = 16 * 1024 * 1024;// 16 MiB, a multiple of every page size
+
+    MmapInputBuffer(int fd, off_t startOffset, off_t fileSize, OperationMetrics * metrics)
+            : fd(fd), offset(startOffset), fileSize(fileSize), pageSize(sysconf(_SC_PAGESIZE)), metrics(metrics) {
+        setg(nullptr, nullptr, nullptr);
+    }
+    ~MmapInputBuffer() override {
+        unmapWindow();
+    }
+protected:
+    int underflow() override {
+        if (gptr() < egptr()) {
+            return traits_type::to_int_type(*gptr());
+        }
+        unmapWindow();
+        if (offset >= fileSize) {
+            return traits_type::eof();
+        }
+        TraceSection trace("read");
+        addMetric(metric(metrics, &OperationMetrics::readChunks), 1);
+        //mmap offsets must be page aligned, the input might not start on a page boundary
+        off_t alignedOffset = offset - (offset % pageSize);
+        std::size_t lead = static_cast<std::size_t>(offset - alignedOffset);
+        std::size_t length = static_cast<std::size_t>(std::min<off_t>(WINDOW_SIZE - lead, fileSize - offset));
+        void * mapping = mmap(nullptr, lead + length, PROT_READ, MAP_PRIVATE, fd, alignedOffset);
+        char * start;
+        if (mapping != MAP_FAILED) {
+            madvise(mapping, lead + length, MADV_SEQUENTIAL);
+            window = static_cast<char *>(mapping);
+            windowLength = lead + length;
+            start = window + lead;
+        } else {
+            if (fallback.empty()) {
+                fallback.resize(WINDOW_SIZE);
+                addMetric(metric(metrics, &OperationMetrics::bufferBytes), WINDOW_SIZE);
+            }
+            ssize_t bytesRead;
+            do {
+                bytesRead = pread(fd, fallback.data(), length, offset);
+            } while (bytesRead < 0 && errno == EINTR);
+            //offset is still before fileSize, so this is an error or a file that shrank under us
+            if (bytesRead <= 0) {
+                throw StreamReadError("pread() failed before the end of the file");
+            }
+            length = static_cast<std::size_t>(bytesRead);
+            start = fallback.data();
+        }
+        offset += static_cast<off_t>(length);
+        setg(start, start, start + length);
+        return traits_type::to_int_type(*gptr());
+    }
+private:
+    void unmapWindow() {
+        if (window != nullptr) {
+            munmap(window, windowLength);
+            window = nullptr;
+            windowLength = 0;
+        }
+    }
+    const int fd;
+    off_t offset;
+    const off_t fileSize;
+    const long pageSize;
+    char * window = nullptr;
+    std::size_t windowLength = 0;
+    std::vector<char> fallback;
+    OperationMetrics * metrics;
+};
+
+class MmapIstream : public std::istream {
+private:
+    MmapInputBuffer buffer;
+public:
+    MmapIstream(int fd, off_t startOffset, off_t fileSize, OperationMetrics * metrics = nullptr) : std::istream(&buffer), buffer(fd, startOffset, fileSize, metrics) {}
+};
+
+//Values of the ioFlags argument of the JNIInterface fd entry points. Keep in sync with JNIInterface.java.
+//Only for inputs that can't be truncated while they are read, see MmapInputBuffer.
+const int IO_FLAG_MMAP_INPUT = 1;
+const int IO_FLAG_PIPELINED = 2;
+//decryptFd only, see parallel_decryptor.h
+const int IO_FLAG_PARALLEL_DECRYPT = 4;
+
+//number of chunks in flight between the engine and each I/O thread in pipelined mode
+const std::size_t PIPELINE_CHUNK_COUNT = 4;
+
+/*
+ * Build the input stream for a file descriptor.
+ * Uses a memory mapped stream if requested and the descriptor is a non-empty regular file,
+ * otherwise a read-ahead thread if pipelined, otherwise plain read() calls.
+ * The read-ahead thread adds its times to stageTimes, and every stream counts its reads in metrics, if they aren't nullptr.
+ */
+inline std::unique_ptr<std::istream> makeFdIstream(int fd, int ioFlags, int bufferSize, PipelineStageTimes * stageTimes = nullptr, OperationMetrics * metrics = nullptr) {
+    struct stat fileStat{};
+    if ((ioFlags & IO_FLAG_MMAP_INPUT) != 0 && fstat(fd, &fileStat) == 0 && S_ISREG(fileStat.st_mode)) {
+        off_t startOffset = lseek(fd, 0, SEEK_CUR);
+        if (startOffset >= 0 && startOffset < fileStat.st_size) {
+            return std::make_unique<MmapIstream>(fd, startOffset, fileStat.st_size, metrics);
+        }
+    }
+    if ((ioFlags & IO_FLAG_PIPELINED) != 0) {
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), static_cast<std::int64_t>(bufferSize) * PIPELINE_CHUNK_COUNT);
+        return std::make_unique<PipelinedIstream>([fd, metrics](char * buffer, std::size_t size) {
+            TraceSection trace("read");
+            addMetric(metric(metrics, &OperationMetrics::readChunks), 1);
+            return readRetrying(fd, buffer, size);
+        }, bufferSize, PIPELINE_CHUNK_COUNT, stageTimes);
+    }
+    return std::make_unique<FdIstream>(fd, bufferSize, metrics);
+}
+
+/*
+ * Build the output stream for a file descriptor.
+ * Uses a write-behind thread if pipelined, otherwise plain write() calls.
+ * The write-behind thread adds its times to stageTimes, and every stream counts its writes in metrics, if they aren't nullptr.
+ */
+inline std::unique_ptr<std::ostream> makeFdOstream(int fd, int ioFlags, int bufferSize, PipelineStageTimes * stageTimes = nullptr, OperationMetrics * metrics = nullptr) {
+    if ((ioFlags & IO_FLAG_PIPELINED) != 0) {
+        addMetric(metric(metrics, &OperationMetrics::bufferBytes), static_cast<std::int64_t>(bufferSize) * PIPELINE_CHUNK_COUNT);
+        return std::make_unique<PipelinedOstream>([fd, metrics](const char * buffer, std::size_t size) {
+            TraceSection trace("write");
+            addMetric(metric(metrics, &OperationMetrics::writeChunks), 1);
+            return writeFully(fd, buffer, size);
+        }, bufferSize, PIPELINE_CHUNK_COUNT, stageTimes);
+    }
+    return std::make_unique<FdOstream>(fd, bufferSize, metrics);
+}
+
+#endif //ANDROIDCRYPT_FD_STREAM_H
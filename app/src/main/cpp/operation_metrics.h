@@ -0,0 +1,81 @@
+#ifndef ANDROIDCRYPT_OPERATION_METRICS_H
+#define ANDROIDCRYPT_OPERATION_METRICS_H
+
+#include <array>
+#include <atomic>
+#include <cstdint>
+
+#ifdef __ANDROID__
+#include <android/trace.h>
+#endif
+
+#include "pipelined_stream.h"
+
+/*
+ * A named section of the calling thread in systrace and Perfetto traces (atrace category "app"), for the lifetime of the object.
+ * Sections on one thread must nest, so each one is scoped to a block. ATrace does nothing while tracing is off,
+ * and host builds have no ATrace at all.
+ */
+class TraceSection {
+public:
+    explicit TraceSection([[maybe_unused]] const char * name) {
+#ifdef __ANDROID__
+        ATrace_beginSection(name);
+#endif
+    }
+    ~TraceSection() {
+#ifdef __ANDROID__
+        ATrace_endSection();
+#endif
+    }
+    TraceSection(const TraceSection &) = delete;
+    TraceSection & operator=(const TraceSection &) = delete;
+};
+
+/*
+ * Counters of one operation, next to the PipelineStageTimes of its session. Filled in by the streams, the
+ * ProgressPublisher and ParallelDecryptor, reset at the start of every JNI entry point. Read from java through
+ * JNIInterface.getMetrics, keep the order in sync with the METRIC_X constants there.
+ */
+struct OperationMetrics {
+    //from the start of the engine call to its first progress report: the header, the key derivation and the first chunk
+    std::atomic<std::int64_t> keyDerivationNanos{0};
+    //the final flush of the output once the engine returns
+    std::atomic<std::int64_t> flushNanos{0};
+    //waiting for the HMAC of the last chunk and checking it. Only measured by ParallelDecryptor, the engine does it inside the engine call.
+    std::atomic<std::int64_t> hmacNanos{0};
+    //input bytes so far, updated with every progress report
+    std::atomic<std::int64_t> bytesProcessed{0};
+    //reads and writes of the underlying file or java stream
+    std::atomic<std::int64_t> readChunks{0};
+    std::atomic<std::int64_t> writeChunks{0};
+    //calls from native code into java: stream reads and writes, progress and completion callbacks. Log writes aren't counted.
+    std::atomic<std::int64_t> upcalls{0};
+    //buffers of the streams and of ParallelDecryptor. They are allocated at the start and kept to the end, so the sum is the peak.
+    std::atomic<std::int64_t> bufferBytes{0};
+
+    static constexpr int COUNT = 8;
+
+    void reset() {
+        for (std::atomic<std::int64_t> * counter : all()) {
+            counter->store(0);
+        }
+    }
+    std::array<std::atomic<std::int64_t> *, COUNT> all() {
+        return {&keyDerivationNanos, &flushNanos, &hmacNanos, &bytesProcessed, &readChunks, &writeChunks, &upcalls, &bufferBytes};
+    }
+};
+
+//the counter for member in metrics, or nullptr if the operation isn't measured
+inline std::atomic<std::int64_t> * metric(OperationMetrics * metrics, std::atomic<std::int64_t> OperationMetrics::* member) {
+    return metrics != nullptr ? &(metrics->*member) : nullptr;
+}
+
+//adds value to counter, does nothing if counter is nullptr
+inline void addMetric(std::atomic<std::int64_t> * counter, std::int64_t value) {
+    if (counter != nullptr) {
+        counter->fetch_add(value, std::memory_order_relaxed);
+    }
+}
+
+#endif //ANDROIDCRYPT_OPERATION_METRICS_H
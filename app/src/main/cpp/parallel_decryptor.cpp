@@ -0,0 +1,408 @@
+#include "parallel_decryptor.h"
+
+#include <algorithm>
+#include <condition_variable>
+#include <cstring>
+#include <deque>
+#include <mutex>
+#include <sys/stat.h>
+#include <thread>
+#include <unistd.h>
+#include <vector>
+
+#include "aes_backend.h"
+#include "fd_stream.h"
+#include "sha_backend.h"
+
+namespace {
+
+const std::uint8_t STREAM_VERSION = 3;
+const std::size_t IV_SIZE = 16;
+const std::size_t SESSION_SIZE = IV_SIZE + AES256_KEY_SIZE;// encrypted IV and key for the file contents
+const std::size_t MAC_SIZE = HMACSHA256::MAC_SIZE;
+//anything above this is left to the engine, so a corrupt header can't keep the KDF busy for minutes
+const std::uint32_t MAX_KEY_ITERATIONS = 10000000;
+
+//pread() all of size bytes at offset, returns false on error or end of file
+bool preadFully(int fd, std::uint8_t * buffer, std::size_t size, off_t offset) {
+    while (size > 0) {
+        ssize_t bytesRead = pread(fd, buffer, size, offset);
+        if (bytesRead < 0 && errno == EINTR) {
+            continue;
+        }
+        if (bytesRead <= 0) {
+            return false;
+        }
+        buffer += bytesRead;
+        size -= bytesRead;
+        offset += bytesRead;
+    }
+    return true;
+}
+
+bool constantTimeEquals(const std::uint8_t * a, const std::uint8_t * b, std::size_t length) {
+    std::uint8_t difference = 0;
+    for (std::size_t i = 0; i < length; i++) {
+        difference |= a[i] ^ b[i];
+    }
+    return difference == 0;
+}
+
+/*
+ * Threads that each run task(index) once per start(), for the AES slices of a chunk.
+ * start() returns right away so the calling thread can do I/O, wait() blocks until every worker is done.
+ */
+class WorkerPool {
+public:
+    explicit WorkerPool(unsigned int count) {
+        for (unsigned int i = 0; i < count; i++) {
+            threads.emplace_back([this, i] { workerLoop(i); });
+        }
+    }
+    ~WorkerPool() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stopping = true;
+        }
+        startCondition.notify_all();
+        for (std::thread & thread : threads) {
+            thread.join();
+        }
+    }
+    void start(std::function<void(unsigned int)> newTask) {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            task = std::move(newTask);
+            remaining = threads.size();
+            generation++;
+        }
+        startCondition.notify_all();
+    }
+    void wait() {
+        std::unique_lock<std::mutex> lock(mutex);
+        doneCondition.wait(lock, [this] { return remaining == 0; });
+    }
+private:
+    void workerLoop(unsigned int index) {
+        std::uint64_t seenGeneration = 0;
+        while (true) {
+            std::function<void(unsigned int)> currentTask;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                startCondition.wait(lock, [this, seenGeneration] { return stopping || generation != seenGeneration; });
+                if (stopping) {
+                    return;
+                }
+                seenGeneration = generation;
+                currentTask = task;
+            }
+            currentTask(index);
+            {
+                std::lock_guard<std::mutex> lock(mutex);
+                remaining--;
+            }
+            doneCondition.notify_all();
+        }
+    }
+    std::mutex mutex;
+    std::condition_variable startCondition;
+    std::condition_variable doneCondition;
+    std::function<void(unsigned int)> task;
+    std::uint64_t generation = 0;
+    std::size_t remaining = 0;
+    bool stopping = false;
+    std::vector<std::thread> threads;
+};
+
+/*
+ * Runs the HMAC over the ciphertext on its own thread, in the order the chunks are submitted.
+ * The caller must not reuse a chunk's memory until waitFor() says it has been hashed.
+ */
+class HMACWorker {
+public:
+    explicit HMACWorker(HMACSHA256 & hmac) : hmac(hmac), thread([this] { hashLoop(); }) {}
+    ~HMACWorker() {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            stopping = true;
+        }
+        condition.notify_all();
+        thread.join();
+    }
+    void submit(const std::uint8_t * data, std::size_t length) {
+        {
+            std::lock_guard<std::mutex> lock(mutex);
+            pending.emplace_back(data, length);
+        }
+        condition.notify_all();
+    }
+    //block until the first count submitted chunks have been hashed
+    void waitFor(std::size_t count) {
+        std::unique_lock<std::mutex> lock(mutex);
+        condition.wait(lock, [this, count] { return completed >= count; });
+    }
+private:
+    void hashLoop() {
+        while (true) {
+            std::pair<const std::uint8_t *, std::size_t> chunk;
+            {
+                std::unique_lock<std::mutex> lock(mutex);
+                condition.wait(lock, [this] { return stopping || !pending.empty(); });
+                if (pending.empty()) {
+                    return;
+                }
+                chunk = pending.front();
+            }
+            hmac.update(chunk.first, chunk.second);
+            {
+                std::lock_guard<std::mutex> lock(mutex);
+                pending.pop_front();
+                completed++;
+            }
+            condition.notify_all();
+        }
+    }
+    HMACSHA256 & hmac;
+    std::mutex mutex;
+    std::condition_variable condition;
+    std::deque<std::pair<const std::uint8_t *, std::size_t>> pending;
+    std::size_t completed = 0;
+    bool stopping = false;
+    std::thread thread;
+};
+
+} // namespace
+
+ParallelDecryptor::ParallelDecryptor(unsigned int workerCount) : workerCount(std::max(1u, workerCount)) {}
+
+unsigned int ParallelDecryptor::defaultWorkerCount() {
+    return std::max(1u, std::min(MAX_WORKER_COUNT, std::thread::hardware_concurrency() / 2));
+}
+
+ParallelDecryptResult ParallelDecryptor::decrypt(const std::string & password, int inputFd, int outputFd,
+                                                 const std::function<void(std::size_t)> & progressCallback, std::size_t progressInterval,
+                                                 OperationMetrics * metrics) {
+    struct stat inputStat{};
+    struct stat outputStat{};
+    if (fstat(inputFd, &inputStat) != 0 || fstat(outputFd, &outputStat) != 0 || !S_ISREG(inputStat.st_mode) || !S_ISREG(outputStat.st_mode)) {
+        return ParallelDecryptResult::Unsupported;
+    }
+    const off_t inputStart = lseek(inputFd, 0, SEEK_CUR);
+    const off_t outputStart = lseek(outputFd, 0, SEEK_CUR);
+    if (inputStart < 0 || outputStart < 0) {
+        return ParallelDecryptResult::Unsupported;
+    }
+    const off_t inputEnd = inputStat.st_size;
+    //the input offset is never moved (everything is pread), the output is put back as it was so the engine can start over
+    auto discardOutput = [&](ParallelDecryptResult result) {
+        if (ftruncate(outputFd, outputStart) != 0 || lseek(outputFd, outputStart, SEEK_SET) < 0) {
+            return ParallelDecryptResult::IOError;
+        }
+        return result;
+    };
+
+    //header: "AES", version, reserved octet, extensions ending with a zero length, iterations, IV, encrypted IV and key, HMAC
+    off_t offset = inputStart;
+    std::uint8_t prefix[5];
+    if (!preadFully(inputFd, prefix, sizeof(prefix), offset) || std::memcmp(prefix, "AES", 3) != 0 || prefix[3] != STREAM_VERSION) {
+        return ParallelDecryptResult::Unsupported;
+    }
+    offset += sizeof(prefix);
+    while (true) {
+        std::uint8_t lengthBytes[2];
+        if (!preadFully(inputFd, lengthBytes, sizeof(lengthBytes), offset)) {
+            return ParallelDecryptResult::Unsupported;
+        }
+        offset += sizeof(lengthBytes) + ((lengthBytes[0] << 8) | lengthBytes[1]);
+        if (lengthBytes[0] == 0 && lengthBytes[1] == 0) {
+            break;
+        }
+    }
+    std::uint8_t header[4 + IV_SIZE + SESSION_SIZE + MAC_SIZE];
+    if (!preadFully(inputFd, header, sizeof(header), offset)) {
+        return ParallelDecryptResult::Unsupported;
+    }
+    offset += sizeof(header);
+    std::uint32_t iterations = (static_cast<std::uint32_t>(header[0]) << 24) | (header[1] << 16) | (header[2] << 8) | header[3];
+    const std::uint8_t * iv = header + 4;
+    const std::uint8_t * encryptedSession = iv + IV_SIZE;
+    const std::uint8_t * sessionMac = encryptedSession + SESSION_SIZE;
+    const off_t ciphertextStart = offset;
+    const off_t ciphertextEnd = inputEnd - static_cast<off_t>(MAC_SIZE);
+    if (iterations == 0 || iterations > MAX_KEY_ITERATIONS || ciphertextEnd <= ciphertextStart || (ciphertextEnd - ciphertextStart) % AES_BLOCK_SIZE != 0) {
+        return ParallelDecryptResult::Unsupported;
+    }
+
+    //key derivation, PBKDF2-HMAC-SHA512 salted with the IV
+    std::uint8_t key[AES256_KEY_SIZE];
+    {
+        TraceSection trace("key derivation");
+        StageTimer timer(metric(metrics, &OperationMetrics::keyDerivationNanos));
+        pbkdf2HmacSha512(reinterpret_cast<const std::uint8_t *>(password.data()), password.size(), iv, IV_SIZE, iterations, key, sizeof(key));
+    }
+    if (cancelled) {
+        secureWipe(key, sizeof(key));
+        return ParallelDecryptResult::Cancelled;
+    }
+    //version 3 authenticates the version octet along with the encrypted IV and key, the plain form is accepted as well
+    bool sessionVerified;
+    {
+        HMACSHA256 hmac(key, sizeof(key));
+        std::uint8_t mac[MAC_SIZE];
+        hmac.update(encryptedSession, SESSION_SIZE);
+        hmac.update(&STREAM_VERSION, 1);
+        hmac.finish(mac);
+        sessionVerified = constantTimeEquals(mac, sessionMac, MAC_SIZE);
+        if (!sessionVerified) {
+            hmac.update(encryptedSession, SESSION_SIZE);
+            hmac.finish(mac);
+            sessionVerified = constantTimeEquals(mac, sessionMac, MAC_SIZE);
+        }
+    }
+    if (!sessionVerified) {
+        secureWipe(key, sizeof(key));
+        return ParallelDecryptResult::VerificationFailed;
+    }
+    std::uint8_t session[SESSION_SIZE];
+    {
+        AES256CBC aes(key);
+        std::uint8_t chain[IV_SIZE];
+        std::memcpy(chain, iv, IV_SIZE);
+        aes.decrypt(chain, encryptedSession, session, SESSION_SIZE / AES_BLOCK_SIZE);
+    }
+    secureWipe(key, sizeof(key));
+
+    const AES256CBC aes(session + IV_SIZE);
+    HMACSHA256 hmac(session + IV_SIZE, AES256_KEY_SIZE);
+    std::uint8_t chunkIV[IV_SIZE];
+    std::memcpy(chunkIV, session, IV_SIZE);
+    secureWipe(session, sizeof(session));
+
+    const std::size_t ciphertextLength = static_cast<std::size_t>(ciphertextEnd - ciphertextStart);
+    const std::size_t chunkCount = (ciphertextLength + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    auto chunkLength = [&](std::size_t chunk) {
+        return std::min(CHUNK_SIZE, ciphertextLength - chunk * CHUNK_SIZE);
+    };
+    //two of each so chunk k+1 is read and chunk k-1 written while chunk k is decrypted
+    std::vector<std::uint8_t> input[2] = {std::vector<std::uint8_t>(std::min(CHUNK_SIZE, ciphertextLength)), std::vector<std::uint8_t>(std::min(CHUNK_SIZE, ciphertextLength))};
+    std::vector<std::uint8_t> output[2] = {std::vector<std::uint8_t>(input[0].size()), std::vector<std::uint8_t>(input[0].size())};
+    auto wipeOutput = [&output]() {
+        secureWipe(output[0].data(), output[0].size());
+        secureWipe(output[1].data(), output[1].size());
+    };
+    addMetric(metric(metrics, &OperationMetrics::bufferBytes), 4 * static_cast<std::int64_t>(input[0].size()));
+    //the chunk reads and writes, counted and traced
+    auto readChunk = [&](std::size_t chunk) {
+        TraceSection trace("read");
+        addMetric(metric(metrics, &OperationMetrics::readChunks), 1);
+        return preadFully(inputFd, input[chunk % 2].data(), chunkLength(chunk), ciphertextStart + static_cast<off_t>(chunk * CHUNK_SIZE));
+    };
+    auto writeChunk = [&](std::size_t chunk, std::size_t length) {
+        TraceSection trace("write");
+        addMetric(metric(metrics, &OperationMetrics::writeChunks), 1);
+        return writeFully(outputFd, reinterpret_cast<const char *>(output[chunk % 2].data()), length);
+    };
+
+    ParallelDecryptResult result = ParallelDecryptResult::Success;
+    std::size_t nextProgress = progressInterval;
+    {
+        WorkerPool pool(workerCount);
+        HMACWorker hmacWorker(hmac);
+        if (!readChunk(0)) {
+            result = ParallelDecryptResult::IOError;
+        }
+        for (std::size_t chunk = 0; chunk < chunkCount && result == ParallelDecryptResult::Success; chunk++) {
+            const std::uint8_t * in = input[chunk % 2].data();
+            std::uint8_t * out = output[chunk % 2].data();
+            const std::size_t length = chunkLength(chunk);
+            hmacWorker.submit(in, length);
+
+            //each worker decrypts a contiguous slice, its IV is the ciphertext block just before it
+            const std::size_t blocks = length / AES_BLOCK_SIZE;
+            const std::size_t blocksPerWorker = (blocks + workerCount - 1) / workerCount;
+            pool.start([&aes, &chunkIV, in, out, blocks, blocksPerWorker](unsigned int index) {
+                std::size_t first = index * blocksPerWorker;
+                std::size_t last = std::min(blocks, first + blocksPerWorker);
+                if (first >= last) {
+                    return;
+                }
+                std::uint8_t sliceIV[IV_SIZE];
+                std::memcpy(sliceIV, first == 0 ? chunkIV : in + (first - 1) * AES_BLOCK_SIZE, IV_SIZE);
+                aes.decrypt(sliceIV, in + first * AES_BLOCK_SIZE, out + first * AES_BLOCK_SIZE, last - first);
+            });
+
+            if (chunk > 0 && !writeChunk(chunk - 1, chunkLength(chunk - 1))) {
+                result = ParallelDecryptResult::IOError;
+            }
+            if (result == ParallelDecryptResult::Success && chunk + 1 < chunkCount) {
+                //the buffer for the next chunk held chunk - 1, which has to be hashed before it is overwritten
+                hmacWorker.waitFor(chunk);
+                if (!readChunk(chunk + 1)) {
+                    result = ParallelDecryptResult::IOError;
+                }
+            }
+            {
+                TraceSection trace("wait for AES");
+                pool.wait();
+            }
+            std::memcpy(chunkIV, in + length - AES_BLOCK_SIZE, IV_SIZE);
+
+            if (cancelled) {
+                result = ParallelDecryptResult::Cancelled;
+            }
+            std::size_t bytesProcessed = static_cast<std::size_t>(ciphertextStart - inputStart) + chunk * CHUNK_SIZE + length;
+            if (progressInterval > 0 && bytesProcessed >= nextProgress) {
+                progressCallback(bytesProcessed);
+                nextProgress = bytesProcessed - bytesProcessed % progressInterval + progressInterval;
+            }
+        }
+        TraceSection trace("HMAC");
+        StageTimer timer(metric(metrics, &OperationMetrics::hmacNanos));
+        hmacWorker.waitFor(result == ParallelDecryptResult::Success ? chunkCount : 0);
+        //the pool and the HMAC thread are joined here, before the buffers they use go away
+    }
+    if (result != ParallelDecryptResult::Success) {
+        wipeOutput();
+        return result;
+    }
+
+    //integrity check before the last chunk, with the padding, is released
+    std::uint8_t expectedMac[MAC_SIZE];
+    std::uint8_t mac[MAC_SIZE];
+    bool macRead;
+    {
+        TraceSection trace("HMAC");
+        StageTimer timer(metric(metrics, &OperationMetrics::hmacNanos));
+        hmac.finish(mac);
+        macRead = preadFully(inputFd, expectedMac, MAC_SIZE, ciphertextEnd);
+    }
+    if (!macRead) {
+        wipeOutput();
+        return discardOutput(ParallelDecryptResult::IOError);
+    }
+    if (!constantTimeEquals(mac, expectedMac, MAC_SIZE)) {
+        wipeOutput();
+        return discardOutput(ParallelDecryptResult::VerificationFailed);
+    }
+    //PKCS#7 padding
+    const std::size_t lastLength = chunkLength(chunkCount - 1);
+    const std::uint8_t * last = output[(chunkCount - 1) % 2].data();
+    std::uint8_t padding = last[lastLength - 1];
+    bool paddingValid = padding >= 1 && padding <= AES_BLOCK_SIZE;
+    for (std::size_t i = 0; paddingValid && i < padding; i++) {
+        paddingValid = last[lastLength - 1 - i] == padding;
+    }
+    if (!paddingValid) {
+        wipeOutput();
+        return discardOutput(ParallelDecryptResult::VerificationFailed);
+    }
+    bool written = writeChunk(chunkCount - 1, lastLength - padding);
+    wipeOutput();
+    if (!written) {
+        return ParallelDecryptResult::IOError;
+    }
+    if (progressInterval > 0) {
+        progressCallback(static_cast<std::size_t>(inputEnd - inputStart));
+    }
+    return ParallelDecryptResult::Success;
+}
@@ -0,0 +1,64 @@
+#ifndef ANDROIDCRYPT_PARALLEL_DECRYPTOR_H
+#define ANDROIDCRYPT_PARALLEL_DECRYPTOR_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <functional>
+#include <string>
+
+struct OperationMetrics;
+
+/*
+ * Multi-core decryption of AES Crypt stream version 3 files, used by decryptFd with IO_FLAG_PARALLEL_DECRYPT.
+ * CBC decryption has no dependency between blocks (each plaintext block only needs its own and the previous
+ * ciphertext block), so every chunk of the file is split across a small pool of worker threads while a separate
+ * thread runs the HMAC over the ciphertext, and the calling thread does the reads and writes in between.
+ * The last chunk, which holds the padding, is only written once the HMAC has been checked.
+ *
+ * It only handles what it can verify itself: regular files in version 3 with a matching HMAC. Anything else comes back
+ * as Unsupported or VerificationFailed before or without a successful result, and the caller runs the engine's
+ * Decryptor instead (see runParallelDecrypt in androidcrypt.cpp), so the engine stays the authority on which files
+ * are valid and on the error reported for bad passwords and altered files.
+ */
+enum class ParallelDecryptResult {
+    Success,
+    //not a version 3 stream, malformed, or not a pair of regular files
+    Unsupported,
+    //wrong password or altered file, the output must be discarded
+    VerificationFailed,
+    IOError,
+    Cancelled
+};
+
+class ParallelDecryptor {
+public:
+    //chunk of ciphertext read, decrypted and written at a time
+    static constexpr std::size_t CHUNK_SIZE = 2 * 1024 * 1024;
+    //worker threads used for the AES, at most this many and never more than half the cores
+    static constexpr unsigned int MAX_WORKER_COUNT = 4;
+
+    explicit ParallelDecryptor(unsigned int workerCount = defaultWorkerCount());
+
+    /*
+     * Decrypt from the current offset of inputFd to the current offset of outputFd.
+     * password is the UTF-8 password. progressCallback(totalBytes) is called on the calling thread every
+     * progressInterval bytes of ciphertext, like the engine's callback.
+     * The key derivation, the reads, writes and AES of each chunk and the final HMAC check are trace sections on the
+     * calling thread, and their times and counts go to metrics if it isn't nullptr.
+     */
+    ParallelDecryptResult decrypt(const std::string & password, int inputFd, int outputFd,
+                                  const std::function<void(std::size_t)> & progressCallback, std::size_t progressInterval,
+                                  OperationMetrics * metrics = nullptr);
+    //can be called from any thread, decrypt returns Cancelled after the chunk it is working on
+    void cancel() {
+        cancelled = true;
+    }
+
+    static unsigned int defaultWorkerCount();
+private:
+    const unsigned int workerCount;
+    std::atomic<bool> cancelled{false};
+};
+
+#endif //ANDROIDCRYPT_PARALLEL_DECRYPTOR_H
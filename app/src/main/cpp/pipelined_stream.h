@@ -0,0 +1,334 @@
+#ifndef ANDROIDCRYPT_PIPELINED_STREAM_H
+#define ANDROIDCRYPT_PIPELINED_STREAM_H
+
+#include <array>
+#include <atomic>
+#include <chrono>
+#include <cstdint>
+#include <functional>
+#include <istream>
+#include <ostream>
+#include <sys/types.h>
+#include <thread>
+#include <vector>
+
+#include "stream_error.h"
+
+/*
+ * Pipelined streams.
+ * A reader thread fills the next chunks of input while the engine works on the current one, and a writer thread
+ * drains finished chunks of output, so each of the three stages gets its own core and on slow storage the throughput
+ * approaches max(I/O, crypto) instead of the sum.
+ * Chunks are allocated once and passed between the threads through two lock-free rings (free and filled), so a
+ * thread that gets ahead sleeps until the other side hands a chunk back.
+ */
+struct PipelineChunk {
+    std::vector<char> data;
+    std::size_t length = 0;
+    //set by the reader on the chunk it failed to fill, the last one it hands over
+    bool failed = false;
+};
+
+/*
+ * Time spent in each stage of a pipelined operation, in nanoseconds. The reader and writer threads add their I/O time
+ * and the time they sat idle waiting on the engine, the engine thread adds the time it was stalled waiting on them.
+ * A stage that is never idle while the others are is the bottleneck. Read from java through JNIInterface.getStageTimes,
+ * keep the order in sync with the STAGE_TIME_X constants there.
+ */
+struct PipelineStageTimes {
+    std::atomic<std::int64_t> readNanos{0};
+    std::atomic<std::int64_t> readerIdleNanos{0};
+    //the whole engine call including the key derivation, added by runEncrypt and runDecrypt
+    std::atomic<std::int64_t> engineNanos{0};
+    std::atomic<std::int64_t> engineInputStallNanos{0};
+    std::atomic<std::int64_t> engineOutputStallNanos{0};
+    std::atomic<std::int64_t> writeNanos{0};
+    std::atomic<std::int64_t> writerIdleNanos{0};
+
+    static constexpr int COUNT = 7;
+
+    void reset() {
+        for (std::atomic<std::int64_t> * time : all()) {
+            time->store(0);
+        }
+    }
+    std::array<std::atomic<std::int64_t> *, COUNT> all() {
+        return {&readNanos, &readerIdleNanos, &engineNanos, &engineInputStallNanos, &engineOutputStallNanos, &writeNanos, &writerIdleNanos};
+    }
+};
+
+//the counter for member in times, or nullptr if the operation isn't timed
+inline std::atomic<std::int64_t> * stageTime(PipelineStageTimes * times, std::atomic<std::int64_t> PipelineStageTimes::* member) {
+    return times != nullptr ? &(times->*member) : nullptr;
+}
+
+//adds the lifetime of the object to time, does nothing if time is nullptr
+class StageTimer {
+public:
+    explicit StageTimer(std::atomic<std::int64_t> * time) : time(time) {
+        if (time != nullptr) {
+            start = std::chrono::steady_clock::now();
+        }
+    }
+    ~StageTimer() {
+        if (time != nullptr) {
+            time->fetch_add(std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now() - start).count(), std::memory_order_relaxed);
+        }
+    }
+private:
+    std::atomic<std::int64_t> * time;
+    std::chrono::steady_clock::time_point start;
+};
+
+/*
+ * Single producer, single consumer ring of chunks. Exactly one thread pushes and one thread pops, so the two indices
+ * only need acquire/release ordering and neither side ever takes a lock. A consumer that finds the ring empty sleeps
+ * in std::atomic::wait (a futex) until the next push or close(). The ring has room for every chunk of its pipeline,
+ * so push never waits. pop() returns nullptr once the ring is closed and empty.
+ */
+class PipelineChunkRing {
+public:
+    explicit PipelineChunkRing(std::size_t capacity) : slots(capacity) {}
+
+    //producer thread only
+    void push(PipelineChunk * chunk) {
+        std::size_t position = tail.load(std::memory_order_relaxed);
+        slots[position % slots.size()] = chunk;
+        tail.store(position + 1, std::memory_order_release);
+        signal();
+    }
+    //consumer thread only
+    PipelineChunk * pop() {
+        std::size_t position = head.load(std::memory_order_relaxed);
+        if (!waitUntil([this, position] { return tail.load(std::memory_order_acquire) != position; })) {
+            return nullptr;
+        }
+        PipelineChunk * chunk = slots[position % slots.size()];
+        head.store(position + 1, std::memory_order_release);
+        return chunk;
+    }
+    //consumer thread only, block until the ring holds count chunks
+    void waitForSize(std::size_t count) {
+        std::size_t position = head.load(std::memory_order_relaxed);
+        waitUntil([this, position, count] { return tail.load(std::memory_order_acquire) - position >= count; });
+    }
+    //any thread
+    void close() {
+        closed.store(true, std::memory_order_release);
+        signal();
+    }
+private:
+    void signal() {
+        events.fetch_add(1, std::memory_order_release);
+        events.notify_one();
+    }
+    //returns false if the ring was closed before ready() became true
+    template<typename Ready>
+    bool waitUntil(Ready ready) {
+        while (true) {
+            //read the event count first, so a push between the check and the wait makes the wait return at once
+            std::uint32_t event = events.load(std::memory_order_acquire);
+            if (ready()) {
+                return true;
+            }
+            if (closed.load(std::memory_order_acquire)) {
+                return ready();
+            }
+            events.wait(event, std::memory_order_acquire);
+        }
+    }
+    std::vector<PipelineChunk *> slots;
+    //the indices only ever grow, a slot is index % capacity. Separate cache lines so the two threads don't share one.
+    alignas(64) std::atomic<std::size_t> head{0};
+    alignas(64) std::atomic<std::size_t> tail{0};
+    alignas(64) std::atomic<std::uint32_t> events{0};
+    std::atomic<bool> closed{false};
+};
+
+/*
+ * readFunction(buffer, size) reads up to size bytes into buffer and returns the count, 0 at the end of the input or -1 on error.
+ * It is only ever called from the reader thread. An error reaches the engine as StreamReadError (badbit on the istream)
+ * once it has consumed the chunks read before it. stageTimes may be nullptr.
+ */
+class PipelinedInputBuffer : public std::streambuf {
+public:
+    PipelinedInputBuffer(std::function<ssize_t(char *, std::size_t)> readFunction, std::size_t chunkSize, std::size_t chunkCount, PipelineStageTimes * stageTimes)
+            : readFunction(std::move(readFunction)), stageTimes(stageTimes), chunks(chunkCount), freeChunks(chunkCount), filledChunks(chunkCount) {
+        for (PipelineChunk & chunk : chunks) {
+            chunk.data.resize(chunkSize);
+            freeChunks.push(&chunk);
+        }
+        setg(nullptr, nullptr, nullptr);
+        readerThread = std::thread([this] { readLoop(); });
+    }
+    ~PipelinedInputBuffer() override {
+        //stops the reader after its current read if the engine quit before the end of the input
+        stopping = true;
+        freeChunks.close();
+        filledChunks.close();
+        readerThread.join();
+    }
+protected:
+    int underflow() override {
+        if (gptr() < egptr()) {
+            return traits_type::to_int_type(*gptr());
+        }
+        if (endReached) {
+            return traits_type::eof();
+        }
+        if (currentChunk != nullptr) {
+            freeChunks.push(currentChunk);
+            currentChunk = nullptr;
+        }
+        PipelineChunk * chunk;
+        {
+            StageTimer stall(stageTime(stageTimes, &PipelineStageTimes::engineInputStallNanos));
+            chunk = filledChunks.pop();
+        }
+        if (chunk == nullptr || chunk->length == 0) {
+            //an empty chunk marks the end of the input, or the read error that stopped the reader
+            endReached = true;
+            if (chunk != nullptr && chunk->failed) {
+                throw StreamReadError("read failed on the reader thread");
+            }
+            return traits_type::eof();
+        }
+        currentChunk = chunk;
+        setg(chunk->data.data(), chunk->data.data(), chunk->data.data() + chunk->length);
+        return traits_type::to_int_type(*gptr());
+    }
+private:
+    void readLoop() {
+        while (!stopping) {
+            PipelineChunk * chunk;
+            {
+                StageTimer idle(stageTime(stageTimes, &PipelineStageTimes::readerIdleNanos));
+                chunk = freeChunks.pop();
+            }
+            if (chunk == nullptr) {
+                return;
+            }
+            ssize_t bytesRead;
+            {
+                StageTimer reading(stageTime(stageTimes, &PipelineStageTimes::readNanos));
+                bytesRead = readFunction(chunk->data.data(), chunk->data.size());
+            }
+            chunk->length = bytesRead > 0 ? static_cast<std::size_t>(bytesRead) : 0;
+            chunk->failed = bytesRead < 0;
+            filledChunks.push(chunk);
+            if (bytesRead <= 0) {
+                return;
+            }
+        }
+    }
+    std::function<ssize_t(char *, std::size_t)> readFunction;
+    PipelineStageTimes * stageTimes;
+    std::vector<PipelineChunk> chunks;
+    PipelineChunkRing freeChunks;
+    PipelineChunkRing filledChunks;
+    PipelineChunk * currentChunk = nullptr;
+    bool endReached = false;
+    std::atomic<bool> stopping{false};
+    std::thread readerThread;
+};
+
+class PipelinedIstream : public std::istream {
+private:
+    PipelinedInputBuffer buffer;
+public:
+    PipelinedIstream(std::function<ssize_t(char *, std::size_t)> readFunction, std::size_t chunkSize, std::size_t chunkCount, PipelineStageTimes * stageTimes = nullptr)
+            : std::istream(&buffer), buffer(std::move(readFunction), chunkSize, chunkCount, stageTimes) {}
+};
+
+/*
+ * writeFunction(buffer, size) writes all size bytes and returns false on error.
+ * It is only ever called from the writer thread. After an error the remaining chunks are discarded and sync() fails.
+ * stageTimes may be nullptr.
+ */
+class PipelinedOutputBuffer : public std::streambuf {
+public:
+    PipelinedOutputBuffer(std::function<bool(const char *, std::size_t)> writeFunction, std::size_t chunkSize, std::size_t chunkCount, PipelineStageTimes * stageTimes)
+            : writeFunction(std::move(writeFunction)), stageTimes(stageTimes), chunks(chunkCount), freeChunks(chunkCount), filledChunks(chunkCount) {
+        for (PipelineChunk & chunk : chunks) {
+            chunk.data.resize(chunkSize);
+            freeChunks.push(&chunk);
+        }
+        writerThread = std::thread([this] { writeLoop(); });
+        takeFreeChunk();
+    }
+    ~PipelinedOutputBuffer() override {
+        //the writer finishes the chunks already submitted, then exits
+        filledChunks.close();
+        writerThread.join();
+    }
+protected:
+    int overflow(int c) override {
+        submitCurrentChunk();
+        if (failed) {
+            return traits_type::eof();
+        }
+        if (!traits_type::eq_int_type(c, traits_type::eof())) {
+            sputc(traits_type::to_char_type(c));
+        }
+        return traits_type::not_eof(c);
+    }
+    int sync() override {
+        if (pptr() != pbase()) {
+            submitCurrentChunk();
+        }
+        //wait for the writer to hand back every chunk except the one being filled
+        StageTimer stall(stageTime(stageTimes, &PipelineStageTimes::engineOutputStallNanos));
+        freeChunks.waitForSize(chunks.size() - 1);
+        return failed ? -1 : 0;
+    }
+private:
+    void takeFreeChunk() {
+        {
+            StageTimer stall(stageTime(stageTimes, &PipelineStageTimes::engineOutputStallNanos));
+            currentChunk = freeChunks.pop();
+        }
+        setp(currentChunk->data.data(), currentChunk->data.data() + currentChunk->data.size());
+    }
+    void submitCurrentChunk() {
+        currentChunk->length = pptr() - pbase();
+        filledChunks.push(currentChunk);
+        takeFreeChunk();
+    }
+    void writeLoop() {
+        while (true) {
+            PipelineChunk * chunk;
+            {
+                StageTimer idle(stageTime(stageTimes, &PipelineStageTimes::writerIdleNanos));
+                chunk = filledChunks.pop();
+            }
+            if (chunk == nullptr) {
+                return;
+            }
+            if (!failed) {
+                StageTimer writing(stageTime(stageTimes, &PipelineStageTimes::writeNanos));
+                if (!writeFunction(chunk->data.data(), chunk->length)) {
+                    failed = true;
+                }
+            }
+            freeChunks.push(chunk);
+        }
+    }
+    std::function<bool(const char *, std::size_t)> writeFunction;
+    PipelineStageTimes * stageTimes;
+    std::vector<PipelineChunk> chunks;
+    PipelineChunkRing freeChunks;
+    PipelineChunkRing filledChunks;
+    PipelineChunk * currentChunk = nullptr;
+    std::atomic<bool> failed{false};
+    std::thread writerThread;
+};
+
+class PipelinedOstream : public std::ostream {
+private:
+    PipelinedOutputBuffer buffer;
+public:
+    PipelinedOstream(std::function<bool(const char *, std::size_t)> writeFunction, std::size_t chunkSize, std::size_t chunkCount, PipelineStageTimes * stageTimes = nullptr)
+            : std::ostream(&buffer), buffer(std::move(writeFunction), chunkSize, chunkCount, stageTimes) {}
+};
+
+#endif //ANDROIDCRYPT_PIPELINED_STREAM_H
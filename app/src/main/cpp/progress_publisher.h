@@ -0,0 +1,154 @@
+#ifndef ANDROIDCRYPT_PROGRESS_PUBLISHER_H
+#define ANDROIDCRYPT_PROGRESS_PUBLISHER_H
+
+#include <atomic>
+#include <chrono>
+#include <cmath>
+#include <cstddef>
+#include <cstdint>
+#include <functional>
+#include <optional>
+
+#include "operation_metrics.h"
+
+//bytes between progress reports from the engine and ParallelDecryptor to a ProgressPublisher
+const std::size_t PROGRESS_UPDATE_BYTES = 256 * 1024;
+
+/*
+ * Layout of the shared progress block, 64 bit slots in native byte order. Keep in sync with SharedProgress.java.
+ * Java reads the block whenever it redraws, so the crypto thread never waits on the UI or the notification.
+ */
+const int PROGRESS_SLOT_BYTES_PROCESSED = 0;
+const int PROGRESS_SLOT_PHASE = 1;
+//average since the first chunk of data, so the key derivation isn't counted
+const int PROGRESS_SLOT_BYTES_PER_SECOND = 2;
+//exponentially weighted moving average of the recent rate, what the estimate to completion uses
+const int PROGRESS_SLOT_CURRENT_BYTES_PER_SECOND = 3;
+const int PROGRESS_SLOT_COUNT = 4;
+
+//the current rate is sampled at most this often, and a sample's weight decays with this time constant
+const double THROUGHPUT_SAMPLE_SECONDS = 0.25;
+const double THROUGHPUT_TIME_CONSTANT_SECONDS = 3.0;
+
+const std::int64_t PROGRESS_PHASE_NOT_STARTED = 0;
+//from the start of the operation to the first chunk of data, mostly the key derivation
+const std::int64_t PROGRESS_PHASE_KEY_DERIVATION = 1;
+const std::int64_t PROGRESS_PHASE_PROCESSING = 2;
+const std::int64_t PROGRESS_PHASE_FINISHED = 3;
+
+/*
+ * Progress for the JNI entry points.
+ * The engine reports every PROGRESS_UPDATE_BYTES. Each report stores the total, the phase and the throughput in the
+ * shared block with relaxed atomic stores, without calling into java.
+ * If intervalMillis is positive, publish is also called at most once per interval, and finish() publishes the last
+ * total if it hasn't been. The number of upcalls then depends on how long the operation takes, not on the file size.
+ * update() and finish() must be called on the thread that may call publish, the JNIEnv belongs to that thread.
+ * The byte total, the upcalls and the key derivation time go to metrics. sharedSlots and metrics may be nullptr.
+ */
+class ProgressPublisher {
+public:
+    ProgressPublisher(std::function<void(std::size_t)> publish, std::int64_t intervalMillis, std::int64_t * sharedSlots, OperationMetrics * metrics = nullptr)
+            : publish(std::move(publish)), publishing(intervalMillis > 0), interval(std::chrono::milliseconds(intervalMillis)),
+              sharedSlots(sharedSlots), metrics(metrics), lastPublishTime(std::chrono::steady_clock::now()) {
+        store(PROGRESS_SLOT_BYTES_PROCESSED, 0);
+        store(PROGRESS_SLOT_BYTES_PER_SECOND, 0);
+        store(PROGRESS_SLOT_CURRENT_BYTES_PER_SECOND, 0);
+        store(PROGRESS_SLOT_PHASE, PROGRESS_PHASE_KEY_DERIVATION);
+    }
+
+    /*
+     * Call right before the engine call, and endKeyDerivation() right after it on the same thread. The key derivation
+     * trace section and time run from here to the first update(), or to endKeyDerivation() if the engine never reports.
+     */
+    void beginKeyDerivation() {
+        keyDerivationStartTime = std::chrono::steady_clock::now();
+        keyDerivationTrace.emplace("key derivation");
+    }
+    void endKeyDerivation() {
+        if (keyDerivationTrace.has_value()) {
+            keyDerivationTrace.reset();
+            addMetric(metric(metrics, &OperationMetrics::keyDerivationNanos),
+                      std::chrono::duration_cast<std::chrono::nanoseconds>(std::chrono::steady_clock::now() - keyDerivationStartTime).count());
+        }
+    }
+
+    void update(std::size_t total) {
+        totalBytes.store(total, std::memory_order_relaxed);
+        std::chrono::steady_clock::time_point now = std::chrono::steady_clock::now();
+        if (processingStartTime == std::chrono::steady_clock::time_point()) {
+            endKeyDerivation();
+            //the bytes of the first report were processed during the key derivation, the rates are measured from here
+            processingStartTime = now;
+            processingStartBytes = total;
+            sampleTime = now;
+            sampleBytes = total;
+            store(PROGRESS_SLOT_PHASE, PROGRESS_PHASE_PROCESSING);
+        }
+        store(PROGRESS_SLOT_BYTES_PROCESSED, static_cast<std::int64_t>(total));
+        storeBytesProcessed(total);
+        double sampleSeconds = std::chrono::duration<double>(now - sampleTime).count();
+        if (sampleSeconds >= THROUGHPUT_SAMPLE_SECONDS) {
+            double rate = (total - sampleBytes) / sampleSeconds;
+            //the weight depends on the sample length, so uneven samples still decay at the same speed
+            double weight = 1 - std::exp(-sampleSeconds / THROUGHPUT_TIME_CONSTANT_SECONDS);
+            currentRate = currentRate < 0 ? rate : currentRate + weight * (rate - currentRate);
+            sampleTime = now;
+            sampleBytes = total;
+            double elapsedSeconds = std::chrono::duration<double>(now - processingStartTime).count();
+            store(PROGRESS_SLOT_BYTES_PER_SECOND, static_cast<std::int64_t>((total - processingStartBytes) / elapsedSeconds));
+            store(PROGRESS_SLOT_CURRENT_BYTES_PER_SECOND, static_cast<std::int64_t>(currentRate));
+        }
+        if (publishing && now - lastPublishTime >= interval) {
+            lastPublishTime = now;
+            publishedBytes = total;
+            addMetric(metric(metrics, &OperationMetrics::upcalls), 1);
+            publish(total);
+        }
+    }
+    void finish() {
+        std::size_t total = totalBytes.load(std::memory_order_relaxed);
+        store(PROGRESS_SLOT_BYTES_PROCESSED, static_cast<std::int64_t>(total));
+        store(PROGRESS_SLOT_PHASE, PROGRESS_PHASE_FINISHED);
+        storeBytesProcessed(total);
+        if (publishing && total != publishedBytes) {
+            publishedBytes = total;
+            addMetric(metric(metrics, &OperationMetrics::upcalls), 1);
+            publish(total);
+        }
+    }
+    //can be read from any thread
+    std::size_t getTotalBytes() const {
+        return totalBytes.load(std::memory_order_relaxed);
+    }
+private:
+    //a total, not a sum: a parallel decryption that falls back to the engine starts over
+    void storeBytesProcessed(std::size_t total) {
+        if (metrics != nullptr) {
+            metrics->bytesProcessed.store(static_cast<std::int64_t>(total), std::memory_order_relaxed);
+        }
+    }
+    void store(int slot, std::int64_t value) {
+        if (sharedSlots != nullptr) {
+            //the block is java memory, so there is no std::atomic object to store through
+            __atomic_store_n(sharedSlots + slot, value, __ATOMIC_RELAXED);
+        }
+    }
+    std::function<void(std::size_t)> publish;
+    const bool publishing;
+    const std::chrono::steady_clock::duration interval;
+    std::int64_t * const sharedSlots;
+    OperationMetrics * const metrics;
+    std::chrono::steady_clock::time_point lastPublishTime;
+    std::chrono::steady_clock::time_point keyDerivationStartTime;
+    std::optional<TraceSection> keyDerivationTrace;
+    std::chrono::steady_clock::time_point processingStartTime;
+    std::size_t processingStartBytes = 0;
+    std::chrono::steady_clock::time_point sampleTime;
+    std::size_t sampleBytes = 0;
+    //-1 until the first sample
+    double currentRate = -1;
+    std::size_t publishedBytes = 0;
+    std::atomic<std::size_t> totalBytes{0};
+};
+
+#endif //ANDROIDCRYPT_PROGRESS_PUBLISHER_H
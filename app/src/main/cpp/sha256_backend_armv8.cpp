@@ -0,0 +1,44 @@
+/*
+ * ARMv8 SHA2 backend for SHA-256. This file is compiled with -march=armv8-a+crypto, SHA256 only calls into it
+ * after getauxval(AT_HWCAP) reports HWCAP_SHA2.
+ */
+#if defined(__aarch64__)
+
+#include "sha_backend.h"
+
+#include <arm_neon.h>
+
+void armv8SHA256Compress(std::uint32_t * state, const std::uint8_t * blocks, std::size_t blockCount) {
+    uint32x4_t abcd = vld1q_u32(state);
+    uint32x4_t efgh = vld1q_u32(state + 4);
+
+    for (std::size_t block = 0; block < blockCount; block++) {
+        const uint32x4_t abcdStart = abcd;
+        const uint32x4_t efghStart = efgh;
+        uint32x4_t message[4];
+        for (int i = 0; i < 4; i++) {
+            message[i] = vreinterpretq_u32_u8(vrev32q_u8(vld1q_u8(blocks + 16 * i)));
+        }
+        //16 groups of 4 rounds, once a group's words are used they are replaced by the words 4 groups later.
+        //Fully unrolled, so the ring indices are constants and message[] stays in registers.
+#pragma GCC unroll 16
+        for (int group = 0; group < 16; group++) {
+            uint32x4_t & current = message[group & 3];
+            uint32x4_t roundInput = vaddq_u32(current, vld1q_u32(SHA256_ROUND_CONSTANTS + 4 * group));
+            if (group < 12) {
+                current = vsha256su1q_u32(vsha256su0q_u32(current, message[(group + 1) & 3]), message[(group + 2) & 3], message[(group + 3) & 3]);
+            }
+            uint32x4_t abcdBefore = abcd;
+            abcd = vsha256hq_u32(abcd, efgh, roundInput);
+            efgh = vsha256h2q_u32(efgh, abcdBefore, roundInput);
+        }
+        abcd = vaddq_u32(abcd, abcdStart);
+        efgh = vaddq_u32(efgh, efghStart);
+        blocks += 64;
+    }
+
+    vst1q_u32(state, abcd);
+    vst1q_u32(state + 4, efgh);
+}
+
+#endif
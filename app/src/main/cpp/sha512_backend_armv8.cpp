@@ -0,0 +1,80 @@
+/*
+ * ARMv8.2 SHA512 backend for SHA-512. This file is compiled with -march=armv8.2-a+sha3, SHA512 only calls into it
+ * after getauxval(AT_HWCAP) reports HWCAP_SHA512. It is a separate file from the SHA-256 backend so nothing built
+ * for ARMv8.2 can end up on the path of CPUs that only have the ARMv8.0 SHA2 instructions.
+ */
+#if defined(__aarch64__)
+
+#include "sha_backend.h"
+
+#include <arm_neon.h>
+
+namespace {
+
+/*
+ * Two rounds. The state is kept as the pairs ab, cd, ef and gh, and which variable holds which pair rotates every
+ * call: the caller passes them in their current roles and the next call shifts each one role along.
+ */
+inline void twoRounds(uint64x2_t & ab, uint64x2_t & cd, uint64x2_t & ef, uint64x2_t & gh, uint64x2_t message, const std::uint64_t * roundConstants) {
+    uint64x2_t roundInput = vaddq_u64(message, vld1q_u64(roundConstants));
+    uint64x2_t sum = vaddq_u64(vextq_u64(roundInput, roundInput, 1), gh);
+    uint64x2_t intermediate = vsha512hq_u64(sum, vextq_u64(ef, gh, 1), vextq_u64(cd, ef, 1));
+    gh = vsha512h2q_u64(intermediate, cd, ab);
+    cd = vaddq_u64(cd, intermediate);
+}
+
+} // namespace
+
+void armv8SHA512Compress(std::uint64_t * state, const std::uint8_t * blocks, std::size_t blockCount) {
+    uint64x2_t ab = vld1q_u64(state);
+    uint64x2_t cd = vld1q_u64(state + 2);
+    uint64x2_t ef = vld1q_u64(state + 4);
+    uint64x2_t gh = vld1q_u64(state + 6);
+
+    for (std::size_t block = 0; block < blockCount; block++) {
+        const uint64x2_t abStart = ab, cdStart = cd, efStart = ef, ghStart = gh;
+        uint64x2_t message[8];
+        for (int i = 0; i < 8; i++) {
+            message[i] = vreinterpretq_u64_u8(vrev64q_u8(vld1q_u8(blocks + 16 * i)));
+        }
+        //40 steps of 2 rounds, 4 per iteration so the roles are back where they started at the end of each iteration.
+        //Fully unrolled, so the switch and the ring indices disappear and message[] stays in registers.
+#pragma GCC unroll 10
+        for (int step = 0; step < 40; step += 4) {
+#pragma GCC unroll 4
+            for (int i = 0; i < 4; i++) {
+                int t = step + i;
+                if (t >= 8) {
+                    message[t & 7] = vsha512su1q_u64(vsha512su0q_u64(message[t & 7], message[(t + 1) & 7]), message[(t + 7) & 7],
+                                                     vextq_u64(message[(t + 4) & 7], message[(t + 5) & 7], 1));
+                }
+                const std::uint64_t * roundConstants = SHA512_ROUND_CONSTANTS + 2 * t;
+                switch (i) {
+                    case 0:
+                        twoRounds(ab, cd, ef, gh, message[t & 7], roundConstants);
+                        break;
+                    case 1:
+                        twoRounds(gh, ab, cd, ef, message[t & 7], roundConstants);
+                        break;
+                    case 2:
+                        twoRounds(ef, gh, ab, cd, message[t & 7], roundConstants);
+                        break;
+                    default:
+                        twoRounds(cd, ef, gh, ab, message[t & 7], roundConstants);
+                }
+            }
+        }
+        ab = vaddq_u64(ab, abStart);
+        cd = vaddq_u64(cd, cdStart);
+        ef = vaddq_u64(ef, efStart);
+        gh = vaddq_u64(gh, ghStart);
+        blocks += 128;
+    }
+
+    vst1q_u64(state, ab);
+    vst1q_u64(state + 2, cd);
+    vst1q_u64(state + 4, ef);
+    vst1q_u64(state + 6, gh);
+}
+
+#endif
@@ -0,0 +1,415 @@
+#include "sha_backend.h"
+
+#include <algorithm>
+#include <cstring>
+
+#if defined(__aarch64__)
+#include <sys/auxv.h>
+#ifndef HWCAP_SHA2
+#define HWCAP_SHA2 (1 << 6)
+#endif
+#ifndef HWCAP_SHA512
+#define HWCAP_SHA512 (1 << 21)
+#endif
+#endif
+
+#if defined(__x86_64__)
+#include <cpuid.h>
+#endif
+
+const std::uint32_t SHA256_ROUND_CONSTANTS[64] = {
+        0x428a2f98, 0x71374491, 0xb5c0fbcf, 0xe9b5dba5, 0x3956c25b, 0x59f111f1, 0x923f82a4, 0xab1c5ed5,
+        0xd807aa98, 0x12835b01, 0x243185be, 0x550c7dc3, 0x72be5d74, 0x80deb1fe, 0x9bdc06a7, 0xc19bf174,
+        0xe49b69c1, 0xefbe4786, 0x0fc19dc6, 0x240ca1cc, 0x2de92c6f, 0x4a7484aa, 0x5cb0a9dc, 0x76f988da,
+        0x983e5152, 0xa831c66d, 0xb00327c8, 0xbf597fc7, 0xc6e00bf3, 0xd5a79147, 0x06ca6351, 0x14292967,
+        0x27b70a85, 0x2e1b2138, 0x4d2c6dfc, 0x53380d13, 0x650a7354, 0x766a0abb, 0x81c2c92e, 0x92722c85,
+        0xa2bfe8a1, 0xa81a664b, 0xc24b8b70, 0xc76c51a3, 0xd192e819, 0xd6990624, 0xf40e3585, 0x106aa070,
+        0x19a4c116, 0x1e376c08, 0x2748774c, 0x34b0bcb5, 0x391c0cb3, 0x4ed8aa4a, 0x5b9cca4f, 0x682e6ff3,
+        0x748f82ee, 0x78a5636f, 0x84c87814, 0x8cc70208, 0x90befffa, 0xa4506ceb, 0xbef9a3f7, 0xc67178f2,
+};
+
+const std::uint64_t SHA512_ROUND_CONSTANTS[80] = {
+        0x428a2f98d728ae22ULL, 0x7137449123ef65cdULL, 0xb5c0fbcfec4d3b2fULL, 0xe9b5dba58189dbbcULL,
+        0x3956c25bf348b538ULL, 0x59f111f1b605d019ULL, 0x923f82a4af194f9bULL, 0xab1c5ed5da6d8118ULL,
+        0xd807aa98a3030242ULL, 0x12835b0145706fbeULL, 0x243185be4ee4b28cULL, 0x550c7dc3d5ffb4e2ULL,
+        0x72be5d74f27b896fULL, 0x80deb1fe3b1696b1ULL, 0x9bdc06a725c71235ULL, 0xc19bf174cf692694ULL,
+        0xe49b69c19ef14ad2ULL, 0xefbe4786384f25e3ULL, 0x0fc19dc68b8cd5b5ULL, 0x240ca1cc77ac9c65ULL,
+        0x2de92c6f592b0275ULL, 0x4a7484aa6ea6e483ULL, 0x5cb0a9dcbd41fbd4ULL, 0x76f988da831153b5ULL,
+        0x983e5152ee66dfabULL, 0xa831c66d2db43210ULL, 0xb00327c898fb213fULL, 0xbf597fc7beef0ee4ULL,
+        0xc6e00bf33da88fc2ULL, 0xd5a79147930aa725ULL, 0x06ca6351e003826fULL, 0x142929670a0e6e70ULL,
+        0x27b70a8546d22ffcULL, 0x2e1b21385c26c926ULL, 0x4d2c6dfc5ac42aedULL, 0x53380d139d95b3dfULL,
+        0x650a73548baf63deULL, 0x766a0abb3c77b2a8ULL, 0x81c2c92e47edaee6ULL, 0x92722c851482353bULL,
+        0xa2bfe8a14cf10364ULL, 0xa81a664bbc423001ULL, 0xc24b8b70d0f89791ULL, 0xc76c51a30654be30ULL,
+        0xd192e819d6ef5218ULL, 0xd69906245565a910ULL, 0xf40e35855771202aULL, 0x106aa07032bbd1b8ULL,
+        0x19a4c116b8d2d0c8ULL, 0x1e376c085141ab53ULL, 0x2748774cdf8eeb99ULL, 0x34b0bcb5e19b48a8ULL,
+        0x391c0cb3c5c95a63ULL, 0x4ed8aa4ae3418acbULL, 0x5b9cca4f7763e373ULL, 0x682e6ff3d6b2b8a3ULL,
+        0x748f82ee5defb2fcULL, 0x78a5636f43172f60ULL, 0x84c87814a1f0ab72ULL, 0x8cc702081a6439ecULL,
+        0x90befffa23631e28ULL, 0xa4506cebde82bde9ULL, 0xbef9a3f7b2c67915ULL, 0xc67178f2e372532bULL,
+        0xca273eceea26619cULL, 0xd186b8c721c0c207ULL, 0xeada7dd6cde0eb1eULL, 0xf57d4f7fee6ed178ULL,
+        0x06f067aa72176fbaULL, 0x0a637dc5a2c898a6ULL, 0x113f9804bef90daeULL, 0x1b710b35131c471bULL,
+        0x28db77f523047d84ULL, 0x32caab7b40c72493ULL, 0x3c9ebe0a15c9bebcULL, 0x431d67c49c100d4cULL,
+        0x4cc5d4becb3e42b6ULL, 0x597f299cfc657e2aULL, 0x5fcb6fab3ad6faecULL, 0x6c44198c4a475817ULL,
+};
+
+namespace {
+
+const std::uint32_t SHA256_INITIAL_STATE[8] = {
+        0x6a09e667, 0xbb67ae85, 0x3c6ef372, 0xa54ff53a, 0x510e527f, 0x9b05688c, 0x1f83d9ab, 0x5be0cd19,
+};
+
+const std::uint64_t SHA512_INITIAL_STATE[8] = {
+        0x6a09e667f3bcc908ULL, 0xbb67ae8584caa73bULL, 0x3c6ef372fe94f82bULL, 0xa54ff53a5f1d36f1ULL,
+        0x510e527fade682d1ULL, 0x9b05688c2b3e6c1fULL, 0x1f83d9abfb41bd6bULL, 0x5be0cd19137e2179ULL,
+};
+
+template<typename Word>
+inline Word rotateRight(Word x, int shift) {
+    return (x >> shift) | (x << (8 * sizeof(Word) - shift));
+}
+
+template<typename Word>
+inline Word loadBigEndian(const std::uint8_t * bytes) {
+    Word value = 0;
+    for (std::size_t i = 0; i < sizeof(Word); i++) {
+        value = (value << 8) | bytes[i];
+    }
+    return value;
+}
+
+template<typename Word>
+inline void storeBigEndian(std::uint8_t * bytes, Word value) {
+    for (std::size_t i = sizeof(Word); i > 0; i--) {
+        bytes[i - 1] = static_cast<std::uint8_t>(value);
+        value >>= 8;
+    }
+}
+
+/*
+ * FIPS 180-4 compression, SHA-256 and SHA-512 only differ in word size, round count, constants and rotation amounts.
+ * The message schedule is kept as a 16 word ring instead of the full 64 or 80 words.
+ */
+template<typename Word, int Rounds, int S0a, int S0b, int S0c, int S1a, int S1b, int S1c, int s0a, int s0b, int s0c, int s1a, int s1b, int s1c>
+void portableCompress(Word * state, const std::uint8_t * blocks, std::size_t blockCount, const Word * roundConstants) {
+    for (std::size_t block = 0; block < blockCount; block++) {
+        Word w[16];
+        for (int i = 0; i < 16; i++) {
+            w[i] = loadBigEndian<Word>(blocks + i * sizeof(Word));
+        }
+        Word a = state[0], b = state[1], c = state[2], d = state[3], e = state[4], f = state[5], g = state[6], h = state[7];
+        for (int round = 0; round < Rounds; round++) {
+            if (round >= 16) {
+                Word w15 = w[(round - 15) & 15];
+                Word w2 = w[(round - 2) & 15];
+                Word sigma0 = rotateRight(w15, s0a) ^ rotateRight(w15, s0b) ^ (w15 >> s0c);
+                Word sigma1 = rotateRight(w2, s1a) ^ rotateRight(w2, s1b) ^ (w2 >> s1c);
+                w[round & 15] += sigma0 + w[(round - 7) & 15] + sigma1;
+            }
+            Word t1 = h + (rotateRight(e, S1a) ^ rotateRight(e, S1b) ^ rotateRight(e, S1c)) + ((e & f) ^ (~e & g)) + roundConstants[round] + w[round & 15];
+            Word t2 = (rotateRight(a, S0a) ^ rotateRight(a, S0b) ^ rotateRight(a, S0c)) + ((a & b) ^ (a & c) ^ (b & c));
+            h = g;
+            g = f;
+            f = e;
+            e = d + t1;
+            d = c;
+            c = b;
+            b = a;
+            a = t1 + t2;
+        }
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+        state[5] += f;
+        state[6] += g;
+        state[7] += h;
+        blocks += 16 * sizeof(Word);
+    }
+}
+
+template<typename Word>
+typename SHA2<Word, 8 * sizeof(Word)>::CompressFunction getCompressFunction(SHABackend backend);
+
+template<>
+SHA256::CompressFunction getCompressFunction<std::uint32_t>(SHABackend backend) {
+    switch (backend) {
+#if defined(__x86_64__)
+        case SHABackend::SHANI:
+            return shaniSHA256Compress;
+#endif
+#if defined(__aarch64__)
+        case SHABackend::ARMv8:
+            return armv8SHA256Compress;
+#endif
+        default:
+            return portableSHA256Compress;
+    }
+}
+
+template<>
+SHA512::CompressFunction getCompressFunction<std::uint64_t>(SHABackend backend) {
+    switch (backend) {
+#if defined(__aarch64__)
+        case SHABackend::ARMv8:
+            return armv8SHA512Compress;
+#endif
+        default:
+            return portableSHA512Compress;
+    }
+}
+
+template<typename Word>
+const Word * getInitialState();
+
+template<>
+const std::uint32_t * getInitialState<std::uint32_t>() {
+    return SHA256_INITIAL_STATE;
+}
+
+template<>
+const std::uint64_t * getInitialState<std::uint64_t>() {
+    return SHA512_INITIAL_STATE;
+}
+
+template<typename Word>
+SHABackend detectBackend();
+
+template<>
+SHABackend detectBackend<std::uint32_t>() {
+    return detectSHA256Backend();
+}
+
+template<>
+SHABackend detectBackend<std::uint64_t>() {
+    return detectSHA512Backend();
+}
+
+} // namespace
+
+void portableSHA256Compress(std::uint32_t * state, const std::uint8_t * blocks, std::size_t blockCount) {
+    portableCompress<std::uint32_t, 64, 2, 13, 22, 6, 11, 25, 7, 18, 3, 17, 19, 10>(state, blocks, blockCount, SHA256_ROUND_CONSTANTS);
+}
+
+void portableSHA512Compress(std::uint64_t * state, const std::uint8_t * blocks, std::size_t blockCount) {
+    portableCompress<std::uint64_t, 80, 28, 34, 39, 14, 18, 41, 1, 8, 7, 19, 61, 6>(state, blocks, blockCount, SHA512_ROUND_CONSTANTS);
+}
+
+bool isSHA256BackendSupported(SHABackend backend) {
+    switch (backend) {
+        case SHABackend::Portable:
+            return true;
+        case SHABackend::SHANI: {
+#if defined(__x86_64__)
+            //SHA-NI is reported in leaf 7, the shuffles around it need SSE4.1 and SSSE3 from leaf 1
+            unsigned int eax, ebx, ecx, edx;
+            if (!__get_cpuid(1, &eax, &ebx, &ecx, &edx) || (ecx & bit_SSE4_1) == 0 || (ecx & bit_SSSE3) == 0) {
+                return false;
+            }
+            return __get_cpuid_count(7, 0, &eax, &ebx, &ecx, &edx) && (ebx & bit_SHA) != 0;
+#else
+            return false;
+#endif
+        }
+        case SHABackend::ARMv8:
+#if defined(__aarch64__)
+            return (getauxval(AT_HWCAP) & HWCAP_SHA2) != 0;
+#else
+            return false;
+#endif
+    }
+    return false;
+}
+
+bool isSHA512BackendSupported(SHABackend backend) {
+    switch (backend) {
+        case SHABackend::Portable:
+            return true;
+        case SHABackend::SHANI:
+            return false;
+        case SHABackend::ARMv8:
+#if defined(__aarch64__)
+            return (getauxval(AT_HWCAP) & HWCAP_SHA512) != 0;
+#else
+            return false;
+#endif
+    }
+    return false;
+}
+
+SHABackend detectSHA256Backend() {
+    static const SHABackend detected = isSHA256BackendSupported(SHABackend::ARMv8) ? SHABackend::ARMv8
+            : isSHA256BackendSupported(SHABackend::SHANI) ? SHABackend::SHANI
+            : SHABackend::Portable;
+    return detected;
+}
+
+SHABackend detectSHA512Backend() {
+    static const SHABackend detected = isSHA512BackendSupported(SHABackend::ARMv8) ? SHABackend::ARMv8 : SHABackend::Portable;
+    return detected;
+}
+
+const char * getSHABackendName(SHABackend backend) {
+    switch (backend) {
+        case SHABackend::Portable:
+            return "portable";
+        case SHABackend::SHANI:
+            return "SHA-NI";
+        case SHABackend::ARMv8:
+            return "ARMv8 SHA";
+    }
+    return "unknown";
+}
+
+void secureWipe(void * data, std::size_t length) {
+    volatile std::uint8_t * bytes = static_cast<volatile std::uint8_t *>(data);
+    for (std::size_t i = 0; i < length; i++) {
+        bytes[i] = 0;
+    }
+}
+
+template<typename Word, std::size_t DigestSize>
+SHA2<Word, DigestSize>::SHA2(SHABackend backend) : backend(backend), compress(getCompressFunction<Word>(backend)) {
+    reset();
+}
+
+template<typename Word, std::size_t DigestSize>
+SHA2<Word, DigestSize>::SHA2() : SHA2(detectBackend<Word>()) {}
+
+template<typename Word, std::size_t DigestSize>
+void SHA2<Word, DigestSize>::reset() {
+    std::memcpy(state, getInitialState<Word>(), sizeof(state));
+    bufferLength = 0;
+    totalLength = 0;
+}
+
+template<typename Word, std::size_t DigestSize>
+void SHA2<Word, DigestSize>::update(const std::uint8_t * data, std::size_t length) {
+    totalLength += length;
+    if (bufferLength > 0) {
+        std::size_t copied = std::min(length, BLOCK_SIZE - bufferLength);
+        std::memcpy(buffer + bufferLength, data, copied);
+        bufferLength += copied;
+        data += copied;
+        length -= copied;
+        if (bufferLength < BLOCK_SIZE) {
+            return;
+        }
+        compress(state, buffer, 1);
+        bufferLength = 0;
+    }
+    //whole blocks are hashed straight from the caller's memory
+    std::size_t blockCount = length / BLOCK_SIZE;
+    if (blockCount > 0) {
+        compress(state, data, blockCount);
+        data += blockCount * BLOCK_SIZE;
+        length -= blockCount * BLOCK_SIZE;
+    }
+    std::memcpy(buffer, data, length);
+    bufferLength = length;
+}
+
+template<typename Word, std::size_t DigestSize>
+void SHA2<Word, DigestSize>::finish(std::uint8_t * digest) {
+    //the length field is 64 bits for SHA-256 and 128 for SHA-512, only the low 64 bits can be non-zero here
+    const std::size_t lengthFieldSize = 2 * sizeof(Word);
+    std::uint64_t bitLength = totalLength * 8;
+    buffer[bufferLength++] = 0x80;
+    if (bufferLength > BLOCK_SIZE - lengthFieldSize) {
+        std::memset(buffer + bufferLength, 0, BLOCK_SIZE - bufferLength);
+        compress(state, buffer, 1);
+        bufferLength = 0;
+    }
+    std::memset(buffer + bufferLength, 0, BLOCK_SIZE - bufferLength);
+    storeBigEndian<std::uint64_t>(buffer + BLOCK_SIZE - 8, bitLength);
+    compress(state, buffer, 1);
+    for (std::size_t i = 0; i < DigestSize / sizeof(Word); i++) {
+        storeBigEndian<Word>(digest + i * sizeof(Word), state[i]);
+    }
+    secureWipe(buffer, sizeof(buffer));
+    bufferLength = 0;
+}
+
+template class SHA2<std::uint32_t, 32>;
+template class SHA2<std::uint64_t, 64>;
+
+template<typename Hash>
+HMAC<Hash>::HMAC(const std::uint8_t * key, std::size_t keyLength, SHABackend backend)
+        : innerStart(backend), outerStart(backend), inner(backend) {
+    std::uint8_t pad[Hash::BLOCK_SIZE] = {};
+    //RFC 2104, keys longer than a block are hashed first
+    if (keyLength > Hash::BLOCK_SIZE) {
+        Hash keyHash(backend);
+        keyHash.update(key, keyLength);
+        keyHash.finish(pad);
+    } else {
+        std::memcpy(pad, key, keyLength);
+    }
+    for (std::uint8_t & b : pad) {
+        b ^= 0x36;
+    }
+    innerStart.update(pad, Hash::BLOCK_SIZE);
+    for (std::uint8_t & b : pad) {
+        b ^= 0x36 ^ 0x5C;
+    }
+    outerStart.update(pad, Hash::BLOCK_SIZE);
+    secureWipe(pad, sizeof(pad));
+    inner = innerStart;
+}
+
+template<typename Hash>
+HMAC<Hash>::HMAC(const std::uint8_t * key, std::size_t keyLength) : HMAC(key, keyLength, Hash().getBackend()) {}
+
+template<typename Hash>
+HMAC<Hash>::~HMAC() {
+    secureWipe(&innerStart, sizeof(innerStart));
+    secureWipe(&outerStart, sizeof(outerStart));
+    secureWipe(&inner, sizeof(inner));
+}
+
+template<typename Hash>
+void HMAC<Hash>::finish(std::uint8_t * mac) {
+    std::uint8_t innerDigest[Hash::DIGEST_SIZE];
+    inner.finish(innerDigest);
+    Hash outer = outerStart;
+    outer.update(innerDigest, sizeof(innerDigest));
+    outer.finish(mac);
+    secureWipe(innerDigest, sizeof(innerDigest));
+    inner = innerStart;
+}
+
+template class HMAC<SHA256>;
+template class HMAC<SHA512>;
+
+void pbkdf2HmacSha512(const std::uint8_t * password, std::size_t passwordLength, const std::uint8_t * salt, std::size_t saltLength,
+                      std::uint32_t iterations, std::uint8_t * output, std::size_t outputLength, SHABackend backend) {
+    //the key pads are hashed once, so every iteration costs two compressions
+    HMACSHA512 hmac(password, passwordLength, backend);
+    std::uint8_t u[SHA512::DIGEST_SIZE];
+    std::uint8_t t[SHA512::DIGEST_SIZE];
+    for (std::uint32_t blockIndex = 1; outputLength > 0; blockIndex++) {
+        std::uint8_t blockIndexBytes[4];
+        storeBigEndian<std::uint32_t>(blockIndexBytes, blockIndex);
+        hmac.update(salt, saltLength);
+        hmac.update(blockIndexBytes, sizeof(blockIndexBytes));
+        hmac.finish(u);
+        std::memcpy(t, u, sizeof(t));
+        for (std::uint32_t iteration = 1; iteration < iterations; iteration++) {
+            hmac.update(u, sizeof(u));
+            hmac.finish(u);
+            for (std::size_t i = 0; i < sizeof(t); i++) {
+                t[i] ^= u[i];
+            }
+        }
+        std::size_t copied = std::min(outputLength, sizeof(t));
+        std::memcpy(output, t, copied);
+        output += copied;
+        outputLength -= copied;
+    }
+    secureWipe(u, sizeof(u));
+    secureWipe(t, sizeof(t));
+}
+
+void pbkdf2HmacSha512(const std::uint8_t * password, std::size_t passwordLength, const std::uint8_t * salt, std::size_t saltLength,
+                      std::uint32_t iterations, std::uint8_t * output, std::size_t outputLength) {
+    pbkdf2HmacSha512(password, passwordLength, salt, saltLength, iterations, output, outputLength, detectSHA512Backend());
+}
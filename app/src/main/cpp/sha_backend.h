@@ -0,0 +1,110 @@
+#ifndef ANDROIDCRYPT_SHA_BACKEND_H
+#define ANDROIDCRYPT_SHA_BACKEND_H
+
+#include <cstddef>
+#include <cstdint>
+
+/*
+ * SHA-256 and SHA-512 with runtime CPU feature dispatch, plus HMAC and PBKDF2 on top of them.
+ * Like aes_backend.h this is for native code in this library, the engine in the submodule hashes with its own code.
+ * Backends: SHA-NI for SHA-256 on x86_64, the ARMv8 SHA2 instructions for SHA-256 and the ARMv8.2 SHA512 instructions
+ * for SHA-512 on arm64, and portable C++ for everything else (including SHA-512 on x86_64, which has no SHA-512
+ * instructions on the CPUs Android runs on). tests/sha_backend_test.cpp checks known answers for every backend.
+ */
+enum class SHABackend {
+    Portable,
+    SHANI,
+    ARMv8
+};
+
+bool isSHA256BackendSupported(SHABackend backend);
+bool isSHA512BackendSupported(SHABackend backend);
+//the fastest backends the CPU supports
+SHABackend detectSHA256Backend();
+SHABackend detectSHA512Backend();
+const char * getSHABackendName(SHABackend backend);
+
+/*
+ * SHA2<Word, DigestSize> is SHA-256 with 32 bit words and SHA-512 with 64 bit words.
+ * Copying a hash copies its state, which is how HMAC and PBKDF2 reuse the hashed key pads.
+ */
+template<typename Word, std::size_t DigestSize>
+class SHA2 {
+public:
+    static constexpr std::size_t BLOCK_SIZE = 16 * sizeof(Word);
+    static constexpr std::size_t DIGEST_SIZE = DigestSize;
+    //processes blockCount whole blocks into state
+    using CompressFunction = void (*)(Word * state, const std::uint8_t * blocks, std::size_t blockCount);
+
+    explicit SHA2(SHABackend backend);
+    SHA2();
+    void reset();
+    void update(const std::uint8_t * data, std::size_t length);
+    //writes DIGEST_SIZE bytes, the hash must be reset before it is used again
+    void finish(std::uint8_t * digest);
+    SHABackend getBackend() const {
+        return backend;
+    }
+private:
+    SHABackend backend;
+    CompressFunction compress;
+    Word state[8];
+    std::uint8_t buffer[BLOCK_SIZE];
+    std::size_t bufferLength;
+    std::uint64_t totalLength;
+};
+
+using SHA256 = SHA2<std::uint32_t, 32>;
+using SHA512 = SHA2<std::uint64_t, 64>;
+
+template<typename Hash>
+class HMAC {
+public:
+    static constexpr std::size_t MAC_SIZE = Hash::DIGEST_SIZE;
+
+    HMAC(const std::uint8_t * key, std::size_t keyLength, SHABackend backend);
+    HMAC(const std::uint8_t * key, std::size_t keyLength);
+    ~HMAC();
+    void update(const std::uint8_t * data, std::size_t length) {
+        inner.update(data, length);
+    }
+    //writes MAC_SIZE bytes and resets, so the same key can authenticate the next message
+    void finish(std::uint8_t * mac);
+private:
+    //hash states after the key pads, kept so a reset costs no compressions
+    Hash innerStart;
+    Hash outerStart;
+    Hash inner;
+};
+
+using HMACSHA256 = HMAC<SHA256>;
+using HMACSHA512 = HMAC<SHA512>;
+
+//PBKDF2 (RFC 8018) with HMAC-SHA512, as AES Crypt stream version 3 uses to derive the key from the password
+void pbkdf2HmacSha512(const std::uint8_t * password, std::size_t passwordLength, const std::uint8_t * salt, std::size_t saltLength,
+                      std::uint32_t iterations, std::uint8_t * output, std::size_t outputLength, SHABackend backend);
+void pbkdf2HmacSha512(const std::uint8_t * password, std::size_t passwordLength, const std::uint8_t * salt, std::size_t saltLength,
+                      std::uint32_t iterations, std::uint8_t * output, std::size_t outputLength);
+
+//overwrite memory holding keys or passwords in a way the compiler can't optimise out
+void secureWipe(void * data, std::size_t length);
+
+/*
+ * Per backend compression functions, defined in sha_backend.cpp, sha_backend_x86.cpp, sha256_backend_armv8.cpp and
+ * sha512_backend_armv8.cpp. The hardware ones must only be called after the runtime check.
+ */
+void portableSHA256Compress(std::uint32_t * state, const std::uint8_t * blocks, std::size_t blockCount);
+void portableSHA512Compress(std::uint64_t * state, const std::uint8_t * blocks, std::size_t blockCount);
+#if defined(__x86_64__)
+void shaniSHA256Compress(std::uint32_t * state, const std::uint8_t * blocks, std::size_t blockCount);
+#endif
+#if defined(__aarch64__)
+void armv8SHA256Compress(std::uint32_t * state, const std::uint8_t * blocks, std::size_t blockCount);
+void armv8SHA512Compress(std::uint64_t * state, const std::uint8_t * blocks, std::size_t blockCount);
+#endif
+
+//round constants, shared by every backend
+extern const std::uint32_t SHA256_ROUND_CONSTANTS[64];
+extern const std::uint64_t SHA512_ROUND_CONSTANTS[80];
+
+#endif //ANDROIDCRYPT_SHA_BACKEND_H
@@ -0,0 +1,63 @@
+/*
+ * SHA-NI backend for SHA-256. This file is compiled with -msha -msse4.1 -mssse3, SHA256 only calls into it after
+ * CPUID reports the instructions.
+ */
+#if defined(__x86_64__)
+
+#include "sha_backend.h"
+
+#include <immintrin.h>
+
+void shaniSHA256Compress(std::uint32_t * state, const std::uint8_t * blocks, std::size_t blockCount) {
+    //SHA256RNDS2 wants the state as ABEF and CDGH
+    __m128i abcd = _mm_loadu_si128(reinterpret_cast<const __m128i *>(state));
+    __m128i efgh = _mm_loadu_si128(reinterpret_cast<const __m128i *>(state + 4));
+    __m128i cdab = _mm_shuffle_epi32(abcd, 0xB1);
+    efgh = _mm_shuffle_epi32(efgh, 0x1B);
+    __m128i abef = _mm_alignr_epi8(cdab, efgh, 8);
+    __m128i cdgh = _mm_blend_epi16(efgh, cdab, 0xF0);
+    const __m128i byteSwap = _mm_set_epi64x(0x0c0d0e0f08090a0bULL, 0x0405060700010203ULL);
+
+    for (std::size_t block = 0; block < blockCount; block++) {
+        const __m128i abefStart = abef;
+        const __m128i cdghStart = cdgh;
+        __m128i message[4];
+        /*
+         * 16 groups of 4 rounds. message[] is a ring of the last 16 schedule words, each entry is started with
+         * SHA256MSG1 right after it is used and finished with SHA256MSG2 three groups later, just before it is needed.
+         * Fully unrolled, so the ring indices are constants and message[] stays in registers.
+         */
+#pragma GCC unroll 16
+        for (int group = 0; group < 16; group++) {
+            __m128i & current = message[group & 3];
+            if (group < 4) {
+                current = _mm_shuffle_epi8(_mm_loadu_si128(reinterpret_cast<const __m128i *>(blocks + 16 * group)), byteSwap);
+            }
+            __m128i roundInput = _mm_add_epi32(current, _mm_loadu_si128(reinterpret_cast<const __m128i *>(SHA256_ROUND_CONSTANTS + 4 * group)));
+            cdgh = _mm_sha256rnds2_epu32(cdgh, abef, roundInput);
+            if (group >= 3 && group < 15) {
+                __m128i & next = message[(group + 1) & 3];
+                next = _mm_add_epi32(next, _mm_alignr_epi8(current, message[(group - 1) & 3], 4));
+                next = _mm_sha256msg2_epu32(next, current);
+            }
+            abef = _mm_sha256rnds2_epu32(abef, cdgh, _mm_shuffle_epi32(roundInput, 0x0E));
+            if (group >= 1 && group < 13) {
+                __m128i & previous = message[(group - 1) & 3];
+                previous = _mm_sha256msg1_epu32(previous, current);
+            }
+        }
+        abef = _mm_add_epi32(abef, abefStart);
+        cdgh = _mm_add_epi32(cdgh, cdghStart);
+        blocks += 64;
+    }
+
+    //back to ABCD and EFGH
+    __m128i feba = _mm_shuffle_epi32(abef, 0x1B);
+    __m128i dchg = _mm_shuffle_epi32(cdgh, 0xB1);
+    abcd = _mm_blend_epi16(feba, dchg, 0xF0);
+    efgh = _mm_alignr_epi8(dchg, feba, 8);
+    _mm_storeu_si128(reinterpret_cast<__m128i *>(state), abcd);
+    _mm_storeu_si128(reinterpret_cast<__m128i *>(state + 4), efgh);
+}
+
+#endif
@@ -0,0 +1,16 @@
+#ifndef ANDROIDCRYPT_STREAM_ERROR_H
+#define ANDROIDCRYPT_STREAM_ERROR_H
+
+#include <stdexcept>
+
+/*
+ * Thrown by the underflow() of the input streambufs when the input can't be read, so a failed read is never taken
+ * for the end of the input. std::istream catches it and sets badbit, runEncrypt and runDecrypt turn istream.bad()
+ * into an I/O error. Callers that use the streambuf directly get the exception.
+ */
+class StreamReadError : public std::runtime_error {
+public:
+    explicit StreamReadError(const char * what) : std::runtime_error(what) {}
+};
+
+#endif //ANDROIDCRYPT_STREAM_ERROR_H
@@ -0,0 +1,165 @@
+/*
+ * Known answer and cross backend tests for aes_backend.h, plus a throughput benchmark of every backend the CPU supports.
+ * Exits non-zero if any check fails.
+ */
+#include "aes_backend.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <random>
+#include <string>
+#include <vector>
+
+namespace {
+
+int failures = 0;
+
+void check(bool condition, const std::string & description) {
+    if (!condition) {
+        failures++;
+        std::printf("FAILED: %s\n", description.c_str());
+    }
+}
+
+std::vector<std::uint8_t> fromHex(const char * hex) {
+    std::vector<std::uint8_t> bytes;
+    for (std::size_t i = 0; hex[i] != '\0' && hex[i + 1] != '\0'; i += 2) {
+        bytes.push_back(static_cast<std::uint8_t>(std::stoi(std::string(hex + i, 2), nullptr, 16)));
+    }
+    return bytes;
+}
+
+std::vector<AESBackend> supportedBackends() {
+    std::vector<AESBackend> backends;
+    for (AESBackend backend : {AESBackend::Portable, AESBackend::AESNI, AESBackend::ARMv8}) {
+        if (isAESBackendSupported(backend)) {
+            backends.push_back(backend);
+        }
+    }
+    return backends;
+}
+
+//FIPS-197 appendix C.3, a single block is CBC with a zero IV
+void testFips197(AESBackend backend) {
+    std::vector<std::uint8_t> key = fromHex("000102030405060708090a0b0c0d0e0f101112131415161718191a1b1c1d1e1f");
+    std::vector<std::uint8_t> plaintext = fromHex("00112233445566778899aabbccddeeff");
+    std::vector<std::uint8_t> expected = fromHex("8ea2b7ca516745bfeafc49904b496089");
+    AES256CBC aes(key.data(), backend);
+    std::uint8_t iv[AES_BLOCK_SIZE] = {};
+    std::vector<std::uint8_t> output(AES_BLOCK_SIZE);
+    aes.encrypt(iv, plaintext.data(), output.data(), 1);
+    check(output == expected, std::string(getAESBackendName(backend)) + " FIPS-197 C.3 encrypt");
+    std::memset(iv, 0, sizeof(iv));
+    aes.decrypt(iv, expected.data(), output.data(), 1);
+    check(output == plaintext, std::string(getAESBackendName(backend)) + " FIPS-197 C.3 decrypt");
+}
+
+//NIST SP 800-38A F.2.5 and F.2.6, CBC-AES256
+void testSp80038a(AESBackend backend) {
+    std::vector<std::uint8_t> key = fromHex("603deb1015ca71be2b73aef0857d77811f352c073b6108d72d9810a30914dff4");
+    std::vector<std::uint8_t> iv = fromHex("000102030405060708090a0b0c0d0e0f");
+    std::vector<std::uint8_t> plaintext = fromHex("6bc1bee22e409f96e93d7e117393172a" "ae2d8a571e03ac9c9eb76fac45af8e51"
+                                                  "30c81c46a35ce411e5fbc1191a0a52ef" "f69f2445df4f9b17ad2b417be66c3710");
+    std::vector<std::uint8_t> ciphertext = fromHex("f58c4c04d6e5f1ba779eabfb5f7bfbd6" "9cfc4e967edb808d679f777bc6702c7d"
+                                                   "39f23369a9d9bacfa530e26304231461" "b2eb05e2c39be9fcda6c19078c6a9d1b");
+    AES256CBC aes(key.data(), backend);
+    std::vector<std::uint8_t> chain = iv;
+    std::vector<std::uint8_t> output(plaintext.size());
+    aes.encrypt(chain.data(), plaintext.data(), output.data(), plaintext.size() / AES_BLOCK_SIZE);
+    check(output == ciphertext, std::string(getAESBackendName(backend)) + " SP 800-38A CBC encrypt");
+    check(std::memcmp(chain.data(), ciphertext.data() + ciphertext.size() - AES_BLOCK_SIZE, AES_BLOCK_SIZE) == 0,
+          std::string(getAESBackendName(backend)) + " SP 800-38A CBC encrypt chains the IV");
+    chain = iv;
+    aes.decrypt(chain.data(), ciphertext.data(), output.data(), ciphertext.size() / AES_BLOCK_SIZE);
+    check(output == plaintext, std::string(getAESBackendName(backend)) + " SP 800-38A CBC decrypt");
+}
+
+/*
+ * Every supported backend must give the portable backend's output for random keys and lengths,
+ * in place or not, in one call or split across several (which exercises the IV chaining and the interleaved tails).
+ */
+void testBackendsMatch(const std::vector<AESBackend> & backends) {
+    std::mt19937 random(1656);
+    for (std::size_t blockCount : {0, 1, 2, 7, 8, 9, 15, 16, 17, 33, 4097}) {
+        std::vector<std::uint8_t> key(AES256_KEY_SIZE);
+        std::vector<std::uint8_t> iv(AES_BLOCK_SIZE);
+        std::vector<std::uint8_t> plaintext(blockCount * AES_BLOCK_SIZE);
+        for (auto * bytes : {&key, &iv, &plaintext}) {
+            for (std::uint8_t & b : *bytes) {
+                b = static_cast<std::uint8_t>(random());
+            }
+        }
+        AES256CBC reference(key.data(), AESBackend::Portable);
+        std::vector<std::uint8_t> expected(plaintext.size());
+        std::vector<std::uint8_t> chain = iv;
+        reference.encrypt(chain.data(), plaintext.data(), expected.data(), blockCount);
+
+        for (AESBackend backend : backends) {
+            std::string name = std::string(getAESBackendName(backend)) + " " + std::to_string(blockCount) + " blocks";
+            AES256CBC aes(key.data(), backend);
+            std::vector<std::uint8_t> output = plaintext;
+            chain = iv;
+            aes.encrypt(chain.data(), output.data(), output.data(), blockCount);
+            check(output == expected, name + " encrypt in place matches portable");
+
+            std::vector<std::uint8_t> split(plaintext.size());
+            chain = iv;
+            std::size_t firstPart = blockCount / 3;
+            aes.encrypt(chain.data(), plaintext.data(), split.data(), firstPart);
+            aes.encrypt(chain.data(), plaintext.data() + firstPart * AES_BLOCK_SIZE, split.data() + firstPart * AES_BLOCK_SIZE, blockCount - firstPart);
+            check(split == expected, name + " split encrypt matches portable");
+
+            chain = iv;
+            aes.decrypt(chain.data(), output.data(), output.data(), blockCount);
+            check(output == plaintext, name + " decrypt in place");
+
+            chain = iv;
+            aes.decrypt(chain.data(), expected.data(), split.data(), firstPart);
+            aes.decrypt(chain.data(), expected.data() + firstPart * AES_BLOCK_SIZE, split.data() + firstPart * AES_BLOCK_SIZE, blockCount - firstPart);
+            check(split == plaintext, name + " split decrypt");
+        }
+    }
+}
+
+void benchmark(AESBackend backend) {
+    const std::size_t size = 64 * 1024 * 1024;
+    std::vector<std::uint8_t> data(size, 0x5A);
+    std::uint8_t key[AES256_KEY_SIZE] = {};
+    std::uint8_t iv[AES_BLOCK_SIZE] = {};
+    AES256CBC aes(key, backend);
+    auto measure = [&](bool encrypt) {
+        auto start = std::chrono::steady_clock::now();
+        if (encrypt) {
+            aes.encrypt(iv, data.data(), data.data(), size / AES_BLOCK_SIZE);
+        } else {
+            aes.decrypt(iv, data.data(), data.data(), size / AES_BLOCK_SIZE);
+        }
+        std::chrono::duration<double> seconds = std::chrono::steady_clock::now() - start;
+        return size / 1e6 / seconds.count();
+    };
+    double encryptRate = measure(true);
+    double decryptRate = measure(false);
+    std::printf("%-24s CBC encrypt %8.1f MB/s, decrypt %8.1f MB/s\n", getAESBackendName(backend), encryptRate, decryptRate);
+}
+
+} // namespace
+
+int main() {
+    std::vector<AESBackend> backends = supportedBackends();
+    std::printf("Detected backend: %s\n", getAESBackendName(detectAESBackend()));
+    for (AESBackend backend : backends) {
+        testFips197(backend);
+        testSp80038a(backend);
+    }
+    testBackendsMatch(backends);
+    for (AESBackend backend : backends) {
+        benchmark(backend);
+    }
+    if (failures > 0) {
+        std::printf("%d checks failed\n", failures);
+        return 1;
+    }
+    std::printf("All checks passed\n");
+    return 0;
+}
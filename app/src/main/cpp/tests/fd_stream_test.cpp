@@ -0,0 +1,98 @@
+/*
+ * Tests for fd_stream.h: a file read through the descriptor streams, plain, memory mapped or pipelined,
+ * comes out unchanged, and a descriptor that can't be read fails the stream (badbit) instead of ending it early.
+ * Exits non-zero if any check fails.
+ */
+#include "fd_stream.h"
+
+#include <cstdio>
+#include <cstdlib>
+#include <fcntl.h>
+#include <iterator>
+#include <random>
+#include <string>
+#include <vector>
+
+namespace {
+
+int failures = 0;
+
+void check(bool condition, const std::string & description) {
+    if (!condition) {
+        failures++;
+        std::printf("FAILED: %s\n", description.c_str());
+    }
+}
+
+std::vector<char> randomData(std::size_t size) {
+    std::mt19937 random(1656);
+    std::vector<char> data(size);
+    for (char & c : data) {
+        c = static_cast<char>(random());
+    }
+    return data;
+}
+
+//read the whole stream in odd sized pieces, the way the engine does
+std::vector<char> readAll(std::istream & istream) {
+    std::vector<char> data;
+    char piece[1000];
+    while (istream.read(piece, sizeof(piece)) || istream.gcount() > 0) {
+        data.insert(data.end(), piece, piece + istream.gcount());
+    }
+    return data;
+}
+
+std::string description(int ioFlags, const char * what) {
+    return "ioFlags " + std::to_string(ioFlags) + ": " + what;
+}
+
+void testRead(int ioFlags) {
+    std::vector<char> source = randomData(300000);
+    char path[] = "/tmp/fd_stream_testXXXXXX";
+    int fd = mkstemp(path);
+    unlink(path);
+    check(writeFully(fd, source.data(), source.size()) && lseek(fd, 0, SEEK_SET) == 0, "test file written");
+    {
+        std::unique_ptr<std::istream> istream = makeFdIstream(fd, ioFlags, 4096);
+        check(readAll(*istream) == source, description(ioFlags, "file reads unchanged"));
+        check(!istream->bad(), description(ioFlags, "end of file is not an error"));
+    }
+    close(fd);
+}
+
+//read() fails with EISDIR on a directory and EBADF on a closed descriptor
+void testReadError(int ioFlags) {
+    int directoryFd = open("/tmp", O_RDONLY | O_DIRECTORY);
+    {
+        std::unique_ptr<std::istream> istream = makeFdIstream(directoryFd, ioFlags, 4096);
+        readAll(*istream);
+        check(istream->bad(), description(ioFlags, "directory fails the stream"));
+    }
+    close(directoryFd);
+
+    int pipeFds[2];
+    check(pipe(pipeFds) == 0, "pipe created");
+    close(pipeFds[1]);
+    close(pipeFds[0]);
+    {
+        std::unique_ptr<std::istream> istream = makeFdIstream(pipeFds[0], ioFlags, 4096);
+        readAll(*istream);
+        check(istream->bad(), description(ioFlags, "closed pipe end fails the stream"));
+    }
+}
+
+} // namespace
+
+int main() {
+    for (int ioFlags : {0, IO_FLAG_MMAP_INPUT, IO_FLAG_PIPELINED}) {
+        testRead(ioFlags);
+        testReadError(ioFlags);
+    }
+    if (failures > 0) {
+        std::printf("%d checks failed\n", failures);
+        return 1;
+    }
+    std::printf("All checks passed\n");
+    return 0;
+}
@@ -0,0 +1,255 @@
+/*
+ * Tests for parallel_decryptor.h against AES Crypt version 3 streams built here from the backends, and the metrics
+ * it fills in, plus a benchmark of decrypting a large file with one worker and with the default worker count.
+ * Exits non-zero if any check fails.
+ */
+#include "parallel_decryptor.h"
+
+#include "aes_backend.h"
+#include "operation_metrics.h"
+#include "sha_backend.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <random>
+#include <string>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <vector>
+
+namespace {
+
+int failures = 0;
+
+void check(bool condition, const std::string & description) {
+    if (!condition) {
+        failures++;
+        std::printf("FAILED: %s\n", description.c_str());
+    }
+}
+
+const std::uint32_t TEST_ITERATIONS = 1000;
+
+struct EncodeOptions {
+    std::uint8_t version = 3;
+    bool extensions = false;
+    //older writers authenticate the encrypted IV and key without the version octet
+    bool sessionMacIncludesVersion = true;
+};
+
+std::vector<std::uint8_t> encode(const std::vector<std::uint8_t> & plaintext, const std::string & password, std::mt19937 & random, const EncodeOptions & options = {}) {
+    std::vector<std::uint8_t> stream = {'A', 'E', 'S', options.version, 0};
+    if (options.extensions) {
+        std::string extension = std::string("CREATED_BY") + '\0' + "parallel_decryptor_test";
+        stream.push_back(0);
+        stream.push_back(static_cast<std::uint8_t>(extension.size()));
+        stream.insert(stream.end(), extension.begin(), extension.end());
+        //the reserved empty extension writers leave for later edits
+        stream.push_back(0);
+        stream.push_back(128);
+        stream.insert(stream.end(), 128, 0);
+    }
+    stream.push_back(0);
+    stream.push_back(0);
+    for (int shift = 24; shift >= 0; shift -= 8) {
+        stream.push_back(static_cast<std::uint8_t>(TEST_ITERATIONS >> shift));
+    }
+    std::uint8_t iv[16];
+    std::uint8_t session[48];
+    for (std::uint8_t & b : iv) {
+        b = static_cast<std::uint8_t>(random());
+    }
+    for (std::uint8_t & b : session) {
+        b = static_cast<std::uint8_t>(random());
+    }
+    stream.insert(stream.end(), iv, iv + 16);
+
+    std::uint8_t key[32];
+    pbkdf2HmacSha512(reinterpret_cast<const std::uint8_t *>(password.data()), password.size(), iv, 16, TEST_ITERATIONS, key, sizeof(key));
+    std::uint8_t encryptedSession[48];
+    std::uint8_t chain[16];
+    std::memcpy(chain, iv, 16);
+    AES256CBC(key).encrypt(chain, session, encryptedSession, 3);
+    stream.insert(stream.end(), encryptedSession, encryptedSession + 48);
+    HMACSHA256 sessionHmac(key, sizeof(key));
+    sessionHmac.update(encryptedSession, 48);
+    if (options.sessionMacIncludesVersion) {
+        sessionHmac.update(&options.version, 1);
+    }
+    std::uint8_t mac[32];
+    sessionHmac.finish(mac);
+    stream.insert(stream.end(), mac, mac + 32);
+
+    std::vector<std::uint8_t> padded = plaintext;
+    std::uint8_t padding = static_cast<std::uint8_t>(16 - plaintext.size() % 16);
+    padded.insert(padded.end(), padding, padding);
+    std::memcpy(chain, session, 16);
+    AES256CBC(session + 16).encrypt(chain, padded.data(), padded.data(), padded.size() / 16);
+    HMACSHA256 hmac(session + 16, 32);
+    hmac.update(padded.data(), padded.size());
+    hmac.finish(mac);
+    stream.insert(stream.end(), padded.begin(), padded.end());
+    stream.insert(stream.end(), mac, mac + 32);
+    return stream;
+}
+
+struct TemporaryFile {
+    std::string path;
+    int fd;
+
+    TemporaryFile() {
+        char name[] = "/tmp/parallel_decryptor_testXXXXXX";
+        fd = mkstemp(name);
+        path = name;
+    }
+    ~TemporaryFile() {
+        close(fd);
+        unlink(path.c_str());
+    }
+    void write(const std::vector<std::uint8_t> & data) const {
+        check(pwrite(fd, data.data(), data.size(), 0) == static_cast<ssize_t>(data.size()), "write " + path);
+        lseek(fd, 0, SEEK_SET);
+    }
+    std::vector<std::uint8_t> read() const {
+        struct stat fileStat{};
+        fstat(fd, &fileStat);
+        std::vector<std::uint8_t> data(fileStat.st_size);
+        check(pread(fd, data.data(), data.size(), 0) == static_cast<ssize_t>(data.size()), "read " + path);
+        return data;
+    }
+};
+
+ParallelDecryptResult decryptStream(const std::vector<std::uint8_t> & stream, const std::string & password, unsigned int workerCount, std::vector<std::uint8_t> & plaintext) {
+    TemporaryFile input;
+    TemporaryFile output;
+    input.write(stream);
+    ParallelDecryptor decryptor(workerCount);
+    std::size_t lastProgress = 0;
+    ParallelDecryptResult result = decryptor.decrypt(password, input.fd, output.fd, [&lastProgress](std::size_t bytes) {
+        check(bytes >= lastProgress, "progress never goes backwards");
+        lastProgress = bytes;
+    }, 1024 * 1024);
+    plaintext = output.read();
+    if (result == ParallelDecryptResult::Success) {
+        check(lastProgress == stream.size(), "final progress is the input size");
+    }
+    return result;
+}
+
+void testRoundTrips(std::mt19937 & random) {
+    const std::size_t chunk = ParallelDecryptor::CHUNK_SIZE;
+    for (std::size_t size : {std::size_t(0), std::size_t(1), std::size_t(15), std::size_t(16), std::size_t(17), chunk - 16, chunk - 1, chunk, chunk + 16, 3 * chunk + 5}) {
+        std::vector<std::uint8_t> plaintext(size);
+        for (std::uint8_t & b : plaintext) {
+            b = static_cast<std::uint8_t>(random());
+        }
+        std::vector<std::uint8_t> stream = encode(plaintext, "password \xC3\xA9", random);
+        for (unsigned int workers : {1u, 3u, 4u}) {
+            std::vector<std::uint8_t> decrypted;
+            ParallelDecryptResult result = decryptStream(stream, "password \xC3\xA9", workers, decrypted);
+            std::string name = std::to_string(size) + " bytes, " + std::to_string(workers) + " workers";
+            check(result == ParallelDecryptResult::Success, name + " succeeds");
+            check(decrypted == plaintext, name + " round trips");
+        }
+    }
+}
+
+void testHeaderVariants(std::mt19937 & random) {
+    std::vector<std::uint8_t> plaintext(100000, 0x42);
+    std::vector<std::uint8_t> decrypted;
+    EncodeOptions options;
+    options.extensions = true;
+    check(decryptStream(encode(plaintext, "pw", random, options), "pw", 2, decrypted) == ParallelDecryptResult::Success && decrypted == plaintext,
+          "extensions are skipped");
+    options = {};
+    options.sessionMacIncludesVersion = false;
+    check(decryptStream(encode(plaintext, "pw", random, options), "pw", 2, decrypted) == ParallelDecryptResult::Success && decrypted == plaintext,
+          "session HMAC without the version octet");
+    options = {};
+    options.version = 2;
+    check(decryptStream(encode(plaintext, "pw", random, options), "pw", 2, decrypted) == ParallelDecryptResult::Unsupported && decrypted.empty(),
+          "version 2 is left to the engine");
+    std::vector<std::uint8_t> truncated = encode(plaintext, "pw", random);
+    truncated.resize(truncated.size() - 7);
+    check(decryptStream(truncated, "pw", 2, decrypted) == ParallelDecryptResult::Unsupported && decrypted.empty(), "truncated stream is left to the engine");
+}
+
+void testVerification(std::mt19937 & random) {
+    std::vector<std::uint8_t> plaintext(3 * ParallelDecryptor::CHUNK_SIZE, 0x17);
+    std::vector<std::uint8_t> stream = encode(plaintext, "right", random);
+    std::vector<std::uint8_t> decrypted;
+    check(decryptStream(stream, "wrong", 4, decrypted) == ParallelDecryptResult::VerificationFailed && decrypted.empty(), "wrong password");
+    std::vector<std::uint8_t> altered = stream;
+    altered[altered.size() / 2] ^= 1;
+    check(decryptStream(altered, "right", 4, decrypted) == ParallelDecryptResult::VerificationFailed, "altered ciphertext");
+    check(decrypted.empty(), "altered ciphertext output is truncated back");
+    altered = stream;
+    altered.back() ^= 1;
+    check(decryptStream(altered, "right", 4, decrypted) == ParallelDecryptResult::VerificationFailed && decrypted.empty(), "altered HMAC");
+}
+
+void testMetrics(std::mt19937 & random) {
+    const std::size_t chunk = ParallelDecryptor::CHUNK_SIZE;
+    std::vector<std::uint8_t> plaintext(3 * chunk + 5, 0x5a);
+    std::vector<std::uint8_t> stream = encode(plaintext, "pw", random);
+    TemporaryFile input;
+    TemporaryFile output;
+    input.write(stream);
+    OperationMetrics metrics;
+    ParallelDecryptor decryptor(2);
+    check(decryptor.decrypt("pw", input.fd, output.fd, [](std::size_t) {}, 0, &metrics) == ParallelDecryptResult::Success, "decrypt with metrics");
+    check(metrics.readChunks == 4 && metrics.writeChunks == 4, "every chunk is read and written once");
+    check(metrics.keyDerivationNanos > 0 && metrics.hmacNanos > 0, "key derivation and HMAC are timed");
+    check(metrics.bufferBytes == 4 * static_cast<std::int64_t>(chunk), "two input and two output chunk buffers");
+}
+
+void testPipeIsUnsupported() {
+    int pipeFds[2];
+    check(pipe(pipeFds) == 0, "pipe");
+    TemporaryFile output;
+    ParallelDecryptor decryptor;
+    check(decryptor.decrypt("pw", pipeFds[0], output.fd, [](std::size_t) {}, 0) == ParallelDecryptResult::Unsupported, "pipe input is left to the engine");
+    close(pipeFds[0]);
+    close(pipeFds[1]);
+}
+
+void benchmark(std::mt19937 & random) {
+    std::vector<std::uint8_t> plaintext(256 * 1024 * 1024);
+    for (std::size_t i = 0; i < plaintext.size(); i += 4096) {
+        plaintext[i] = static_cast<std::uint8_t>(random());
+    }
+    std::vector<std::uint8_t> stream = encode(plaintext, "benchmark", random);
+    TemporaryFile input;
+    input.write(stream);
+    for (unsigned int workers : {1u, ParallelDecryptor::defaultWorkerCount()}) {
+        TemporaryFile output;
+        lseek(input.fd, 0, SEEK_SET);
+        ParallelDecryptor decryptor(workers);
+        auto start = std::chrono::steady_clock::now();
+        ParallelDecryptResult result = decryptor.decrypt("benchmark", input.fd, output.fd, [](std::size_t) {}, 0);
+        std::chrono::duration<double> seconds = std::chrono::steady_clock::now() - start;
+        check(result == ParallelDecryptResult::Success, "benchmark decrypt");
+        std::printf("%u workers (AES %s, SHA-256 %s): %.1f MB/s\n", workers, getAESBackendName(detectAESBackend()),
+                    getSHABackendName(detectSHA256Backend()), stream.size() / 1e6 / seconds.count());
+    }
+}
+
+} // namespace
+
+int main() {
+    std::mt19937 random(1656);
+    testRoundTrips(random);
+    testHeaderVariants(random);
+    testVerification(random);
+    testMetrics(random);
+    testPipeIsUnsupported();
+    benchmark(random);
+    if (failures > 0) {
+        std::printf("%d checks failed\n", failures);
+        return 1;
+    }
+    std::printf("All checks passed\n");
+    return 0;
+}
@@ -0,0 +1,184 @@
+/*
+ * Tests for pipelined_stream.h: the lock-free chunk ring under two threads, data passing unchanged through the
+ * read-ahead and write-behind threads, early shutdown, read and write errors, and the stage times of a slow reader and a
+ * slow writer. Exits non-zero if any check fails.
+ */
+#include "pipelined_stream.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <random>
+#include <string>
+#include <thread>
+#include <vector>
+
+namespace {
+
+int failures = 0;
+
+void check(bool condition, const std::string & description) {
+    if (!condition) {
+        failures++;
+        std::printf("FAILED: %s\n", description.c_str());
+    }
+}
+
+//two rings passing the same few chunks back and forth, like the free and filled rings of a stream
+void testRing() {
+    const std::size_t chunkCount = 4;
+    const int rounds = 1000000;
+    std::vector<PipelineChunk> chunks(chunkCount);
+    PipelineChunkRing freeChunks(chunkCount);
+    PipelineChunkRing filledChunks(chunkCount);
+    for (PipelineChunk & chunk : chunks) {
+        freeChunks.push(&chunk);
+    }
+    std::thread producer([&] {
+        for (int i = 0; i < rounds; i++) {
+            PipelineChunk * chunk = freeChunks.pop();
+            chunk->length = i;
+            filledChunks.push(chunk);
+        }
+        filledChunks.close();
+    });
+    bool inOrder = true;
+    std::size_t expected = 0;
+    PipelineChunk * chunk;
+    while ((chunk = filledChunks.pop()) != nullptr) {
+        inOrder = inOrder && chunk->length == expected;
+        expected++;
+        freeChunks.push(chunk);
+    }
+    producer.join();
+    check(inOrder && expected == static_cast<std::size_t>(rounds), "ring passes every chunk in order");
+    freeChunks.waitForSize(chunkCount);
+    freeChunks.close();
+    for (std::size_t i = 0; i < chunkCount; i++) {
+        check(freeChunks.pop() != nullptr, "closed ring still hands out what it holds");
+    }
+    check(freeChunks.pop() == nullptr, "closed empty ring returns nullptr");
+}
+
+std::vector<char> randomData(std::size_t size) {
+    std::mt19937 random(1656);
+    std::vector<char> data(size);
+    for (char & c : data) {
+        c = static_cast<char>(random());
+    }
+    return data;
+}
+
+//read source through a PipelinedIstream and write it out through a PipelinedOstream in odd sized pieces
+std::vector<char> copyThroughPipeline(const std::vector<char> & source, std::size_t chunkSize, std::chrono::microseconds readDelay,
+                                      std::chrono::microseconds writeDelay, PipelineStageTimes & stageTimes) {
+    std::size_t readOffset = 0;
+    std::vector<char> destination;
+    {
+        PipelinedIstream istream([&](char * buffer, std::size_t size) -> ssize_t {
+            std::this_thread::sleep_for(readDelay);
+            std::size_t count = std::min(size, source.size() - readOffset);
+            std::memcpy(buffer, source.data() + readOffset, count);
+            readOffset += count;
+            return static_cast<ssize_t>(count);
+        }, chunkSize, 4, &stageTimes);
+        PipelinedOstream ostream([&](const char * buffer, std::size_t size) {
+            std::this_thread::sleep_for(writeDelay);
+            destination.insert(destination.end(), buffer, buffer + size);
+            return true;
+        }, chunkSize, 4, &stageTimes);
+        std::vector<char> piece(777);
+        while (istream.read(piece.data(), piece.size()) || istream.gcount() > 0) {
+            ostream.write(piece.data(), istream.gcount());
+        }
+        ostream.flush();
+        check(ostream.good(), "flush succeeds");
+    }
+    return destination;
+}
+
+void testCopy() {
+    for (std::size_t size : {std::size_t(0), std::size_t(1), std::size_t(4096), std::size_t(4097), std::size_t(1000000)}) {
+        std::vector<char> source = randomData(size);
+        PipelineStageTimes stageTimes;
+        check(copyThroughPipeline(source, 4096, std::chrono::microseconds(0), std::chrono::microseconds(0), stageTimes) == source,
+              std::to_string(size) + " bytes pass through unchanged");
+    }
+}
+
+//the stage that sleeps should show up as the busy one, and the other I/O thread as idle
+void testStageTimes() {
+    std::vector<char> source = randomData(64 * 4096);
+    PipelineStageTimes slowReader;
+    copyThroughPipeline(source, 4096, std::chrono::microseconds(2000), std::chrono::microseconds(0), slowReader);
+    check(slowReader.readNanos > slowReader.writeNanos * 4, "slow reader has the most I/O time");
+    check(slowReader.engineInputStallNanos > slowReader.engineOutputStallNanos, "engine waits on a slow reader");
+    check(slowReader.writerIdleNanos > slowReader.writeNanos, "writer idles behind a slow reader");
+
+    PipelineStageTimes slowWriter;
+    copyThroughPipeline(source, 4096, std::chrono::microseconds(0), std::chrono::microseconds(2000), slowWriter);
+    check(slowWriter.writeNanos > slowWriter.readNanos * 4, "slow writer has the most I/O time");
+    check(slowWriter.engineOutputStallNanos > slowWriter.engineInputStallNanos, "engine waits on a slow writer");
+    check(slowWriter.readerIdleNanos > slowWriter.readNanos, "reader idles ahead of a slow writer");
+    std::printf("slow writer: read %.1f ms, reader idle %.1f ms, engine stalled %.1f ms, write %.1f ms\n", slowWriter.readNanos / 1e6,
+                slowWriter.readerIdleNanos / 1e6, (slowWriter.engineInputStallNanos + slowWriter.engineOutputStallNanos) / 1e6, slowWriter.writeNanos / 1e6);
+}
+
+//the engine stops reading before the end, the reader thread must not block the destructor
+void testEarlyStop() {
+    std::size_t reads = 0;
+    {
+        PipelinedIstream istream([&](char * buffer, std::size_t size) -> ssize_t {
+            reads++;
+            std::memset(buffer, 1, size);
+            return static_cast<ssize_t>(size);
+        }, 4096, 4);
+        char c;
+        istream.read(&c, 1);
+    }
+    check(reads >= 1, "endless input stops with the stream");
+}
+
+//the chunks read before the error still come through, then the stream fails instead of ending
+void testReadError() {
+    int reads = 0;
+    PipelinedIstream istream([&](char * buffer, std::size_t size) -> ssize_t {
+        if (++reads > 3) {
+            return -1;
+        }
+        std::memset(buffer, 1, size);
+        return static_cast<ssize_t>(size);
+    }, 4096, 4);
+    std::vector<char> data(4096);
+    std::size_t total = 0;
+    while (istream.read(data.data(), data.size()) || istream.gcount() > 0) {
+        total += istream.gcount();
+    }
+    check(total == 3 * 4096, "chunks read before the error pass through");
+    check(istream.bad(), "read error fails the stream");
+}
+
+void testWriteError() {
+    PipelinedOstream ostream([](const char *, std::size_t) { return false; }, 4096, 4);
+    std::vector<char> data(10000, 'x');
+    ostream.write(data.data(), data.size());
+    ostream.flush();
+    check(!ostream.good(), "write error fails the flush");
+}
+
+} // namespace
+
+int main() {
+    testRing();
+    testCopy();
+    testStageTimes();
+    testEarlyStop();
+    testReadError();
+    testWriteError();
+    if (failures > 0) {
+        std::printf("%d checks failed\n", failures);
+        return 1;
+    }
+    std::printf("All checks passed\n");
+    return 0;
+}
@@ -0,0 +1,212 @@
+/*
+ * Known answer and cross backend tests for sha_backend.h, plus a benchmark of hashing, HMAC-SHA256 and the
+ * 300000 iteration PBKDF2-HMAC-SHA512 on every backend the CPU supports. Exits non-zero if any check fails.
+ */
+#include "sha_backend.h"
+
+#include <chrono>
+#include <cstdio>
+#include <cstring>
+#include <random>
+#include <string>
+#include <vector>
+
+namespace {
+
+int failures = 0;
+
+void check(bool condition, const std::string & description) {
+    if (!condition) {
+        failures++;
+        std::printf("FAILED: %s\n", description.c_str());
+    }
+}
+
+std::string toHex(const std::uint8_t * bytes, std::size_t length) {
+    static const char digits[] = "0123456789abcdef";
+    std::string hex;
+    for (std::size_t i = 0; i < length; i++) {
+        hex += digits[bytes[i] >> 4];
+        hex += digits[bytes[i] & 0xF];
+    }
+    return hex;
+}
+
+const std::uint8_t * bytesOf(const std::string & text) {
+    return reinterpret_cast<const std::uint8_t *>(text.data());
+}
+
+const SHABackend ALL_BACKENDS[] = {SHABackend::Portable, SHABackend::SHANI, SHABackend::ARMv8};
+
+template<typename Hash>
+std::string hashHex(const std::string & message, SHABackend backend) {
+    Hash hash(backend);
+    hash.update(bytesOf(message), message.size());
+    std::uint8_t digest[Hash::DIGEST_SIZE];
+    hash.finish(digest);
+    return toHex(digest, sizeof(digest));
+}
+
+//FIPS 180-4 example messages
+void testSHA256(SHABackend backend) {
+    std::string name = std::string(getSHABackendName(backend)) + " SHA-256 ";
+    check(hashHex<SHA256>("", backend) == "e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", name + "empty");
+    check(hashHex<SHA256>("abc", backend) == "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", name + "abc");
+    check(hashHex<SHA256>("abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", backend)
+          == "248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1", name + "two blocks");
+    check(hashHex<SHA256>(std::string(1000000, 'a'), backend) == "cdc76e5c9914fb9281a1c7e284d73e67f1809a48a497200e046d39ccc7112cd0", name + "million a");
+}
+
+void testSHA512(SHABackend backend) {
+    std::string name = std::string(getSHABackendName(backend)) + " SHA-512 ";
+    check(hashHex<SHA512>("", backend) == "cf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e",
+          name + "empty");
+    check(hashHex<SHA512>("abc", backend) == "ddaf35a193617abacc417349ae20413112e6fa4e89a97ea20a9eeee64b55d39a2192992a274fc1a836ba3c23a3feebbd454d4423643ce80e2a9ac94fa54ca49f",
+          name + "abc");
+    check(hashHex<SHA512>("abcdefghbcdefghicdefghijdefghijkefghijklfghijklmghijklmnhijklmnoijklmnopjklmnopqklmnopqrlmnopqrsmnopqrstnopqrstu", backend)
+          == "8e959b75dae313da8cf4f72814fc143f8f7779c6eb9f7fa17299aeadb6889018501d289e4900f7e4331b99dec4b5433ac7d329eeb6dd26545e96e55b874be909",
+          name + "two blocks");
+    check(hashHex<SHA512>(std::string(1000000, 'a'), backend) == "e718483d0ce769644e2e42c7bc15b4638e1f98b13b2044285632a803afa973ebde0ff244877ea60a4cb0432ce577c31beb009c5c2c49aa2e4eadb217ad8cc09b",
+          name + "million a");
+}
+
+template<typename Hash>
+std::string hmacHex(const std::string & key, const std::string & message, SHABackend backend) {
+    HMAC<Hash> hmac(bytesOf(key), key.size(), backend);
+    std::uint8_t mac[HMAC<Hash>::MAC_SIZE];
+    //the second MAC checks that finish() resets to the keyed state
+    hmac.update(bytesOf("discarded"), 9);
+    hmac.finish(mac);
+    hmac.update(bytesOf(message), message.size());
+    hmac.finish(mac);
+    return toHex(mac, sizeof(mac));
+}
+
+//RFC 4231 test cases 1 and 6
+void testHMAC(SHABackend sha256Backend, SHABackend sha512Backend) {
+    std::string shortKey(20, '\x0b');
+    std::string longKey(131, '\xaa');
+    std::string longKeyMessage = "Test Using Larger Than Block-Size Key - Hash Key First";
+    check(hmacHex<SHA256>(shortKey, "Hi There", sha256Backend) == "b0344c61d8db38535ca8afceaf0bf12b881dc200c9833da726e9376c2e32cff7",
+          std::string(getSHABackendName(sha256Backend)) + " HMAC-SHA256 RFC 4231 case 1");
+    check(hmacHex<SHA256>(longKey, longKeyMessage, sha256Backend) == "60e431591ee0b67f0d8a26aacbf5b77f8e0bc6213728c5140546040f0ee37f54",
+          std::string(getSHABackendName(sha256Backend)) + " HMAC-SHA256 RFC 4231 case 6");
+    check(hmacHex<SHA512>(shortKey, "Hi There", sha512Backend)
+          == "87aa7cdea5ef619d4ff0b4241a1d6cb02379f4e2ce4ec2787ad0b30545e17cdedaa833b7d6b8a702038b274eaea3f4e4be9d914eeb61f1702e696c203a126854",
+          std::string(getSHABackendName(sha512Backend)) + " HMAC-SHA512 RFC 4231 case 1");
+    check(hmacHex<SHA512>(longKey, longKeyMessage, sha512Backend)
+          == "80b24263c7c1a3ebb71493c1dd7be8b49b46d1f41b4aeec1121b013783f8f3526b56d037e05f2598bd0fd2215d6a1e5295e64f73f63f0aec8b915a985d786598",
+          std::string(getSHABackendName(sha512Backend)) + " HMAC-SHA512 RFC 4231 case 6");
+}
+
+std::string pbkdf2Hex(const std::string & password, const std::string & salt, std::uint32_t iterations, std::size_t length, SHABackend backend) {
+    std::vector<std::uint8_t> output(length);
+    pbkdf2HmacSha512(bytesOf(password), password.size(), bytesOf(salt), salt.size(), iterations, output.data(), length, backend);
+    return toHex(output.data(), length);
+}
+
+void testPBKDF2(SHABackend backend) {
+    std::string name = std::string(getSHABackendName(backend)) + " PBKDF2-HMAC-SHA512 ";
+    check(pbkdf2Hex("password", "salt", 1, 64, backend)
+          == "867f70cf1ade02cff3752599a3a53dc4af34c7a669815ae5d513554e1c8cf252c02d470a285a0501bad999bfe943c08f050235d7d68b1da55e63f73b60a57fce",
+          name + "1 iteration");
+    check(pbkdf2Hex("password", "salt", 4096, 64, backend)
+          == "d197b1b33db0143e018b12f3d1d1479e6cdebdcc97c5c0f87f6902e072f457b5143f30602641b3d55cd335988cb36b84376060ecd532e039b742a239434af2d5",
+          name + "4096 iterations");
+    //longer than one digest, so the block index is exercised
+    check(pbkdf2Hex("passwordPASSWORDpassword", "saltSALTsaltSALTsaltSALTsaltSALTsalt", 4096, 100, backend)
+          == "8c0511f4c6e597c6ac6315d8f0362e225f3c501495ba23b868c005174dc4ee71115b59f9e60cd9532fa33e0f75aefe30225c583a186cd82bd4daea9724a3d3b804f75bdd41494fa324cab24bcc680fb3b96a30cf5d21fac3c2875913919f3399b1d9ce7e",
+          name + "100 bytes");
+}
+
+//every backend must match the portable one when the message is fed in random sized pieces
+template<typename Hash>
+void testBackendsMatch(bool (*isSupported)(SHABackend)) {
+    std::mt19937 random(1656);
+    std::vector<std::uint8_t> message(100000);
+    for (std::uint8_t & b : message) {
+        b = static_cast<std::uint8_t>(random());
+    }
+    for (SHABackend backend : ALL_BACKENDS) {
+        if (!isSupported(backend)) {
+            continue;
+        }
+        for (std::size_t length : {0, 1, 55, 56, 63, 64, 111, 112, 127, 128, 129, 1000, 100000}) {
+            Hash reference(SHABackend::Portable);
+            reference.update(message.data(), length);
+            std::uint8_t expected[Hash::DIGEST_SIZE];
+            reference.finish(expected);
+
+            Hash hash(backend);
+            std::size_t offset = 0;
+            while (offset < length) {
+                std::size_t piece = std::min<std::size_t>(length - offset, random() % 300);
+                hash.update(message.data() + offset, piece);
+                offset += piece;
+            }
+            std::uint8_t digest[Hash::DIGEST_SIZE];
+            hash.finish(digest);
+            check(std::memcmp(digest, expected, sizeof(digest)) == 0,
+                  std::string(getSHABackendName(backend)) + " " + std::to_string(Hash::DIGEST_SIZE * 8) + " bit hash of " + std::to_string(length) + " bytes matches portable");
+        }
+    }
+}
+
+template<typename Hash>
+double hashRate(SHABackend backend, const std::vector<std::uint8_t> & data) {
+    Hash hash(backend);
+    std::uint8_t digest[Hash::DIGEST_SIZE];
+    auto start = std::chrono::steady_clock::now();
+    hash.update(data.data(), data.size());
+    hash.finish(digest);
+    std::chrono::duration<double> seconds = std::chrono::steady_clock::now() - start;
+    return data.size() / 1e6 / seconds.count();
+}
+
+void benchmark() {
+    std::vector<std::uint8_t> data(64 * 1024 * 1024, 0x5A);
+    for (SHABackend backend : ALL_BACKENDS) {
+        if (isSHA256BackendSupported(backend)) {
+            std::printf("%-10s SHA-256 (HMAC over the payload) %8.1f MB/s\n", getSHABackendName(backend), hashRate<SHA256>(backend, data));
+        }
+    }
+    for (SHABackend backend : ALL_BACKENDS) {
+        if (!isSHA512BackendSupported(backend)) {
+            continue;
+        }
+        double rate = hashRate<SHA512>(backend, data);
+        std::uint8_t key[32];
+        std::string password = "benchmark password";
+        std::uint8_t salt[16] = {};
+        auto start = std::chrono::steady_clock::now();
+        pbkdf2HmacSha512(bytesOf(password), password.size(), salt, sizeof(salt), 300000, key, sizeof(key), backend);
+        std::chrono::duration<double> seconds = std::chrono::steady_clock::now() - start;
+        std::printf("%-10s SHA-512 %8.1f MB/s, PBKDF2 300000 iterations %.3f s\n", getSHABackendName(backend), rate, seconds.count());
+    }
+}
+
+} // namespace
+
+int main() {
+    std::printf("Detected backends: SHA-256 %s, SHA-512 %s\n", getSHABackendName(detectSHA256Backend()), getSHABackendName(detectSHA512Backend()));
+    for (SHABackend backend : ALL_BACKENDS) {
+        if (isSHA256BackendSupported(backend)) {
+            testSHA256(backend);
+            testHMAC(backend, SHABackend::Portable);
+        }
+        if (isSHA512BackendSupported(backend)) {
+            testSHA512(backend);
+            testHMAC(SHABackend::Portable, backend);
+            testPBKDF2(backend);
+        }
+    }
+    testBackendsMatch<SHA256>(isSHA256BackendSupported);
+    testBackendsMatch<SHA512>(isSHA512BackendSupported);
+    benchmark();
+    if (failures > 0) {
+        std::printf("%d checks failed\n", failures);
+        return 1;
+    }
+    std::printf("All checks passed\n");
+    return 0;
+}
@@ -0,0 +1,201 @@
+package com.dewdrop623.androidcrypt;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * CryptoEngines picks the CryptoEngine each operation type runs on.
+ * On first run both engines encrypt and decrypt a sample file in the cache directory and the faster one is kept, per operation type.
+ * The JCA engine is only picked if what it encrypts decrypts with the native engine and it decrypts what the native engine encrypts,
+ * so a device whose providers can't do version 3 (PBKDF2WithHmacSHA512 is missing before Android 8.0) keeps the native engine.
+ * Until the measurement is done everything runs on the native engine.
+ */
+
+public final class CryptoEngines {
+
+    private static final String LOG_TAG = "CryptoEngines";
+
+    private static final CryptoEngine NATIVE_ENGINE = new NativeCryptoEngine();
+    private static final CryptoEngine JCA_ENGINE = new JcaCryptoEngine();
+
+    //as big as a large file, so the native engine runs the way it does on real files
+    private static final int SAMPLE_BYTES = (int) CryptoService.LARGE_FILE_BYTES;
+    //key derivation costs the same whatever the file size, keep it from drowning out the rest
+    private static final int SAMPLE_KEY_ITERATIONS = KeyIterationCalibrator.MIN_KEY_ITERATIONS;
+    private static final int SAMPLE_COUNT = 2;
+    private static final String SAMPLE_PASSWORD = "benchmark";
+    private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+    //an engine that fails takes forever
+    private static final long FAILED = Long.MAX_VALUE;
+
+    private CryptoEngines() {
+
+    }
+
+    public static CryptoEngine get(Context context, boolean operationType) {
+        return get(SettingsHelper.getCryptoEngine(context, operationType));
+    }
+
+    //the engine with CryptoEngine.getName() name, the native engine for any other name
+    public static CryptoEngine get(String name) {
+        return JcaCryptoEngine.NAME.equals(name) ? JCA_ENGINE : NATIVE_ENGINE;
+    }
+
+    /*
+    * Time both engines on a sample file in directory and return the names of the fastest ones, {encryption engine, decryption engine}.
+    * Each operation is timed SAMPLE_COUNT times and the fastest run is used so a busy moment doesn't decide.
+    * Blocks for a few seconds, don't call it on the main thread.
+     */
+    public static String[] measureFastestEngines(File directory) {
+        File plaintext = new File(directory, "engine_benchmark");
+        File nativeCiphertext = new File(directory, "engine_benchmark_native.aes");
+        File jcaCiphertext = new File(directory, "engine_benchmark_jca.aes");
+        File decrypted = new File(directory, "engine_benchmark_decrypted");
+        String encryptionEngine = NativeCryptoEngine.NAME;
+        String decryptionEngine = NativeCryptoEngine.NAME;
+        try {
+            writeSample(plaintext);
+            long nativeEncryptionNanos = timeEncryption(NATIVE_ENGINE, plaintext, nativeCiphertext);
+            long jcaEncryptionNanos = timeEncryption(JCA_ENGINE, plaintext, jcaCiphertext);
+            //both decrypt the native engine's files, which is what users have
+            long nativeDecryptionNanos = timeDecryption(NATIVE_ENGINE, nativeCiphertext, decrypted, plaintext);
+            long jcaDecryptionNanos = timeDecryption(JCA_ENGINE, nativeCiphertext, decrypted, plaintext);
+            if (jcaEncryptionNanos < nativeEncryptionNanos && timeDecryption(NATIVE_ENGINE, jcaCiphertext, decrypted, plaintext) != FAILED) {
+                encryptionEngine = JcaCryptoEngine.NAME;
+            }
+            if (jcaDecryptionNanos < nativeDecryptionNanos) {
+                decryptionEngine = JcaCryptoEngine.NAME;
+            }
+            Log.i(LOG_TAG, String.format(Locale.US, "encryption native %d ms, jca %d ms; decryption native %d ms, jca %d ms; using %s, %s",
+                    millis(nativeEncryptionNanos), millis(jcaEncryptionNanos), millis(nativeDecryptionNanos), millis(jcaDecryptionNanos),
+                    encryptionEngine, decryptionEngine));
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        } finally {
+            plaintext.delete();
+            nativeCiphertext.delete();
+            jcaCiphertext.delete();
+            decrypted.delete();
+        }
+        return new String[]{encryptionEngine, decryptionEngine};
+    }
+
+    /*
+    * Measure on a background thread and store the result with SettingsHelper.setCryptoEngines.
+     */
+    public static void selectInBackground(Context context) {
+        final Context applicationContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String[] engines = measureFastestEngines(applicationContext.getCacheDir());
+                SettingsHelper.setCryptoEngines(applicationContext, engines[0], engines[1]);
+            }
+        }).start();
+    }
+
+    private static long timeEncryption(CryptoEngine engine, File input, File output) throws IOException {
+        long fastestNanos = FAILED;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            long start = System.nanoTime();
+            int status = run(engine, CryptoThread.OPERATION_TYPE_ENCRYPTION, input, output);
+            long elapsed = System.nanoTime() - start;
+            if (status != CryptoEngine.STATUS_ENCRYPTION_COMPLETED) {
+                return FAILED;
+            }
+            fastestNanos = Math.min(fastestNanos, elapsed);
+        }
+        return fastestNanos;
+    }
+
+    //output has to come out the same as expected, or the engine failed
+    private static long timeDecryption(CryptoEngine engine, File input, File output, File expected) throws IOException {
+        long fastestNanos = FAILED;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            long start = System.nanoTime();
+            int status = run(engine, CryptoThread.OPERATION_TYPE_DECRYPTION, input, output);
+            long elapsed = System.nanoTime() - start;
+            if (status != CryptoEngine.STATUS_DECRYPTION_COMPLETED || !sameContents(output, expected)) {
+                return FAILED;
+            }
+            fastestNanos = Math.min(fastestNanos, elapsed);
+        }
+        return fastestNanos;
+    }
+
+    //run the operation the way CryptoThread would on a document backed by a regular file
+    private static int run(CryptoEngine engine, boolean operationType, File input, File output) throws IOException {
+        if (engine instanceof FileDescriptorCryptoEngine) {
+            FileDescriptorCryptoEngine fileDescriptorEngine = (FileDescriptorCryptoEngine) engine;
+            try (ParcelFileDescriptor inputFileDescriptor = ParcelFileDescriptor.open(input, ParcelFileDescriptor.MODE_READ_ONLY);
+                 ParcelFileDescriptor outputFileDescriptor = ParcelFileDescriptor.open(output,
+                         ParcelFileDescriptor.MODE_WRITE_ONLY | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE)) {
+                int ioFlags = CryptoThread.getIoFlags(input.length());
+                if (operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION) {
+                    return fileDescriptorEngine.encryptFd(null, SAMPLE_PASSWORD, SAMPLE_KEY_ITERATIONS, inputFileDescriptor.getFd(), outputFileDescriptor.getFd(), ioFlags);
+                }
+                return fileDescriptorEngine.decryptFd(null, SAMPLE_PASSWORD, inputFileDescriptor.getFd(), outputFileDescriptor.getFd(), ioFlags);
+            }
+        }
+        try (InputStream inputStream = new FileInputStream(input); OutputStream outputStream = new FileOutputStream(output)) {
+            if (operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION) {
+                return engine.encrypt(null, SAMPLE_PASSWORD, SAMPLE_KEY_ITERATIONS, inputStream, outputStream);
+            }
+            return engine.decrypt(null, SAMPLE_PASSWORD, inputStream, outputStream);
+        }
+    }
+
+    //incompressible, so a provider compressing the cache directory doesn't flatter anyone
+    private static void writeSample(File file) throws IOException {
+        Random random = new Random();
+        byte[] buffer = new byte[COMPARE_BUFFER_SIZE];
+        try (OutputStream outputStream = new FileOutputStream(file)) {
+            for (int written = 0; written < SAMPLE_BYTES; written += buffer.length) {
+                random.nextBytes(buffer);
+                outputStream.write(buffer);
+            }
+        }
+    }
+
+    private static boolean sameContents(File file1, File file2) throws IOException {
+        if (file1.length() != file2.length()) {
+            return false;
+        }
+        byte[] buffer1 = new byte[COMPARE_BUFFER_SIZE];
+        byte[] buffer2 = new byte[COMPARE_BUFFER_SIZE];
+        try (InputStream inputStream1 = new FileInputStream(file1); InputStream inputStream2 = new FileInputStream(file2)) {
+            int read;
+            while ((read = readFully(inputStream1, buffer1)) > 0) {
+                if (readFully(inputStream2, buffer2) != read || !Arrays.equals(buffer1, buffer2)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    //fill buffer unless the stream ends first, returns the bytes read
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = inputStream.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static long millis(long nanos) {
+        return nanos == FAILED ? -1 : nanos / 1000000;
+    }
+}
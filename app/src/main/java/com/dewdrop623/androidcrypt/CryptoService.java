@@ -12,14 +12,26 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.SystemClock;
+import android.text.format.Formatter;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+
 /**
- * Crypto service runs a background thread that does the encryption and decryption operations.
+ * Crypto service queues the encryption and decryption operations and runs them on a pool of worker threads.
  */
 
 public class CryptoService extends Service implements CryptoThread.ProgressDisplayer {
@@ -31,15 +43,76 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
     public static final String INPUT_FILE_URI_EXTRA_KEY = "com.dewdrop623.androidcrypt.CryptoService.INPUT_FILE_URI_EXTRA_KEY";
     public static final String OPERATION_TYPE_EXTRA_KEY = "com.dewdrop623.androidcrypt.CryptoService.OPERATION_TYPE_EXTRA_KEY";
     public static final String DELETE_INPUT_FILE_KEY = "com.dewdrop623.androidcrypt.CryptoService.DELETE_INPUT_FILE_KEY";
+    //A batch: a list of input uris and the tree uri of the directory the output files are created in. Used instead of the single input/output file extras.
+    public static final String INPUT_FILE_URIS_EXTRA_KEY = "com.dewdrop623.androidcrypt.CryptoService.INPUT_FILE_URIS_EXTRA_KEY";
+    public static final String OUTPUT_DIRECTORY_URI_EXTRA_KEY = "com.dewdrop623.androidcrypt.CryptoService.OUTPUT_DIRECTORY_URI_EXTRA_KEY";
 
     public static final String NOTIFICATION_CHANNEL_ID = "com.dewdrop623.androidcrypt.CryptoService.OPERATION_TYPE_EXTRA_KEY";
 
     private static final String PROGRESS_DISPLAYER_ID = "com.dewdrop623.androidcrypt.CryptoService.PROGRESS_DISPLAYER_ID";
 
+    /*
+    * Files smaller than this spend most of their time in the key derivation (300000 PBKDF2 iterations), which is pure CPU.
+    * Those run on every core. Larger ones are bound by AES and I/O and share a few large file slots.
+     */
+    public static final long LARGE_FILE_BYTES = 8 * 1024 * 1024;
+    /*
+    * Upper limit on large files running at once. Every one of them already keeps a reader and a writer thread busy next to the crypto thread,
+    * and storage stops getting faster after a few concurrent streams, so more would only compete for the same cores and flash.
+     */
+    private static final int MAX_LARGE_FILE_SLOTS = 4;
+    //how often the notification samples the progress of the running jobs
+    private static final long NOTIFICATION_POLL_MILLIS = 1000;
+    //minimum time between two progress notifications, the system drops updates that come faster anyway
+    private static final long MIN_NOTIFICATION_INTERVAL_MILLIS = 1000;
+    //running jobs listed in the notification, the rest are summarized by the file count
+    private static final int MAX_NOTIFICATION_LINES = 5;
+
+    private ExecutorService workers;
+    private Semaphore largeFileSlots;
+    private int largeFileSlotCount;
+    private Handler mainHandler;
+    //main thread only: true while notificationPoll is scheduled
+    private boolean notificationPollScheduled = false;
+    //the one notification builder, mutated for every update. Main thread only, like the rest of the notification state.
+    private NotificationCompat.Builder notificationBuilder;
+    private NotificationManagerCompat notificationManager;
+    //what the posted notification shows, and when it was posted, to skip unchanged and too frequent updates
+    private String postedNotificationContent = null;
+    private long postedNotificationTime = 0;
+    //the latest update held back by the rate limit, posted when the interval is over
+    private Runnable pendingNotification = null;
+
     @Override
     public void onCreate() {
         super.onCreate();
-        startForeground(START_FOREGROUND_ID, buildProgressNotification(CryptoThread.OPERATION_TYPE_ENCRYPTION, -1, R.string.app_name, -1, -1));
+        mainHandler = new Handler(getMainLooper());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            createNotificationChannel();
+        }
+        notificationManager = NotificationManagerCompat.from(this);
+        Intent resultIntent = new Intent(this, MainActivity.class);
+        PendingIntent resultPendingIntent = PendingIntent.getActivity(this, 0, resultIntent, PendingIntent.FLAG_IMMUTABLE);
+        notificationBuilder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
+        notificationBuilder.setContentIntent(resultPendingIntent);
+        startForeground(START_FOREGROUND_ID, buildProgressNotification(CryptoThread.OPERATION_TYPE_ENCRYPTION, -1, R.string.app_name, -1, -1, null));
+        //one worker per core so a batch of small files derives keys on all of them at once
+        int cores = Runtime.getRuntime().availableProcessors();
+        workers = Executors.newFixedThreadPool(cores);
+        //half the cores for large files leaves room for their I/O threads and the UI
+        largeFileSlotCount = Math.max(1, Math.min(MAX_LARGE_FILE_SLOTS, cores / 2));
+        largeFileSlots = new Semaphore(largeFileSlotCount);
+    }
+
+    @Override
+    public void onDestroy() {
+        mainHandler.removeCallbacks(notificationPoll);
+        if (pendingNotification != null) {
+            mainHandler.removeCallbacks(pendingNotification);
+        }
+        CryptoThread.cancelAll();
+        workers.shutdown();
+        super.onDestroy();
     }
 
     @Override
@@ -57,21 +130,21 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
             stopForeground(true);
             return START_NOT_STICKY;
         }
+        ArrayList<String> inputFileStrings = intent.getStringArrayListExtra(INPUT_FILE_URIS_EXTRA_KEY);
+        String outputDirectoryString = intent.getStringExtra(OUTPUT_DIRECTORY_URI_EXTRA_KEY);
         String inputFileString = intent.getStringExtra(INPUT_FILE_URI_EXTRA_KEY);
         String outputFileString = intent.getStringExtra(OUTPUT_FILE_URI_EXTRA_KEY);
+        boolean isBatch = inputFileStrings != null;
 
-        if (inputFileString == null) {
+        if (isBatch ? inputFileStrings.isEmpty() : inputFileString == null) {
             showToastOnGuiThread(R.string.no_input_file_selected);
-            stopSelf();
+            return stopIfIdle();
         }
-        if (outputFileString == null) {
+        if (isBatch ? outputDirectoryString == null : outputFileString == null) {
             showToastOnGuiThread(R.string.no_output_file_selected);
-            stopSelf();
+            return stopIfIdle();
         }
 
-        Uri inputFile = Uri.parse(inputFileString);
-        Uri outputFile = Uri.parse(outputFileString);
-
         String password = MainActivityFragment.getAndClearPassword();
         boolean operationType = intent.getBooleanExtra(OPERATION_TYPE_EXTRA_KEY, CryptoThread.OPERATION_TYPE_DECRYPTION);
         boolean deleteInputFile = intent.getBooleanExtra(DELETE_INPUT_FILE_KEY, false);
@@ -79,16 +152,54 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
         CryptoThread.registerForProgressUpdate(PROGRESS_DISPLAYER_ID, this);
 
         if (password != null) {
-            CryptoThread cryptoThread = new CryptoThread(this, inputFile, outputFile, password, operationType, deleteInputFile);
-            cryptoThread.start();
+            //the service leaves the foreground when a batch finishes, come back for the new work
+            startForeground(START_FOREGROUND_ID, buildProgressNotification(operationType, -1, R.string.app_name, -1, -1, null));
+            postedNotificationContent = null;
+            if (isBatch) {
+                Uri outputDirectory = Uri.parse(outputDirectoryString);
+                for (String batchInputFileString : inputFileStrings) {
+                    queue(new DocumentCryptoJob(Uri.parse(batchInputFileString), null, outputDirectory, operationType, deleteInputFile), password);
+                }
+            } else {
+                queue(new DocumentCryptoJob(Uri.parse(inputFileString), Uri.parse(outputFileString), operationType, deleteInputFile), password);
+            }
         } else {
             showToastOnGuiThread(R.string.error_null_password);
-            stopSelf();
+            return stopIfIdle();
         }
 
         return START_STICKY;
     }
 
+    //Jobs wait in the worker pool's queue until a worker is free.
+    private void queue(DocumentCryptoJob job, String password) {
+        workers.execute(new CryptoThread(this, job, password));
+    }
+
+    /*
+    * Called by CryptoThread before it starts on a file of fileSize bytes (0 if unknown). Blocks until a large file slot is free if the file is large.
+    * Returns true if a slot was taken, it must be given back with releaseLargeFileSlot.
+     */
+    public boolean acquireLargeFileSlot(long fileSize) {
+        if (fileSize != 0 && fileSize < LARGE_FILE_BYTES) {
+            return false;
+        }
+        largeFileSlots.acquireUninterruptibly();
+        return true;
+    }
+
+    public void releaseLargeFileSlot() {
+        largeFileSlots.release();
+    }
+
+    //Called when an intent can't be handled. Jobs already queued or running keep the service alive.
+    private int stopIfIdle() {
+        if (!CryptoThread.isOperationInProgress()) {
+            stopSelf();
+        }
+        return START_NOT_STICKY;
+    }
+
     /**
      * Called by CryptoThread to report errors
      */
@@ -117,22 +228,74 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
     }
 
     /*
-    * Create the notification that is displayed while the operation is ongoing.
-    * if progress < 0: displayed without progress bar
+    * Live diagnostics, on a release build too:
+    *   adb shell dumpsys activity service com.dewdrop623.androidcrypt/.CryptoService
+    * One "key: value" item per line, byte counts and rates in bytes, times in milliseconds. Scripts parse this, keep the keys stable.
+    * Called on a binder thread, so it only reads state that is safe to read from any thread.
      */
-    private Notification buildProgressNotification(boolean operationType, int progress, int completedMessageStringId, int minutesToCompletion, int secondsToCompletion) {
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) workers;
+        writer.println("AndroidCrypt CryptoService");
+        writer.printf(Locale.US, "workers: %d active, %d threads, %d queued%n", executor.getActiveCount(), executor.getMaximumPoolSize(), executor.getQueue().size());
+        writer.printf(Locale.US, "large file slots: %d in use of %d%n", largeFileSlotCount - largeFileSlots.availablePermits(), largeFileSlotCount);
+        writer.printf(Locale.US, "native sessions: %d%n", JNIInterface.getSessionCount());
 
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
-            createNotificationChannel();
+        List<DocumentCryptoJob> batchJobs = CryptoThread.getBatchJobs();
+        int[] timeToCompletion = CryptoThread.getBatchTimeToCompletion();
+        writer.printf(Locale.US, "batch: %d jobs, progress %d%%, time to completion %d s%n", batchJobs.size(), CryptoThread.getBatchProgress(),
+                timeToCompletion[0] == -1 ? -1 : timeToCompletion[0] * 60 + timeToCompletion[1]);
+        long bufferBytes = 0;
+        JobMetrics liveMetrics = new JobMetrics(CryptoThread.OPERATION_TYPE_ENCRYPTION);
+        for (DocumentCryptoJob batchJob : batchJobs) {
+            String state = batchJob.isCancelled() ? "cancelled" : !batchJob.isStarted() ? "queued" : !batchJob.isFinished() ? "running" : batchJob.isSuccessful() ? "succeeded" : "failed";
+            writer.printf(Locale.US, "job %d: %s %s, %s, %d of %d bytes, phase %s, current %d B/s, average %d B/s%n", batchJob.getId(),
+                    batchJob.getOperationType() == CryptoThread.OPERATION_TYPE_ENCRYPTION ? "encrypt" : "decrypt", batchJob.getDisplayName(), state,
+                    batchJob.getBytesProcessed(), batchJob.getFileSize(), getPhaseName(batchJob.getSharedProgress().getPhase()),
+                    batchJob.getCurrentBytesPerSecond(), batchJob.getAverageBytesPerSecond());
+            if (batchJob.isFinished()) {
+                writer.println("  " + batchJob.getMetrics().toSummaryLine());
+            } else if (batchJob.readLiveMetrics(liveMetrics)) {
+                writer.println("  " + liveMetrics.toSummaryLine());
+                bufferBytes += liveMetrics.getNativeMetric(JNIInterface.METRIC_BUFFER_BYTES);
+            }
+        }
+        writer.printf(Locale.US, "buffers in use: %d bytes%n", bufferBytes);
+
+        List<String> recentJobSummaries = CryptoThread.getRecentJobSummaries();
+        writer.printf(Locale.US, "recent jobs: %d%n", recentJobSummaries.size());
+        for (String summary : recentJobSummaries) {
+            writer.println("  " + summary);
         }
+    }
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(this, NOTIFICATION_CHANNEL_ID);
+    private static String getPhaseName(int phase) {
+        switch (phase) {
+            case SharedProgress.PHASE_KEY_DERIVATION:
+                return "key derivation";
+            case SharedProgress.PHASE_PROCESSING:
+                return "processing";
+            case SharedProgress.PHASE_FINISHED:
+                return "finished";
+            default:
+                return "not started";
+        }
+    }
 
-        Intent resultIntent = new Intent(this, MainActivity.class);
-        PendingIntent resultPendingIntent = PendingIntent.getActivity(this, 0, resultIntent, PendingIntent.FLAG_IMMUTABLE);
+    /*
+    * Create the notification that is displayed while the operation is ongoing, from the one builder. Main thread only.
+    * if progress < 0: displayed without progress bar
+     */
+    private Notification buildProgressNotification(boolean operationType, int progress, int completedMessageStringId, int minutesToCompletion, int secondsToCompletion,
+                                                   String throughput) {
+        NotificationCompat.Builder builder = notificationBuilder;
+        //clear what the previous update set
+        builder.setContentText(null);
+        builder.setSubText(null);
+        builder.setProgress(0, 0, false);
+        builder.setStyle(null);
 
         builder.setSmallIcon(operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION ? R.drawable.ic_lock_png : R.drawable.ic_unlock_png);
-        builder.setContentIntent(resultPendingIntent);
 
         if (progress < 0) {
             builder.setContentTitle(getString(R.string.app_name));
@@ -146,7 +309,9 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
                 title = title.concat(" " + secondsToCompletion + "s");
             }
             builder.setContentTitle(title);
+            builder.setSubText(throughput);
             builder.setProgress(100, progress, false);
+            addBatchProgress(builder);
         } else {
             builder.setContentTitle(getString(R.string.app_name));
             builder.setContentText(getString(completedMessageStringId));
@@ -154,6 +319,31 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
         return builder.build();
     }
 
+    /*
+    * For a batch of more than one file: show how many files are done, and the progress of each running file when the notification is expanded.
+     */
+    private void addBatchProgress(NotificationCompat.Builder builder) {
+        List<DocumentCryptoJob> batchJobs = CryptoThread.getBatchJobs();
+        if (batchJobs.size() <= 1) {
+            return;
+        }
+        int finishedJobCount = 0;
+        NotificationCompat.InboxStyle inboxStyle = new NotificationCompat.InboxStyle();
+        int lineCount = 0;
+        for (DocumentCryptoJob batchJob : batchJobs) {
+            if (batchJob.isFinished()) {
+                finishedJobCount++;
+            } else if (batchJob.isStarted() && batchJob.getDisplayName() != null && lineCount < MAX_NOTIFICATION_LINES) {
+                inboxStyle.addLine(batchJob.getDisplayName() + " " + batchJob.getProgress() + "%");
+                lineCount++;
+            }
+        }
+        String filesProgress = getString(R.string.files_progress, finishedJobCount, batchJobs.size());
+        builder.setContentText(filesProgress);
+        inboxStyle.setSummaryText(filesProgress);
+        builder.setStyle(inboxStyle);
+    }
+
     @TargetApi(Build.VERSION_CODES.O)
     private void createNotificationChannel() {
         CharSequence channelName = getString(R.string.app_name);
@@ -163,11 +353,85 @@ public class CryptoService extends Service implements CryptoThread.ProgressDispl
         ((NotificationManager) getSystemService(NOTIFICATION_SERVICE)).createNotificationChannel(notificationChannel);
     }
 
-    //Implementation of CryptoThread.ProgressDisplayers interface. Called by CryptoThread to update the progress.
-    //progress is out of 100.
+    //Implementation of CryptoThread.ProgressDisplayers interface. Called by CryptoThread when a job starts or finishes.
+    //progress is out of 100. The notification is built on the main thread so the crypto thread doesn't wait for it.
     @Override
-    public void update(boolean operationType, int progress, int completedMessageStringId, int minutesToCompletion, int secondsToCompletion) {
-        NotificationManagerCompat notificationManager = NotificationManagerCompat.from(this);
-        notificationManager.notify(START_FOREGROUND_ID, buildProgressNotification(operationType, progress, completedMessageStringId, minutesToCompletion, secondsToCompletion));
+    public void update(final boolean operationType, final int progress, final int completedMessageStringId, final int minutesToCompletion, final int secondsToCompletion,
+                       final long currentBytesPerSecond, final long averageBytesPerSecond) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                showProgressNotification(operationType, progress, completedMessageStringId, minutesToCompletion, secondsToCompletion, currentBytesPerSecond, averageBytesPerSecond);
+                scheduleNotificationPoll();
+            }
+        });
+    }
+
+    /*
+    * While an operation is in progress, sample the progress of the running jobs from their SharedProgress counters on a timer.
+    * Stops by itself when the batch is done, update() starts it again for the next one.
+     */
+    private final Runnable notificationPoll = new Runnable() {
+        @Override
+        public void run() {
+            notificationPollScheduled = false;
+            if (CryptoThread.isOperationInProgress()) {
+                CryptoThread.pollProgress(CryptoService.this::showProgressNotification);
+                scheduleNotificationPoll();
+            }
+        }
+    };
+
+    //main thread only
+    private void scheduleNotificationPoll() {
+        if (!notificationPollScheduled && CryptoThread.isOperationInProgress()) {
+            notificationPollScheduled = true;
+            mainHandler.postDelayed(notificationPoll, NOTIFICATION_POLL_MILLIS);
+        }
+    }
+
+    /*
+    * Post the progress notification if what it shows changed: the operation, the percentage, the estimate, the throughput or the final message.
+    * In-progress updates are posted at most once per MIN_NOTIFICATION_INTERVAL_MILLIS, a held back update is posted when the interval is over
+    * unless a newer one replaces it. The final update at 100% is posted right away. Main thread only.
+     */
+    private void showProgressNotification(final boolean operationType, final int progress, final int completedMessageStringId, final int minutesToCompletion, final int secondsToCompletion,
+                                          final long currentBytesPerSecond, final long averageBytesPerSecond) {
+        if (pendingNotification != null) {
+            mainHandler.removeCallbacks(pendingNotification);
+            pendingNotification = null;
+        }
+        //compared as shown, so throughput changes smaller than the display rounding don't repost
+        final String throughput = formatThroughput(this, currentBytesPerSecond, averageBytesPerSecond);
+        String content = operationType + " " + progress + " " + minutesToCompletion + " " + secondsToCompletion + " " + completedMessageStringId + " " + throughput;
+        if (content.equals(postedNotificationContent)) {
+            return;
+        }
+        long waitMillis = postedNotificationTime + MIN_NOTIFICATION_INTERVAL_MILLIS - SystemClock.uptimeMillis();
+        if (progress < 100 && waitMillis > 0) {
+            pendingNotification = new Runnable() {
+                @Override
+                public void run() {
+                    pendingNotification = null;
+                    showProgressNotification(operationType, progress, completedMessageStringId, minutesToCompletion, secondsToCompletion, currentBytesPerSecond, averageBytesPerSecond);
+                }
+            };
+            mainHandler.postDelayed(pendingNotification, waitMillis);
+            return;
+        }
+        postedNotificationContent = content;
+        postedNotificationTime = SystemClock.uptimeMillis();
+        notificationManager.notify(START_FOREGROUND_ID, buildProgressNotification(operationType, progress, completedMessageStringId, minutesToCompletion, secondsToCompletion, throughput));
+    }
+
+    /*
+    * Current and average throughput for the progress displays, e.g. "12 MB/s, average 9.8 MB/s". null until the current throughput is measured.
+     */
+    public static String formatThroughput(Context context, long currentBytesPerSecond, long averageBytesPerSecond) {
+        if (context == null || currentBytesPerSecond <= 0) {
+            return null;
+        }
+        return context.getString(R.string.throughput, Formatter.formatShortFileSize(context, currentBytesPerSecond),
+                Formatter.formatShortFileSize(context, averageBytesPerSecond));
     }
 }
@@ -1,147 +1,322 @@
 package com.dewdrop623.androidcrypt;
 
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.os.Trace;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
 
 import androidx.documentfile.provider.DocumentFile;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
- * CryptoThread handles the usage of AESCrypt to do crypto operations.
- * CryptoThread is intended to be initialized and started by a CryptoService instance.
+ * CryptoThread runs crypto operations on the CryptoEngine CryptoEngines picked for the operation type.
+ * CryptoThread is intended to be initialized by a CryptoService instance and run on its worker pool, one CryptoThread per job.
  */
 
-public class CryptoThread extends Thread {
-
-    //Do not do more than one operation at once.
-    public static boolean operationInProgress = false;
+public class CryptoThread implements Runnable {
 
     /*
     * Constants.
      */
-    public static final boolean OPERATION_TYPE_ENCRYPTION = true;
-    public static final boolean OPERATION_TYPE_DECRYPTION = false;
+    public static final boolean OPERATION_TYPE_ENCRYPTION = CryptoJob.OPERATION_TYPE_ENCRYPTION;
+    public static final boolean OPERATION_TYPE_DECRYPTION = CryptoJob.OPERATION_TYPE_DECRYPTION;
 
-    private static final HashMap<String, ProgressDisplayer> progressDiplayers = new HashMap<>();
+    private static final Map<String, ProgressDisplayer> progressDiplayers = new ConcurrentHashMap<>();
 
     public interface ProgressDisplayer {
-        //[minutes|seconds]ToCompletion=-1 => unknown
-        void update(boolean operationType, int progress, int completedMessageStringId, int minutesToCompletion, int secondsToCompletion);
+        //[minutes|seconds]ToCompletion=-1 => unknown, [current|average]BytesPerSecond=0 => not measured yet
+        void update(boolean operationType, int progress, int completedMessageStringId, int minutesToCompletion, int secondsToCompletion,
+                    long currentBytesPerSecond, long averageBytesPerSecond);
     }
 
-    private static final long updateIntervalInBytes = 550000;
+    /*
+    * The jobs of the current batch by job id: queued, running and finished.
+    * Finished jobs are kept so progress can be reported for the whole batch. They are cleared when a job is queued after the batch is over.
+     */
+    private static final Map<Long, DocumentCryptoJob> jobs = new ConcurrentHashMap<>();
 
-    private static long timeOperationStarted = 0;
-    private static long lastUpdateAtByteNumber = 0;
-    private static long totalBytesRead = 0;
-    private static long fileSize = 0;
 
-    private final CryptoService cryptoService;
-    private static boolean operationType;
+    private static final String LOG_TAG = "CryptoThread";
+    //summary lines of the last jobs to finish kept for CryptoService.dump
+    private static final int RECENT_JOB_SUMMARY_COUNT = 20;
+    private static final Deque<String> recentJobSummaries = new ArrayDeque<>();
 
-    private final Uri inputFile;
-    private final Uri outputFile;
+    private final CryptoService cryptoService;
+    private final DocumentCryptoJob job;
     private final String password;
-    private boolean deleteInputFile = false;
-    private static int completedMessageStringId = R.string.done;
+    //PBKDF2 iterations for encryption, see KeyIterationCalibrator
+    private final int keyIterations;
+    private final CryptoEngine engine;
 
     private Map<Integer, Integer> encryptResultStatusMessages = new HashMap<>();
     private Map<Integer, Integer> decryptResultStatusMessages = new HashMap<>();
 
     /**
-     * Takes a cryptoService, input and output uris, the password, a version (use VERSION_X constants), and operation type (defined by the OPERATION_TYPE_X constants)
+     * Takes a cryptoService, the job to run (input and output uris, operation type...) and the password.
      */
-    public CryptoThread(CryptoService cryptoService, Uri inputFile, Uri outputFile, String password, boolean operationType, boolean deleteInputFile) {
+    public CryptoThread(CryptoService cryptoService, DocumentCryptoJob job, String password) {
         this.cryptoService = cryptoService;
-        this.inputFile = inputFile;
-        this.outputFile = outputFile;
+        this.job = job;
         this.password = password;
-        this.deleteInputFile = deleteInputFile;
-        CryptoThread.operationType = operationType;
-
-        encryptResultStatusMessages.put(1, R.string.encryption_completed);
-        encryptResultStatusMessages.put(2, R.string.io_error);
-        encryptResultStatusMessages.put(3, R.string.invalid_extension_error);
-        encryptResultStatusMessages.put(4, R.string.invalid_password_error);
-        encryptResultStatusMessages.put(5, R.string.invalid_iterations_error);
-        encryptResultStatusMessages.put(6, R.string.already_encrypting);
-        encryptResultStatusMessages.put(7, R.string.encryption_canceled);
-        encryptResultStatusMessages.put(8, R.string.aescrypt_internal_error);
-
-        decryptResultStatusMessages.put(101, R.string.decryption_completed);
-        decryptResultStatusMessages.put(102, R.string.invalid_aescrypt_stream_error);
-        decryptResultStatusMessages.put(103, R.string.unsupported_aescrypt_version_error);
-        decryptResultStatusMessages.put(104, R.string.io_error);
-        decryptResultStatusMessages.put(105, R.string.invalid_password_error);
-        decryptResultStatusMessages.put(106, R.string.invalid_iterations_error);
-        decryptResultStatusMessages.put(107, R.string.altered_message_error);
-        decryptResultStatusMessages.put(108, R.string.already_decrypting);
-        decryptResultStatusMessages.put(109, R.string.decryption_canceled);
-        decryptResultStatusMessages.put(110, R.string.aescrypt_internal_error);
+        this.keyIterations = SettingsHelper.getKeyIterations(cryptoService);
+        this.engine = CryptoEngines.get(cryptoService, job.getOperationType());
+        synchronized (jobs) {
+            if (!isOperationInProgress()) {
+                jobs.clear();
+            }
+            jobs.put(job.getId(), job);
+        }
+
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ENCRYPTION_COMPLETED, R.string.encryption_completed);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ENCRYPTION_IO_ERROR, R.string.io_error);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_INVALID_EXTENSION, R.string.invalid_extension_error);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ENCRYPTION_INVALID_PASSWORD, R.string.invalid_password_error);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ENCRYPTION_INVALID_ITERATIONS, R.string.invalid_iterations_error);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ALREADY_ENCRYPTING, R.string.already_encrypting);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ENCRYPTION_CANCELLED, R.string.encryption_canceled);
+        encryptResultStatusMessages.put(CryptoEngine.STATUS_ENCRYPTION_INTERNAL_ERROR, R.string.aescrypt_internal_error);
+
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_DECRYPTION_COMPLETED, R.string.decryption_completed);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_INVALID_STREAM, R.string.invalid_aescrypt_stream_error);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_UNSUPPORTED_VERSION, R.string.unsupported_aescrypt_version_error);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_DECRYPTION_IO_ERROR, R.string.io_error);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_DECRYPTION_INVALID_PASSWORD, R.string.invalid_password_error);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_DECRYPTION_INVALID_ITERATIONS, R.string.invalid_iterations_error);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_ALTERED_MESSAGE, R.string.altered_message_error);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_ALREADY_DECRYPTING, R.string.already_decrypting);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_DECRYPTION_CANCELLED, R.string.decryption_canceled);
+        decryptResultStatusMessages.put(CryptoEngine.STATUS_DECRYPTION_INTERNAL_ERROR, R.string.aescrypt_internal_error);
     }
 
 
+    /*
+    * The whole job is a trace section, with the native phases nested in it, so it stands out in a Perfetto or systrace capture.
+     */
     @Override
     public void run() {
+        Trace.beginSection(job.getOperationType() == OPERATION_TYPE_ENCRYPTION ? "AndroidCrypt encrypt" : "AndroidCrypt decrypt");
+        try {
+            runJob();
+        } finally {
+            Trace.endSection();
+        }
+    }
+
+    private void runJob() {
         boolean successful = true;
-        operationInProgress = true;
-        lastUpdateAtByteNumber = 0;
-        totalBytesRead = 0;
-        timeOperationStarted = 0;
+        job.markStarted();
+        //cancelled while it was queued
+        if (job.isCancelled()) {
+            job.setCompletedMessageStringId(job.getOperationType() == OPERATION_TYPE_ENCRYPTION ? R.string.encryption_canceled : R.string.decryption_canceled);
+            finishJob(false);
+            return;
+        }
+        try {
+            job.setDisplayName(StorageAccessFrameworkHelper.getFilenameFromUri(job.getInputFile(), cryptoService));
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+            job.setDisplayName(job.getInputFile().getLastPathSegment());
+        }
+        if (job.getOutputFile() == null && !createOutputFile()) {
+            job.setCompletedMessageStringId(R.string.error_could_not_open_output_file);
+            cryptoService.showToastOnGuiThread(job.getDisplayName() + ": " + cryptoService.getString(R.string.error_could_not_open_output_file));
+            finishJob(false);
+            return;
+        }
 
-        if (operationType == OPERATION_TYPE_ENCRYPTION) {
-            completedMessageStringId = R.string.encryption_completed;
+        //Send out an initial update.
+        updateProgressDisplayers();
+
+        //MainActivityFragment may have run the operation already while the user was still on the main screen
+        SpeculativeCrypto speculation = SpeculativeCrypto.take(job.getInputFile(), job.getOperationType(), password, keyIterations);
+        if (speculation != null) {
+            boolean speculationSuccessful = speculation.await() && writeSpeculativeOutput(speculation);
+            speculation.wipe();
+            if (speculationSuccessful) {
+                finishJob(true);
+                return;
+            }
+        }
+
+        //Use the file descriptor path when the engine has one and the provider gives descriptors for both documents. Otherwise fall back to the java streams.
+        ParcelFileDescriptor inputFileDescriptor = null;
+        ParcelFileDescriptor outputFileDescriptor = null;
+        if (engine instanceof FileDescriptorCryptoEngine) {
+            long openStart = System.nanoTime();
+            Trace.beginSection("open");
+            inputFileDescriptor = openFileDescriptor(job.getInputFile(), "r");
+            if (inputFileDescriptor != null) {
+                outputFileDescriptor = openFileDescriptor(job.getOutputFile(), "wt");
+            }
+            Trace.endSection();
+            job.getMetrics().addOpenNanos(System.nanoTime() - openStart);
+        }
+        if (inputFileDescriptor != null && outputFileDescriptor != null) {
+            job.getMetrics().setPath(JobMetrics.PATH_FILE_DESCRIPTORS);
+            successful = runWithFileDescriptors(inputFileDescriptor, outputFileDescriptor);
         } else {
-            completedMessageStringId = R.string.decryption_completed;
+            if (inputFileDescriptor != null) {
+                try {
+                    inputFileDescriptor.close();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+            successful = runWithStreams();
+        }
+        finishJob(successful);
+    }
+
+    /*
+    * Mark the job finished and send out a progress update.
+    * If it was the last unfinished job of the batch, the update is the final one at 100% and the service leaves the foreground.
+     */
+    private void finishJob(boolean successful) {
+        job.getMetrics().setTotalNanos(System.nanoTime() - job.getStartNanos());
+        String summary = job.getMetrics().toSummaryLine();
+        Log.i(LOG_TAG, summary);
+        synchronized (recentJobSummaries) {
+            if (recentJobSummaries.size() == RECENT_JOB_SUMMARY_COUNT) {
+                recentJobSummaries.removeFirst();
+            }
+            recentJobSummaries.addLast(summary);
+        }
+        boolean batchFinished;
+        synchronized (jobs) {
+            job.finish(successful);
+            batchFinished = !isOperationInProgress();
+        }
+
+        //It is important that ProgressDisplayers get the final update at 100%. Even if the operation was canceled.
+        updateProgressDisplayers();
+        if (batchFinished && jobs.size() > 1) {
+            cryptoService.showToastOnGuiThread(getBatchCompletedMessageStringId());
+        }
+
+        /*
+        if operation didn't encounter errors and was not canceled (i.e. successful == true),
+        and user asked (deleteInputFile == true):
+        delete the input file
+         */
+        if (successful && job.getDeleteInputFile()) {
+            boolean successfullyDeleted = deleteInputFile();
+            if (!successfullyDeleted) {
+                cryptoService.showToastOnGuiThread(R.string.failed_to_delete_input_file);
+            }
+        }
+
+        if (batchFinished) {
+            //stop the service
+            cryptoService.stopForeground(false);
+        }
+    }
+
+    /*
+    * Create the output file for a job from a batch in its output directory, named from the input file like the single file output name suggestion.
+    * Returns false if the file couldn't be created.
+     */
+    private boolean createOutputFile() {
+        String outputFileName = StorageAccessFrameworkHelper.getDefaultOutputFileName(job.getDisplayName(), job.getOperationType());
+        if (outputFileName.isEmpty()) {
+            //decrypting a file that doesn't end in .aes, keep its name. The provider renames it if the name is taken.
+            outputFileName = job.getDisplayName();
+        }
+        try {
+            DocumentFile outputDirectory = DocumentFile.fromTreeUri(cryptoService, job.getOutputDirectory());
+            DocumentFile outputFile = outputDirectory == null ? null : outputDirectory.createFile("application/octet-stream", outputFileName);
+            if (outputFile != null) {
+                job.setOutputFile(outputFile.getUri());
+                return true;
+            }
+        } catch (RuntimeException re) {
+            re.printStackTrace();
         }
+        return false;
+    }
 
-        //Send out an initial update for 0 progress.
-        int [] timeToCompletion = {-1,-1};
-        updateProgressDisplayers(0, 1, timeToCompletion);
+    /*
+    * The input size as the provider reports it, 0 (unknown) if the provider can't be asked.
+     */
+    private long getInputFileSizeFromProvider() {
+        try {
+            return StorageAccessFrameworkHelper.getFileSizeFromUri(job.getInputFile(), cryptoService);
+        } catch (RuntimeException re) {
+            re.printStackTrace();
+            return 0;
+        }
+    }
+
+    /*
+    * Run the operation through ContentResolver streams. Works for every provider, including ones that can't give a file descriptor.
+    * Returns true if successful.
+     */
+    private boolean runWithStreams() {
+        boolean successful = true;
         InputStream inputStream = null;
         OutputStream outputStream = null;
+        long openStart = System.nanoTime();
+        Trace.beginSection("open");
         //get the input stream
         try {
-            inputStream = cryptoService.getContentResolver().openInputStream(inputFile);
-            fileSize = inputStream.available();
+            inputStream = cryptoService.getContentResolver().openInputStream(job.getInputFile());
+            //available() is only what can be read without blocking, ask the provider for the real size
+            job.setFileSize(getInputFileSizeFromProvider());
         } catch (IOException ioe) {
             successful = false;
             ioe.printStackTrace();
-            completedMessageStringId = R.string.error_could_not_get_input_file;
+            job.setCompletedMessageStringId(R.string.error_could_not_get_input_file);
         }
 
         //get the output stream
         try {
-            outputStream = cryptoService.getContentResolver().openOutputStream(outputFile);
+            outputStream = cryptoService.getContentResolver().openOutputStream(job.getOutputFile());
         } catch (IOException ioe) {
             successful = false;
             ioe.printStackTrace();
-            completedMessageStringId = R.string.error_could_not_open_output_file;
+            job.setCompletedMessageStringId(R.string.error_could_not_open_output_file);
         }
+        Trace.endSection();
+        job.getMetrics().addOpenNanos(System.nanoTime() - openStart);
 
         if (inputStream != null && outputStream != null) {
-            //call AESCrypt
-            LogStream logStream = new LogStream("JNI Execution");
-            long progressFrequencyBytes = Math.max((long)(fileSize*0.01), 100l);
-            if (operationType == OPERATION_TYPE_ENCRYPTION) {
-                successful = JNIInterface.encrypt(password, inputStream, outputStream, jniCallbackInterface, logStream, progressFrequencyBytes);
-            } else if (operationType == OPERATION_TYPE_DECRYPTION) {
-                successful = JNIInterface.decrypt(password, inputStream, outputStream, jniCallbackInterface, logStream, progressFrequencyBytes);
+            boolean largeFileSlot = cryptoService.acquireLargeFileSlot(job.getFileSize());
+            int status;
+            if (job.getOperationType() == OPERATION_TYPE_ENCRYPTION) {
+                status = engine.encrypt(job, password, keyIterations, inputStream, outputStream);
+            } else {
+                status = engine.decrypt(job, password, inputStream, outputStream);
+            }
+            successful = reportStatus(status);
+            if (largeFileSlot) {
+                cryptoService.releaseLargeFileSlot();
             }
         }
 
         //close the streams
+        long closeStart = System.nanoTime();
+        Trace.beginSection("close");
         if (inputStream != null) {
             try {
                 inputStream.close();
             } catch (IOException ioe) {
                 successful = false;
                 ioe.printStackTrace();
-                completedMessageStringId = R.string.error_could_not_close_input_file;
+                job.setCompletedMessageStringId(R.string.error_could_not_close_input_file);
             }
         }
         if (outputStream != null) {
@@ -150,85 +325,244 @@ public class CryptoThread extends Thread {
             } catch (IOException ioe) {
                 successful = false;
                 ioe.printStackTrace();
-                completedMessageStringId = R.string.error_could_not_close_output_file;
+                job.setCompletedMessageStringId(R.string.error_could_not_close_output_file);
             }
         }
+        Trace.endSection();
+        job.getMetrics().addCloseNanos(System.nanoTime() - closeStart);
+        return successful;
+    }
 
-        //Send out one last progress update. It is important that ProgressDisplayers get the final update at 100%. Even if the operation was canceled.
-        timeToCompletion[0]=0; timeToCompletion[1]=0;
-        updateProgressDisplayers(fileSize, fileSize, timeToCompletion);
+    /*
+    * Run the operation on the raw file descriptors. The engine does all reads and writes itself.
+    * Input is read ahead on a native thread and output is written behind on another,
+    * so slow providers (e.g. cloud backed documents behind a pipe) don't leave the crypto thread waiting.
+    * Large regular files are decrypted on several cores.
+    * Closes the descriptors. Returns true if successful.
+     */
+    private boolean runWithFileDescriptors(ParcelFileDescriptor inputFileDescriptor, ParcelFileDescriptor outputFileDescriptor) {
+        boolean successful;
+        //getStatSize() is -1 for pipes, the provider may still know the size of the document
+        long fileSize = inputFileDescriptor.getStatSize();
+        job.setFileSize(fileSize >= 0 ? fileSize : getInputFileSizeFromProvider());
+        int ioFlags = getIoFlags(job.getFileSize());
+        boolean largeFileSlot = cryptoService.acquireLargeFileSlot(job.getFileSize());
+        FileDescriptorCryptoEngine fileDescriptorEngine = (FileDescriptorCryptoEngine) engine;
+        int status;
+        if (job.getOperationType() == OPERATION_TYPE_ENCRYPTION) {
+            status = fileDescriptorEngine.encryptFd(job, password, keyIterations, inputFileDescriptor.getFd(), outputFileDescriptor.getFd(), ioFlags);
+        } else {
+            status = fileDescriptorEngine.decryptFd(job, password, inputFileDescriptor.getFd(), outputFileDescriptor.getFd(), ioFlags);
+        }
+        successful = reportStatus(status);
+        if (largeFileSlot) {
+            cryptoService.releaseLargeFileSlot();
+        }
 
-        /*
-        if operation didn't encounter errors and was not canceled (i.e. successful == true),
-        and user asked (deleteInputFile == true):
-        delete the input file
-         */
-        if (successful && deleteInputFile) {
-            boolean successfullyDeleted = deleteInputFile();
-            if (!successfullyDeleted) {
-                cryptoService.showToastOnGuiThread(R.string.failed_to_delete_input_file);
-            }
+        long closeStart = System.nanoTime();
+        Trace.beginSection("close");
+        try {
+            inputFileDescriptor.close();
+        } catch (IOException ioe) {
+            successful = false;
+            ioe.printStackTrace();
+            job.setCompletedMessageStringId(R.string.error_could_not_close_input_file);
+        }
+        try {
+            outputFileDescriptor.close();
+        } catch (IOException ioe) {
+            successful = false;
+            ioe.printStackTrace();
+            job.setCompletedMessageStringId(R.string.error_could_not_close_output_file);
         }
+        Trace.endSection();
+        job.getMetrics().addCloseNanos(System.nanoTime() - closeStart);
+        return successful;
+    }
 
-        //stop the service
-        cryptoService.stopForeground(false);
-        operationInProgress = false;
+    /*
+    * Write the output of a speculative operation to the output file. Returns true if successful.
+    * If it fails nothing has been reported yet, and the operation can still be run normally.
+     */
+    private boolean writeSpeculativeOutput(SpeculativeCrypto speculation) {
+        try (OutputStream outputStream = cryptoService.getContentResolver().openOutputStream(job.getOutputFile(), "wt")) {
+            if (outputStream == null) {
+                return false;
+            }
+            speculation.writeOutput(outputStream);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return false;
+        }
+        job.setFileSize(speculation.getInputSize());
+        job.setBytesProcessed(speculation.getInputSize());
+        job.getMetrics().setPath(JobMetrics.PATH_SPECULATIVE);
+        reportStatus(speculation.getStatus());
+        return true;
     }
 
-    public static void updateProgressOnIntervalTotal(long totalBytesRead) {
-        if (timeOperationStarted == 0) {
-            //set time operation started on first progress update,
-            //because version 3 encryption with jni takes awhile to start
-            //and that throws off the estimate to completion
-            //maybe it has to load the binary each time or something
-            timeOperationStarted = System.currentTimeMillis();
+    /*
+    * Open uri with the given mode and return the descriptor if it is a regular file or a pipe.
+    * Returns null if the provider can't give a descriptor or gives some other kind (e.g. a socket).
+     */
+    private ParcelFileDescriptor openFileDescriptor(Uri uri, String mode) {
+        ParcelFileDescriptor fileDescriptor = null;
+        try {
+            fileDescriptor = cryptoService.getContentResolver().openFileDescriptor(uri, mode);
+            if (fileDescriptor != null) {
+                int fileMode = Os.fstat(fileDescriptor.getFileDescriptor()).st_mode;
+                if (OsConstants.S_ISREG(fileMode) || OsConstants.S_ISFIFO(fileMode)) {
+                    return fileDescriptor;
+                }
+            }
+        } catch (IOException | ErrnoException | SecurityException | UnsupportedOperationException e) {
+            e.printStackTrace();
         }
-        CryptoThread.totalBytesRead = totalBytesRead;
-        if (totalBytesRead - lastUpdateAtByteNumber > updateIntervalInBytes) {
-            int [] timeToCompletion = getTimeToCompletion();
-            lastUpdateAtByteNumber = totalBytesRead;
-            updateProgressDisplayers(totalBytesRead, fileSize, timeToCompletion);
+        if (fileDescriptor != null) {
+            try {
+                fileDescriptor.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
         }
+        return null;
     }
 
-    public static void updateProgressOnInterval(long bytesRead) {
-        totalBytesRead += bytesRead;
-        updateProgressOnIntervalTotal(totalBytesRead);
+    /*
+    * The FileDescriptorCryptoEngine.encryptFd/decryptFd flags for an input of fileSize bytes.
+    * I/O is pipelined and large files are decrypted on several cores. Inputs are never memory mapped: the documents belong
+    * to other apps' providers, and one that is truncated while mapped would kill the app with SIGBUS.
+     */
+    static int getIoFlags(long fileSize) {
+        int ioFlags = JNIInterface.IO_FLAG_PIPELINED;
+        if (fileSize >= CryptoService.LARGE_FILE_BYTES) {
+            ioFlags |= JNIInterface.IO_FLAG_PARALLEL_DECRYPT;
+        }
+        return ioFlags;
     }
 
-    //for each progress displayer: if not null: update, else remove it from progressDisplayers because it is null.
-    private static void updateProgressDisplayers(long workDone, long totalWork, int [] timeToCompletion) {
-        int progress = 100;
-        if (totalWork != 0) {
-            progress = (int) ((workDone * 100) / totalWork);
+    /*
+    * Send the progress of the whole batch to each progress displayer when a job starts or finishes.
+    * Workers update concurrently, the lock keeps an older update from being delivered after a newer one.
+    * In between, the displayers sample the progress themselves with pollProgress, a running job never calls them.
+     */
+    private static void updateProgressDisplayers() {
+        synchronized (progressDiplayers) {
+            for (ProgressDisplayer progressDisplayer : progressDiplayers.values()) {
+                pollProgress(progressDisplayer);
+            }
         }
-        for (HashMap.Entry<String, ProgressDisplayer> progressDisplayer : progressDiplayers.entrySet()) {
-            if (progressDisplayer.getValue() != null) {
-                progressDisplayer.getValue().update(operationType, progress, completedMessageStringId, timeToCompletion[0], timeToCompletion[1]);
-            } else {
-                progressDiplayers.remove(progressDisplayer.getKey());
+    }
+
+    /*
+    * Send the current progress of the batch to progressDisplayer, on the calling thread.
+    * Called by the ProgressDisplayers on their own schedule (a frame callback, a timer) while an operation is in progress.
+    * Only reads the jobs' SharedProgress counters, so it never waits on a running job.
+     */
+    public static void pollProgress(ProgressDisplayer progressDisplayer) {
+        DocumentCryptoJob newestJob = getNewestJob();
+        if (newestJob == null) {
+            return;
+        }
+        int progress = getBatchProgress();
+        int[] timeToCompletion = progress == 100 ? new int[]{0, 0} : getBatchTimeToCompletion();
+        int completedMessageStringId = getBatchCompletedMessageStringId();
+        long currentBytesPerSecond = 0;
+        long averageBytesPerSecond = 0;
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            if (batchJob.isStarted() && !batchJob.isFinished()) {
+                currentBytesPerSecond += batchJob.getCurrentBytesPerSecond();
+                averageBytesPerSecond += batchJob.getAverageBytesPerSecond();
             }
         }
+        progressDisplayer.update(newestJob.getOperationType(), progress, completedMessageStringId, timeToCompletion[0], timeToCompletion[1],
+                currentBytesPerSecond, averageBytesPerSecond);
     }
 
-    /**
-     * Calculate time until operation finishes using the file size, bytes since last update, and time since last update.
-     * return int array [minutes, seconds]
+    /*
+    * Progress of the batch out of 100, each job counts the same whatever its size (sizes aren't known until a job starts).
+    * Only 100 once every job is finished.
+     */
+    public static int getBatchProgress() {
+        int totalProgress = 0;
+        boolean finished = true;
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            totalProgress += batchJob.isFinished() ? 100 : batchJob.getProgress();
+            finished &= batchJob.isFinished();
+        }
+        if (finished) {
+            return 100;
+        }
+        return Math.min(99, totalProgress / jobs.size());
+    }
+
+    /*
+    * Time until the batch finishes: the longest estimate of the running jobs.
+    * {-1, -1} (unknown) while any job is still queued or any running job can't estimate.
      */
-    private static int[] getTimeToCompletion() {
-        int[] timeToCompletion = {0, 0};
-        long bytesPerMillisecond = totalBytesRead/(System.currentTimeMillis()-timeOperationStarted);
-        long bytesPerSecond = bytesPerMillisecond*1000;
-        if (bytesPerSecond != 0) {
-            int secondsToCompletion = (int) ((fileSize - totalBytesRead) / bytesPerSecond);
-            timeToCompletion[0] = secondsToCompletion / 60; timeToCompletion[1] = secondsToCompletion % 60;
-        }
-        return timeToCompletion;
+    public static int[] getBatchTimeToCompletion() {
+        int[] longest = {0, 0};
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            if (batchJob.isFinished()) {
+                continue;
+            }
+            int[] timeToCompletion = batchJob.isStarted() ? batchJob.getTimeToCompletion() : new int[]{-1, -1};
+            if (timeToCompletion[0] == -1) {
+                return timeToCompletion;
+            }
+            if (timeToCompletion[0] * 60 + timeToCompletion[1] > longest[0] * 60 + longest[1]) {
+                longest = timeToCompletion;
+            }
+        }
+        return longest;
+    }
+
+    //The message shown when the batch is done. A batch of one file shows that file's result.
+    public static int getBatchCompletedMessageStringId() {
+        DocumentCryptoJob newestJob = getNewestJob();
+        if (jobs.size() <= 1) {
+            return newestJob == null ? R.string.unknown_status : newestJob.getCompletedMessageStringId();
+        }
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            if (batchJob.isFinished() && !batchJob.isSuccessful()) {
+                return R.string.batch_completed_with_errors;
+            }
+        }
+        return R.string.batch_completed;
+    }
+
+    //The jobs of the current batch, oldest first.
+    public static List<DocumentCryptoJob> getBatchJobs() {
+        List<DocumentCryptoJob> batchJobs = new ArrayList<>(jobs.values());
+        Collections.sort(batchJobs, new Comparator<DocumentCryptoJob>() {
+            @Override
+            public int compare(DocumentCryptoJob job1, DocumentCryptoJob job2) {
+                return Long.compare(job1.getId(), job2.getId());
+            }
+        });
+        return batchJobs;
+    }
+
+    //summary lines of the jobs that finished last, oldest first
+    public static List<String> getRecentJobSummaries() {
+        synchronized (recentJobSummaries) {
+            return new ArrayList<>(recentJobSummaries);
+        }
+    }
+
+    private static DocumentCryptoJob getNewestJob() {
+        DocumentCryptoJob newestJob = null;
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            if (newestJob == null || batchJob.getId() > newestJob.getId()) {
+                newestJob = batchJob;
+            }
+        }
+        return newestJob;
     }
 
     private boolean deleteInputFile() {
-        if (inputFile != null) {
-            return DocumentFile.fromSingleUri(cryptoService, inputFile).delete();
+        if (job.getInputFile() != null) {
+            return DocumentFile.fromSingleUri(cryptoService, job.getInputFile()).delete();
         } else {
             return false;
         }
@@ -238,46 +572,54 @@ public class CryptoThread extends Thread {
         progressDiplayers.put(id, progressDisplayer);
     }
 
-    //Called by the cancel button in MainActivityFragment.
-    public static void cancel() {
-        JNIInterface.cancel();
-        operationInProgress = false;
+    //Called by the cancel button in MainActivityFragment. Cancels the running jobs and the queued ones.
+    public static void cancelAll() {
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            batchJob.cancel();
+        }
     }
 
-    //Called by MainActivityFragment on initialization if CryptoThread.operationInProgress == true
-    //otherwise the progress bar won't appear until an update is sent out, which is not guaranteed to be quickly
-    public static int getProgressUpdate() {
-        int progress = 0;
-        if (fileSize == 0) {
-            progress = 100;
-        } else if (operationInProgress) {
-            progress = (int) ((totalBytesRead * 100) / fileSize);
-        }
-        return progress;
+    //true while any job is queued or running
+    public static boolean isOperationInProgress() {
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            if (!batchJob.isFinished()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public static boolean getCurrentOperationType() {
-        return operationType;
+    //Called by MainActivityFragment on initialization to show the progress of a running job right away
+    //otherwise the progress bar won't appear until an update is sent out, which is not guaranteed to be quickly
+    //returns the most recently queued unfinished job, or null if there is none
+    public static DocumentCryptoJob getActiveJob() {
+        DocumentCryptoJob newestJob = null;
+        for (DocumentCryptoJob batchJob : jobs.values()) {
+            if (!batchJob.isFinished() && (newestJob == null || batchJob.getId() > newestJob.getId())) {
+                newestJob = batchJob;
+            }
+        }
+        return newestJob;
     }
 
-    public static int getCompletedMessageStringId() {
-        return completedMessageStringId;
-    }
-    private JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
-        @Override
-        public void progressCallback(long totalBytes) {
-            updateProgressOnIntervalTotal(totalBytes);
-        }
-        @Override
-        public void completedCallback(int status) {
-            int message_string_id = R.string.unknown_status;
-            if (getCurrentOperationType() == OPERATION_TYPE_ENCRYPTION && encryptResultStatusMessages.containsKey(status)) {
-                message_string_id = encryptResultStatusMessages.get(status);
-            } else if (decryptResultStatusMessages.containsKey(status)){
-                message_string_id = decryptResultStatusMessages.get(status);
-            }
-            completedMessageStringId = message_string_id;
+    /*
+    * Show the message for the status the engine returned and keep it as the job's result.
+    * Returns true if the operation completed.
+     */
+    private boolean reportStatus(int status) {
+        int message_string_id = R.string.unknown_status;
+        if (job.getOperationType() == OPERATION_TYPE_ENCRYPTION && encryptResultStatusMessages.containsKey(status)) {
+            message_string_id = encryptResultStatusMessages.get(status);
+        } else if (decryptResultStatusMessages.containsKey(status)){
+            message_string_id = decryptResultStatusMessages.get(status);
+        }
+        job.setCompletedMessageStringId(message_string_id);
+        //in a batch only failures are worth a toast each, the batch result is shown when it finishes
+        if (jobs.size() <= 1) {
             cryptoService.showToastOnGuiThread(message_string_id);
+        } else if (message_string_id != R.string.encryption_completed && message_string_id != R.string.decryption_completed) {
+            cryptoService.showToastOnGuiThread(job.getDisplayName() + ": " + cryptoService.getString(message_string_id));
         }
-    };
+        return status == CryptoEngine.STATUS_ENCRYPTION_COMPLETED || status == CryptoEngine.STATUS_DECRYPTION_COMPLETED;
+    }
 }
@@ -0,0 +1,62 @@
+package com.dewdrop623.androidcrypt;
+
+import android.net.Uri;
+
+/**
+ * A CryptoJob on documents from the Storage Access Framework, with the message shown when it ends.
+ */
+
+public class DocumentCryptoJob extends CryptoJob {
+
+    private final Uri inputFile;
+    //for jobs from a batch the output file is created in outputDirectory when the job starts
+    private volatile Uri outputFile;
+    private final Uri outputDirectory;
+    private final boolean deleteInputFile;
+    private volatile int completedMessageStringId;
+
+    public DocumentCryptoJob(Uri inputFile, Uri outputFile, boolean operationType, boolean deleteInputFile) {
+        this(inputFile, outputFile, null, operationType, deleteInputFile);
+    }
+
+    /*
+    * Pass a null outputFile and a document tree uri as outputDirectory for a job whose output file doesn't exist yet.
+    * CryptoThread creates it in outputDirectory when the job starts.
+     */
+    public DocumentCryptoJob(Uri inputFile, Uri outputFile, Uri outputDirectory, boolean operationType, boolean deleteInputFile) {
+        super(operationType);
+        this.inputFile = inputFile;
+        this.outputFile = outputFile;
+        this.outputDirectory = outputDirectory;
+        this.deleteInputFile = deleteInputFile;
+        this.completedMessageStringId = operationType == OPERATION_TYPE_ENCRYPTION ? R.string.encryption_completed : R.string.decryption_completed;
+    }
+
+    public Uri getInputFile() {
+        return inputFile;
+    }
+
+    public Uri getOutputFile() {
+        return outputFile;
+    }
+
+    public void setOutputFile(Uri outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    public Uri getOutputDirectory() {
+        return outputDirectory;
+    }
+
+    public boolean getDeleteInputFile() {
+        return deleteInputFile;
+    }
+
+    public int getCompletedMessageStringId() {
+        return completedMessageStringId;
+    }
+
+    public void setCompletedMessageStringId(int completedMessageStringId) {
+        this.completedMessageStringId = completedMessageStringId;
+    }
+}
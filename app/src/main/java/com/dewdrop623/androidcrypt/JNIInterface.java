@@ -1,10 +0,0 @@
-package com.dewdrop623.androidcrypt;
-
-import java.io.InputStream;
-import java.io.OutputStream;
-
-public class JNIInterface {
-    native public static boolean encrypt(String password, InputStream inputSteam, OutputStream outputStream, JNICallbackInterface progressCallback, OutputStream logStream, long progressFrequencyBytes);
-    native public static boolean decrypt(String password, InputStream inputSteam, OutputStream outputStream, JNICallbackInterface progressCallback, OutputStream logStream, long progressFrequencyBytes);
-    native public static void cancel();
-}
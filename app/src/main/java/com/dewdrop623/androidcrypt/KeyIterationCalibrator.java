@@ -0,0 +1,94 @@
+package com.dewdrop623.androidcrypt;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * KeyIterationCalibrator picks the number of PBKDF2 iterations used for new files, so key derivation takes about TARGET_MILLISECONDS on this device.
+ * A fixed count is too slow on low end phones and weaker than it needs to be on fast ones.
+ * Decryption reads the count from the file header, so changing it only affects files encrypted afterwards.
+ */
+
+public final class KeyIterationCalibrator {
+
+    public interface CalibrationListener {
+        //called on the main thread
+        void calibrated(int keyIterations);
+    }
+
+    //how long key derivation should take
+    public static final long TARGET_MILLISECONDS = 500;
+    //never weaker than this however slow the device is, and never more than AES Crypt allows
+    public static final int MIN_KEY_ITERATIONS = 100000;
+    public static final int MAX_KEY_ITERATIONS = 5000000;
+
+    private static final int SAMPLE_ITERATIONS = 50000;
+    private static final int SAMPLE_COUNT = 3;
+    private static final int ROUND_TO_ITERATIONS = 10000;
+
+    private KeyIterationCalibrator() {
+
+    }
+
+    /*
+    * Time the engine encrypting an empty input, which is almost all key derivation, and scale SAMPLE_ITERATIONS to TARGET_MILLISECONDS.
+    * The fastest of SAMPLE_COUNT runs is used so a busy moment doesn't lower the count. Blocks for a fraction of a second, don't call it on the main thread.
+     */
+    public static int measureKeyIterations() {
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //nothing to report
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                //nothing to report
+            }
+        };
+        long session = JNIInterface.createSession();
+        long fastestNanoseconds = Long.MAX_VALUE;
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            long start = System.nanoTime();
+            boolean successful = JNIInterface.encrypt(session, "calibration", SAMPLE_ITERATIONS, new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream(), jniCallbackInterface, null, 100);
+            long elapsed = System.nanoTime() - start;
+            if (successful) {
+                fastestNanoseconds = Math.min(fastestNanoseconds, elapsed);
+            }
+        }
+        JNIInterface.destroySession(session);
+        if (fastestNanoseconds == Long.MAX_VALUE) {
+            return JNIInterface.DEFAULT_KEY_ITERATIONS;
+        }
+        long keyIterations = SAMPLE_ITERATIONS * TARGET_MILLISECONDS * 1000000 / Math.max(fastestNanoseconds, 1);
+        keyIterations = (keyIterations / ROUND_TO_ITERATIONS) * ROUND_TO_ITERATIONS;
+        return (int) Math.max(MIN_KEY_ITERATIONS, Math.min(MAX_KEY_ITERATIONS, keyIterations));
+    }
+
+    /*
+    * Measure on a background thread and store the result with SettingsHelper.setKeyIterations.
+    * listener may be null.
+     */
+    public static void calibrateInBackground(Context context, final CalibrationListener listener) {
+        final Context applicationContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final int keyIterations = measureKeyIterations();
+                SettingsHelper.setKeyIterations(applicationContext, keyIterations);
+                if (listener != null) {
+                    new Handler(Looper.getMainLooper()).post(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.calibrated(keyIterations);
+                        }
+                    });
+                }
+            }
+        }).start();
+    }
+}
@@ -7,6 +7,11 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 
+/**
+ * Collects the native engine log in java and writes it to Log.d on every flush.
+ * Only for capturing the log, like the tests do: every flush is an upcall from native code.
+ * The app passes a null logStream and the engine logs to logcat directly, see JNIInterface.setLogLevel.
+ */
 public class LogStream extends OutputStream {
 
     private String tag = "LogStream";
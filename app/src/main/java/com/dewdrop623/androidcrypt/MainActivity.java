@@ -2,6 +2,8 @@ package com.dewdrop623.androidcrypt;
 
 
 import android.Manifest;
+import android.content.ClipData;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -25,6 +27,8 @@ import androidx.fragment.app.FragmentTransaction;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 
+import java.util.ArrayList;
+
 public class MainActivity extends AppCompatActivity {
 
     static {
@@ -32,6 +36,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public static final String INPUT_FILE_ARGUMENT_KEY = "com.dewdrop623.androidcrypt.MainActivity.INPUT_FILE_ARGUMENT_KEY";
+    public static final String INPUT_FILES_ARGUMENT_KEY = "com.dewdrop623.androidcrypt.MainActivity.INPUT_FILES_ARGUMENT_KEY";
 
     private FloatingActionButton fab;
     private boolean mainActivityFragmentOnTop = true;
@@ -43,6 +48,7 @@ public class MainActivity extends AppCompatActivity {
 
     private static final int CHOOSE_INPUT_FILE_REQUEST_CODE = 1654;
     private static final int CHOOSE_OUTPUT_FILE_REQUEST_CODE = 1655;
+    private static final int CHOOSE_OUTPUT_DIRECTORY_REQUEST_CODE = 1656;
 
     private final ActivityResultLauncher<String> notificationRequestPermissionLauncher = registerForActivityResult(new ActivityResultContracts.RequestPermission(), isGranted -> {
         if (isGranted) {
@@ -90,6 +96,20 @@ public class MainActivity extends AppCompatActivity {
         setFabVisible(mainActivityFragmentOnTop);
         getSupportActionBar().setDisplayHomeAsUpEnabled(!mainActivityFragmentOnTop);
         checkNotificationPermission();
+        //first run, pick the key derivation iterations and then the crypto engines for this device, one after the other so they don't skew each other's timings
+        if (!SettingsHelper.getKeyIterationsCalibrated(this)) {
+            final Context applicationContext = getApplicationContext();
+            KeyIterationCalibrator.calibrateInBackground(this, new KeyIterationCalibrator.CalibrationListener() {
+                @Override
+                public void calibrated(int keyIterations) {
+                    if (!SettingsHelper.getCryptoEnginesSelected(applicationContext)) {
+                        CryptoEngines.selectInBackground(applicationContext);
+                    }
+                }
+            });
+        } else if (!SettingsHelper.getCryptoEnginesSelected(this)) {
+            CryptoEngines.selectInBackground(this);
+        }
     }
 
     private void checkNotificationPermission() {
@@ -122,11 +142,26 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         if (requestCode == CHOOSE_INPUT_FILE_REQUEST_CODE && data != null) {
-            getMainActivityFragment().setInputFile(data.getData());
+            //several files picked come back in the clip data, a single file in the data
+            ClipData clipData = data.getClipData();
+            if (clipData != null && clipData.getItemCount() > 0) {
+                ArrayList<Uri> files = new ArrayList<>();
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    files.add(clipData.getItemAt(i).getUri());
+                }
+                getMainActivityFragment().setInputFiles(files);
+            } else if (data.getData() != null) {
+                getMainActivityFragment().setInputFile(data.getData());
+            }
         }
         else if (requestCode == CHOOSE_OUTPUT_FILE_REQUEST_CODE && data != null) {
             getMainActivityFragment().setOutputFile(data.getData());
         }
+        else if (requestCode == CHOOSE_OUTPUT_DIRECTORY_REQUEST_CODE && data != null && data.getData() != null) {
+            //keep write access to the directory, the files are created in it as the batch runs
+            getContentResolver().takePersistableUriPermission(data.getData(), Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
+            getMainActivityFragment().setOutputFile(data.getData());
+        }
     }
 
     @Override
@@ -151,6 +186,7 @@ public class MainActivity extends AppCompatActivity {
         intent.addCategory(Intent.CATEGORY_OPENABLE);
 
         intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
 
         startActivityForResult(intent, CHOOSE_INPUT_FILE_REQUEST_CODE);
     }
@@ -165,6 +201,13 @@ public class MainActivity extends AppCompatActivity {
         startActivityForResult(intent, CHOOSE_OUTPUT_FILE_REQUEST_CODE);
     }
 
+    //Used instead of pickOutputFile when several input files are selected.
+    public void pickOutputDirectory() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        intent.addFlags(Intent.FLAG_GRANT_WRITE_URI_PERMISSION | Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION);
+        startActivityForResult(intent, CHOOSE_OUTPUT_DIRECTORY_REQUEST_CODE);
+    }
+
     /**
      * Called to display things like SettingsFragment and AboutFragment, or by pickFile to display
      * the file picker.
@@ -198,7 +241,15 @@ public class MainActivity extends AppCompatActivity {
         Bundle args = new Bundle();
         if (intent != null) {
             Uri data = intent.getData();
-            if (data != null) {
+            if (Intent.ACTION_SEND_MULTIPLE.equals(intent.getAction())) {
+                ArrayList<Uri> files = intent.getParcelableArrayListExtra(Intent.EXTRA_STREAM);
+                if (files != null && !files.isEmpty()) {
+                    args.putParcelableArrayList(INPUT_FILES_ARGUMENT_KEY, files);
+                }
+            } else if (Intent.ACTION_SEND.equals(intent.getAction())) {
+                data = intent.getParcelableExtra(Intent.EXTRA_STREAM);
+            }
+            if (data != null && !args.containsKey(INPUT_FILES_ARGUMENT_KEY)) {
                 args.putParcelable(INPUT_FILE_ARGUMENT_KEY, data);
             }
         }
@@ -9,13 +9,17 @@ import android.graphics.Typeface;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
 import androidx.core.app.ActivityCompat;
 import androidx.fragment.app.Fragment;
 import androidx.core.content.ContextCompat;
 import androidx.core.content.res.ResourcesCompat;
 import androidx.annotation.Nullable;
+import android.text.Editable;
 import android.text.InputType;
 import android.text.SpannableString;
+import android.text.TextWatcher;
 import android.text.style.ForegroundColorSpan;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -34,6 +38,7 @@ import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 
 /**
@@ -51,20 +56,30 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
 
     private static final String PROGRESS_DISPLAYER_ID = "com.dewdrop623.androidcrypt.MainActivityFragment.PROGRESS_DISPLAYER_ID";
 
+    //wait this long after the last change to the inputs before starting a speculative operation, so it isn't restarted on every keystroke
+    private static final long SPECULATION_DELAY_MILLISECONDS = 500;
+
     private static final String SAVED_INSTANCE_STATE_SHOW_PASSWORD = "com.dewdrop623.androidcrypt.MainActivityFragment.SAVED_INSTANCE_STATE_SHOW_PASSWORD";
     private static final String SAVED_INSTANCE_STATE_OPERATION_MODE = "com.dewdrop623.androidcrypt.MainActivityFragment.SAVED_INSTANCE_STATE_OPERATION_MODE";
     private static final String SAVED_INSTANCE_STATE_DELETE_INPUT_FILE = "com.dewdrop623.androidcrypt.MainActivityFragment.SAVED_INSTANCE_STATE_DELETE_INPUT_FILE";
     private static final String SAVED_INSTANCE_STATE_INPUT_FILE = "com.dewdrop623.androidcrypt.MainActivityFragment.SAVED_INSTANCE_STATE_INPUT_FILE";
     private static final String SAVED_INSTANCE_STATE_OUTPUT_FILE = "com.dewdrop623.androidcrypt.MainActivityFragment.SAVED_INSTANCE_STATE_OUTPUT_FILE";
+    private static final String SAVED_INSTANCE_STATE_INPUT_FILES = "com.dewdrop623.androidcrypt.MainActivityFragment.SAVED_INSTANCE_STATE_INPUT_FILES";
 
     //stores the type of operation to be done
     private boolean operationMode = CryptoThread.OPERATION_TYPE_ENCRYPTION;
     private boolean showPassword = false;
     Uri inputFile;
     Uri outputFile;
+    //set when more than one input file is selected. inputFile is the first of them, and outputFile is the directory the output files are created in.
+    ArrayList<Uri> inputFiles;
     private boolean deleteInputFile = false;
     //see comment on this.onAttach(Context)
     private Context context;
+    private final Handler speculationHandler = new Handler(Looper.getMainLooper());
+    //true while progressFrameCallback is posted
+    private boolean progressFramePosted = false;
+    private String shownProgressText = null;
 
     private Button encryptModeButton;
     private Button decryptModeButton;
@@ -125,6 +140,8 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         decryptModeButton.setOnClickListener(operationModeButtonsOnClickListener);
         progressDispayCancelButton.setOnClickListener(progressDispayCancelButtonOnClickListener);
         deleteInputFileCheckbox.setOnCheckedChangeListener(deleteInputFileCheckboxOnCheckedChangedListener);
+        passwordEditText.addTextChangedListener(passwordTextWatcher);
+        confirmPasswordEditText.addTextChangedListener(passwordTextWatcher);
 
         checkPermissions();
 
@@ -136,8 +153,9 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         CryptoThread.registerForProgressUpdate(PROGRESS_DISPLAYER_ID, this);
 
         //Check if there is an operation in progress. If there is, get an update show the progress bar and cancel button immediately, rather than waiting for CryptoThread to push an update.
-        if (CryptoThread.operationInProgress) {
-            update(CryptoThread.getCurrentOperationType(), CryptoThread.getProgressUpdate(), CryptoThread.getCompletedMessageStringId(), -1, -1);
+        CryptoJob activeJob = CryptoThread.getActiveJob();
+        if (activeJob != null) {
+            update(activeJob.getOperationType(), CryptoThread.getBatchProgress(), CryptoThread.getBatchCompletedMessageStringId(), -1, -1, 0, 0);
         }
 
         /*
@@ -159,7 +177,14 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
     @Override
     public void onViewCreated(View view, Bundle savedInstanceState){
         Bundle args = getArguments();
-        if (args != null && args.containsKey(MainActivity.INPUT_FILE_ARGUMENT_KEY)) {
+        if (args != null && args.containsKey(MainActivity.INPUT_FILES_ARGUMENT_KEY)) {
+            ArrayList<Uri> inputFiles = args.getParcelableArrayList(MainActivity.INPUT_FILES_ARGUMENT_KEY);
+            setInputFiles(inputFiles);
+            args.clear();
+            if (StorageAccessFrameworkHelper.getFilenameFromUri(inputFiles.get(0), getContext()).endsWith(".aes")) {
+                enableDecryptionMode();
+            }
+        } else if (args != null && args.containsKey(MainActivity.INPUT_FILE_ARGUMENT_KEY)) {
             Uri inputFile = args.getParcelable(MainActivity.INPUT_FILE_ARGUMENT_KEY);
             setInputFile(inputFile);
             args.clear();
@@ -175,11 +200,46 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
     @Override
     public void onResume() {
         super.onResume();
-        //hide the progress bar on resume will show again when progress update is received but wont be stuck if wasn't in app when final progress update was sent
+        //hide the progress bar on resume, the next frame shows it again if an operation is in progress, but it won't be stuck if the final update was missed
         progressDisplayLinearLayout.setVisibility(View.INVISIBLE);
+        postProgressFrame();
         ((MainActivity) getActivity()).returnedToMainFragment();
     }
 
+    @Override
+    public void onPause() {
+        super.onPause();
+        Choreographer.getInstance().removeFrameCallback(progressFrameCallback);
+        progressFramePosted = false;
+    }
+
+    /*
+    * While an operation is in progress, sample its progress once per frame from the jobs' SharedProgress counters.
+    * The running jobs never call into the UI for progress, so the bar shows the freshest value and the crypto threads never wait on it.
+    * Stops by itself when the batch is done, update() starts it again for the next one.
+     */
+    private final Choreographer.FrameCallback progressFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            progressFramePosted = false;
+            if (!isResumed()) {
+                return;
+            }
+            CryptoThread.pollProgress(MainActivityFragment.this::showProgress);
+            if (CryptoThread.isOperationInProgress()) {
+                postProgressFrame();
+            }
+        }
+    };
+
+    //main thread only
+    private void postProgressFrame() {
+        if (!progressFramePosted) {
+            progressFramePosted = true;
+            Choreographer.getInstance().postFrameCallback(progressFrameCallback);
+        }
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(createOutStateBundle(outState));
@@ -203,6 +263,18 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         return false;
     }
 
+    /*
+    * A speculative operation is only worth keeping while the user can still come back to it.
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        if (getActivity() == null || getActivity().isFinishing()) {
+            speculationHandler.removeCallbacks(speculationRunnable);
+            SpeculativeCrypto.discard();
+        }
+    }
+
     /*
     * Apparently there is a bug in Android that causes getActivity()/getContext() to return null sometimes (after a rotate in this case).
     * This is a workaround.
@@ -214,31 +286,48 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
     }
 
     /*
-    * Implementation of ProgressDisplayer interface. Called by CryptoThread to show progress.
-    * Has to be done on the gui thread.
+    * Implementation of ProgressDisplayer interface. Called by CryptoThread when a job starts or finishes.
+    * Has to be done on the gui thread. Starts sampling the progress on every frame until the batch is done.
      */
     @Override
-    public void update(final boolean operationType, final int progress, final int completedMessageStringId, final int minutesToCompletion, final int secondsToCompletion) {
+    public void update(final boolean operationType, final int progress, final int completedMessageStringId, final int minutesToCompletion, final int secondsToCompletion,
+                       final long currentBytesPerSecond, final long averageBytesPerSecond) {
         final Context context = getContext();
         if (context != null) {
             new Handler(context.getMainLooper()).post(new Runnable() {
                 @Override
                 public void run() {
-                    progressDisplayLinearLayout.setVisibility(progress == 100 ? View.INVISIBLE : View.VISIBLE);
-                    progressDisplayProgressBar.setProgress(progress);
-                    String progressText = operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION ? getString(R.string.encrypting) : getString(R.string.decrypting);
-                    if (minutesToCompletion != -1) {
-                        progressText = progressText.concat(" " + minutesToCompletion + "m");
-                    }
-                    if (secondsToCompletion != -1) {
-                        progressText = progressText.concat(" " + secondsToCompletion + "s");
+                    showProgress(operationType, progress, completedMessageStringId, minutesToCompletion, secondsToCompletion, currentBytesPerSecond, averageBytesPerSecond);
+                    if (isResumed() && CryptoThread.isOperationInProgress()) {
+                        postProgressFrame();
                     }
-                    progressDisplayTextView.setText(progressText);
                 }
             });
         }
     }
 
+    //gui thread only. The views are only touched when what they show changes, polling calls this on every frame.
+    private void showProgress(boolean operationType, int progress, int completedMessageStringId, int minutesToCompletion, int secondsToCompletion,
+                              long currentBytesPerSecond, long averageBytesPerSecond) {
+        progressDisplayLinearLayout.setVisibility(progress == 100 ? View.INVISIBLE : View.VISIBLE);
+        progressDisplayProgressBar.setProgress(progress);
+        String progressText = operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION ? getString(R.string.encrypting) : getString(R.string.decrypting);
+        if (minutesToCompletion != -1) {
+            progressText = progressText.concat(" " + minutesToCompletion + "m");
+        }
+        if (secondsToCompletion != -1) {
+            progressText = progressText.concat(" " + secondsToCompletion + "s");
+        }
+        String throughput = CryptoService.formatThroughput(context, currentBytesPerSecond, averageBytesPerSecond);
+        if (throughput != null) {
+            progressText = progressText.concat("\n" + throughput);
+        }
+        if (!progressText.equals(shownProgressText)) {
+            shownProgressText = progressText;
+            progressDisplayTextView.setText(progressText);
+        }
+    }
+
     private final View.OnClickListener operationModeButtonsOnClickListener = new View.OnClickListener() {
         @Override
         public void onClick(View view) {
@@ -274,10 +363,51 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
     private final View.OnClickListener progressDispayCancelButtonOnClickListener = new View.OnClickListener() {
         @Override
         public void onClick(View view) {
-            CryptoThread.cancel();
+            CryptoThread.cancelAll();
         }
     };
 
+    private final TextWatcher passwordTextWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence charSequence, int start, int count, int after) {
+        }
+
+        @Override
+        public void onTextChanged(CharSequence charSequence, int start, int before, int count) {
+        }
+
+        @Override
+        public void afterTextChanged(Editable editable) {
+            scheduleSpeculation();
+        }
+    };
+
+    /*
+    * Start the operation in the background with the current inputs, if they are complete, see SpeculativeCrypto.
+    * The output file isn't needed yet, it is only written to when the user presses the button.
+     */
+    private final Runnable speculationRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (context == null || passwordEditText == null) {
+                return;
+            }
+            String password = passwordEditText.getText().toString();
+            boolean passwordReady = !password.isEmpty() && (operationMode == CryptoThread.OPERATION_TYPE_DECRYPTION || password.equals(confirmPasswordEditText.getText().toString()));
+            if (inputFile != null && !isBatch() && passwordReady) {
+                SpeculativeCrypto.start(context, inputFile, operationMode, password);
+            } else {
+                SpeculativeCrypto.discard();
+            }
+        }
+    };
+
+    //Called whenever the input file, operation mode or password changes.
+    private void scheduleSpeculation() {
+        speculationHandler.removeCallbacks(speculationRunnable);
+        speculationHandler.postDelayed(speculationRunnable, SPECULATION_DELAY_MILLISECONDS);
+    }
+
     private final CompoundButton.OnCheckedChangeListener deleteInputFileCheckboxOnCheckedChangedListener = new CompoundButton.OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(CompoundButton compoundButton, boolean b) {
@@ -299,15 +429,58 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
      * else if an input file has already been selected open that directory.
      */
     public void selectOutputFile() {
-        ((MainActivity) getActivity()).pickOutputFile(getDefaultOutputFileName());
+        if (isBatch()) {
+            ((MainActivity) getActivity()).pickOutputDirectory();
+        } else {
+            ((MainActivity) getActivity()).pickOutputFile(getDefaultOutputFileName());
+        }
     }
 
     public void setInputFile(Uri file) {
         boolean isOutput = false;
+        boolean wasBatch = isBatch();
         inputFile = file;
+        inputFiles = null;
+        //an output directory chosen for a batch is no use for a single file
+        if (wasBatch) {
+            outputFile = null;
+        }
+        if (context != null) {
+            updateFileUI(isOutput);
+            if (wasBatch) {
+                updateFileUI(true);
+            }
+        }
+        scheduleSpeculation();
+    }
+
+    /*
+    * Select several input files. They are encrypted or decrypted one output file each, into an output directory.
+     */
+    public void setInputFiles(ArrayList<Uri> files) {
+        if (files.size() == 1) {
+            setInputFile(files.get(0));
+            return;
+        }
+        boolean isOutput = false;
+        boolean wasBatch = isBatch();
+        inputFile = files.get(0);
+        inputFiles = files;
+        //an output file chosen for a single input is no use for a batch
+        if (!wasBatch) {
+            outputFile = null;
+        }
         if (context != null) {
             updateFileUI(isOutput);
+            if (!wasBatch) {
+                updateFileUI(true);
+            }
         }
+        scheduleSpeculation();
+    }
+
+    private boolean isBatch() {
+        return inputFiles != null;
     }
     public void setOutputFile(Uri file) {
         boolean isOutput = true;
@@ -334,9 +507,12 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
             fileSelectButton = outputFileSelectButton;
             filePathUnderlineView = outputFilePathUnderlineView;
             filePathLinearLayout = outputFilePathLinearLayout;
-            filePathTextPrefix = context.getString(R.string.output_file).concat(": ");
+            filePathTextPrefix = context.getString(isBatch() ? R.string.output_directory : R.string.output_file).concat(": ");
         } else {
             filePath = inputFile != null ? Uri.decode(inputFile.toString()) : "";
+            if (isBatch()) {
+                filePath = context.getResources().getQuantityString(R.plurals.number_of_files, inputFiles.size(), inputFiles.size());
+            }
             filePathTextView = inputFilePathTextView;
             fileSelectButton = inputFileSelectButton;
             filePathUnderlineView = inputFilePathUnderlineView;
@@ -384,8 +560,17 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         if (isValidElsePrintErrors()) {
             //Can't use getContext() or getActivity(). See comment on this.onAttach(Context)
             Intent intent = new Intent(context, CryptoService.class);
-            intent.putExtra(CryptoService.INPUT_FILE_URI_EXTRA_KEY, inputFile.toString());
-            intent.putExtra(CryptoService.OUTPUT_FILE_URI_EXTRA_KEY, outputFile.toString());
+            if (isBatch()) {
+                ArrayList<String> inputFileStrings = new ArrayList<>();
+                for (Uri file : inputFiles) {
+                    inputFileStrings.add(file.toString());
+                }
+                intent.putStringArrayListExtra(CryptoService.INPUT_FILE_URIS_EXTRA_KEY, inputFileStrings);
+                intent.putExtra(CryptoService.OUTPUT_DIRECTORY_URI_EXTRA_KEY, outputFile.toString());
+            } else {
+                intent.putExtra(CryptoService.INPUT_FILE_URI_EXTRA_KEY, inputFile.toString());
+                intent.putExtra(CryptoService.OUTPUT_FILE_URI_EXTRA_KEY, outputFile.toString());
+            }
             intent.putExtra(CryptoService.OPERATION_TYPE_EXTRA_KEY, operationMode);
             intent.putExtra(CryptoService.DELETE_INPUT_FILE_KEY, deleteInputFile);
             MainActivityFragment.setPassword(passwordEditText.getText().toString().toCharArray());
@@ -444,6 +629,7 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         encryptModeButton.setTextColor(ContextCompat.getColor(context, android.R.color.white));
         decryptModeButton.setTextColor(ContextCompat.getColor(context, android.R.color.darker_gray));
         ((MainActivity) getActivity()).setFABIcon(R.drawable.ic_lock);
+        scheduleSpeculation();
     }
 
     /**
@@ -457,6 +643,7 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         encryptModeButton.setTextColor(ContextCompat.getColor(context, android.R.color.darker_gray));
         decryptModeButton.setTextColor(ContextCompat.getColor(context, android.R.color.white));
         ((MainActivity) getActivity()).setFABIcon(R.drawable.ic_unlock);
+        scheduleSpeculation();
     }
 
     /*
@@ -477,15 +664,7 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         String result = "";
         if (inputFile != null) {
             String fileName = StorageAccessFrameworkHelper.getFilenameFromUri(inputFile, getContext());
-            if (operationMode == CryptoThread.OPERATION_TYPE_ENCRYPTION) {
-                result = fileName.concat(".aes");
-            } else if (operationMode == CryptoThread.OPERATION_TYPE_DECRYPTION) {
-                if (fileName.lastIndexOf('.') != -1 && fileName.substring(fileName.lastIndexOf('.')).equals(".aes")) {
-                    result = fileName.substring(0, fileName.lastIndexOf('.'));
-                } else {
-                    result = "";
-                }
-            }
+            result = StorageAccessFrameworkHelper.getDefaultOutputFileName(fileName, operationMode);
         }
         return result;
     }
@@ -505,9 +684,6 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         } else if (operationMode == CryptoThread.OPERATION_TYPE_ENCRYPTION && !passwordEditText.getText().toString().equals(confirmPasswordEditText.getText().toString())) {
             valid = false;
             showError(R.string.passwords_do_not_match);
-        } else if (CryptoThread.operationInProgress) {
-            valid = false;
-            showError(R.string.another_operation_is_already_in_progress);
         }
         return valid;
     }
@@ -553,6 +729,9 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
             outState.putString(SAVED_INSTANCE_STATE_INPUT_FILE, inputFile.toString());
             outState.putBoolean(SAVED_INSTANCE_STATE_DELETE_INPUT_FILE, deleteInputFile);
         }
+        if (isBatch()) {
+            outState.putParcelableArrayList(SAVED_INSTANCE_STATE_INPUT_FILES, inputFiles);
+        }
         if (outputFile != null) {
             outState.putString(SAVED_INSTANCE_STATE_OUTPUT_FILE, outputFile.toString());
         }
@@ -582,7 +761,10 @@ public class MainActivityFragment extends Fragment implements CryptoThread.Progr
         }
         String inputFileString = savedInstanceState.getString(SAVED_INSTANCE_STATE_INPUT_FILE, "");
         String outputFileString = savedInstanceState.getString(SAVED_INSTANCE_STATE_OUTPUT_FILE, "");
-        if (!inputFileString.isEmpty()) {
+        ArrayList<Uri> savedInputFiles = savedInstanceState.getParcelableArrayList(SAVED_INSTANCE_STATE_INPUT_FILES);
+        if (savedInputFiles != null) {
+            setInputFiles(savedInputFiles);
+        } else if (!inputFileString.isEmpty()) {
             setInputFile(Uri.parse(inputFileString));
         }
         if(!outputFileString.isEmpty()) {
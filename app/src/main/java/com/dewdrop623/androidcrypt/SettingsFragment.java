@@ -4,6 +4,7 @@ import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.Button;
 import android.widget.RadioButton;
 import android.widget.RadioGroup;
 import android.widget.TextView;
@@ -16,6 +17,9 @@ import androidx.fragment.app.Fragment;
  */
 public class SettingsFragment extends Fragment {
 
+    private TextView keyIterationsTextView;
+    private Button calibrateKeyIterationsButton;
+
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -35,6 +39,11 @@ public class SettingsFragment extends Fragment {
         }
         themeRadioGroup.setOnCheckedChangeListener(themeRadioGroupOnCheckedChangedListener);
 
+        keyIterationsTextView = view.findViewById(R.id.keyIterationsTextView);
+        calibrateKeyIterationsButton = view.findViewById(R.id.calibrateKeyIterationsButton);
+        showKeyIterations(SettingsHelper.getKeyIterations(getContext()));
+        calibrateKeyIterationsButton.setOnClickListener(calibrateKeyIterationsButtonOnClickListener);
+
 
         /*update ui to match theme preferences*/
         if (SettingsHelper.getUseDarkTeme(getContext())) {
@@ -43,10 +52,34 @@ public class SettingsFragment extends Fragment {
             ((RadioButton) themeRadioGroup.findViewById(R.id.lightThemeRadioButton)).setTextColor(textColor);
 
             ((TextView) view.findViewById(R.id.themeTitleTextView)).setTextColor(textColor);
+            ((TextView) view.findViewById(R.id.keyIterationsTitleTextView)).setTextColor(textColor);
+            keyIterationsTextView.setTextColor(textColor);
         }
         return view;
     }
 
+    private void showKeyIterations(int keyIterations) {
+        keyIterationsTextView.setText(getString(R.string.key_iterations, keyIterations));
+    }
+
+    private final View.OnClickListener calibrateKeyIterationsButtonOnClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View view) {
+            calibrateKeyIterationsButton.setEnabled(false);
+            keyIterationsTextView.setText(R.string.calibrating);
+            KeyIterationCalibrator.calibrateInBackground(getContext(), new KeyIterationCalibrator.CalibrationListener() {
+                @Override
+                public void calibrated(int keyIterations) {
+                    //the user may have left the settings screen
+                    if (isAdded()) {
+                        showKeyIterations(keyIterations);
+                        calibrateKeyIterationsButton.setEnabled(true);
+                    }
+                }
+            });
+        }
+    };
+
     private final RadioGroup.OnCheckedChangeListener themeRadioGroupOnCheckedChangedListener = new RadioGroup.OnCheckedChangeListener() {
         @Override
         public void onCheckedChanged(RadioGroup group, int checkedId) {
@@ -12,10 +12,17 @@ public final class SettingsHelper {
     /*Defaults*/
     public static final boolean USE_DARK_THEME_DEFAULT = false;
     private static final boolean DENIED_NOTIFICATIONS_DEFAULT = false;
+    //0 => not calibrated yet, see KeyIterationCalibrator
+    private static final int KEY_ITERATIONS_DEFAULT = 0;
+    //"" => not measured yet, the native engine is used, see CryptoEngines
+    private static final String CRYPTO_ENGINE_DEFAULT = "";
 
     private static final String SHARED_PREFERENCES_FILE = "com.dewdrop623.androidcrypt.SettingsHelper.SHARED_PREFERENCES_FILE";
     private static final String USE_DARK_THEME = "com.dewdrop623.androidcrypt.SettingsHelper.USE_DARK_THEME";
     private static final String DENIED_NOTIFICATIONS = "com.dewdrop623.androidcrypt.SettingsHelper.DENIED_NOTIFICATIONS";
+    private static final String KEY_ITERATIONS = "com.dewdrop623.androidcrypt.SettingsHelper.KEY_ITERATIONS";
+    private static final String ENCRYPTION_ENGINE = "com.dewdrop623.androidcrypt.SettingsHelper.ENCRYPTION_ENGINE";
+    private static final String DECRYPTION_ENGINE = "com.dewdrop623.androidcrypt.SettingsHelper.DECRYPTION_ENGINE";
 
     private static SharedPreferences sharedPreferences;
 
@@ -68,4 +75,32 @@ public final class SettingsHelper {
     public static boolean getDeniedNotifications(Context context) {
         return getSharedPreferencesFile(context).getBoolean(DENIED_NOTIFICATIONS, DENIED_NOTIFICATIONS_DEFAULT);
     }
+
+    public static void setKeyIterations(Context context, int keyIterations) {
+        sharedPreferencesPutInt(context, KEY_ITERATIONS, keyIterations);
+    }
+
+    //PBKDF2 iterations for new files. JNIInterface.DEFAULT_KEY_ITERATIONS until KeyIterationCalibrator has run.
+    public static int getKeyIterations(Context context) {
+        int keyIterations = getSharedPreferencesFile(context).getInt(KEY_ITERATIONS, KEY_ITERATIONS_DEFAULT);
+        return keyIterations == KEY_ITERATIONS_DEFAULT ? JNIInterface.DEFAULT_KEY_ITERATIONS : keyIterations;
+    }
+
+    public static boolean getKeyIterationsCalibrated(Context context) {
+        return getSharedPreferencesFile(context).getInt(KEY_ITERATIONS, KEY_ITERATIONS_DEFAULT) != KEY_ITERATIONS_DEFAULT;
+    }
+
+    public static void setCryptoEngines(Context context, String encryptionEngine, String decryptionEngine) {
+        sharedPreferencesPutString(context, ENCRYPTION_ENGINE, encryptionEngine);
+        sharedPreferencesPutString(context, DECRYPTION_ENGINE, decryptionEngine);
+    }
+
+    //CryptoEngine.getName() of the engine new jobs of operationType run on, "" until CryptoEngines has measured them
+    public static String getCryptoEngine(Context context, boolean operationType) {
+        return getSharedPreferencesFile(context).getString(operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION ? ENCRYPTION_ENGINE : DECRYPTION_ENGINE, CRYPTO_ENGINE_DEFAULT);
+    }
+
+    public static boolean getCryptoEnginesSelected(Context context) {
+        return !getSharedPreferencesFile(context).getString(ENCRYPTION_ENGINE, CRYPTO_ENGINE_DEFAULT).equals(CRYPTO_ENGINE_DEFAULT);
+    }
 }
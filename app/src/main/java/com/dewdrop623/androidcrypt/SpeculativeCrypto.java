@@ -0,0 +1,205 @@
+package com.dewdrop623.androidcrypt;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * SpeculativeCrypto starts the operation as soon as MainActivityFragment has an input file and a password, before the user presses the button.
+ * Most of the time for a small file is the 300000 iteration key derivation, which the engine does inside encrypt/decrypt,
+ * so the whole operation is run into memory and CryptoThread only has to write out the result when the user commits.
+ * Only single files smaller than CryptoService.LARGE_FILE_BYTES are run this way. The output never touches storage until it is committed,
+ * and is wiped if the input file, operation type or password change.
+ */
+
+public class SpeculativeCrypto {
+
+    //more than the AES Crypt header, padding and HMACs add to the size of a file
+    private static final int OUTPUT_OVERHEAD_BYTES = 4096;
+
+    //at most one speculative operation at a time, replaced when the inputs change
+    private static SpeculativeCrypto current = null;
+
+    private final Context context;
+    private final DocumentCryptoJob job;
+    private final String password;
+    private final int keyIterations;
+    private final Thread thread;
+    //allocated for the whole output up front so it never grows, growing would leave unwiped copies behind
+    private WipeableByteArrayOutputStream output = null;
+    private volatile boolean successful = false;
+    private volatile int status = 0;
+    private volatile long inputSize = 0;
+
+    private SpeculativeCrypto(Context context, Uri inputFile, boolean operationType, String password) {
+        this.context = context;
+        this.job = new DocumentCryptoJob(inputFile, null, operationType, false);
+        this.password = password;
+        this.keyIterations = SettingsHelper.getKeyIterations(context);
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runOperation();
+            }
+        });
+    }
+
+    /*
+    * Start a speculative operation for these inputs, replacing any other one. Does nothing if one for the same inputs is already running.
+     */
+    public static synchronized void start(Context context, Uri inputFile, boolean operationType, String password) {
+        if (current != null && current.matches(inputFile, operationType, password, SettingsHelper.getKeyIterations(context))) {
+            return;
+        }
+        discard();
+        current = new SpeculativeCrypto(context.getApplicationContext(), inputFile, operationType, password);
+        current.thread.start();
+    }
+
+    //Stop the speculative operation, if any, and wipe its output.
+    public static synchronized void discard() {
+        if (current != null) {
+            current.wipe();
+            current = null;
+        }
+    }
+
+    /*
+    * Called by CryptoThread. Returns the speculative operation for these inputs and forgets it, so it can only be used once.
+    * Returns null if there is none for these inputs. The caller must wipe it when done.
+     */
+    public static synchronized SpeculativeCrypto take(Uri inputFile, boolean operationType, String password, int keyIterations) {
+        if (current == null || !current.matches(inputFile, operationType, password, keyIterations)) {
+            return null;
+        }
+        SpeculativeCrypto speculation = current;
+        current = null;
+        return speculation;
+    }
+
+    //keyIterations only matters for encryption, it may have been recalibrated since the speculation started
+    private boolean matches(Uri inputFile, boolean operationType, String password, int keyIterations) {
+        return job.getInputFile().equals(inputFile) && job.getOperationType() == operationType && this.password.equals(password)
+                && (operationType == CryptoThread.OPERATION_TYPE_DECRYPTION || this.keyIterations == keyIterations);
+    }
+
+    /*
+    * Wait for the operation to finish. Returns true if it succeeded and the output can be written with writeOutput.
+    * False means it failed, was cancelled, or the file was too big to run speculatively. The operation should then be run normally.
+     */
+    public boolean await() {
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return successful;
+    }
+
+    public void writeOutput(OutputStream outputStream) throws IOException {
+        output.writeTo(outputStream);
+    }
+
+    //the result code of the engine, as passed to JNICallbackInterface.completedCallback
+    public int getStatus() {
+        return status;
+    }
+
+    public long getInputSize() {
+        return inputSize;
+    }
+
+    //Cancel the operation if it is still running and overwrite the output in memory.
+    public void wipe() {
+        job.cancel();
+        try {
+            thread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        if (output != null) {
+            output.wipe();
+        }
+    }
+
+    private void runOperation() {
+        byte[] input = readSmallInputFile();
+        if (input == null || job.isCancelled()) {
+            return;
+        }
+        inputSize = input.length;
+        output = new WipeableByteArrayOutputStream(input.length + OUTPUT_OVERHEAD_BYTES);
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //nobody is watching yet
+            }
+
+            @Override
+            public void completedCallback(int status) {
+                SpeculativeCrypto.this.status = status;
+            }
+        };
+        long nativeSession = JNIInterface.createSession();
+        job.attachNativeSession(nativeSession);
+        if (job.getOperationType() == CryptoThread.OPERATION_TYPE_ENCRYPTION) {
+            successful = JNIInterface.encrypt(nativeSession, password, keyIterations, new ByteArrayInputStream(input), output, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+        } else {
+            successful = JNIInterface.decrypt(nativeSession, password, new ByteArrayInputStream(input), output, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+        }
+        job.detachNativeSession();
+        JNIInterface.destroySession(nativeSession);
+        Arrays.fill(input, (byte) 0);
+        if (!successful) {
+            output.wipe();
+        }
+    }
+
+    /*
+    * Read the whole input file if it is smaller than CryptoService.LARGE_FILE_BYTES.
+    * Returns null if it is larger, its size is unknown, or it can't be read.
+     */
+    private byte[] readSmallInputFile() {
+        try (ParcelFileDescriptor fileDescriptor = context.getContentResolver().openFileDescriptor(job.getInputFile(), "r")) {
+            if (fileDescriptor == null) {
+                return null;
+            }
+            long size = fileDescriptor.getStatSize();
+            if (size < 0 || size >= CryptoService.LARGE_FILE_BYTES) {
+                return null;
+            }
+            byte[] input = new byte[(int) size];
+            InputStream inputStream = new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor.dup());
+            int offset = 0;
+            int read;
+            while (offset < input.length && (read = inputStream.read(input, offset, input.length - offset)) > 0) {
+                offset += read;
+            }
+            inputStream.close();
+            return offset == input.length ? input : null;
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    //ByteArrayOutputStream whose buffer can be overwritten, so decrypted data doesn't linger in memory
+    private static class WipeableByteArrayOutputStream extends ByteArrayOutputStream {
+        WipeableByteArrayOutputStream(int size) {
+            super(size);
+        }
+
+        synchronized void wipe() {
+            Arrays.fill(buf, (byte) 0);
+            count = 0;
+        }
+    }
+}
@@ -5,6 +5,8 @@ import android.database.Cursor;
 import android.net.Uri;
 import android.provider.OpenableColumns;
 
+import java.io.File;
+
 /**
  * StorageAccessFrameworkHelper provides an interface to the StorageAccessFramework.
  */
@@ -27,7 +29,9 @@ public final class StorageAccessFrameworkHelper {
                     }
                 }
             } finally {
-                cursor.close();
+                if (cursor != null) {
+                    cursor.close();
+                }
             }
         }
         if (result == null) {
@@ -40,4 +44,46 @@ public final class StorageAccessFrameworkHelper {
         return result;
     }
 
+    /*
+    * Size of the document as its provider reports it, 0 if unknown.
+    * A provider may hand out a pipe for the document, which has no size of its own.
+     */
+    public static long getFileSizeFromUri(Uri uri, Context context) {
+        long result = 0;
+        if (uri.getScheme().equals("content")) {
+            Cursor cursor = context.getContentResolver().query(uri, new String[]{OpenableColumns.SIZE}, null, null, null);
+            try {
+                if (cursor != null && cursor.moveToFirst()) {
+                    int columnIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    if (columnIndex >= 0 && !cursor.isNull(columnIndex)) {
+                        result = cursor.getLong(columnIndex);
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        } else if (uri.getScheme().equals("file")) {
+            result = new File(uri.getPath()).length();
+        }
+        return Math.max(result, 0);
+    }
+
+    /*
+    * The output file name suggested for inputFileName: ".aes" is added for encryption and removed for decryption.
+    * Returns "" when decrypting a file that doesn't end in ".aes".
+     */
+    public static String getDefaultOutputFileName(String inputFileName, boolean operationType) {
+        String result = "";
+        if (operationType == CryptoThread.OPERATION_TYPE_ENCRYPTION) {
+            result = inputFileName.concat(".aes");
+        } else if (operationType == CryptoThread.OPERATION_TYPE_DECRYPTION) {
+            if (inputFileName.lastIndexOf('.') != -1 && inputFileName.substring(inputFileName.lastIndexOf('.')).equals(".aes")) {
+                result = inputFileName.substring(0, inputFileName.lastIndexOf('.'));
+            }
+        }
+        return result;
+    }
+
 }
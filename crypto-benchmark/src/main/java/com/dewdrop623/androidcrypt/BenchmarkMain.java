@@ -0,0 +1,107 @@
+package com.dewdrop623.androidcrypt;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Runs the benchmarks with the JMH command line options it is given, always with the GC profiler and JSON results.
+ * From the profiler's bytes allocated per operation it works out the bytes allocated per GiB processed for every
+ * benchmark with a size parameter, prints them and writes them to results-allocation.json next to the results.
+ */
+
+public final class BenchmarkMain {
+
+    private static final String DEFAULT_RESULT_FILE = "build/jmh/results.json";
+    private static final String ALLOCATION_SUFFIX = "-allocation.json";
+    //bytes allocated per operation, averaged over the operations
+    private static final String ALLOCATION_RESULT = "gc.alloc.rate.norm";
+    private static final double GIB = 1024.0 * 1024.0 * 1024.0;
+
+    private BenchmarkMain() {
+
+    }
+
+    public static void main(String[] args) throws CommandLineOptionException, RunnerException, IOException {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        String resultFile = commandLineOptions.getResult().orElse(DEFAULT_RESULT_FILE);
+        Options options = new OptionsBuilder()
+                .parent(commandLineOptions)
+                .resultFormat(ResultFormatType.JSON)
+                .result(resultFile)
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> runResults = new Runner(options).run();
+        writeAllocationPerGiB(runResults, new File(resultFile.replaceFirst("\\.json$", "") + ALLOCATION_SUFFIX));
+    }
+
+    private static void writeAllocationPerGiB(Collection<RunResult> runResults, File file) throws IOException {
+        List<String> entries = new ArrayList<>();
+        System.out.println();
+        System.out.println("Allocation per GiB processed:");
+        for (RunResult runResult : runResults) {
+            BenchmarkParams params = runResult.getParams();
+            String size = params.getParam("size");
+            Result allocation = getSecondaryResult(runResult, ALLOCATION_RESULT);
+            if (size == null || allocation == null) {
+                continue;
+            }
+            double bytesPerGiB = allocation.getScore() * GIB / Long.parseLong(size);
+            String name = params.getBenchmark() + describeParams(params);
+            System.out.println(String.format(Locale.US, "  %-80s %,16.0f B/GiB", name, bytesPerGiB));
+            entries.add(String.format(Locale.US, "  {\"benchmark\": \"%s\", \"params\": {%s}, \"bytesAllocatedPerGiB\": %.1f}",
+                    params.getBenchmark(), jsonParams(params), bytesPerGiB));
+        }
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            writer.println("[");
+            writer.println(String.join(",\n", entries));
+            writer.println("]");
+        }
+        System.out.println("Allocation results: " + file.getPath());
+    }
+
+    //the profiler's key has a prefix in some JMH versions
+    private static Result getSecondaryResult(RunResult runResult, String key) {
+        for (Map.Entry<String, Result> entry : runResult.getSecondaryResults().entrySet()) {
+            if (entry.getKey().endsWith(key)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static String describeParams(BenchmarkParams params) {
+        StringBuilder description = new StringBuilder();
+        for (String key : params.getParamsKeys()) {
+            description.append(' ').append(key).append('=').append(params.getParam(key));
+        }
+        return description.toString();
+    }
+
+    private static String jsonParams(BenchmarkParams params) {
+        List<String> pairs = new ArrayList<>();
+        for (String key : params.getParamsKeys()) {
+            pairs.add("\"" + key + "\": \"" + params.getParam(key) + "\"");
+        }
+        return String.join(", ", pairs);
+    }
+}
@@ -0,0 +1,100 @@
+package com.dewdrop623.androidcrypt;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * What the benchmarks share: test data, a callback that does nothing, and streams that don't keep what goes through them,
+ * so neither the data nor the output is measured along with the engine.
+ */
+
+final class BenchmarkSupport {
+
+    static final String PASSWORD = "benchmark";
+    //low so the data benchmarks measure the data, KdfBenchmark measures the key derivation
+    static final int KEY_ITERATIONS = 10000;
+
+    static final JNICallbackInterface NO_CALLBACKS = new JNICallbackInterface() {
+        @Override
+        public void progressCallback(long totalBytes) {
+            //not called, the progress callbacks are off
+        }
+
+        @Override
+        public void completedCallback(int status) {
+            //the boolean result is enough
+        }
+    };
+
+    private BenchmarkSupport() {
+
+    }
+
+    static void loadLibrary() {
+        System.loadLibrary("androidcrypt");
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    static void check(boolean successful, String operation) {
+        if (!successful) {
+            throw new IllegalStateException(operation + " failed");
+        }
+    }
+
+    /*
+    * Counts what is written and drops it.
+     */
+    static final class CountingOutputStream extends OutputStream {
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    /*
+    * size bytes without holding them: a block of random bytes repeated, for inputs too large to keep in memory.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] block = randomBytes(1024 * 1024);
+        private long remaining;
+
+        RepeatingInputStream(long size) {
+            this.remaining = size;
+        }
+
+        @Override
+        public int read() {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (remaining == 0) {
+                return -1;
+            }
+            int position = (int) (remaining % block.length);
+            int count = (int) Math.min(Math.min(len, remaining), block.length - position);
+            System.arraycopy(block, position, b, off, count);
+            remaining -= count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.dewdrop623.androidcrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import es.vocali.util.AESCrypt;
+
+/**
+ * The AESCrypt java engine (what JcaCryptoEngine runs) on the same data as NativeCryptoBenchmark, version 3 files.
+ * A new AESCrypt per operation, like JcaCryptoEngine makes one per job.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JcaCryptoBenchmark {
+
+    private static final int VERSION = 3;
+
+    @Param({"4096", "1048576", "104857600"})
+    public int size;
+
+    private byte[] plaintext;
+    private byte[] cipherText;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, GeneralSecurityException {
+        plaintext = BenchmarkSupport.randomBytes(size);
+        ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+        newAESCrypt().encrypt(VERSION, new ByteArrayInputStream(plaintext), cipherTextOutputStream);
+        cipherText = cipherTextOutputStream.toByteArray();
+    }
+
+    private static AESCrypt newAESCrypt() throws GeneralSecurityException, IOException {
+        AESCrypt aesCrypt = new AESCrypt(BenchmarkSupport.PASSWORD);
+        aesCrypt.setKeyIterations(BenchmarkSupport.KEY_ITERATIONS);
+        return aesCrypt;
+    }
+
+    @Benchmark
+    public long encrypt() throws IOException, GeneralSecurityException {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        newAESCrypt().encrypt(VERSION, new ByteArrayInputStream(plaintext), output);
+        return output.getCount();
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException, GeneralSecurityException {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        newAESCrypt().decrypt(new ByteArrayInputStream(cipherText), output);
+        return output.getCount();
+    }
+}
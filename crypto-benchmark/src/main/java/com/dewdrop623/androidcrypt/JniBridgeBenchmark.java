@@ -0,0 +1,91 @@
+package com.dewdrop623.androidcrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What moving the data between java and native code costs without any crypto, through the null cipher
+ * JNIInterface.copy/copyDirect. Subtract it from NativeCryptoBenchmark to get the crypto,
+ * compare it with javaCopy to get what the bridge adds over a plain java copy.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JniBridgeBenchmark {
+
+    //the native chunk size
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    @Param({"1048576", "104857600"})
+    public int size;
+
+    @Param({"stream", "direct"})
+    public String bridge;
+
+    private long session;
+    private byte[] data;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+    private byte[] copyBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.loadLibrary();
+        session = JNIInterface.createSession();
+        data = BenchmarkSupport.randomBytes(size);
+        inputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        outputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        copyBuffer = new byte[COPY_BUFFER_SIZE];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        JNIInterface.destroySession(session);
+    }
+
+    @Benchmark
+    public long nativeCopy() {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        long copied;
+        if (bridge.equals("direct")) {
+            copied = JNIInterface.copyDirect(session, Channels.newChannel(new ByteArrayInputStream(data)), Channels.newChannel(output), inputBuffer, outputBuffer);
+        } else {
+            copied = JNIInterface.copy(session, new ByteArrayInputStream(data), output);
+        }
+        BenchmarkSupport.check(copied == size, "copy");
+        return output.getCount();
+    }
+
+    //the same streams copied in java, bridge doesn't apply
+    @Benchmark
+    public long javaCopy() throws IOException {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        InputStream input = new ByteArrayInputStream(data);
+        int read;
+        while ((read = input.read(copyBuffer)) != -1) {
+            output.write(copyBuffer, 0, read);
+        }
+        return output.getCount();
+    }
+}
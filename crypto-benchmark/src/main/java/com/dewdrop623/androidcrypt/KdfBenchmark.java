@@ -0,0 +1,79 @@
+package com.dewdrop623.androidcrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Key derivation alone, the fixed cost of every operation whatever the file size.
+ * native: encrypting an empty input, which is the key derivation plus a header and trailer.
+ * jca: PBKDF2WithHmacSHA512 as AESCrypt derives the version 3 key.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KdfBenchmark {
+
+    private static final byte[] EMPTY = new byte[0];
+    private static final int SALT_SIZE = 16;
+    private static final int KEY_BITS = 256;
+
+    //the benchmark default and the app default
+    @Param({"10000", "300000"})
+    public int iterations;
+
+    private long session;
+    private byte[] salt;
+    private SecretKeyFactory secretKeyFactory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws GeneralSecurityException {
+        BenchmarkSupport.loadLibrary();
+        session = JNIInterface.createSession();
+        salt = BenchmarkSupport.randomBytes(SALT_SIZE);
+        secretKeyFactory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA512");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        JNIInterface.destroySession(session);
+    }
+
+    @Benchmark
+    public long nativeKeyDerivation() {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        BenchmarkSupport.check(JNIInterface.encrypt(session, BenchmarkSupport.PASSWORD, iterations, new ByteArrayInputStream(EMPTY), output,
+                BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS), "encryption");
+        return output.getCount();
+    }
+
+    @Benchmark
+    public byte[] jcaKeyDerivation() throws GeneralSecurityException {
+        PBEKeySpec keySpec = new PBEKeySpec(BenchmarkSupport.PASSWORD.toCharArray(), salt, iterations, KEY_BITS);
+        try {
+            return secretKeyFactory.generateSecret(keySpec).getEncoded();
+        } finally {
+            keySpec.clearPassword();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.dewdrop623.androidcrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The native engine through JNIInterface, in memory: bridge "stream" is encrypt/decrypt (java streams),
+ * "direct" is encryptDirect/decryptDirect (channels and direct buffers) as the app runs a job on streams.
+ * Key derivation is part of every operation, at BenchmarkSupport.KEY_ITERATIONS.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class NativeCryptoBenchmark {
+
+    @Param({"4096", "1048576", "104857600"})
+    public int size;
+
+    @Param({"stream", "direct"})
+    public String bridge;
+
+    private long session;
+    private byte[] plaintext;
+    private byte[] cipherText;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkSupport.loadLibrary();
+        session = JNIInterface.createSession();
+        plaintext = BenchmarkSupport.randomBytes(size);
+        ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+        BenchmarkSupport.check(JNIInterface.encrypt(session, BenchmarkSupport.PASSWORD, BenchmarkSupport.KEY_ITERATIONS, new ByteArrayInputStream(plaintext), cipherTextOutputStream,
+                BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS), "encryption");
+        cipherText = cipherTextOutputStream.toByteArray();
+        inputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        outputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        JNIInterface.destroySession(session);
+    }
+
+    @Benchmark
+    public long encrypt() {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        boolean successful;
+        if (bridge.equals("direct")) {
+            successful = JNIInterface.encryptDirect(session, BenchmarkSupport.PASSWORD, BenchmarkSupport.KEY_ITERATIONS, Channels.newChannel(new ByteArrayInputStream(plaintext)),
+                    Channels.newChannel(output), inputBuffer, outputBuffer, BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+        } else {
+            successful = JNIInterface.encrypt(session, BenchmarkSupport.PASSWORD, BenchmarkSupport.KEY_ITERATIONS, new ByteArrayInputStream(plaintext), output,
+                    BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+        }
+        BenchmarkSupport.check(successful, "encryption");
+        return output.getCount();
+    }
+
+    @Benchmark
+    public long decrypt() {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        boolean successful;
+        if (bridge.equals("direct")) {
+            successful = JNIInterface.decryptDirect(session, BenchmarkSupport.PASSWORD, Channels.newChannel(new ByteArrayInputStream(cipherText)),
+                    Channels.newChannel(output), inputBuffer, outputBuffer, BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+        } else {
+            successful = JNIInterface.decrypt(session, BenchmarkSupport.PASSWORD, new ByteArrayInputStream(cipherText), output,
+                    BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+        }
+        BenchmarkSupport.check(successful, "decryption");
+        return output.getCount();
+    }
+}
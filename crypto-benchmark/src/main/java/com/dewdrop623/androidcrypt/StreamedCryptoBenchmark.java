@@ -0,0 +1,87 @@
+package com.dewdrop623.androidcrypt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Files too large to hold in memory, streamed through encryptDirect/decryptDirect one chunk at a time.
+ * The plaintext is generated as it is read and the output is only counted. decrypt reads a ciphertext
+ * written to a temporary file once per trial, so it includes reading the file.
+ * Each operation takes seconds, so they are timed one at a time.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StreamedCryptoBenchmark {
+
+    @Param({"2147483648"})
+    public long size;
+
+    private long session;
+    private ByteBuffer inputBuffer;
+    private ByteBuffer outputBuffer;
+    private File cipherTextFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        BenchmarkSupport.loadLibrary();
+        session = JNIInterface.createSession();
+        inputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        outputBuffer = ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE);
+        cipherTextFile = File.createTempFile("crypto-benchmark", ".aes");
+        try (WritableByteChannel output = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            BenchmarkSupport.check(JNIInterface.encryptDirect(session, BenchmarkSupport.PASSWORD, BenchmarkSupport.KEY_ITERATIONS,
+                    Channels.newChannel(new BenchmarkSupport.RepeatingInputStream(size)), output, inputBuffer, outputBuffer,
+                    BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS), "encryption");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        JNIInterface.destroySession(session);
+        cipherTextFile.delete();
+    }
+
+    @Benchmark
+    public long encrypt() {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        BenchmarkSupport.check(JNIInterface.encryptDirect(session, BenchmarkSupport.PASSWORD, BenchmarkSupport.KEY_ITERATIONS,
+                Channels.newChannel(new BenchmarkSupport.RepeatingInputStream(size)), Channels.newChannel(output), inputBuffer, outputBuffer,
+                BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS), "encryption");
+        return output.getCount();
+    }
+
+    @Benchmark
+    public long decrypt() throws IOException {
+        BenchmarkSupport.CountingOutputStream output = new BenchmarkSupport.CountingOutputStream();
+        try (FileChannel input = FileChannel.open(cipherTextFile.toPath(), StandardOpenOption.READ)) {
+            BenchmarkSupport.check(JNIInterface.decryptDirect(session, BenchmarkSupport.PASSWORD, input, Channels.newChannel(output),
+                    inputBuffer, outputBuffer, BenchmarkSupport.NO_CALLBACKS, null, JNIInterface.NO_PROGRESS_CALLBACKS), "decryption");
+        }
+        BenchmarkSupport.check(output.getCount() == size, "decryption");
+        return output.getCount();
+    }
+}
@@ -0,0 +1,47 @@
+package com.dewdrop623.androidcrypt;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An implementation of the AES Crypt format that CryptoThread runs its jobs on, see CryptoEngines for how one is picked.
+ * Every method blocks until the operation is over and returns one of the STATUS_X codes.
+ * Progress is written into the job's SharedProgress and CryptoJob.cancel stops the operation. job may be null, e.g. for a benchmark.
+ * New files are written as version 3 streams, versions 1 to 3 can be decrypted.
+ * Engines that can work on file descriptors implement FileDescriptorCryptoEngine.
+ */
+
+public interface CryptoEngine {
+
+    /*
+    * Status codes, the same as the ones the native code passes to JNICallbackInterface.completedCallback.
+     */
+    int STATUS_ENCRYPTION_COMPLETED = 1;
+    int STATUS_ENCRYPTION_IO_ERROR = 2;
+    int STATUS_INVALID_EXTENSION = 3;
+    int STATUS_ENCRYPTION_INVALID_PASSWORD = 4;
+    int STATUS_ENCRYPTION_INVALID_ITERATIONS = 5;
+    int STATUS_ALREADY_ENCRYPTING = 6;
+    int STATUS_ENCRYPTION_CANCELLED = 7;
+    int STATUS_ENCRYPTION_INTERNAL_ERROR = 8;
+    int STATUS_DECRYPTION_COMPLETED = 101;
+    int STATUS_INVALID_STREAM = 102;
+    int STATUS_UNSUPPORTED_VERSION = 103;
+    int STATUS_DECRYPTION_IO_ERROR = 104;
+    int STATUS_DECRYPTION_INVALID_PASSWORD = 105;
+    int STATUS_DECRYPTION_INVALID_ITERATIONS = 106;
+    int STATUS_ALTERED_MESSAGE = 107;
+    int STATUS_ALREADY_DECRYPTING = 108;
+    int STATUS_DECRYPTION_CANCELLED = 109;
+    int STATUS_DECRYPTION_INTERNAL_ERROR = 110;
+
+    //stored by CryptoEngines and shown in the job summary
+    String getName();
+
+    int encrypt(CryptoJob job, String password, int keyIterations, InputStream input, OutputStream output);
+
+    int decrypt(CryptoJob job, String password, InputStream input, OutputStream output);
+
+    //Decrypt without keeping the output: checks the password and that the file wasn't altered or cut short.
+    int verify(CryptoJob job, String password, InputStream input);
+}
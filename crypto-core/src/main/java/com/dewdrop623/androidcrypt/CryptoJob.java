@@ -0,0 +1,205 @@
+package com.dewdrop623.androidcrypt;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * CryptoJob holds the state of one encryption or decryption operation: how far along it is, how to cancel it, and how it ended.
+ * A CryptoEngine reports into it. The app's jobs are DocumentCryptoJobs, which add the documents to read and write.
+ * Each CryptoThread owns one job, so several operations can be queued, tracked and cancelled independently.
+ */
+
+public class CryptoJob {
+
+    public static final boolean OPERATION_TYPE_ENCRYPTION = true;
+    public static final boolean OPERATION_TYPE_DECRYPTION = false;
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    private final long id;
+    private final boolean operationType;
+
+    //native session the operation runs in, 0 when no operation is running
+    private volatile long nativeSession = 0;
+    private volatile String displayName = null;
+    private volatile boolean started = false;
+    //System.nanoTime() when the job started running
+    private volatile long startNanos = 0;
+    private volatile boolean cancelled = false;
+    private volatile boolean finished = false;
+    private volatile boolean successful = false;
+
+    //size of the input document, 0 when unknown
+    private volatile long fileSize = 0;
+    //bytes processed, phase and throughput, written by the native code while the operation runs
+    private final SharedProgress sharedProgress = new SharedProgress();
+    private volatile long timeQueued;
+    private volatile long timeFinished = 0;
+    //filled in by the thread running the job, complete once the job is finished
+    private final JobMetrics metrics;
+
+    public CryptoJob(boolean operationType) {
+        this.id = nextId.getAndIncrement();
+        this.operationType = operationType;
+        this.timeQueued = System.currentTimeMillis();
+        this.metrics = new JobMetrics(operationType);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    //name of the input file for display, null until the job starts
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    public void setDisplayName(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public boolean getOperationType() {
+        return operationType;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public SharedProgress getSharedProgress() {
+        return sharedProgress;
+    }
+
+    public long getBytesProcessed() {
+        return sharedProgress.getBytesProcessed();
+    }
+
+    //for the operations done in java, the native code writes the SharedProgress directly
+    public void setBytesProcessed(long bytesProcessed) {
+        sharedProgress.setBytesProcessed(bytesProcessed);
+    }
+
+    public void addBytesProcessed(long bytes) {
+        setBytesProcessed(getBytesProcessed() + bytes);
+    }
+
+    public long getTimeQueued() {
+        return timeQueued;
+    }
+
+    public long getTimeFinished() {
+        return timeFinished;
+    }
+
+    public JobMetrics getMetrics() {
+        return metrics;
+    }
+
+    //false while the job is waiting in the queue
+    public boolean isStarted() {
+        return started;
+    }
+
+    public void markStarted() {
+        startNanos = System.nanoTime();
+        started = true;
+    }
+
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void finish(boolean successful) {
+        this.successful = successful;
+        this.timeFinished = System.currentTimeMillis();
+        this.finished = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /*
+    * Stop the job. If the native operation is running it is cancelled, if it hasn't started yet it won't.
+     */
+    public synchronized void cancel() {
+        cancelled = true;
+        if (nativeSession != 0) {
+            JNIInterface.cancel(nativeSession);
+        }
+    }
+
+    /*
+    * Called by NativeCryptoEngine around the native call. A job cancelled before its session was attached is cancelled in the session right away.
+     */
+    public synchronized void attachNativeSession(long nativeSession) {
+        this.nativeSession = nativeSession;
+        if (cancelled && nativeSession != 0) {
+            JNIInterface.cancel(nativeSession);
+        }
+    }
+
+    public synchronized void detachNativeSession() {
+        this.nativeSession = 0;
+    }
+
+    /*
+    * Copy what the native session has measured so far into metrics, for a job that is still running.
+    * Returns false if no native operation is running. The session is only destroyed after it is detached, so it can't go away while this reads it.
+     */
+    public synchronized boolean readLiveMetrics(JobMetrics metrics) {
+        if (nativeSession == 0) {
+            return false;
+        }
+        metrics.readNativeSession(nativeSession);
+        metrics.setTotalNanos(System.nanoTime() - startNanos);
+        return true;
+    }
+
+    //progress out of 100
+    public int getProgress() {
+        if (fileSize == 0) {
+            return finished ? 100 : 0;
+        }
+        return (int) Math.min(100, (getBytesProcessed() * 100) / fileSize);
+    }
+
+    //smoothed recent throughput, 0 until measured
+    public long getCurrentBytesPerSecond() {
+        return sharedProgress.getCurrentBytesPerSecond();
+    }
+
+    //throughput since the first chunk of data, 0 until measured
+    public long getAverageBytesPerSecond() {
+        return sharedProgress.getBytesPerSecond();
+    }
+
+    /**
+     * Calculate time until operation finishes from the file size, bytes processed, and the smoothed recent throughput,
+     * so the estimate follows a provider that slows down or speeds up instead of the average since the start.
+     * return int array [minutes, seconds], {-1, -1} if unknown
+     */
+    public int[] getTimeToCompletion() {
+        long bytesPerSecond = getCurrentBytesPerSecond();
+        if (bytesPerSecond <= 0) {
+            bytesPerSecond = getAverageBytesPerSecond();
+        }
+        if (fileSize == 0 || bytesPerSecond <= 0) {
+            return new int[]{-1, -1};
+        }
+        long bytesRemaining = Math.max(fileSize - getBytesProcessed(), 0);
+        int secondsToCompletion = (int) Math.ceil((double) bytesRemaining / bytesPerSecond);
+        return new int[]{secondsToCompletion / 60, secondsToCompletion % 60};
+    }
+}
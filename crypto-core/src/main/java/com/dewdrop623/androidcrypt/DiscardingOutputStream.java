@@ -0,0 +1,20 @@
+package com.dewdrop623.androidcrypt;
+
+import java.io.OutputStream;
+
+/**
+ * An OutputStream that drops what is written to it, for CryptoEngine.verify.
+ */
+
+class DiscardingOutputStream extends OutputStream {
+
+    @Override
+    public void write(int b) {
+        //discarded
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        //discarded
+    }
+}
@@ -0,0 +1,14 @@
+package com.dewdrop623.androidcrypt;
+
+/**
+ * A CryptoEngine that can also read and write file descriptors itself, so the caller doesn't have to open streams.
+ * Callers check for it with instanceof and fall back to the streams of CryptoEngine otherwise.
+ */
+
+public interface FileDescriptorCryptoEngine extends CryptoEngine {
+
+    //ioFlags are JNIInterface.IO_FLAG_X. The descriptors are not closed.
+    int encryptFd(CryptoJob job, String password, int keyIterations, int inputFd, int outputFd, int ioFlags);
+
+    int decryptFd(CryptoJob job, String password, int inputFd, int outputFd, int ioFlags);
+}
@@ -0,0 +1,163 @@
+package com.dewdrop623.androidcrypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+public class JNIInterface {
+    //Size of the direct buffers passed to encryptDirect and decryptDirect. Same as the buffer size in androidcrypt.cpp.
+    public static final int DIRECT_BUFFER_SIZE = 1049000;// 1 MiB
+
+    //Flags for the ioFlags argument of encryptFd and decryptFd. Same values as in fd_stream.h.
+    //Read a regular input file through a sliding mmap window instead of read() calls. Ignored if the input isn't a regular file.
+    //Only for files the app owns: if another app truncates the file while it is mapped, reading past the new end kills the process (SIGBUS).
+    public static final int IO_FLAG_MMAP_INPUT = 1;
+    //Read ahead and write behind on separate native threads so I/O overlaps with the crypto work.
+    public static final int IO_FLAG_PIPELINED = 2;
+    //decryptFd only. Decrypt version 3 files between regular files on several native threads, with the HMAC on its own thread.
+    //Anything else, including wrong passwords and altered files, falls back to the single threaded decryption.
+    public static final int IO_FLAG_PARALLEL_DECRYPT = 4;
+
+    //PBKDF2 iterations used by the encrypt functions when 0 is passed as keyIterations. Same as in androidcrypt.cpp.
+    //Decryption reads the iteration count from the file header.
+    public static final int DEFAULT_KEY_ITERATIONS = 300000;
+
+    /*
+     * Every operation runs in a native session, created with createSession and released with destroySession once the
+     * operation has returned. cancel(session) stops only the operation running in that session.
+     */
+    native public static long createSession();
+    native public static void destroySession(long session);
+    //Levels for setLogLevel. The engine messages of the level and the more severe ones are logged.
+    public static final int LOG_LEVEL_NONE = 0;
+    public static final int LOG_LEVEL_ERROR = 1;
+    public static final int LOG_LEVEL_WARNING = 2;
+    public static final int LOG_LEVEL_INFO = 3;
+    public static final int LOG_LEVEL_DEBUG = 4;
+
+    /*
+     * Level of the engine log, LOG_LEVEL_WARNING until set. Applies to the operations started after the call.
+     * The operations log to logcat (tag "AndroidCrypt") from native code when their logStream argument is null,
+     * a LogStream is only needed to capture the log in java, like the tests do.
+     */
+    native public static void setLogLevel(int level);
+
+    //sessions created and not yet destroyed, for CryptoService.dump
+    native public static int getSessionCount();
+    native public static void cancel(long session);
+
+    //Indices into the array returned by getStageTimes, in nanoseconds. Same order as PipelineStageTimes in pipelined_stream.h.
+    //Reader and writer thread time spent in read()/write() and time spent idle waiting on the engine.
+    public static final int STAGE_TIME_READ = 0;
+    public static final int STAGE_TIME_READER_IDLE = 1;
+    //The whole engine call, key derivation included, and the parts of it the engine spent waiting on the reader and writer.
+    public static final int STAGE_TIME_ENGINE = 2;
+    public static final int STAGE_TIME_ENGINE_INPUT_STALL = 3;
+    public static final int STAGE_TIME_ENGINE_OUTPUT_STALL = 4;
+    public static final int STAGE_TIME_WRITE = 5;
+    public static final int STAGE_TIME_WRITER_IDLE = 6;
+    public static final int STAGE_TIME_COUNT = 7;
+
+    /*
+     * Time spent in each stage by the last encryptFd/decryptFd in the session, see the STAGE_TIME_X indices.
+     * The reader and writer times are only filled in with IO_FLAG_PIPELINED and stay 0 for a memory mapped input.
+     */
+    native public static long[] getStageTimes(long session);
+
+    //Indices into the array returned by getMetrics. Same order as OperationMetrics in operation_metrics.h.
+    //From the start of the engine call to its first progress report (the header, the key derivation and the first chunk), in nanoseconds.
+    public static final int METRIC_KEY_DERIVATION_NANOS = 0;
+    //The final flush of the output after the engine returns, in nanoseconds.
+    public static final int METRIC_FLUSH_NANOS = 1;
+    //Checking the HMAC at the end of a parallel decryption, in nanoseconds. The engine checks it inside STAGE_TIME_ENGINE.
+    public static final int METRIC_HMAC_NANOS = 2;
+    public static final int METRIC_BYTES_PROCESSED = 3;
+    //Reads and writes of the file or the java stream.
+    public static final int METRIC_READ_CHUNKS = 4;
+    public static final int METRIC_WRITE_CHUNKS = 5;
+    //Calls from the native code into java: stream reads and writes, progress and completion callbacks.
+    public static final int METRIC_UPCALLS = 6;
+    //Stream and decryption buffers of the operation, all held at once.
+    public static final int METRIC_BUFFER_BYTES = 7;
+    public static final int METRIC_COUNT = 8;
+
+    /*
+     * Counters of the last operation in the session, every entry point fills them in. See the METRIC_X indices.
+     */
+    native public static long[] getMetrics(long session);
+
+    /*
+     * Shared progress for the operations run in the session from now on. buffer is the direct buffer of a SharedProgress,
+     * the native code writes the bytes processed, phase and throughput into it as it goes. null stops the writes.
+     * The buffer must stay reachable until the session is destroyed or another buffer is set.
+     */
+    native public static void setProgressBuffer(long session, ByteBuffer buffer);
+
+    //progressIntervalMillis that turns the progress callbacks off, for callers that read a SharedProgress instead
+    public static final long NO_PROGRESS_CALLBACKS = 0;
+
+    /*
+     * progressCallback.progressCallback is called with the bytes processed so far at most once every progressIntervalMillis,
+     * and once more with the final total before completedCallback if the operation succeeded. The native code counts
+     * progress on every chunk, so the number of upcalls only depends on how long the operation takes.
+     * NO_PROGRESS_CALLBACKS turns the progress callbacks off, completedCallback is always called.
+     */
+    native public static boolean encrypt(long session, String password, int keyIterations, InputStream inputSteam, OutputStream outputStream, JNICallbackInterface progressCallback, OutputStream logStream, long progressIntervalMillis);
+    native public static boolean decrypt(long session, String password, InputStream inputSteam, OutputStream outputStream, JNICallbackInterface progressCallback, OutputStream logStream, long progressIntervalMillis);
+
+    /*
+     * Streaming mode. inputBuffer and outputBuffer must be direct ByteBuffers (ByteBuffer.allocateDirect), they are used
+     * as the native stream buffers so no data is copied between the java and native heaps and nothing is allocated per chunk.
+     * The buffers can be reused for the next operation once the call returns.
+     * The channels must be blocking (FileChannel, Channels.newChannel), a channel that reads or writes nothing fails the operation.
+     */
+    native public static boolean encryptDirect(long session, String password, int keyIterations, ReadableByteChannel inputChannel, WritableByteChannel outputChannel, ByteBuffer inputBuffer, ByteBuffer outputBuffer, JNICallbackInterface progressCallback, OutputStream logStream, long progressIntervalMillis);
+    native public static boolean decryptDirect(long session, String password, ReadableByteChannel inputChannel, WritableByteChannel outputChannel, ByteBuffer inputBuffer, ByteBuffer outputBuffer, JNICallbackInterface progressCallback, OutputStream logStream, long progressIntervalMillis);
+
+    /*
+     * File descriptor mode. Native code read()s and write()s the descriptors itself with no calls back into java per chunk.
+     * Works with regular files and pipes. The caller keeps ownership of the descriptors and closes them.
+     * ioFlags is a combination of the IO_FLAG_X constants, or 0.
+     */
+    native public static boolean encryptFd(long session, String password, int keyIterations, int inputFd, int outputFd, int ioFlags, JNICallbackInterface progressCallback, OutputStream logStream, long progressIntervalMillis);
+    native public static boolean decryptFd(long session, String password, int inputFd, int outputFd, int ioFlags, JNICallbackInterface progressCallback, OutputStream logStream, long progressIntervalMillis);
+
+    /*
+     * Null cipher for benchmarks: copy the input to the output through the same native streams as encrypt/decrypt and
+     * encryptDirect/decryptDirect, without any crypto. Returns the bytes copied, or -1 on an I/O error.
+     */
+    native public static long copy(long session, InputStream inputStream, OutputStream outputStream);
+    native public static long copyDirect(long session, ReadableByteChannel inputChannel, WritableByteChannel outputChannel, ByteBuffer inputBuffer, ByteBuffer outputBuffer);
+
+    /*
+     * Called from native code to refill the input buffer of encryptDirect/decryptDirect.
+     * Returns the number of bytes now at the start of the buffer, or -1 at the end of the input.
+     * A blocking channel always reads something into an empty buffer, 0 means a non-blocking channel, which would spin.
+     */
+    private static int fillDirectBuffer(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int bytesRead = channel.read(buffer);
+        if (bytesRead == 0) {
+            throw new IOException("channel read nothing, encryptDirect/decryptDirect need blocking channels");
+        }
+        return bytesRead;
+    }
+
+    /*
+     * Called from native code to write out the first length bytes of the output buffer of encryptDirect/decryptDirect.
+     * Like fillDirectBuffer, a write of 0 bytes fails instead of being retried forever.
+     */
+    private static boolean drainDirectBuffer(WritableByteChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear();
+        buffer.limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                throw new IOException("channel wrote nothing, encryptDirect/decryptDirect need blocking channels");
+            }
+        }
+        return true;
+    }
+}
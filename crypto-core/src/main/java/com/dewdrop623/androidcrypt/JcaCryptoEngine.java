@@ -0,0 +1,104 @@
+package com.dewdrop623.androidcrypt;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import es.vocali.util.AESCrypt;
+
+/**
+ * The CryptoEngine backed by AESCrypt, which does its crypto with the platform's providers (Cipher, Mac, SecretKeyFactory).
+ * On devices where Conscrypt uses the CPU's AES instructions it can be faster than the native code.
+ * Version 3 needs PBKDF2WithHmacSHA512, only there from Android 8.0 on, older devices get STATUS_X_INTERNAL_ERROR for it.
+ * Works on streams only.
+ */
+
+public class JcaCryptoEngine implements CryptoEngine {
+
+    public static final String NAME = "jca";
+
+    //the version new files are written as, the same as the native engine
+    private static final int ENCRYPTION_VERSION = 3;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int encrypt(CryptoJob job, String password, int keyIterations, InputStream input, OutputStream output) {
+        if (job != null && job.isCancelled()) {
+            return STATUS_ENCRYPTION_CANCELLED;
+        }
+        try {
+            AESCrypt aesCrypt = new AESCrypt(password);
+            aesCrypt.setJob(job);
+            aesCrypt.setKeyIterations(keyIterations > 0 ? keyIterations : AESCrypt.DEFAULT_KEY_ITERATIONS);
+            aesCrypt.encrypt(ENCRYPTION_VERSION, input, output);
+            output.flush();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return STATUS_ENCRYPTION_IO_ERROR;
+        } catch (GeneralSecurityException gse) {
+            gse.printStackTrace();
+            return STATUS_ENCRYPTION_INTERNAL_ERROR;
+        } finally {
+            recordBytesProcessed(job);
+        }
+        return job != null && job.isCancelled() ? STATUS_ENCRYPTION_CANCELLED : STATUS_ENCRYPTION_COMPLETED;
+    }
+
+    @Override
+    public int decrypt(CryptoJob job, String password, InputStream input, OutputStream output) {
+        if (job != null && job.isCancelled()) {
+            return STATUS_DECRYPTION_CANCELLED;
+        }
+        try {
+            AESCrypt aesCrypt = new AESCrypt(password);
+            aesCrypt.setJob(job);
+            aesCrypt.decrypt(input, output);
+            output.flush();
+        } catch (AESCrypt.StreamException se) {
+            return getStatus(se);
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+            return STATUS_DECRYPTION_IO_ERROR;
+        } catch (GeneralSecurityException gse) {
+            gse.printStackTrace();
+            return STATUS_DECRYPTION_INTERNAL_ERROR;
+        } finally {
+            recordBytesProcessed(job);
+        }
+        return job != null && job.isCancelled() ? STATUS_DECRYPTION_CANCELLED : STATUS_DECRYPTION_COMPLETED;
+    }
+
+    @Override
+    public int verify(CryptoJob job, String password, InputStream input) {
+        return decrypt(job, password, input, new DiscardingOutputStream());
+    }
+
+    //the decryption status for what is wrong with the stream
+    private static int getStatus(AESCrypt.StreamException se) {
+        switch (se.getReason()) {
+            case AESCrypt.StreamException.UNSUPPORTED_VERSION:
+                return STATUS_UNSUPPORTED_VERSION;
+            case AESCrypt.StreamException.INVALID_ITERATIONS:
+                return STATUS_DECRYPTION_INVALID_ITERATIONS;
+            case AESCrypt.StreamException.INVALID_PASSWORD:
+                return STATUS_DECRYPTION_INVALID_PASSWORD;
+            case AESCrypt.StreamException.ALTERED_MESSAGE:
+                return STATUS_ALTERED_MESSAGE;
+            default:
+                return STATUS_INVALID_STREAM;
+        }
+    }
+
+    //there is no native session to read the metrics from
+    private static void recordBytesProcessed(CryptoJob job) {
+        if (job != null) {
+            job.getMetrics().setEngine(NAME);
+            job.getMetrics().setBytesProcessed(job.getBytesProcessed());
+        }
+    }
+}
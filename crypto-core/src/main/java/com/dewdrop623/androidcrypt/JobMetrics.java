@@ -0,0 +1,116 @@
+package com.dewdrop623.androidcrypt;
+
+import java.util.Locale;
+
+/**
+ * Where the time of one job went, to compare devices and document providers.
+ * CryptoThread measures the parts done in java (opening and closing the documents, the whole job) and NativeCryptoEngine copies in what the
+ * native code measured (JNIInterface.getStageTimes and getMetrics). Written by the thread running the job, read once it is finished.
+ * The same phases are trace sections, so a Perfetto or systrace capture of the app shows them on a timeline.
+ */
+public class JobMetrics {
+
+    //how the operation ran
+    public static final String PATH_FILE_DESCRIPTORS = "fd";
+    public static final String PATH_STREAMS = "streams";
+    public static final String PATH_SPECULATIVE = "speculative";
+
+    private final boolean operationType;
+    private String path = PATH_STREAMS;
+    //CryptoEngine.getName() of the engine the job ran on
+    private String engine = NativeCryptoEngine.NAME;
+    private long totalNanos = 0;
+    private long openNanos = 0;
+    private long closeNanos = 0;
+    private long[] stageTimes = new long[JNIInterface.STAGE_TIME_COUNT];
+    private long[] nativeMetrics = new long[JNIInterface.METRIC_COUNT];
+
+    public JobMetrics(boolean operationType) {
+        this.operationType = operationType;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    public void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    //from the job starting to run to it finishing, waiting in the queue not included
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public void setTotalNanos(long totalNanos) {
+        this.totalNanos = totalNanos;
+    }
+
+    public long getOpenNanos() {
+        return openNanos;
+    }
+
+    public void addOpenNanos(long nanos) {
+        openNanos += nanos;
+    }
+
+    public long getCloseNanos() {
+        return closeNanos;
+    }
+
+    public void addCloseNanos(long nanos) {
+        closeNanos += nanos;
+    }
+
+    //indexed by JNIInterface.STAGE_TIME_X, nanoseconds
+    public long getStageTime(int index) {
+        return stageTimes[index];
+    }
+
+    //indexed by JNIInterface.METRIC_X
+    public long getNativeMetric(int index) {
+        return nativeMetrics[index];
+    }
+
+    //copy in what the native session measured during the job's operation
+    public void readNativeSession(long nativeSession) {
+        stageTimes = JNIInterface.getStageTimes(nativeSession);
+        nativeMetrics = JNIInterface.getMetrics(nativeSession);
+    }
+
+    //for engines that don't run in a native session, which measures it otherwise
+    public void setBytesProcessed(long bytes) {
+        nativeMetrics[JNIInterface.METRIC_BYTES_PROCESSED] = bytes;
+    }
+
+    /*
+    * The one line logged per job, e.g.
+    * "decrypt native fd: 104857600 bytes in 1250 ms (83.9 MB/s); open 3, key derivation 310, engine 880 (stalled on input 12, on output 4), ..."
+    * Times are in milliseconds.
+     */
+    public String toSummaryLine() {
+        long bytes = nativeMetrics[JNIInterface.METRIC_BYTES_PROCESSED];
+        double seconds = totalNanos / 1e9;
+        return String.format(Locale.US, "%s %s %s: %d bytes in %d ms (%.1f MB/s); open %d, key derivation %d, engine %d (stalled on input %d, on output %d), "
+                        + "read %d (reader idle %d) in %d chunks, write %d (writer idle %d) in %d chunks, flush %d, HMAC %d, close %d; %d upcalls, %d KiB buffers",
+                operationType == CryptoJob.OPERATION_TYPE_ENCRYPTION ? "encrypt" : "decrypt", engine, path, bytes, millis(totalNanos), seconds > 0 ? bytes / 1e6 / seconds : 0.0,
+                millis(openNanos), millis(nativeMetrics[JNIInterface.METRIC_KEY_DERIVATION_NANOS]), millis(stageTimes[JNIInterface.STAGE_TIME_ENGINE]),
+                millis(stageTimes[JNIInterface.STAGE_TIME_ENGINE_INPUT_STALL]), millis(stageTimes[JNIInterface.STAGE_TIME_ENGINE_OUTPUT_STALL]),
+                millis(stageTimes[JNIInterface.STAGE_TIME_READ]), millis(stageTimes[JNIInterface.STAGE_TIME_READER_IDLE]), nativeMetrics[JNIInterface.METRIC_READ_CHUNKS],
+                millis(stageTimes[JNIInterface.STAGE_TIME_WRITE]), millis(stageTimes[JNIInterface.STAGE_TIME_WRITER_IDLE]), nativeMetrics[JNIInterface.METRIC_WRITE_CHUNKS],
+                millis(nativeMetrics[JNIInterface.METRIC_FLUSH_NANOS]), millis(nativeMetrics[JNIInterface.METRIC_HMAC_NANOS]), millis(closeNanos),
+                nativeMetrics[JNIInterface.METRIC_UPCALLS], nativeMetrics[JNIInterface.METRIC_BUFFER_BYTES] / 1024);
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000;
+    }
+}
@@ -0,0 +1,137 @@
+package com.dewdrop623.androidcrypt;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The CryptoEngine backed by the native library through JNIInterface.
+ * Each operation runs in its own native session so it can be cancelled without touching any other running job,
+ * and what the session measured is copied into the job's metrics when it is over.
+ */
+
+public class NativeCryptoEngine implements FileDescriptorCryptoEngine {
+
+    public static final String NAME = "native";
+
+    private interface NativeOperation {
+        boolean run(long nativeSession, JNICallbackInterface jniCallbackInterface);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public int encrypt(CryptoJob job, final String password, final int keyIterations, InputStream input, OutputStream output) {
+        final ReadableByteChannel inputChannel = getChannel(input);
+        final WritableByteChannel outputChannel = getChannel(output);
+        return run(job, new NativeOperation() {
+            @Override
+            public boolean run(long nativeSession, JNICallbackInterface jniCallbackInterface) {
+                //native code reads and writes straight into these, see JNIInterface.encryptDirect
+                return JNIInterface.encryptDirect(nativeSession, password, keyIterations, inputChannel, outputChannel,
+                        ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE), ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE),
+                        jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+            }
+        });
+    }
+
+    @Override
+    public int decrypt(CryptoJob job, final String password, InputStream input, OutputStream output) {
+        final ReadableByteChannel inputChannel = getChannel(input);
+        final WritableByteChannel outputChannel = getChannel(output);
+        return run(job, new NativeOperation() {
+            @Override
+            public boolean run(long nativeSession, JNICallbackInterface jniCallbackInterface) {
+                return JNIInterface.decryptDirect(nativeSession, password, inputChannel, outputChannel,
+                        ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE), ByteBuffer.allocateDirect(JNIInterface.DIRECT_BUFFER_SIZE),
+                        jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+            }
+        });
+    }
+
+    @Override
+    public int encryptFd(CryptoJob job, final String password, final int keyIterations, final int inputFd, final int outputFd, final int ioFlags) {
+        return run(job, new NativeOperation() {
+            @Override
+            public boolean run(long nativeSession, JNICallbackInterface jniCallbackInterface) {
+                return JNIInterface.encryptFd(nativeSession, password, keyIterations, inputFd, outputFd, ioFlags, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+            }
+        });
+    }
+
+    @Override
+    public int decryptFd(CryptoJob job, final String password, final int inputFd, final int outputFd, final int ioFlags) {
+        return run(job, new NativeOperation() {
+            @Override
+            public boolean run(long nativeSession, JNICallbackInterface jniCallbackInterface) {
+                return JNIInterface.decryptFd(nativeSession, password, inputFd, outputFd, ioFlags, jniCallbackInterface, null, JNIInterface.NO_PROGRESS_CALLBACKS);
+            }
+        });
+    }
+
+    @Override
+    public int verify(CryptoJob job, String password, InputStream input) {
+        return decrypt(job, password, input, new DiscardingOutputStream());
+    }
+
+    /*
+    * Run operation in a new native session attached to job, and return the status it completed with.
+     */
+    private static int run(CryptoJob job, NativeOperation operation) {
+        final int[] status = {0};
+        JNICallbackInterface jniCallbackInterface = new JNICallbackInterface() {
+            @Override
+            public void progressCallback(long totalBytes) {
+                //not called, the native code writes the progress into the job's SharedProgress
+            }
+
+            @Override
+            public void completedCallback(int completedStatus) {
+                status[0] = completedStatus;
+            }
+        };
+        long nativeSession = JNIInterface.createSession();
+        if (job != null) {
+            //progress is written straight into the job, the ProgressDisplayers sample it when they redraw
+            JNIInterface.setProgressBuffer(nativeSession, job.getSharedProgress().getBuffer());
+            job.attachNativeSession(nativeSession);
+        }
+        try {
+            operation.run(nativeSession, jniCallbackInterface);
+        } finally {
+            if (job != null) {
+                job.getMetrics().setEngine(NAME);
+                job.getMetrics().readNativeSession(nativeSession);
+                job.detachNativeSession();
+            }
+            JNIInterface.destroySession(nativeSession);
+        }
+        return status[0];
+    }
+
+    /*
+    * File backed streams (the usual case for ContentResolver) have a FileChannel that reads and writes direct buffers without an intermediate copy.
+    * Any other stream is wrapped.
+     */
+    private static ReadableByteChannel getChannel(InputStream inputStream) {
+        if (inputStream instanceof FileInputStream) {
+            return ((FileInputStream) inputStream).getChannel();
+        }
+        return Channels.newChannel(inputStream);
+    }
+
+    private static WritableByteChannel getChannel(OutputStream outputStream) {
+        if (outputStream instanceof FileOutputStream) {
+            return ((FileOutputStream) outputStream).getChannel();
+        }
+        return Channels.newChannel(outputStream);
+    }
+}
@@ -0,0 +1,90 @@
+package com.dewdrop623.androidcrypt;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Progress of one operation in a small direct ByteBuffer shared with the native code (JNIInterface.setProgressBuffer).
+ * The crypto thread stores the byte count, the phase and the throughput with relaxed atomic writes as it goes, without calling into java,
+ * and the UI and the notification read them whenever they redraw, so the operation never waits on either of them.
+ * Java code paths (the v1/v2 AESCrypt fallback, a speculative result) set the byte count themselves, and the throughput is
+ * measured here the same way progress_publisher.h measures it.
+ * 64 bit slots in native byte order, same layout as progress_publisher.h. Only 64 bit ABIs are built, so a slot is never read torn.
+ */
+public class SharedProgress {
+
+    public static final int PHASE_NOT_STARTED = 0;
+    //from the start of the operation to the first chunk of data, mostly the key derivation
+    public static final int PHASE_KEY_DERIVATION = 1;
+    public static final int PHASE_PROCESSING = 2;
+    public static final int PHASE_FINISHED = 3;
+
+    //byte offsets of the slots
+    private static final int BYTES_PROCESSED_OFFSET = 0;
+    private static final int PHASE_OFFSET = 8;
+    private static final int BYTES_PER_SECOND_OFFSET = 16;
+    private static final int CURRENT_BYTES_PER_SECOND_OFFSET = 24;
+    public static final int BUFFER_SIZE = 32;
+
+    //the current rate is sampled at most this often, and a sample's weight decays with this time constant
+    private static final long THROUGHPUT_SAMPLE_NANOS = 250000000L;
+    private static final double THROUGHPUT_TIME_CONSTANT_NANOS = 3e9;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.nativeOrder());
+
+    //throughput measurement for setBytesProcessed, only touched by the thread doing the operation
+    private long processingStartNanos = 0;
+    private long processingStartBytes = 0;
+    private long sampleNanos = 0;
+    private long sampleBytes = 0;
+    //-1 until the first sample
+    private double currentRate = -1;
+
+    //the buffer to pass to JNIInterface.setProgressBuffer
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public long getBytesProcessed() {
+        return buffer.getLong(BYTES_PROCESSED_OFFSET);
+    }
+
+    //for operations done in java, the native code writes the slots itself
+    public void setBytesProcessed(long bytesProcessed) {
+        long now = System.nanoTime();
+        if (processingStartNanos == 0) {
+            //the bytes of the first update were processed during the key derivation, the rates are measured from here
+            processingStartNanos = now;
+            processingStartBytes = bytesProcessed;
+            sampleNanos = now;
+            sampleBytes = bytesProcessed;
+            buffer.putLong(PHASE_OFFSET, PHASE_PROCESSING);
+        }
+        buffer.putLong(BYTES_PROCESSED_OFFSET, bytesProcessed);
+        long sampleLength = now - sampleNanos;
+        if (sampleLength >= THROUGHPUT_SAMPLE_NANOS) {
+            double rate = (bytesProcessed - sampleBytes) * 1e9 / sampleLength;
+            //the weight depends on the sample length, so uneven samples still decay at the same speed
+            double weight = 1 - Math.exp(-sampleLength / THROUGHPUT_TIME_CONSTANT_NANOS);
+            currentRate = currentRate < 0 ? rate : currentRate + weight * (rate - currentRate);
+            sampleNanos = now;
+            sampleBytes = bytesProcessed;
+            buffer.putLong(BYTES_PER_SECOND_OFFSET, (long) ((bytesProcessed - processingStartBytes) * 1e9 / (now - processingStartNanos)));
+            buffer.putLong(CURRENT_BYTES_PER_SECOND_OFFSET, (long) currentRate);
+        }
+    }
+
+    public int getPhase() {
+        return (int) buffer.getLong(PHASE_OFFSET);
+    }
+
+    //average since the first chunk of data, 0 until measured
+    public long getBytesPerSecond() {
+        return buffer.getLong(BYTES_PER_SECOND_OFFSET);
+    }
+
+    //exponentially weighted moving average of the recent rate, follows a slowing or speeding provider, 0 until measured
+    public long getCurrentBytesPerSecond() {
+        return buffer.getLong(CURRENT_BYTES_PER_SECOND_OFFSET);
+    }
+}
@@ -15,28 +15,27 @@
  */
 package es.vocali.util;
 
-import com.dewdrop623.androidcrypt.CryptoThread;
+import com.dewdrop623.androidcrypt.CryptoJob;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.NetworkInterface;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.Arrays;
-import java.util.Enumeration;
 
 import javax.crypto.Cipher;
 import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -45,6 +44,9 @@ import javax.crypto.spec.SecretKeySpec;
  * <a href="http://www.aescrypt.com/aes_file_format.html">aescrypt file format</a>,
  * version 1 or 2.
  * <p>
+ * dewdrop623: and version 3, the format the native engine writes: a PBKDF2-HMAC-SHA512 key with the iteration count in the header,
+ * and PKCS#7 padding instead of the last block size. JcaCryptoEngine runs the app's jobs through this class.
+ * <p>
  * Requires Java 6 and <a href="http://java.sun.com/javase/downloads/index.jsp">Java
  * Cryptography Extension (JCE) Unlimited Strength Jurisdiction Policy Files</a>.
  * <p>
@@ -58,19 +60,53 @@ public class AESCrypt {
 	private static final String JCE_EXCEPTION_MESSAGE = "Please make sure "
 			+ "\"Java Cryptography Extension (JCE) Unlimited Strength Jurisdiction Policy Files\" "
 			+ "(http://java.sun.com/javase/downloads/index.jsp) is installed on your JRE.";
-	private static final String RANDOM_ALG = "SHA1PRNG";
 	private static final String DIGEST_ALG = "SHA-256";
+	//dewdrop623: key derivation of version 3. Available from Android 8.0 (API 26).
+	private static final String KDF_ALG = "PBKDF2WithHmacSHA512";
 	private static final String HMAC_ALG = "HmacSHA256";
 	private static final String CRYPT_ALG = "AES";
 	private static final String CRYPT_TRANS = "AES/CBC/NoPadding";
-	private static final byte[] DEFAULT_MAC =
-			{0x01, 0x23, 0x45, 0x67, (byte) 0x89, (byte) 0xab, (byte) 0xcd, (byte) 0xef};
 	private static final int KEY_SIZE = 32;
 	private static final int BLOCK_SIZE = 16;
 	private static final int SHA_SIZE = 32;
+	//dewdrop623: file contents are read, encrypted or decrypted, authenticated and written this many bytes at a time. A multiple of BLOCK_SIZE.
+	private static final int CHUNK_SIZE = 64 * 1024;
+	//dewdrop623: the end of a version 1 or 2 stream, the last block size mod 16 and the HMAC. Version 3 streams end with the HMAC only.
+	private static final int TRAILER_SIZE = 1 + SHA_SIZE;
+	//dewdrop623: PBKDF2 iterations of version 3 until setKeyIterations is called, same as JNIInterface.DEFAULT_KEY_ITERATIONS.
+	public static final int DEFAULT_KEY_ITERATIONS = 300000;
+	//dewdrop623: the most a version 3 stream may ask for, same limit as the native parallel decryption
+	private static final int MAX_KEY_ITERATIONS = 10000000;
+
+	/**
+	 * dewdrop623: The input is not an aescrypt stream this object can decrypt with its password. <tt>getReason()</tt> says why.
+	 */
+	public static class StreamException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public static final int INVALID_STREAM = 1;
+		public static final int UNSUPPORTED_VERSION = 2;
+		public static final int INVALID_ITERATIONS = 3;
+		public static final int INVALID_PASSWORD = 4;
+		public static final int ALTERED_MESSAGE = 5;
+
+		private final int reason;
+
+		public StreamException(int reason, String message) {
+			super(message);
+			this.reason = reason;
+		}
+
+		public int getReason() {
+			return reason;
+		}
+	}
 
 	private final boolean DEBUG;
 	private byte[] password;
+	//dewdrop623: the password again for version 3, which derives the key from its UTF-8 encoding
+	private char[] passwordChars;
+	private int keyIterations = DEFAULT_KEY_ITERATIONS;
 	private final Cipher cipher;
 	private final Mac hmac;
 	private final SecureRandom random;
@@ -79,6 +115,11 @@ public class AESCrypt {
 	private SecretKeySpec aesKey1;
 	private IvParameterSpec ivSpec2;
 	private SecretKeySpec aesKey2;
+	//dewdrop623: job to report progress to and check for cancellation, may be null
+	private CryptoJob job;
+	//dewdrop623: the chunk being processed and room for the trailer after it, allocated on first use and kept for later operations.
+	//Encrypted and decrypted in place.
+	private byte[] chunk;
 
 	/*******************
 	 * PRIVATE METHODS *
@@ -124,53 +165,15 @@ public class AESCrypt {
 
 
 	/**
-	 * SHA256 digest over given byte array and random bytes.<br>
-	 * <tt>bytes.length</tt> * <tt>num</tt> random bytes are added to the digest.
-	 * <p>
-	 * The generated hash is saved back to the original byte array.<br>
-	 * Maximum array size is {@link #SHA_SIZE} bytes.
-	 */
-	protected void digestRandomBytes(byte[] bytes, int num) {
-		assert bytes.length <= SHA_SIZE;
-
-		digest.reset();
-		digest.update(bytes);
-		for (int i = 0; i < num; i++) {
-			random.nextBytes(bytes);
-			digest.update(bytes);
-		}
-		System.arraycopy(digest.digest(), 0, bytes, 0, bytes.length);
-	}
-
-
-	/**
-	 * Generates a pseudo-random IV based on time and this computer's MAC.
+	 * Generates a random IV.
 	 * <p>
 	 * This IV is used to crypt IV 2 and AES key 2 in the file.
+	 * dewdrop623: taken straight from SecureRandom. It used to be the time and a MAC address of the device,
+	 * digested with 256 rounds of extra random bytes, which added nothing to the SecureRandom output.
 	 * @return IV.
 	 */
 	protected byte[] generateIv1() {
-		byte[] iv = new byte[BLOCK_SIZE];
-		long time = System.currentTimeMillis();
-		byte[] mac = null;
-		try {
-			Enumeration<NetworkInterface> ifaces = NetworkInterface.getNetworkInterfaces();
-			while (mac == null && ifaces.hasMoreElements()) {
-				mac = ifaces.nextElement().getHardwareAddress();
-			}
-		} catch (Exception e) {
-			// Ignore.
-		}
-		if (mac == null) {
-			mac = DEFAULT_MAC;
-		}
-
-		for (int i = 0; i < 8; i++) {
-			iv[i] = (byte) (time >> (i * 8));
-		}
-		System.arraycopy(mac, 0, iv, 8, mac.length);
-		digestRandomBytes(iv, 256);
-		return iv;
+		return generateRandomBytes(BLOCK_SIZE);
 	}
 
 
@@ -193,14 +196,29 @@ public class AESCrypt {
 	}
 
 
+	/**
+	 * dewdrop623: Generates the AES key of version 3 from an IV and the user password, with <tt>iterations</tt> rounds of PBKDF2-HMAC-SHA512.
+	 * <p>
+	 * This AES key is used to crypt IV 2 and AES key 2.
+	 * @return AES key of {@link #KEY_SIZE} bytes.
+	 * @throws GeneralSecurityException if the platform does not have PBKDF2-HMAC-SHA512.
+	 */
+	protected byte[] generateAESKey3(byte[] iv, int iterations) throws GeneralSecurityException {
+		PBEKeySpec keySpec = new PBEKeySpec(passwordChars, iv, iterations, KEY_SIZE * 8);
+		try {
+			return SecretKeyFactory.getInstance(KDF_ALG).generateSecret(keySpec).getEncoded();
+		} finally {
+			keySpec.clearPassword();
+		}
+	}
+
+
 	/**
 	 * Generates the random IV used to crypt file contents.
 	 * @return IV 2.
 	 */
 	protected byte[] generateIV2() {
-		byte[] iv = generateRandomBytes(BLOCK_SIZE);
-		digestRandomBytes(iv, 256);
-		return iv;
+		return generateRandomBytes(BLOCK_SIZE);
 	}
 
 
@@ -209,20 +227,46 @@ public class AESCrypt {
 	 * @return AES key of {@link #KEY_SIZE} bytes.
 	 */
 	protected byte[] generateAESKey2() {
-		byte[] aesKey = generateRandomBytes(KEY_SIZE);
-		digestRandomBytes(aesKey, 32);
-		return aesKey;
+		return generateRandomBytes(KEY_SIZE);
 	}
 
 
 	/**
 	 * Utility method to read bytes from a stream until the given array is fully filled.
-	 * @throws IOException if the array can't be filled.
+	 * @throws IOException if the array can't be filled, a {@link StreamException} if the stream ended first.
 	 */
 	protected void readBytes(InputStream in, byte[] bytes) throws IOException {
-		if (in.read(bytes) != bytes.length) {
-			throw new IOException("Unexpected end of file");
+		if (readFully(in, bytes, 0, bytes.length) != bytes.length) {
+			throw new StreamException(StreamException.INVALID_STREAM, "Unexpected end of file");
+		}
+	}
+
+
+	/**
+	 * dewdrop623: Reads until <tt>len</tt> bytes are read or the stream ends, a single read may return less.
+	 * @return the number of bytes read, less than <tt>len</tt> only at the end of the stream.
+	 */
+	protected int readFully(InputStream in, byte[] bytes, int off, int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			int read = in.read(bytes, off + total, len - total);
+			if (read < 0) {
+				break;
+			}
+			total += read;
 		}
+		return total;
+	}
+
+
+	/**
+	 * dewdrop623: The buffer for file contents, allocated once per object.
+	 */
+	protected byte[] getChunk() {
+		if (chunk == null) {
+			chunk = new byte[CHUNK_SIZE + TRAILER_SIZE];
+		}
+		return chunk;
 	}
 
 
@@ -250,7 +294,7 @@ public class AESCrypt {
 		try {
 			DEBUG = debug;
 			setPassword(password);
-			random = SecureRandom.getInstance(RANDOM_ALG);
+			random = new SecureRandom();
 			digest = MessageDigest.getInstance(DIGEST_ALG);
 			cipher = Cipher.getInstance(CRYPT_TRANS);
 			hmac = Mac.getInstance(HMAC_ALG);
@@ -266,14 +310,31 @@ public class AESCrypt {
 	 */
 	public void setPassword(String password) throws UnsupportedEncodingException {
 		this.password = password.getBytes(StandardCharsets.UTF_16LE);
+		this.passwordChars = password.toCharArray();
 		debug("Using password: ", this.password);
 	}
 
 
+	/**
+	 * dewdrop623: Sets the PBKDF2 iterations version 3 encryption writes. Decryption reads them from the stream.
+	 */
+	public void setKeyIterations(int keyIterations) {
+		this.keyIterations = keyIterations;
+	}
+
+
+	/**
+	 * dewdrop623: Sets the job that receives progress updates and can cancel the operation. May be null.
+	 */
+	public void setJob(CryptoJob job) {
+		this.job = job;
+	}
+
+
 	/**
 	 * The file at <tt>fromPath</tt> is encrypted and saved at <tt>toPath</tt> location.
 	 * <p>
-	 * <tt>version</tt> can be either 1 or 2.
+	 * <tt>version</tt> can be 1, 2 or 3.
 	 * @throws IOException when there are I/O errors.
 	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
 	 */
@@ -301,7 +362,7 @@ public class AESCrypt {
 	/**
 	 * The input stream is encrypted and saved to the output stream.
 	 * <p>
-	 * <tt>version</tt> can be either 1 or 2.<br>
+	 * <tt>version</tt> can be 1, 2 or 3.<br>
 	 * None of the streams are closed.
 	 * @throws IOException when there are I/O errors.
 	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
@@ -312,7 +373,11 @@ public class AESCrypt {
 			byte[] text = null;
 
 			ivSpec1 = new IvParameterSpec(generateIv1());
-			aesKey1 = new SecretKeySpec(generateAESKey1(ivSpec1.getIV(), password), CRYPT_ALG);
+			if (version == 3) {
+				aesKey1 = new SecretKeySpec(generateAESKey3(ivSpec1.getIV(), keyIterations), CRYPT_ALG);
+			} else {
+				aesKey1 = new SecretKeySpec(generateAESKey1(ivSpec1.getIV(), password), CRYPT_ALG);
+			}
 			ivSpec2 = new IvParameterSpec(generateIV2());
 			aesKey2 = new SecretKeySpec(generateAESKey2(), CRYPT_ALG);
 			debug("IV1: ", ivSpec1.getIV());
@@ -323,10 +388,16 @@ public class AESCrypt {
 			out.write("AES".getBytes(StandardCharsets.UTF_8));	// Heading.
 			out.write(version);	// Version.
 			out.write(0);	// Reserved.
-			if (version == 2) {	// No extensions.
+			if (version >= 2) {	// No extensions.
 				out.write(0);
 				out.write(0);
 			}
+			if (version == 3) {	// KDF iterations.
+				out.write(keyIterations >>> 24);
+				out.write(keyIterations >>> 16);
+				out.write(keyIterations >>> 8);
+				out.write(keyIterations);
+			}
 			out.write(ivSpec1.getIV());	// Initialization Vector.
 
 			text = new byte[BLOCK_SIZE + KEY_SIZE];
@@ -337,30 +408,56 @@ public class AESCrypt {
 			debug("IV2 + AES2 ciphertext: ", text);
 
 			hmac.init(new SecretKeySpec(aesKey1.getEncoded(), HMAC_ALG));
-			text = hmac.doFinal(text);
+			hmac.update(text);
+			if (version == 3) {	// Version 3 authenticates the version too.
+				hmac.update((byte) version);
+			}
+			text = hmac.doFinal();
 			out.write(text);	// HMAC from previous cyphertext.
 			debug("HMAC1: ", text);
 
 			cipher.init(Cipher.ENCRYPT_MODE, aesKey2, ivSpec2);
 			hmac.init(new SecretKeySpec(aesKey2.getEncoded(), HMAC_ALG));
-			text = new byte[BLOCK_SIZE];
+			//dewdrop623: a whole chunk per cipher, hmac and stream call instead of one block. Only the last chunk is partial.
+			text = getChunk();
 			int len, last = 0;
-			while ((len = in.read(text)) > 0) {
-				cipher.update(text, 0, BLOCK_SIZE, text);
-				hmac.update(text);
-				out.write(text);	// Crypted file data block.
+			boolean padded = false;
+			while ((len = readFully(in, text, 0, CHUNK_SIZE)) > 0) {
+				int end;
+				if (version == 3 && len < CHUNK_SIZE) {	// PKCS#7 padding, 1 to 16 bytes.
+					end = (len / BLOCK_SIZE + 1) * BLOCK_SIZE;
+					Arrays.fill(text, len, end, (byte) (end - len));
+					padded = true;
+				} else {
+					end = (len + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+					Arrays.fill(text, len, end, (byte) 0);	// Last block padding.
+				}
+				cipher.update(text, 0, end, text);
+				hmac.update(text, 0, end);
+				out.write(text, 0, end);	// Crypted file data blocks.
 				last = len;
 
 				//dewdrop623: modified for progress bar and operation cancel functionality
-				if (CryptoThread.operationInProgress) {
-					CryptoThread.updateProgressOnInterval(len);
-				} else {
-					return;
+				if (job != null) {
+					if (job.isCancelled()) {
+						return;
+					}
+					job.addBytesProcessed(len);
 				}
 			}
-			last &= 0x0f;
-			out.write(last);	// Last block size mod 16.
-			debug("Last block size mod 16: " + last);
+			if (version == 3) {
+				if (!padded) {	// The input filled the last chunk or was empty: a whole block of padding.
+					Arrays.fill(text, 0, BLOCK_SIZE, (byte) BLOCK_SIZE);
+					cipher.update(text, 0, BLOCK_SIZE, text);
+					hmac.update(text, 0, BLOCK_SIZE);
+					out.write(text, 0, BLOCK_SIZE);
+				}
+			} else {
+				last &= 0x0f;
+				out.write(last);	// Last block size mod 16.
+				debug("Last block size mod 16: " + last);
+			}
+			cipher.doFinal();
 
 			text = hmac.doFinal();
 			out.write(text);	// HMAC from previous cyphertext.
@@ -374,7 +471,7 @@ public class AESCrypt {
 	/**
 	 * The file at <tt>fromPath</tt> is decrypted and saved at <tt>toPath</tt> location.
 	 * <p>
-	 * The input file can be encrypted using version 1 or 2 of aescrypt.<br>
+	 * The input file can be encrypted using version 1, 2 or 3 of aescrypt.<br>
 	 * @throws IOException when there are I/O errors.
 	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
 	 */
@@ -388,7 +485,7 @@ public class AESCrypt {
 			out = new BufferedOutputStream(new FileOutputStream(toPath));
 			debug("Opened for writing: " + toPath);
 
-			decrypt(new File(fromPath).length(), in, out);
+			decrypt(in, out);
 		} finally {
 			if (in != null) {
 				in.close();
@@ -403,51 +500,84 @@ public class AESCrypt {
 	/**
 	 * The input stream is decrypted and saved to the output stream.
 	 * <p>
-	 * The input file size is needed in advance.<br>
-	 * The input stream can be encrypted using version 1 or 2 of aescrypt.<br>
+	 * dewdrop623: the input size is not used anymore, see {@link #decrypt(InputStream, OutputStream)}.<br>
+	 * The input stream can be encrypted using version 1, 2 or 3 of aescrypt.<br>
 	 * None of the streams are closed.
 	 * @throws IOException when there are I/O errors.
 	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
 	 */
 	public void decrypt(long inSize, InputStream in, OutputStream out)
 			throws IOException, GeneralSecurityException {
+		decrypt(in, out);
+	}
+
+
+	/**
+	 * The input stream is decrypted and saved to the output stream.
+	 * <p>
+	 * dewdrop623: works on streams of unknown length, like the ones of most document providers, in constant memory.
+	 * A stream ends with a trailer (the HMAC, and before version 3 the last block size mod 16), so the end of the file contents
+	 * is only known at the end of the stream: the last trailer sized bytes read are held back, and the last plaintext block is
+	 * written once the stream has ended and the HMAC has been checked.<br>
+	 * The input stream can be encrypted using version 1, 2 or 3 of aescrypt.<br>
+	 * None of the streams are closed.
+	 * @throws StreamException when the input is not an aescrypt stream, the password is wrong or the stream was altered.
+	 * @throws IOException when there are I/O errors.
+	 * @throws GeneralSecurityException if the platform does not support the required cryptographic methods.
+	 */
+	public void decrypt(InputStream in, OutputStream out)
+			throws IOException, GeneralSecurityException {
 		try {
 			byte[] text = null, backup = null;
-			long total = 3 + 1 + 1 + BLOCK_SIZE + BLOCK_SIZE + KEY_SIZE + SHA_SIZE + 1 + SHA_SIZE;
 			int version;
 
 			text = new byte[3];
 			readBytes(in, text);	// Heading.
 			if (!new String(text, StandardCharsets.UTF_8).equals("AES")) {
-				throw new IOException("Invalid file header");
+				throw new StreamException(StreamException.INVALID_STREAM, "Invalid file header");
 			}
 
 			version = in.read();	// Version.
-			if (version < 1 || version > 2) {
-				throw new IOException("Unsupported version number: " + version);
+			if (version < 1 || version > 3) {
+				throw new StreamException(StreamException.UNSUPPORTED_VERSION, "Unsupported version number: " + version);
 			}
 			debug("Version: " + version);
 
 			in.read();	// Reserved.
 
-			if (version == 2) {	// Extensions.
+			if (version >= 2) {	// Extensions.
 				text = new byte[2];
 				int len;
 				do {
 					readBytes(in, text);
 					len = ((0xff & (int) text[0]) << 8) | (0xff & (int) text[1]);
-					if (in.skip(len) != len) {
-						throw new IOException("Unexpected end of extension");
+					//dewdrop623: read instead of skipped, skip() may stop short on a stream that isn't at its end
+					if (readFully(in, getChunk(), 0, len) != len) {
+						throw new StreamException(StreamException.INVALID_STREAM, "Unexpected end of extension");
 					}
-					total += 2 + len;
 					debug("Skipped extension sized: " + len);
 				} while (len != 0);
 			}
 
+			int iterations = 0;
+			if (version == 3) {	// KDF iterations.
+				text = new byte[4];
+				readBytes(in, text);
+				iterations = ((0xff & text[0]) << 24) | ((0xff & text[1]) << 16) | ((0xff & text[2]) << 8) | (0xff & text[3]);
+				if (iterations < 1 || iterations > MAX_KEY_ITERATIONS) {
+					throw new StreamException(StreamException.INVALID_ITERATIONS, "Invalid KDF iterations: " + iterations);
+				}
+				debug("KDF iterations: " + iterations);
+			}
+
 			text = new byte[BLOCK_SIZE];
 			readBytes(in, text);	// Initialization Vector.
 			ivSpec1 = new IvParameterSpec(text);
-			aesKey1 = new SecretKeySpec(generateAESKey1(ivSpec1.getIV(), password), CRYPT_ALG);
+			if (version == 3) {
+				aesKey1 = new SecretKeySpec(generateAESKey3(ivSpec1.getIV(), iterations), CRYPT_ALG);
+			} else {
+				aesKey1 = new SecretKeySpec(generateAESKey1(ivSpec1.getIV(), password), CRYPT_ALG);
+			}
 			debug("IV1: ", ivSpec1.getIV());
 			debug("AES1: ", aesKey1.getEncoded());
 
@@ -462,57 +592,93 @@ public class AESCrypt {
 			debug("AES2: ", aesKey2.getEncoded());
 
 			hmac.init(new SecretKeySpec(aesKey1.getEncoded(), HMAC_ALG));
-			backup = hmac.doFinal(backup);
+			hmac.update(backup);
+			if (version == 3) {	// Version 3 authenticates the version too, the plain form is accepted as well.
+				hmac.update((byte) version);
+			}
+			byte[] mac = hmac.doFinal();
 			text = new byte[SHA_SIZE];
 			readBytes(in, text);	// HMAC and authenticity test.
-			if (!Arrays.equals(backup, text)) {
-				throw new IOException("Message has been altered or password incorrect");
+			if (!Arrays.equals(mac, text) && (version != 3 || !Arrays.equals(hmac.doFinal(backup), text))) {
+				throw new StreamException(StreamException.INVALID_PASSWORD, "Message has been altered or password incorrect");
 			}
 			debug("HMAC1: ", text);
 
-			total = inSize - total;	// Payload size.
-			if (total % BLOCK_SIZE != 0) {
-				throw new IOException("Input file is corrupt");
-			}
-			if (total == 0) {	// Hack: empty files won't enter block-processing for-loop below.
-				in.read();	// Skip last block size mod 16.
-			}
-			debug("Payload size: " + total);
-
 			cipher.init(Cipher.DECRYPT_MODE, aesKey2, ivSpec2);
 			hmac.init(new SecretKeySpec(aesKey2.getEncoded(), HMAC_ALG));
-			backup = new byte[BLOCK_SIZE];
-			text = new byte[BLOCK_SIZE];
-			for (long block = (total / BLOCK_SIZE); block > 0; block--) {
-				int len = BLOCK_SIZE;
-				if (in.read(backup, 0, len) != len) {	// Cyphertext block.
-					throw new IOException("Unexpected end of file contents");
-				}
-				cipher.update(backup, 0, len, text);
-				hmac.update(backup, 0, len);
-				if (block == 1) {
-					int last = in.read();	// Last block size mod 16.
-					debug("Last block size mod 16: " + last);
-					len = (last > 0 ? last : BLOCK_SIZE);
+			//dewdrop623: a whole chunk per cipher, hmac and stream call instead of one block, authenticated before it is decrypted in place.
+			int trailerSize = version == 3 ? SHA_SIZE : TRAILER_SIZE;
+			text = getChunk();
+			backup = new byte[BLOCK_SIZE];	// Last plaintext block so far, written once it is known not to be the last one.
+			boolean blockPending = false;
+			int held = 0;
+			int len;
+			while ((len = held + readFully(in, text, held, CHUNK_SIZE + trailerSize - held)) == CHUNK_SIZE + trailerSize) {
+				// A full chunk of cyphertext blocks, followed by a trailer's worth of bytes that may be the end of the stream.
+				hmac.update(text, 0, CHUNK_SIZE);
+				cipher.update(text, 0, CHUNK_SIZE, text);
+				if (blockPending) {
+					out.write(backup);
 				}
-				out.write(text, 0, len);
+				out.write(text, 0, CHUNK_SIZE - BLOCK_SIZE);
+				System.arraycopy(text, CHUNK_SIZE - BLOCK_SIZE, backup, 0, BLOCK_SIZE);
+				blockPending = true;
+				System.arraycopy(text, CHUNK_SIZE, text, 0, trailerSize);
+				held = trailerSize;
 
 				//dewdrop623: modified for progress bar and operation cancel functionality
-				if (CryptoThread.operationInProgress) {
-					CryptoThread.updateProgressOnInterval(len);
-				} else {
-					return;
+				if (job != null) {
+					if (job.isCancelled()) {
+						return;
+					}
+					job.addBytesProcessed(CHUNK_SIZE);
 				}
 			}
-			out.write(cipher.doFinal());
 
-			backup = hmac.doFinal();
-			text = new byte[SHA_SIZE];
-			readBytes(in, text);	// HMAC and authenticity test.
-			if (!Arrays.equals(backup, text)) {
-				throw new IOException("Message has been altered or password incorrect");
+			// End of stream: the rest of the cyphertext blocks and the trailer.
+			int payload = len - trailerSize;
+			if (payload < 0 || payload % BLOCK_SIZE != 0 || (version == 3 && payload == 0 && !blockPending)) {
+				throw new StreamException(StreamException.INVALID_STREAM, "Input file is corrupt");
+			}
+			if (payload > 0) {
+				hmac.update(text, 0, payload);
+				cipher.update(text, 0, payload, text);
+			}
+			cipher.doFinal();
+			backup = blockPending ? backup : null;
+			mac = hmac.doFinal();
+			if (!Arrays.equals(mac, Arrays.copyOfRange(text, len - SHA_SIZE, len))) {	// HMAC and authenticity test.
+				throw new StreamException(StreamException.ALTERED_MESSAGE, "Message has been altered or password incorrect");
+			}
+			debug("HMAC2: ", mac);
+
+			int padding;
+			if (version == 3) {	// PKCS#7 padding, as many bytes as the value of each.
+				byte[] lastBlock = payload > 0 ? Arrays.copyOfRange(text, payload - BLOCK_SIZE, payload) : backup;
+				padding = 0xff & lastBlock[BLOCK_SIZE - 1];
+				boolean paddingValid = padding >= 1 && padding <= BLOCK_SIZE;
+				for (int i = 0; paddingValid && i < padding; i++) {
+					paddingValid = lastBlock[BLOCK_SIZE - 1 - i] == padding;
+				}
+				if (!paddingValid) {
+					throw new StreamException(StreamException.INVALID_STREAM, "Invalid padding");
+				}
+			} else {
+				int last = text[payload] & 0x0f;	// Last block size mod 16.
+				debug("Last block size mod 16: " + last);
+				padding = last > 0 ? BLOCK_SIZE - last : 0;
+			}
+			if (payload > 0) {
+				if (backup != null) {
+					out.write(backup);
+				}
+				out.write(text, 0, payload - padding);
+			} else if (backup != null) {
+				out.write(backup, 0, BLOCK_SIZE - padding);
+			}
+			if (job != null) {
+				job.addBytesProcessed(len);
 			}
-			debug("HMAC2: ", text);
 		} catch (InvalidKeyException e) {
 			throw new GeneralSecurityException(JCE_EXCEPTION_MESSAGE, e);
 		}
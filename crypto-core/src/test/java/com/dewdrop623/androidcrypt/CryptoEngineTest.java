@@ -0,0 +1,193 @@
+package com.dewdrop623.androidcrypt;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * The encrypt/decrypt path on a plain JVM. The native tests need libandroidcrypt built for the host (-PhostNative) and are skipped without it.
+ */
+public class CryptoEngineTest {
+    private static final String PASSWORD = "crypto-core";
+    private static final int KEY_ITERATIONS = 10000;
+    private static boolean nativeLibraryLoaded = false;
+
+    @BeforeClass
+    public static void loadLibrary() {
+        try {
+            System.loadLibrary("androidcrypt");
+            nativeLibraryLoaded = true;
+        } catch (UnsatisfiedLinkError ule) {
+            System.err.println("libandroidcrypt not built for this host, skipping the native engine: " + ule.getMessage());
+        }
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random().nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] encrypt(CryptoEngine engine, CryptoJob job, byte[] plaintext) {
+        ByteArrayOutputStream cipherTextOutputStream = new ByteArrayOutputStream();
+        assertThat(engine.encrypt(job, PASSWORD, KEY_ITERATIONS, new ByteArrayInputStream(plaintext), cipherTextOutputStream))
+                .isEqualTo(CryptoEngine.STATUS_ENCRYPTION_COMPLETED);
+        return cipherTextOutputStream.toByteArray();
+    }
+
+    private static byte[] decrypt(CryptoEngine engine, CryptoJob job, byte[] cipherText) {
+        ByteArrayOutputStream plaintextOutputStream = new ByteArrayOutputStream();
+        assertThat(engine.decrypt(job, PASSWORD, new ByteArrayInputStream(cipherText), plaintextOutputStream))
+                .isEqualTo(CryptoEngine.STATUS_DECRYPTION_COMPLETED);
+        return plaintextOutputStream.toByteArray();
+    }
+
+    @Test
+    public void jcaRoundTripTest() {
+        CryptoEngine engine = new JcaCryptoEngine();
+        for (int size : new int[]{0, 1, 16, 64 * 1024, 3 * 1024 * 1024 + 7}) {
+            byte[] plaintext = randomBytes(size);
+            CryptoJob encryptionJob = new CryptoJob(CryptoJob.OPERATION_TYPE_ENCRYPTION);
+            byte[] cipherText = encrypt(engine, encryptionJob, plaintext);
+            assertThat(encryptionJob.getBytesProcessed()).isEqualTo((long) size);
+            assertThat(encryptionJob.getMetrics().getNativeMetric(JNIInterface.METRIC_BYTES_PROCESSED)).isEqualTo((long) size);
+            assertThat(decrypt(engine, new CryptoJob(CryptoJob.OPERATION_TYPE_DECRYPTION), cipherText)).isEqualTo(plaintext);
+        }
+    }
+
+    @Test
+    public void jcaStatusTest() {
+        CryptoEngine engine = new JcaCryptoEngine();
+        byte[] cipherText = encrypt(engine, null, randomBytes(1000));
+        assertThat(engine.verify(null, PASSWORD, new ByteArrayInputStream(cipherText))).isEqualTo(CryptoEngine.STATUS_DECRYPTION_COMPLETED);
+        assertThat(engine.verify(null, "wrong", new ByteArrayInputStream(cipherText))).isEqualTo(CryptoEngine.STATUS_DECRYPTION_INVALID_PASSWORD);
+        byte[] altered = cipherText.clone();
+        altered[altered.length - 100] ^= 1;
+        assertThat(engine.verify(null, PASSWORD, new ByteArrayInputStream(altered))).isEqualTo(CryptoEngine.STATUS_ALTERED_MESSAGE);
+        altered = cipherText.clone();
+        altered[3] = 9;
+        assertThat(engine.verify(null, PASSWORD, new ByteArrayInputStream(altered))).isEqualTo(CryptoEngine.STATUS_UNSUPPORTED_VERSION);
+        assertThat(engine.verify(null, PASSWORD, new ByteArrayInputStream(new byte[]{'A', 'E'}))).isEqualTo(CryptoEngine.STATUS_INVALID_STREAM);
+
+        CryptoJob cancelledJob = new CryptoJob(CryptoJob.OPERATION_TYPE_DECRYPTION);
+        cancelledJob.cancel();
+        assertThat(engine.decrypt(cancelledJob, PASSWORD, new ByteArrayInputStream(cipherText), new ByteArrayOutputStream()))
+                .isEqualTo(CryptoEngine.STATUS_DECRYPTION_CANCELLED);
+    }
+
+    /*
+    * What either engine encrypts the other decrypts.
+     */
+    @Test
+    public void nativeCrossEngineTest() throws IOException {
+        assumeTrue(nativeLibraryLoaded);
+        CryptoEngine[] engines = {new NativeCryptoEngine(), new JcaCryptoEngine()};
+        for (int size : new int[]{0, 15, 1024 * 1024, 9 * 1024 * 1024 + 3}) {
+            byte[] plaintext = randomBytes(size);
+            for (CryptoEngine encryptionEngine : engines) {
+                byte[] cipherText = encrypt(encryptionEngine, new CryptoJob(CryptoJob.OPERATION_TYPE_ENCRYPTION), plaintext);
+                for (CryptoEngine decryptionEngine : engines) {
+                    assertThat(decrypt(decryptionEngine, new CryptoJob(CryptoJob.OPERATION_TYPE_DECRYPTION), cipherText)).isEqualTo(plaintext);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void nativeFileDescriptorTest() throws IOException {
+        assumeTrue(nativeLibraryLoaded);
+        FileDescriptorCryptoEngine engine = new NativeCryptoEngine();
+        byte[] plaintext = randomBytes(9 * 1024 * 1024 + 3);
+        File plaintextFile = File.createTempFile("crypto-core", null);
+        File cipherTextFile = File.createTempFile("crypto-core", ".aes");
+        File decryptedFile = File.createTempFile("crypto-core", null);
+        try {
+            Files.write(plaintextFile.toPath(), plaintext);
+            int ioFlags = JNIInterface.IO_FLAG_MMAP_INPUT | JNIInterface.IO_FLAG_PIPELINED | JNIInterface.IO_FLAG_PARALLEL_DECRYPT;
+            try (FileInputStream input = new FileInputStream(plaintextFile); FileOutputStream output = new FileOutputStream(cipherTextFile)) {
+                assertThat(engine.encrypt(null, PASSWORD, KEY_ITERATIONS, input, output)).isEqualTo(CryptoEngine.STATUS_ENCRYPTION_COMPLETED);
+            }
+            try (FileInputStream input = new FileInputStream(cipherTextFile); FileOutputStream output = new FileOutputStream(decryptedFile)) {
+                assertThat(engine.decryptFd(null, PASSWORD, getFd(input.getFD()), getFd(output.getFD()), ioFlags))
+                        .isEqualTo(CryptoEngine.STATUS_DECRYPTION_COMPLETED);
+            }
+            assertThat(Files.readAllBytes(decryptedFile.toPath())).isEqualTo(plaintext);
+        } finally {
+            plaintextFile.delete();
+            cipherTextFile.delete();
+            decryptedFile.delete();
+        }
+    }
+
+    /*
+    * An input that fails part way must fail the operation, not end up as a complete looking file.
+     */
+    @Test
+    public void nativeReadErrorTest() throws IOException {
+        assumeTrue(nativeLibraryLoaded);
+        FileDescriptorCryptoEngine engine = new NativeCryptoEngine();
+        //-1 is no descriptor at all, read() fails with EBADF
+        int badFd = -1;
+        File outputFile = File.createTempFile("crypto-core", ".aes");
+        try (FileOutputStream output = new FileOutputStream(outputFile)) {
+            for (int ioFlags : new int[]{0, JNIInterface.IO_FLAG_PIPELINED}) {
+                assertThat(engine.encryptFd(null, PASSWORD, KEY_ITERATIONS, badFd, getFd(output.getFD()), ioFlags))
+                        .isEqualTo(CryptoEngine.STATUS_ENCRYPTION_IO_ERROR);
+                assertThat(engine.decryptFd(null, PASSWORD, badFd, getFd(output.getFD()), ioFlags))
+                        .isEqualTo(CryptoEngine.STATUS_DECRYPTION_IO_ERROR);
+            }
+        } finally {
+            outputFile.delete();
+        }
+    }
+
+    //the same through the java stream bridge: a stream that throws part way
+    @Test
+    public void nativeStreamReadErrorTest() {
+        assumeTrue(nativeLibraryLoaded);
+        CryptoEngine engine = new NativeCryptoEngine();
+        byte[] plaintext = randomBytes(3 * 1024 * 1024);
+        InputStream failingInput = new FilterInputStream(new ByteArrayInputStream(plaintext)) {
+            private int bytesRead = 0;
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (bytesRead > plaintext.length / 2) {
+                    throw new IOException("provider went away");
+                }
+                int read = super.read(b, off, len);
+                bytesRead += Math.max(read, 0);
+                return read;
+            }
+        };
+        assertThat(engine.encrypt(null, PASSWORD, KEY_ITERATIONS, failingInput, new ByteArrayOutputStream()))
+                .isEqualTo(CryptoEngine.STATUS_ENCRYPTION_IO_ERROR);
+    }
+
+    //the descriptor number behind a FileDescriptor, the JDK has no public accessor. build.gradle opens java.io for it.
+    private static int getFd(FileDescriptor fileDescriptor) {
+        try {
+            Field fd = FileDescriptor.class.getDeclaredField("fd");
+            fd.setAccessible(true);
+            return fd.getInt(fileDescriptor);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            assumeTrue("no access to FileDescriptor.fd: " + e, false);
+            return -1;
+        }
+    }
+}